@@ -0,0 +1,38 @@
+package com.xml.handlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Vue bornée d'un flux partagé ; la fermeture ne ferme pas le flux sous-jacent.
+ */
+final class BoundedStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+
+    BoundedStream(InputStream in, long length) {
+        this.in = in;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) return -1;
+        int c = in.read();
+        if (c >= 0) remaining--;
+        return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) return -1;
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0) remaining -= n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        // Le flux sous-jacent reste ouvert (lot d'enregistrements, reprise d'analyse)
+    }
+}
@@ -0,0 +1,248 @@
+package com.xml.handlers;
+
+import java.io.ByteArrayInputStream;
+import java.io.CharConversionException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Décodeur UTF-8 qui retrouve la position en octets d'un caractère déjà lu.
+ * <p>
+ * Woodstox ne fournit que des positions en caractères ({@code getStartingByteOffset()} vaut
+ * toujours -1) : en lui donnant ce lecteur plutôt que le flux d'octets, chaque position en
+ * caractères se convertit en position en octets. Seuls les caractères multi-octets sont notés
+ * (indice et octets supplémentaires cumulés), et oubliés dès qu'une position plus lointaine est
+ * demandée : les conversions doivent donc se faire dans l'ordre du document. Un texte ASCII ne
+ * coûte rien de plus.
+ * <p>
+ * Un document qui déclare un autre encodage (ou commence par une marque UTF-16) n'est pas décodé
+ * ici : {@link #isUtf8()} vaut false et {@link #remaining()} rend le flux d'octets intact.
+ */
+final class ByteOffsetReader extends Reader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']+)[\"']");
+
+    private final InputStream in;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private final boolean utf8;
+
+    // Octets sautés au début (marque UTF-8)
+    private final long base;
+    // Octets consommés avant buf[0]
+    private long consumed;
+    // Caractères produits
+    private long chars;
+    // Seconde moitié d'une paire de substitution qui n'a pas tenu dans le tampon de l'appelant
+    private int pendingLow = -1;
+
+    // Caractères multi-octets pas encore dépassés : indice et octets supplémentaires cumulés
+    private long[] markChar = new long[256];
+    private long[] markExtra = new long[256];
+    private int head;
+    private int tail;
+    private long passedExtra;
+
+    ByteOffsetReader(InputStream in) throws IOException {
+        this.in = in;
+        fill();
+        int skip = 0;
+        if (limit >= 3 && (buf[0] & 0xFF) == 0xEF && (buf[1] & 0xFF) == 0xBB && (buf[2] & 0xFF) == 0xBF) {
+            skip = 3;
+        }
+        this.utf8 = declaresUtf8(skip);
+        if (utf8) {
+            pos = skip;
+        }
+        this.base = skip;
+    }
+
+    private boolean declaresUtf8(int start) {
+        if (limit - start >= 2) {
+            int b0 = buf[start] & 0xFF;
+            int b1 = buf[start + 1] & 0xFF;
+            // Marques UTF-16/UTF-32 ou déclaration sur plusieurs octets
+            if (b0 == 0 || b1 == 0 || b0 == 0xFE || b0 == 0xFF) {
+                return false;
+            }
+        }
+        String head = new String(buf, start, Math.min(limit - start, 256), StandardCharsets.ISO_8859_1);
+        if (!head.startsWith("<?xml")) {
+            return true;
+        }
+        int end = head.indexOf("?>");
+        Matcher m = ENCODING.matcher(end >= 0 ? head.substring(0, end) : head);
+        if (!m.find()) {
+            return true;
+        }
+        String encoding = m.group(1).toUpperCase(Locale.ROOT);
+        return encoding.equals("UTF-8") || encoding.equals("UTF8");
+    }
+
+    /**
+     * @return true si le document est décodé par ce lecteur (positions en octets disponibles)
+     */
+    boolean isUtf8() {
+        return utf8;
+    }
+
+    /**
+     * Flux d'octets d'origine, pour un document qui n'est pas en UTF-8.
+     */
+    InputStream remaining() {
+        return new SequenceInputStream(new ByteArrayInputStream(buf, pos, limit - pos), in);
+    }
+
+    /**
+     * Position en octets du caractère d'indice {@code charOffset}. Les appels successifs doivent
+     * demander des positions croissantes.
+     *
+     * @return la position, ou -1 si le document n'est pas décodé par ce lecteur
+     */
+    long byteOffset(long charOffset) {
+        if (!utf8 || charOffset < 0) {
+            return -1;
+        }
+        while (head < tail && markChar[head] < charOffset) {
+            passedExtra = markExtra[head++];
+        }
+        if (head == tail) {
+            head = 0;
+            tail = 0;
+        }
+        return base + charOffset + passedExtra;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        if (pendingLow >= 0) {
+            cbuf[off + n++] = (char) pendingLow;
+            pendingLow = -1;
+            chars++;
+        }
+        while (n < len) {
+            if (pos >= limit) {
+                if (n > 0 || !fill()) {
+                    break;
+                }
+            }
+            int b = buf[pos] & 0xFF;
+            if (b < 0x80) {
+                cbuf[off + n++] = (char) b;
+                pos++;
+                chars++;
+                continue;
+            }
+            int extra = b >= 0xF8 ? -1 : b >= 0xF0 ? 3 : b >= 0xE0 ? 2 : b >= 0xC0 ? 1 : -1;
+            if (extra < 0) {
+                throw invalid(0);
+            }
+            if (limit - pos <= extra) {
+                // Séquence coupée par la fin du tampon
+                if (n > 0) {
+                    break;
+                }
+                while (limit - pos <= extra) {
+                    if (!fill()) {
+                        throw invalid(limit - pos);
+                    }
+                }
+            }
+            int cp = b & (0x3F >> extra);
+            for (int i = 1; i <= extra; i++) {
+                int c = buf[pos + i] & 0xFF;
+                if ((c & 0xC0) != 0x80) {
+                    throw invalid(i);
+                }
+                cp = (cp << 6) | (c & 0x3F);
+            }
+            if (cp >= 0x10000 && n + 2 > len && n > 0) {
+                break;
+            }
+            // Une paire de substitution compte deux caractères pour quatre octets
+            mark(chars, cp >= 0x10000 ? extra - 1 : extra);
+            pos += extra + 1;
+            if (cp >= 0x10000) {
+                cbuf[off + n++] = Character.highSurrogate(cp);
+                chars++;
+                if (n < len) {
+                    cbuf[off + n++] = Character.lowSurrogate(cp);
+                    chars++;
+                } else {
+                    pendingLow = Character.lowSurrogate(cp);
+                }
+            } else {
+                cbuf[off + n++] = (char) cp;
+                chars++;
+            }
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    private void mark(long charIndex, int extra) {
+        if (tail == markChar.length) {
+            if (head > 0) {
+                System.arraycopy(markChar, head, markChar, 0, tail - head);
+                System.arraycopy(markExtra, head, markExtra, 0, tail - head);
+                tail -= head;
+                head = 0;
+            } else {
+                markChar = Arrays.copyOf(markChar, markChar.length * 2);
+                markExtra = Arrays.copyOf(markExtra, markExtra.length * 2);
+            }
+        }
+        long previous = tail > head ? markExtra[tail - 1] : passedExtra;
+        markChar[tail] = charIndex;
+        markExtra[tail] = previous + extra;
+        tail++;
+    }
+
+    private CharConversionException invalid(int index) {
+        return new CharConversionException("Séquence UTF-8 invalide à l'octet " + (consumed + pos + index));
+    }
+
+    /**
+     * Garde les octets non lus en tête du tampon et le complète.
+     *
+     * @return false à la fin du flux sans nouvel octet
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int kept = limit - pos;
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, kept);
+            consumed += pos;
+        }
+        pos = 0;
+        limit = kept;
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,140 @@
+package com.xml.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.xml.services.DirectIo;
+
+/**
+ * Sequential InputStream for full scans of huge files that bypasses the page cache.
+ *
+ * The file is opened with O_DIRECT (see {@link DirectIo}) and read in large block-aligned
+ * chunks into an aligned direct buffer, so a scan of a 200GB file does not evict the rest of
+ * the machine's cached data. If the filesystem refuses O_DIRECT, regular positional reads
+ * are used with the same buffer.
+ *
+ * Memory usage: one 1MB direct buffer per open stream.
+ */
+public class DirectIoInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final boolean direct;
+    private final int alignment;
+    private final long fileLength;
+    private final ByteBuffer buffer;
+
+    private long bufferFileStart; // File offset of buffer index 0
+    private int bufferLimit;
+    private long position;        // Next byte to return
+
+    public DirectIoInputStream(File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * @param start file offset of the first byte to read (need not be aligned)
+     */
+    public DirectIoInputStream(File file, long start) throws IOException {
+        Path path = file.toPath();
+        FileChannel directChannel = DirectIo.open(path, StandardOpenOption.READ);
+        this.direct = directChannel != null;
+        this.channel = direct ? directChannel : FileChannel.open(path, StandardOpenOption.READ);
+        this.alignment = direct ? DirectIo.alignment(path) : 1;
+        this.fileLength = channel.size();
+        this.buffer = DirectIo.allocateAligned(BUFFER_SIZE, Math.max(alignment, 8));
+        this.position = start;
+        this.bufferFileStart = start;
+    }
+
+    /**
+     * @return true if reads bypass the page cache
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long index = position - bufferFileStart;
+        if (index < 0 || index >= bufferLimit) {
+            if (!fill()) {
+                return -1;
+            }
+            index = position - bufferFileStart;
+        }
+        position++;
+        return buffer.get((int) index) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long index = position - bufferFileStart;
+        if (index < 0 || index >= bufferLimit) {
+            if (!fill()) {
+                return -1;
+            }
+            index = position - bufferFileStart;
+        }
+        int n = (int) Math.min(len, bufferLimit - index);
+        buffer.get((int) index, b, off, n);
+        position += n;
+        return n;
+    }
+
+    /**
+     * Moves to an absolute file offset; the buffered chunk is reused if it covers it.
+     */
+    public void seek(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, fileLength - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, fileLength - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Loads the aligned chunk containing the current position.
+     * O_DIRECT requires aligned offsets: reading stops at EOF, where the last read may be short.
+     */
+    private boolean fill() throws IOException {
+        if (position >= fileLength) {
+            return false;
+        }
+        long start = DirectIo.alignDown(position, alignment);
+        buffer.clear();
+        while (buffer.hasRemaining() && start + buffer.position() < fileLength) {
+            if (channel.read(buffer, start + buffer.position()) <= 0) {
+                break;
+            }
+        }
+        bufferFileStart = start;
+        bufferLimit = buffer.position();
+        return position - start < bufferLimit;
+    }
+}
@@ -0,0 +1,182 @@
+package com.xml.handlers;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.xml.models.XMLError;
+
+/**
+ * Résultats de validation XSD par enregistrement, indexés par l'empreinte de leur contenu.
+ * <p>
+ * La clé combine l'empreinte des octets de l'enregistrement (patché ou non), la version du
+ * schéma et le contexte d'espaces de noms de la racine : un enregistrement inchangé réutilise ses
+ * diagnostics, où qu'il se trouve dans le document. Les lignes des diagnostics sont relatives à
+ * la balise ouvrante de l'enregistrement (ligne 1).
+ * <p>
+ * Pour ne pas relire les enregistrements non patchés, leur empreinte est conservée par indice de
+ * fragment, tant que le fichier décrit par l'index ne change pas.
+ */
+public final class FragmentValidationCache {
+
+    private static final int DEFAULT_MAX_RESULTS = 1_000_000;
+
+    // Résultat partagé des enregistrements valides
+    static final List<XMLError> VALID = List.of();
+
+    private final int maxResults;
+
+    // Ordre d'accès : le premier élément est le moins récemment utilisé
+    private final LinkedHashMap<Long, List<XMLError>> results = new LinkedHashMap<>(1024, 0.75f, true);
+
+    // Empreintes des enregistrements non patchés du fichier "stamp", par indice de premier fragment (0 = inconnue)
+    private String stamp;
+    private long[] contentHashes = new long[0];
+
+    private long hits;
+
+    public FragmentValidationCache() {
+        this(DEFAULT_MAX_RESULTS);
+    }
+
+    public FragmentValidationCache(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * Rattache le cache au fichier indexé ; les empreintes par fragment sont oubliées si le
+     * fichier a changé (les résultats, indexés par contenu, restent valables).
+     */
+    synchronized void attach(String fileStamp, int fragmentCount) {
+        if (!fileStamp.equals(stamp) || contentHashes.length != fragmentCount) {
+            stamp = fileStamp;
+            contentHashes = new long[fragmentCount];
+        }
+    }
+
+    synchronized long getContentHash(int fragment) {
+        return fragment < contentHashes.length ? contentHashes[fragment] : 0;
+    }
+
+    synchronized void setContentHash(int fragment, long hash) {
+        if (fragment < contentHashes.length) {
+            contentHashes[fragment] = hash;
+        }
+    }
+
+    /**
+     * @return diagnostics relatifs de l'enregistrement, null s'il n'a jamais été validé
+     */
+    synchronized List<XMLError> get(long key) {
+        List<XMLError> result = results.get(key);
+        if (result != null) {
+            hits++;
+        }
+        return result;
+    }
+
+    synchronized void put(long key, List<XMLError> diagnostics) {
+        results.put(key, diagnostics.isEmpty() ? VALID : List.copyOf(diagnostics));
+        if (results.size() > maxResults) {
+            results.remove(results.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Clé d'un résultat : empreinte du contenu et empreinte du contexte (schéma, espaces de noms).
+     */
+    static long key(long contentHash, long contextHash) {
+        long h = contentHash ^ Long.rotateLeft(contextHash * 0x9E3779B97F4A7C15L, 31);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Écrit les résultats et les empreintes par fragment, pour {@link #readFrom} à la prochaine session.
+     */
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        writeString(out, stamp != null ? stamp : "");
+        out.writeInt(contentHashes.length);
+        for (long hash : contentHashes) {
+            out.writeLong(hash);
+        }
+        out.writeInt(results.size());
+        for (Map.Entry<Long, List<XMLError>> entry : results.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (XMLError e : entry.getValue()) {
+                writeString(out, e.getMessage());
+                out.writeInt(e.getLineNumber());
+                writeString(out, e.getType());
+            }
+        }
+    }
+
+    /**
+     * Recharge un état écrit par {@link #writeTo}. Les résultats, indexés par contenu, sont
+     * toujours repris ; les empreintes par fragment seulement si le fichier n'a pas changé.
+     *
+     * @param sameFile le fichier décrit par l'état écrit est inchangé
+     */
+    public synchronized void readFrom(DataInputStream in, boolean sameFile) throws IOException {
+        String savedStamp = readString(in);
+        long[] hashes = new long[in.readInt()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = in.readLong();
+        }
+        if (sameFile && !savedStamp.isEmpty()) {
+            stamp = savedStamp;
+            contentHashes = hashes;
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long key = in.readLong();
+            int size = in.readInt();
+            List<XMLError> diagnostics = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                String message = readString(in);
+                int line = in.readInt();
+                diagnostics.add(new XMLError(message, line, readString(in)));
+            }
+            put(key, diagnostics);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = (s != null ? s : "").getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public synchronized int size() {
+        return results.size();
+    }
+
+    public synchronized void clear() {
+        results.clear();
+        stamp = null;
+        Arrays.fill(contentHashes, 0);
+        hits = 0;
+    }
+
+    /**
+     * @return nombre d'enregistrements dont le résultat a été réutilisé (pour les tests et le diagnostic)
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+}
@@ -0,0 +1,912 @@
+package com.xml.handlers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.xerces.impl.dv.InvalidDatatypeValueException;
+import org.apache.xerces.impl.dv.ValidatedInfo;
+import org.apache.xerces.impl.dv.XSSimpleType;
+import org.apache.xerces.impl.validation.ValidationState;
+import org.apache.xerces.impl.xpath.XPath;
+import org.apache.xerces.impl.xs.identity.IdentityConstraint;
+import org.apache.xerces.xs.XSAttributeDeclaration;
+import org.apache.xerces.xs.XSAttributeUse;
+import org.apache.xerces.xs.XSComplexTypeDefinition;
+import org.apache.xerces.xs.XSConstants;
+import org.apache.xerces.xs.XSElementDeclaration;
+import org.apache.xerces.xs.XSIDCDefinition;
+import org.apache.xerces.xs.XSModel;
+import org.apache.xerces.xs.XSModelGroup;
+import org.apache.xerces.xs.XSNamedMap;
+import org.apache.xerces.xs.XSObjectList;
+import org.apache.xerces.xs.XSParticle;
+import org.apache.xerces.xs.XSSimpleTypeDefinition;
+import org.apache.xerces.xs.XSTerm;
+import org.apache.xerces.xs.XSTypeDefinition;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Contraintes d'identité (xs:key, xs:unique, xs:keyref) de l'élément racine, vérifiées hors de
+ * Xerces pour la validation par enregistrement.
+ * <p>
+ * Xerces garde en mémoire la table des valeurs de chaque contrainte, et un enregistrement validé
+ * isolément ne voit pas celles des autres. Ici, les valeurs sont extraites pendant la validation
+ * de chaque enregistrement ({@link Extractor}), accumulées par worker puis écrites en runs triés
+ * sur disque ({@link Spill}). Une fusion externe des runs ({@link #merge}) fait ensuite défiler
+ * les valeurs de chaque clé dans l'ordre : doublons et références pendantes sont adjacents.
+ * <p>
+ * Les chemins du sélecteur et des champs sont ceux analysés par Xerces (préfixes résolus). Les
+ * valeurs sont comparées comme valeurs typées : le type simple de chaque champ est résolu dans le
+ * schéma à la compilation, et la valeur extraite est écrite sous une forme canonique (espaces
+ * traités selon la facette whiteSpace, {@code 01} et {@code 1.0} valent {@code 1} pour un décimal).
+ * Un champ dont le type ne peut être résolu, ou dont les valeurs ne se comparent pas ainsi
+ * (dates, flottants, QName, listes, unions), renvoie à la validation séquentielle.
+ */
+final class IdentityConstraints {
+
+    // Mémoire des valeurs d'un worker avant écriture d'un run trié
+    static final long DEFAULT_SPILL_BYTES = 16L * 1024 * 1024;
+
+    // Violations conservées (extraction et fusion)
+    private static final int MAX_VIOLATIONS = 1000;
+
+    // Séparateur des champs d'une valeur composée (absent d'un document XML)
+    private static final char FIELD_SEPARATOR = '\u0000';
+
+    // Sépare le type primitif de la forme canonique d'une valeur de champ
+    private static final char TYPE_SEPARATOR = '\u0001';
+
+    private static final byte KIND_KEY = 0;
+    private static final byte KIND_REF = 1;
+
+    /**
+     * Test de nom d'une étape : espace de noms et nom local, null pour « tous ».
+     */
+    private static final class NameTest {
+        final String uri;
+        final String local;
+        final boolean anyNamespace;
+
+        NameTest(String uri, String local, boolean anyNamespace) {
+            this.uri = uri;
+            this.local = local;
+            this.anyNamespace = anyNamespace;
+        }
+
+        boolean matches(String uri, String local) {
+            return (anyNamespace || this.uri.equals(uri)) && (this.local == null || this.local.equals(local));
+        }
+    }
+
+    /**
+     * Chemin relatif : étapes enfant, précédées ou non de {@code .//}, suivies pour un champ d'un
+     * attribut éventuel.
+     */
+    private static final class Steps {
+        final boolean descendant;
+        final NameTest[] elements;
+        final NameTest attribute;
+
+        Steps(boolean descendant, NameTest[] elements, NameTest attribute) {
+            this.descendant = descendant;
+            this.elements = elements;
+            this.attribute = attribute;
+        }
+    }
+
+    private static final class Constraint {
+        final int index;
+        final String name;
+        final short category;
+        // Clé de regroupement des valeurs : la contrainte elle-même, ou la clé visée par une référence
+        final int group;
+        final String referenced;
+        final Steps[] selector;
+        final Steps[][] fields;
+        // Type simple de chaque champ, selon lequel sa valeur est calculée
+        final XSSimpleType[] types;
+
+        Constraint(int index, String name, short category, int group, String referenced, Steps[] selector,
+                   Steps[][] fields, XSSimpleType[] types) {
+            this.index = index;
+            this.name = name;
+            this.category = category;
+            this.group = group;
+            this.referenced = referenced;
+            this.selector = selector;
+            this.fields = fields;
+            this.types = types;
+        }
+    }
+
+    /**
+     * Violation d'une contrainte, en ligne relative à son enregistrement.
+     */
+    static final class Violation {
+        final int record;
+        final int line;
+        final String message;
+
+        Violation(int record, int line, String message) {
+            this.record = record;
+            this.line = line;
+            this.message = message;
+        }
+    }
+
+    private final String element;
+    private final Constraint[] constraints;
+
+    private IdentityConstraints(String element, Constraint[] constraints) {
+        this.element = element;
+        this.constraints = constraints;
+    }
+
+    /**
+     * @return contraintes de la racine (éventuellement aucune) ; null si l'une d'elles utilise un
+     *         chemin que ce moteur ne sait pas suivre en flux, ou un champ dont il ne sait pas
+     *         comparer les valeurs
+     */
+    static IdentityConstraints compile(XSModel model, XSElementDeclaration root) {
+        XSNamedMap definitions = root.getIdentityConstraints();
+        List<XSIDCDefinition> ordered = new ArrayList<>();
+        for (int i = 0; i < definitions.getLength(); i++) {
+            ordered.add((XSIDCDefinition) definitions.item(i));
+        }
+        Constraint[] constraints = new Constraint[ordered.size()];
+        for (int i = 0; i < ordered.size(); i++) {
+            XSIDCDefinition definition = ordered.get(i);
+            if (!(definition instanceof IdentityConstraint)) {
+                return null;
+            }
+            IdentityConstraint idc = (IdentityConstraint) definition;
+            int group = i;
+            String referenced = null;
+            if (idc.getCategory() == XSIDCDefinition.IC_KEYREF) {
+                // La clé visée doit être déclarée sur la même racine
+                group = ordered.indexOf(idc.getRefKey());
+                if (group < 0) {
+                    return null;
+                }
+                referenced = idc.getRefKey().getName();
+            }
+            Steps[] selector = paths(idc.getSelector().getXPath(), false);
+            if (selector == null) {
+                return null;
+            }
+            Set<XSElementDeclaration> selected = declarations(model, root, selector);
+            if (selected == null) {
+                return null;
+            }
+            Steps[][] fields = new Steps[idc.getFieldCount()][];
+            XSSimpleType[] types = new XSSimpleType[fields.length];
+            for (int f = 0; f < fields.length; f++) {
+                fields[f] = paths(idc.getFieldAt(f).getXPath(), true);
+                if (fields[f] == null) {
+                    return null;
+                }
+                types[f] = fieldType(model, selected, fields[f]);
+                if (types[f] == null) {
+                    return null;
+                }
+            }
+            constraints[i] = new Constraint(i, idc.getName(), idc.getCategory(), group, referenced, selector, fields, types);
+        }
+        return new IdentityConstraints(root.getName(), constraints);
+    }
+
+    private static Steps[] paths(XPath xpath, boolean field) {
+        XPath.LocationPath[] alternatives = xpath.getLocationPaths();
+        Steps[] paths = new Steps[alternatives.length];
+        for (int a = 0; a < alternatives.length; a++) {
+            boolean descendant = false;
+            List<NameTest> elements = new ArrayList<>();
+            NameTest attribute = null;
+            XPath.Step[] steps = alternatives[a].steps;
+            for (int s = 0; s < steps.length; s++) {
+                XPath.Step step = steps[s];
+                switch (step.axis.type) {
+                    case XPath.Axis.SELF:
+                        break;
+                    case XPath.Axis.DESCENDANT:
+                        // .// seulement en tête de chemin
+                        if (!elements.isEmpty() || descendant) {
+                            return null;
+                        }
+                        descendant = true;
+                        break;
+                    case XPath.Axis.CHILD:
+                        if (attribute != null) {
+                            return null;
+                        }
+                        NameTest test = test(step.nodeTest);
+                        if (test == null) {
+                            return null;
+                        }
+                        elements.add(test);
+                        break;
+                    case XPath.Axis.ATTRIBUTE:
+                        if (!field || s != steps.length - 1) {
+                            return null;
+                        }
+                        attribute = test(step.nodeTest);
+                        if (attribute == null) {
+                            return null;
+                        }
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            // Le sélecteur doit désigner des éléments sous la racine, donc dans les enregistrements
+            if (!field && elements.isEmpty()) {
+                return null;
+            }
+            // Un champ sous .// n'est pas suivi en flux
+            if (field && descendant) {
+                return null;
+            }
+            paths[a] = new Steps(descendant, elements.toArray(new NameTest[0]), attribute);
+        }
+        return paths;
+    }
+
+    // === Types des champs ===
+
+    /**
+     * Déclarations des éléments que les chemins peuvent désigner depuis {@code context}.
+     *
+     * @return null si le modèle de contenu ne les fait pas toutes connaître (joker, groupe de substitution)
+     */
+    private static Set<XSElementDeclaration> declarations(XSModel model, XSElementDeclaration context, Steps[] paths) {
+        Set<XSElementDeclaration> result = identitySet();
+        for (Steps path : paths) {
+            Set<XSElementDeclaration> current = identitySet();
+            current.add(context);
+            if (path.descendant && !descendants(model, context, current)) {
+                return null;
+            }
+            for (NameTest step : path.elements) {
+                Set<XSElementDeclaration> next = identitySet();
+                for (XSElementDeclaration declaration : current) {
+                    List<XSElementDeclaration> children = children(model, declaration);
+                    if (children == null) {
+                        return null;
+                    }
+                    for (XSElementDeclaration child : children) {
+                        if (step.matches(uri(child.getNamespace()), child.getName())) {
+                            next.add(child);
+                        }
+                    }
+                }
+                current = next;
+            }
+            result.addAll(current);
+        }
+        return result;
+    }
+
+    private static boolean descendants(XSModel model, XSElementDeclaration declaration, Set<XSElementDeclaration> found) {
+        List<XSElementDeclaration> children = children(model, declaration);
+        if (children == null) {
+            return false;
+        }
+        for (XSElementDeclaration child : children) {
+            if (found.add(child) && !descendants(model, child, found)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return éléments enfants déclarés dans le modèle de contenu, null s'il admet des éléments
+     *         non déclarés ici
+     */
+    private static List<XSElementDeclaration> children(XSModel model, XSElementDeclaration declaration) {
+        List<XSElementDeclaration> children = new ArrayList<>();
+        XSTypeDefinition type = declaration.getTypeDefinition();
+        if (type.getTypeCategory() == XSTypeDefinition.COMPLEX_TYPE) {
+            XSParticle particle = ((XSComplexTypeDefinition) type).getParticle();
+            if (particle != null && !collect(model, particle.getTerm(), children)) {
+                return null;
+            }
+        }
+        return children;
+    }
+
+    private static boolean collect(XSModel model, XSTerm term, List<XSElementDeclaration> children) {
+        if (term instanceof XSElementDeclaration) {
+            XSElementDeclaration element = (XSElementDeclaration) term;
+            XSObjectList members = model.getSubstitutionGroup(element);
+            if (members != null && members.getLength() > 0) {
+                return false;
+            }
+            children.add(element);
+            return true;
+        }
+        if (!(term instanceof XSModelGroup)) {
+            return false;
+        }
+        XSObjectList particles = ((XSModelGroup) term).getParticles();
+        for (int i = 0; i < particles.getLength(); i++) {
+            if (!collect(model, ((XSParticle) particles.item(i)).getTerm(), children)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Type simple commun aux valeurs que le champ peut prendre sous les éléments désignés.
+     *
+     * @return null si aucun type, ou plusieurs types de valeurs différentes, ou un type dont les
+     *         valeurs ne sont pas comparées ici
+     */
+    private static XSSimpleType fieldType(XSModel model, Set<XSElementDeclaration> selected, Steps[] field) {
+        List<XSSimpleTypeDefinition> candidates = new ArrayList<>();
+        for (XSElementDeclaration context : selected) {
+            for (Steps path : field) {
+                Set<XSElementDeclaration> reached = declarations(model, context, new Steps[] {path});
+                if (reached == null) {
+                    return null;
+                }
+                for (XSElementDeclaration declaration : reached) {
+                    XSTypeDefinition type = declaration.getTypeDefinition();
+                    if (path.attribute == null) {
+                        candidates.add(contentType(type));
+                    } else if (type.getTypeCategory() == XSTypeDefinition.COMPLEX_TYPE) {
+                        XSComplexTypeDefinition complex = (XSComplexTypeDefinition) type;
+                        if (complex.getAttributeWildcard() != null) {
+                            return null;
+                        }
+                        XSObjectList uses = complex.getAttributeUses();
+                        for (int u = 0; u < uses.getLength(); u++) {
+                            XSAttributeDeclaration attribute = ((XSAttributeUse) uses.item(u)).getAttrDeclaration();
+                            if (path.attribute.matches(uri(attribute.getNamespace()), attribute.getName())) {
+                                candidates.add(attribute.getTypeDefinition());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        XSSimpleType result = null;
+        for (XSSimpleTypeDefinition candidate : candidates) {
+            if (!comparable(candidate)) {
+                return null;
+            }
+            if (result == null) {
+                result = (XSSimpleType) candidate;
+            } else if (!sameValues(result, candidate)) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    private static XSSimpleTypeDefinition contentType(XSTypeDefinition type) {
+        if (type.getTypeCategory() == XSTypeDefinition.SIMPLE_TYPE) {
+            return (XSSimpleTypeDefinition) type;
+        }
+        XSComplexTypeDefinition complex = (XSComplexTypeDefinition) type;
+        return complex.getContentType() == XSComplexTypeDefinition.CONTENTTYPE_SIMPLE ? complex.getSimpleType() : null;
+    }
+
+    /**
+     * Types atomiques dont l'égalité des valeurs est celle de leur forme canonique calculée ici.
+     */
+    private static boolean comparable(XSSimpleTypeDefinition type) {
+        if (!(type instanceof XSSimpleType) || type.getVariety() != XSSimpleTypeDefinition.VARIETY_ATOMIC
+                || type.getPrimitiveType() == null) {
+            return false;
+        }
+        switch (type.getPrimitiveType().getBuiltInKind()) {
+            case XSConstants.STRING_DT:
+            case XSConstants.BOOLEAN_DT:
+            case XSConstants.DECIMAL_DT:
+            case XSConstants.HEXBINARY_DT:
+            case XSConstants.BASE64BINARY_DT:
+            case XSConstants.ANYURI_DT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Même espace de valeurs et même traitement des espaces : une valeur lue vaut autant sous l'un
+     * ou l'autre type.
+     */
+    private static boolean sameValues(XSSimpleType type, XSSimpleTypeDefinition other) {
+        return type.getPrimitiveType().getBuiltInKind() == other.getPrimitiveType().getBuiltInKind()
+                && type.getLexicalFacetValue(XSSimpleTypeDefinition.FACET_WHITESPACE)
+                        .equals(other.getLexicalFacetValue(XSSimpleTypeDefinition.FACET_WHITESPACE));
+    }
+
+    private static Set<XSElementDeclaration> identitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    private static NameTest test(XPath.NodeTest test) {
+        switch (test.type) {
+            case XPath.NodeTest.QNAME:
+                return new NameTest(uri(test.name.uri), test.name.localpart, false);
+            case XPath.NodeTest.NAMESPACE:
+                return new NameTest(uri(test.name.uri), null, false);
+            case XPath.NodeTest.WILDCARD:
+                return new NameTest("", null, true);
+            default:
+                return null;
+        }
+    }
+
+    private static String uri(String uri) {
+        return uri != null ? uri : "";
+    }
+
+    boolean isEmpty() {
+        return constraints.length == 0;
+    }
+
+    // === Extraction ===
+
+    /**
+     * Filtre SAX placé devant le validateur d'un enregistrement : repère les éléments désignés par
+     * chaque sélecteur et la valeur de leurs champs, et les transmet au {@link Spill} du worker.
+     * Les événements reçus commencent à l'enregistrement (enfant de la racine).
+     */
+    final class Extractor extends XMLFilterImpl {
+        private final Spill spill;
+        private Locator locator;
+        private int record;
+
+        // Éléments ouverts depuis l'enregistrement (profondeur 1)
+        private String[] uris = new String[32];
+        private String[] locals = new String[32];
+        private int depth;
+
+        // Éléments désignés dont la portée est ouverte
+        private final List<Match> matches = new ArrayList<>();
+
+        // Calcul des valeurs typées (état propre au worker)
+        private final ValidationState context = new ValidationState();
+        private final ValidatedInfo validated = new ValidatedInfo();
+
+        Extractor(Spill spill) {
+            this.spill = spill;
+            context.setExtraChecking(false);
+        }
+
+        /**
+         * @param record rang de l'enregistrement qui va être lu, dans l'ordre du document
+         */
+        void setRecord(int record) {
+            this.record = record;
+            this.depth = 0;
+            this.matches.clear();
+        }
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            this.locator = locator;
+            super.setDocumentLocator(locator);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            if (depth == uris.length) {
+                uris = Arrays.copyOf(uris, depth * 2);
+                locals = Arrays.copyOf(locals, depth * 2);
+            }
+            uris[depth] = uri;
+            locals[depth] = localName;
+            depth++;
+
+            // Champs des éléments déjà désignés
+            for (int m = 0; m < matches.size(); m++) {
+                matches.get(m).element(depth, atts);
+            }
+            // Nouveaux éléments désignés, champs portés par l'élément lui-même compris
+            for (Constraint constraint : constraints) {
+                for (Steps path : constraint.selector) {
+                    if (selects(path)) {
+                        Match match = new Match(constraint, depth, locator != null ? locator.getLineNumber() : 1);
+                        matches.add(match);
+                        match.element(depth, atts);
+                        break;
+                    }
+                }
+            }
+            super.startElement(uri, localName, qName, atts);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            for (int m = 0; m < matches.size(); m++) {
+                matches.get(m).characters(depth, ch, start, length);
+            }
+            super.characters(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            for (int m = matches.size() - 1; m >= 0; m--) {
+                Match match = matches.get(m);
+                match.end(depth);
+                if (match.depth == depth) {
+                    matches.remove(m);
+                    match.finish();
+                }
+            }
+            depth--;
+            super.endElement(uri, localName, qName);
+        }
+
+        private boolean selects(Steps path) {
+            int length = path.elements.length;
+            if (path.descendant ? depth < length : depth != length) {
+                return false;
+            }
+            return matchesFrom(path.elements, depth - length);
+        }
+
+        /**
+         * Les éléments ouverts à partir de {@code from} correspondent aux étapes.
+         */
+        private boolean matchesFrom(NameTest[] steps, int from) {
+            for (int i = 0; i < steps.length; i++) {
+                if (!steps[i].matches(uris[from + i], locals[from + i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Élément désigné par un sélecteur, en attente de la valeur de ses champs.
+         */
+        private final class Match {
+            final Constraint constraint;
+            final int depth;
+            final int line;
+            final String[] values;
+            final int[] counts;
+            final StringBuilder[] texts;
+            final int[] textDepths;
+
+            Match(Constraint constraint, int depth, int line) {
+                this.constraint = constraint;
+                this.depth = depth;
+                this.line = line;
+                int fields = constraint.fields.length;
+                this.values = new String[fields];
+                this.counts = new int[fields];
+                this.texts = new StringBuilder[fields];
+                this.textDepths = new int[fields];
+                Arrays.fill(textDepths, -1);
+            }
+
+            /**
+             * Élément ouvert à la profondeur {@code at}, sous cet élément ou lui-même.
+             */
+            void element(int at, Attributes atts) {
+                int relative = at - depth;
+                for (int f = 0; f < constraint.fields.length; f++) {
+                    for (Steps path : constraint.fields[f]) {
+                        if (path.elements.length != relative || !matchesFrom(path.elements, depth)) {
+                            continue;
+                        }
+                        if (path.attribute == null) {
+                            texts[f] = new StringBuilder();
+                            textDepths[f] = at;
+                        } else {
+                            for (int a = 0; a < atts.getLength(); a++) {
+                                if (path.attribute.matches(atts.getURI(a), atts.getLocalName(a))) {
+                                    value(f, atts.getValue(a));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+            void characters(int at, char[] ch, int start, int length) {
+                for (int f = 0; f < textDepths.length; f++) {
+                    if (textDepths[f] == at) {
+                        texts[f].append(ch, start, length);
+                    }
+                }
+            }
+
+            void end(int at) {
+                for (int f = 0; f < textDepths.length; f++) {
+                    if (textDepths[f] == at) {
+                        textDepths[f] = -1;
+                        value(f, texts[f].toString());
+                        texts[f] = null;
+                    }
+                }
+            }
+
+            private void value(int field, String value) {
+                if (++counts[field] == 2) {
+                    spill.violation(new Violation(record, line, "cvc-identity-constraint.3 : le champ \""
+                            + (field + 1) + "\" de la contrainte \"" + constraint.name
+                            + "\" correspond à plusieurs valeurs pour un même élément"));
+                }
+                values[field] = typed(constraint.types[field], value);
+            }
+
+            void finish() {
+                StringBuilder tuple = new StringBuilder();
+                for (int f = 0; f < values.length; f++) {
+                    if (values[f] == null) {
+                        if (constraint.category == XSIDCDefinition.IC_KEY) {
+                            spill.violation(new Violation(record, line, "cvc-identity-constraint.4.2.1.a : l'élément \""
+                                    + locals[depth - 1] + "\" n'a pas de valeur pour le champ \"" + (f + 1)
+                                    + "\" de la clé \"" + constraint.name + "\""));
+                        }
+                        // Valeur incomplète : ignorée par unique et keyref
+                        return;
+                    }
+                    if (f > 0) {
+                        tuple.append(FIELD_SEPARATOR);
+                    }
+                    tuple.append(values[f]);
+                }
+                spill.add(new Tuple(constraint.group,
+                        constraint.category == XSIDCDefinition.IC_KEYREF ? KIND_REF : KIND_KEY,
+                        constraint.index, tuple.toString(), record, line));
+            }
+        }
+
+        /**
+         * Forme canonique de la valeur selon le type du champ, préfixée de son type primitif : deux
+         * valeurs sont égales si et seulement si leurs formes le sont.
+         */
+        private String typed(XSSimpleType type, String value) {
+            try {
+                Object actual = type.validate(value, context, validated);
+                String canonical = type.getPrimitiveKind() == XSSimpleType.PRIMITIVE_DECIMAL
+                        ? new BigDecimal(validated.normalizedValue).stripTrailingZeros().toPlainString()
+                        : actual.toString();
+                return type.getPrimitiveKind() + TYPE_SEPARATOR + canonical;
+            } catch (InvalidDatatypeValueException | NumberFormatException e) {
+                // Valeur hors du type, déjà signalée par le validateur : comparée telle quelle
+                return "?" + TYPE_SEPARATOR + value;
+            }
+        }
+    }
+
+    // === Runs triés ===
+
+    /**
+     * Valeur extraite : ordonnée par clé, valeur, nature (clé avant référence) puis position.
+     */
+    private static final class Tuple {
+        final int group;
+        final byte kind;
+        final int constraint;
+        final String value;
+        final int record;
+        final int line;
+
+        Tuple(int group, byte kind, int constraint, String value, int record, int line) {
+            this.group = group;
+            this.kind = kind;
+            this.constraint = constraint;
+            this.value = value;
+            this.record = record;
+            this.line = line;
+        }
+
+        long size() {
+            return 64 + 2L * value.length();
+        }
+    }
+
+    private static final Comparator<Tuple> ORDER = Comparator.<Tuple>comparingInt(t -> t.group)
+            .thenComparing(t -> t.value)
+            .thenComparingInt(t -> t.kind)
+            .thenComparingInt(t -> t.record)
+            .thenComparingInt(t -> t.line);
+
+    /**
+     * Valeurs extraites par un worker : gardées en mémoire jusqu'au budget, puis triées et écrites
+     * dans un run sur disque.
+     */
+    static final class Spill implements Closeable {
+        private final Path directory;
+        private final long budget;
+        private final List<Tuple> buffer = new ArrayList<>();
+        private long used;
+        final List<Path> runs = new ArrayList<>();
+        final List<Violation> violations = new ArrayList<>();
+
+        Spill(Path directory, long budget) {
+            this.directory = directory;
+            this.budget = budget;
+        }
+
+        private void add(Tuple tuple) {
+            buffer.add(tuple);
+            used += tuple.size();
+            if (used >= budget) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Écriture des valeurs de clés impossible", e);
+                }
+            }
+        }
+
+        private void violation(Violation violation) {
+            if (violations.size() < MAX_VIOLATIONS) {
+                violations.add(violation);
+            }
+        }
+
+        /**
+         * Écrit les valeurs en mémoire dans un nouveau run trié.
+         */
+        void flush() throws IOException {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            buffer.sort(ORDER);
+            Path run = Files.createTempFile(directory, "run", ".keys");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 64 * 1024))) {
+                for (Tuple tuple : buffer) {
+                    out.writeInt(tuple.group);
+                    out.writeByte(tuple.kind);
+                    out.writeInt(tuple.constraint);
+                    out.writeInt(tuple.record);
+                    out.writeInt(tuple.line);
+                    byte[] value = tuple.value.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+            }
+            runs.add(run);
+            buffer.clear();
+            used = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    /**
+     * Lecture séquentielle d'un run, une valeur d'avance.
+     */
+    private static final class RunReader implements Closeable {
+        private final DataInputStream in;
+        Tuple current;
+
+        RunReader(Path run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 64 * 1024));
+            advance();
+        }
+
+        void advance() throws IOException {
+            try {
+                int group = in.readInt();
+                byte kind = in.readByte();
+                int constraint = in.readInt();
+                int record = in.readInt();
+                int line = in.readInt();
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                current = new Tuple(group, kind, constraint, new String(value, StandardCharsets.UTF_8), record, line);
+            } catch (EOFException e) {
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Fusion externe des runs de tous les workers : une valeur de clé ou d'unicité vue une seconde
+     * fois est un doublon, une référence sans valeur de clé égale est pendante.
+     *
+     * @return violations, extraction comprise, en lignes relatives aux enregistrements
+     */
+    List<Violation> merge(List<Spill> spills) throws IOException {
+        List<Violation> violations = new ArrayList<>();
+        for (Spill spill : spills) {
+            violations.addAll(spill.violations);
+        }
+        PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> ORDER.compare(a.current, b.current));
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (Spill spill : spills) {
+                for (Path run : spill.runs) {
+                    RunReader reader = new RunReader(run);
+                    readers.add(reader);
+                    if (reader.current != null) {
+                        queue.add(reader);
+                    }
+                }
+            }
+            int group = -1;
+            String value = null;
+            int keys = 0;
+            while (!queue.isEmpty() && violations.size() < MAX_VIOLATIONS) {
+                RunReader reader = queue.poll();
+                Tuple tuple = reader.current;
+                if (tuple.group != group || !tuple.value.equals(value)) {
+                    group = tuple.group;
+                    value = tuple.value;
+                    keys = 0;
+                }
+                Constraint constraint = constraints[tuple.constraint];
+                String shown = shown(tuple.value);
+                if (tuple.kind == KIND_KEY) {
+                    if (++keys > 1) {
+                        String code = constraint.category == XSIDCDefinition.IC_KEY ? "4.2.2" : "4.1";
+                        violations.add(new Violation(tuple.record, tuple.line, "cvc-identity-constraint." + code
+                                + " : valeur [" + shown + "] en double pour la contrainte \"" + constraint.name
+                                + "\" de l'élément \"" + element + "\""));
+                    }
+                } else if (keys == 0) {
+                    violations.add(new Violation(tuple.record, tuple.line, "cvc-identity-constraint.4.3 : la valeur ["
+                            + shown + "] de la référence \"" + constraint.name + "\" ne correspond à aucune valeur de \""
+                            + constraint.referenced + "\" dans l'élément \"" + element + "\""));
+                }
+                reader.advance();
+                if (reader.current != null) {
+                    queue.add(reader);
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+        return violations;
+    }
+
+    /**
+     * Valeur affichée dans un message : formes canoniques des champs, séparées par des virgules.
+     */
+    private static String shown(String value) {
+        StringBuilder shown = new StringBuilder();
+        for (String field : value.split(String.valueOf(FIELD_SEPARATOR), -1)) {
+            if (shown.length() > 0) {
+                shown.append(',');
+            }
+            shown.append(field, field.indexOf(TYPE_SEPARATOR) + 1, field.length());
+        }
+        return shown.toString();
+    }
+}
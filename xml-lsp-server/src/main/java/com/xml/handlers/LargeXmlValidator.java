@@ -1,14 +1,18 @@
 package com.xml.handlers;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import com.xml.models.ErrorCollector;
+import com.xml.models.FragmentIndex;
 import com.xml.models.ValidationResult;
 import com.xml.models.XMLError;
 import com.xml.services.PatchManager;
+import com.xml.services.PieceTable;
 
 /**
  * Service de validation optimisé pour les très gros fichiers XML.
@@ -16,35 +20,120 @@ import com.xml.services.PatchManager;
  */
 public class LargeXmlValidator {
 
+    // Parcours complets sans passer par le cache de pages (voir DirectIo)
+    private boolean directIo = com.xml.services.DirectIo.enabledByDefault();
+
+    // Résultats par enregistrement, réutilisés d'une validation à l'autre
+    private final FragmentValidationCache resultCache = new FragmentValidationCache();
+
+    /**
+     * Les validations complètes lisent le fichier en O_DIRECT : un parcours de plusieurs centaines
+     * de Go n'évince plus du cache les fragments consultés par l'éditeur.
+     */
+    public void setDirectIo(boolean directIo) {
+        this.directIo = directIo;
+    }
+
     /**
      * Effectue une validation XML + XSD sans extraction de zones.
      * Parfait pour un premier passage rapide sur très grands fichiers.
      */
     public ValidationResult validate(File xmlFile, File xsdFile) {
+        return validateLogical(() -> directIo ? new DirectIoInputStream(xmlFile) : new FileInputStream(xmlFile),
+                xsdFile, xmlFile.length(), null);
+    }
 
-        long startTime = System.currentTimeMillis();
-
-        ErrorCollector collector = new ErrorCollector();
-
-        // STEP 1: Always parse for structural validation (detects unclosed tags, etc.)
-        XMLParser parser = new XMLParser(collector);
-        parser.parse(xmlFile);
+    /**
+     * Validation XSD parallèle par enregistrement (fragments de profondeur 1 de l'index), sur tous
+     * les cœurs. Repli sur {@link #validate(File, File)} quand le schéma relie les enregistrements
+     * entre eux (clés, ID/IDREF) ou que l'index est vide.
+     *
+     * @param index index des fragments du fichier, sans patch appliqué
+     */
+    public ValidationResult validateParallel(File xmlFile, File xsdFile, FragmentIndex index) {
+        return validateIncremental(xmlFile, xsdFile, index, null, Runtime.getRuntime().availableProcessors());
+    }
 
-        // STEP 2: Validate with XSD only if no parsing errors (strict mode)
-        boolean xsdValid = true;
-        if (collector.getErrors().isEmpty()) {
-            if (xsdFile != null && xsdFile.exists()) {
-                Validators validator = new Validators(collector);
-                xsdValid = validator.validate(xmlFile, xsdFile);
+    /**
+     * Revalidation incrémentale du document logique : seuls les enregistrements dont le contenu
+     * (patché) a changé depuis la dernière validation sont revalidés, les autres reprennent leurs
+     * diagnostics du cache. Le squelette du document est toujours revérifié. Même repli que
+     * {@link #validateParallel}.
+     * <p>
+     * Sans patch, la bonne formation est d'abord vérifiée sur les octets bruts
+     * ({@link WellFormednessChecker}) : un document mal formé est rejeté sans passe XSD, et un
+     * document bien formé sans XSD est accepté sans passe StAX.
+     *
+     * @param index        index des fragments du fichier original
+     * @param patchManager patchs à appliquer, ou null
+     * @param parallelism  nombre de workers pour les enregistrements à revalider
+     */
+    public ValidationResult validateIncremental(File xmlFile, File xsdFile, FragmentIndex index,
+                                                PatchManager patchManager, int parallelism) {
+        List<com.xml.models.Patch> patches = patchManager != null ? patchManager.getAllPatchesSorted() : List.of();
+        if (patches.isEmpty() && index != null && index.size() > 0) {
+            ValidationResult wellFormedness = checkWellFormedness(xmlFile, index, parallelism);
+            if (wellFormedness != null && (!wellFormedness.isSuccess() || xsdFile == null)) {
+                return wellFormedness;
             }
         }
+        if (xsdFile == null || index == null || index.size() == 0) {
+            return sequential(xmlFile, xsdFile, patches, index);
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            List<XMLError> errors = new ParallelSchemaValidator(parallelism)
+                    .validate(xmlFile, xsdFile, index, patches, resultCache);
+            if (errors == null) {
+                return sequential(xmlFile, xsdFile, patches, index);
+            }
+            long time = System.currentTimeMillis() - startTime;
+            return new ValidationResult(errors.isEmpty(), errors, time, xmlFile.length());
+        } catch (Exception e) {
+            System.err.println("Validation par enregistrement impossible, repli séquentiel : " + e.getMessage());
+            return sequential(xmlFile, xsdFile, patches, index);
+        }
+    }
 
-        // Version "lightweight" des erreurs
-        List<XMLError> errors = convertToErrorsWithoutZones(collector.getErrors());
+    /**
+     * Premier niveau : bonne formation vérifiée sur les octets du fichier, sans StAX ni XSD.
+     *
+     * @return null si le fichier ne s'y prête pas (compressé, autre encodage) ou en cas d'erreur
+     *         de lecture : la validation complète s'en charge
+     */
+    private ValidationResult checkWellFormedness(File xmlFile, FragmentIndex index, int parallelism) {
+        long startTime = System.currentTimeMillis();
+        try {
+            List<XMLError> errors = new WellFormednessChecker(parallelism).check(xmlFile, index);
+            if (errors == null) {
+                return null;
+            }
+            long time = System.currentTimeMillis() - startTime;
+            return new ValidationResult(errors.isEmpty(), errors, time, xmlFile.length());
+        } catch (IOException e) {
+            System.err.println("Vérification de bonne formation impossible : " + e.getMessage());
+            return null;
+        }
+    }
 
-        long time = System.currentTimeMillis() - startTime;
+    /**
+     * Validation en une passe du document logique ; avec un index, l'analyse structurelle reprend
+     * à l'enregistrement suivant après une erreur fatale.
+     */
+    private ValidationResult sequential(File xmlFile, File xsdFile,
+                                        List<com.xml.models.Patch> patches, FragmentIndex index) {
+        RecoveryPoints recovery = index != null ? RecoveryPoints.of(xmlFile, index, patches, directIo) : null;
+        StreamOpener document = patches.isEmpty()
+                ? () -> directIo ? new DirectIoInputStream(xmlFile) : new FileInputStream(xmlFile)
+                : () -> new PatchedInputStream(xmlFile, patches, directIo);
+        return validateLogical(document, xsdFile, xmlFile.length(), recovery);
+    }
 
-        return new ValidationResult(xsdValid && errors.isEmpty(), errors, time, xmlFile.length());
+    /**
+     * @return cache des résultats par enregistrement de ce validateur
+     */
+    public FragmentValidationCache getResultCache() {
+        return resultCache;
     }
 
     /**
@@ -57,36 +146,72 @@ public class LargeXmlValidator {
      * @return Résultat de validation avec erreurs détectées
      */
     public ValidationResult validateWithPatches(File xmlFile, File xsdFile, PatchManager patchManager) {
+        // Récupérer les patches triés
+        List<com.xml.models.Patch> patches = patchManager.getAllPatchesSorted();
+        return validateLogical(() -> new PatchedInputStream(xmlFile, patches, directIo), xsdFile, xmlFile.length(), null);
+    }
+
+    /**
+     * Valide le document logique d'une branche de patchs, active ou non, sans changer de branche.
+     */
+    public ValidationResult validateBranch(File xmlFile, File xsdFile, PatchManager patchManager, String branch) {
+        List<com.xml.models.Patch> patches = patchManager.getBranchPatches(branch);
+        return validateLogical(() -> new PatchedInputStream(xmlFile, patches, directIo), xsdFile, xmlFile.length(), null);
+    }
+
+    /**
+     * Valide un document composé ({@link PieceTable}) sans l'écrire sur disque : les plages des
+     * fichiers sources sont lues en flux, dans l'ordre du document.
+     */
+    public ValidationResult validateDocument(PieceTable document, File xsdFile) {
+        return validateLogical(document::getInputStream, xsdFile, document.getLength(), null);
+    }
+
+    /**
+     * Ouvre le flux du document logique (une seule lecture par validation).
+     */
+    private interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * @param recovery débuts des enregistrements du document, pour reprendre après une erreur
+     *                 fatale (null : l'analyse s'arrête à la première)
+     */
+    private ValidationResult validateLogical(StreamOpener document, File xsdFile, long fileSize,
+                                             RecoveryPoints recovery) {
         
         long startTime = System.currentTimeMillis();
         ErrorCollector collector = new ErrorCollector();
         
-        // Récupérer les patches triés
-        List<com.xml.models.Patch> patches = patchManager.getAllPatchesSorted();
-        
         try {
-            // STEP 1: Always parse for structural validation
-            try (InputStream patchedStream = new PatchedInputStream(xmlFile, patches)) {
-                XMLParser parser = new XMLParser(collector);
-                parser.parse(patchedStream);
+            // Une seule lecture : la pile des balises et le validateur XSD consomment le même
+            // curseur StAX. Les erreurs de schéma sont mises de côté (mode strict, ci-dessous).
+            ErrorCollector schemaErrors = new ErrorCollector();
+            javax.xml.validation.Validator schemaValidator = null;
+            boolean xsdValid = true;
+            try {
+                schemaValidator = new Validators(schemaErrors).newValidator(xsdFile);
+            } catch (Exception e) {
+                collector.addError("Erreur inattendue lors de la validation : " + e.getMessage(), 0, "UNEXPECTED_ERROR");
+                xsdValid = false;
+            }
+
+            try (InputStream stream = document.open()) {
+                new TrackedStaxHandler(collector).parse(stream, schemaValidator, recovery);
             }
             
-            // STEP 2: Validate with XSD only if no parsing errors (strict mode)
-            boolean xsdValid = true;
-            if (xsdFile != null && xsdFile.exists()) {
-                // Check for errors from parsing (Strict Mode)
-                // Ignore WARNINGs
+            // Mode strict : les erreurs de schéma ne sont rapportées que pour un document sans
+            // erreur structurelle (les WARNINGs ne bloquent pas)
+            if (schemaValidator != null) {
                 boolean hasBlockingErrors = collector.getErrors().stream()
                     .anyMatch(e -> !e.getType().equals("WARNING"));
                 
                 if (!hasBlockingErrors) {
-                    // XML is well-formed, safe to validate against schema
-                    try (InputStream patchedStream = new PatchedInputStream(xmlFile, patches)) {
-                        Validators validator = new Validators(collector);
-                        xsdValid = validator.validateStream(patchedStream, xsdFile);
+                    for (XMLError e : schemaErrors.getErrors()) {
+                        collector.addError(e.getMessage(), e.getLineNumber(), e.getType());
                     }
                 } else {
-                    // Skip XSD validation if XML has structural errors
                     xsdValid = false;
                 }
             }
@@ -96,13 +221,13 @@ public class LargeXmlValidator {
             
             long time = System.currentTimeMillis() - startTime;
             
-            return new ValidationResult(xsdValid && errors.isEmpty(), errors, time, xmlFile.length());
+            return new ValidationResult(xsdValid && errors.isEmpty(), errors, time, fileSize);
             
         } catch (Exception e) {
             collector.addError("Erreur lors de la validation avec patches: " + e.getMessage(), 0, "IO_ERROR");
             List<XMLError> errors = convertToErrorsWithoutZones(collector.getErrors());
             long time = System.currentTimeMillis() - startTime;
-            return new ValidationResult(false, errors, time, xmlFile.length());
+            return new ValidationResult(false, errors, time, fileSize);
         }
     }
 
@@ -119,11 +244,13 @@ public class LargeXmlValidator {
             XMLError lite = new XMLError(e.getMessage(), e.getLineNumber(), e.getType());
             lite.setColumn(e.getColumn());
             lite.setTagName(e.getTagName());
+            lite.setOriginalLineNumber(e.getOriginalLineNumber());
 
             lite.setPrecisePosition(
                     e.getPreciseStartLine(), e.getPreciseStartColumn(),
                     e.getPreciseEndLine(), e.getPreciseEndColumn()
             );
+            lite.setByteRange(e.getStartOffset(), e.getEndOffset());
 
             // Copy fragment fields to preserve fragment information
             if (e.getFragment() != null) {
@@ -0,0 +1,957 @@
+package com.xml.handlers;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+
+import org.apache.xerces.xs.XSAttributeUse;
+import org.apache.xerces.xs.XSComplexTypeDefinition;
+import org.apache.xerces.xs.XSConstants;
+import org.apache.xerces.xs.XSElementDeclaration;
+import org.apache.xerces.xs.XSModel;
+import org.apache.xerces.xs.XSModelGroup;
+import org.apache.xerces.xs.XSObject;
+import org.apache.xerces.xs.XSObjectList;
+import org.apache.xerces.xs.XSParticle;
+import org.apache.xerces.xs.XSSimpleTypeDefinition;
+import org.apache.xerces.xs.XSTerm;
+import org.apache.xerces.xs.XSTypeDefinition;
+import org.apache.xerces.xs.XSWildcard;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import com.xml.models.ErrorCollector;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.FragmentMetadata.FragmentStatus;
+import com.xml.models.Patch;
+import com.xml.models.XMLError;
+import com.xml.services.SourceFiles;
+
+/**
+ * Validation XSD parallèle d'un document composé d'enregistrements indépendants sous une racine.
+ * <p>
+ * Les enregistrements (fragments de profondeur 1 de l'{@link FragmentIndex}, continuations
+ * regroupées) sont validés en parallèle contre leur déclaration globale, chaque worker gardant son
+ * {@link Validator}. Le modèle de contenu de la racine est vérifié à part sur un squelette du
+ * document où chaque enregistrement est réduit à sa balise ouvrante : les lignes sont conservées,
+ * et le squelette donne la ligne de départ de chaque enregistrement dans le document validé.
+ * <p>
+ * La validation est incrémentale : le résultat d'un enregistrement est conservé dans un
+ * {@link FragmentValidationCache} sous l'empreinte de son contenu (patchs appliqués). Après une
+ * édition, seuls les enregistrements modifiés sont revalidés, plus le squelette.
+ * <p>
+ * Le mode ne s'applique que si les enregistrements sont réellement indépendants : enfants de la
+ * racine déclarés globalement, pas d'ID/IDREF. Sinon {@link #validate} retourne null et
+ * l'appelant valide le document en une passe séquentielle. Les contraintes d'identité de la
+ * racine (clé, unicité, référence) sont vérifiées à part par {@link IdentityConstraints}, avec
+ * des valeurs déversées sur disque plutôt que gardées en mémoire.
+ */
+public class ParallelSchemaValidator {
+
+    // Pool partagé des workers de validation
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "xsd-validator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Taille cible d'un lot d'enregistrements (un flux ouvert par lot)
+    private static final long BATCH_BYTES = 4L * 1024 * 1024;
+
+    // Au-delà de cet écart entre deux enregistrements lus, le flux est rouvert plutôt que lu à vide
+    private static final long REOPEN_DISTANCE = 1024 * 1024;
+
+    // Diagnostics conservés par enregistrement
+    private static final int MAX_RECORD_ERRORS = 100;
+
+    private static final String IDENTITY_CONSTRAINT_CHECKING =
+            "http://apache.org/xml/features/validation/identity-constraint-checking";
+
+    private final int parallelism;
+    private final long keySpillBytes;
+
+    public ParallelSchemaValidator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelSchemaValidator(int parallelism) {
+        this(parallelism, IdentityConstraints.DEFAULT_SPILL_BYTES);
+    }
+
+    /**
+     * @param keySpillBytes mémoire des valeurs de clés d'un worker avant écriture d'un run trié
+     *                      sur disque
+     */
+    public ParallelSchemaValidator(int parallelism, long keySpillBytes) {
+        this.parallelism = Math.max(1, parallelism);
+        this.keySpillBytes = Math.max(1, keySpillBytes);
+    }
+
+    /**
+     * Enregistrement : un fragment de profondeur 1 et ses continuations, en offsets du document
+     * validé (patchs appliqués).
+     */
+    private static final class Record {
+        final long start;
+        final long end;
+        final int firstFragment;
+        final int lastFragment;
+        final String name;
+        final boolean patched;
+
+        // Rang dans le document
+        int ordinal;
+        // Diagnostics repris du cache : relu seulement pour les valeurs des contraintes d'identité
+        boolean keysOnly;
+
+        // Retours à la ligne de son contenu
+        int newlines;
+        // Empreinte du contenu (0 = inconnue) et diagnostics relatifs, une fois connus
+        long contentHash;
+        List<XMLError> diagnostics;
+
+        Record(long start, long end, int firstFragment, int lastFragment, String name, boolean patched, int newlines) {
+            this.start = start;
+            this.end = end;
+            this.firstFragment = firstFragment;
+            this.lastFragment = lastFragment;
+            this.name = name;
+            this.patched = patched;
+            this.newlines = newlines;
+        }
+    }
+
+    /**
+     * Élément racine : nom et déclarations d'espaces de noms, à reproduire autour de chaque enregistrement.
+     */
+    private static final class Root {
+        String localName;
+        String namespace;
+        String encoding;
+        final StringBuilder namespaceDeclarations = new StringBuilder();
+    }
+
+    /**
+     * Accès au document validé à partir d'un offset.
+     */
+    private interface Source {
+        InputStream openAt(long offset) throws IOException;
+    }
+
+    /**
+     * @param index index des fragments du fichier (non patché)
+     * @return erreurs en coordonnées globales, triées par ligne ; null si le document ne se prête
+     *         pas à la validation par enregistrement
+     */
+    public List<XMLError> validate(File xmlFile, File xsdFile, FragmentIndex index) throws IOException, SAXException {
+        return validate(xmlFile, xsdFile, index, List.of(), new FragmentValidationCache());
+    }
+
+    /**
+     * Validation incrémentale du document logique (fichier et patchs). Les enregistrements dont
+     * l'empreinte (contenu, version du schéma, espaces de noms de la racine) est dans le cache
+     * reprennent leurs diagnostics sans être relus ; le statut des fragments de l'index est mis à jour.
+     *
+     * @param index   index des fragments du fichier original
+     * @param patches patchs triés par offset, vide pour le fichier tel quel
+     * @return erreurs en lignes du document logique, triées ; null si le document ne se prête pas
+     *         à la validation par enregistrement
+     */
+    public List<XMLError> validate(File xmlFile, File xsdFile, FragmentIndex index, List<Patch> patches,
+                                   FragmentValidationCache cache) throws IOException, SAXException {
+        Source source = patches.isEmpty()
+                ? offset -> SourceFiles.openAt(xmlFile, offset)
+                : offset -> {
+                    PatchedInputStream in = new PatchedInputStream(xmlFile, patches);
+                    in.seek(offset);
+                    return in;
+                };
+        AtomicBoolean outsideRecords = new AtomicBoolean();
+        List<Record> records = records(index, patches, outsideRecords);
+        if (records.isEmpty()) {
+            return null;
+        }
+        Root root = readRoot(source);
+        if (root == null) {
+            return null;
+        }
+        XSModel model = SchemaCache.shared().getModel(xsdFile);
+        XSElementDeclaration rootDeclaration = model.getElementDeclaration(root.localName,
+                root.namespace == null || root.namespace.isEmpty() ? null : root.namespace);
+        if (rootDeclaration == null || !recordsAreIndependent(model, rootDeclaration)) {
+            return null;
+        }
+        IdentityConstraints identity = IdentityConstraints.compile(model, rootDeclaration);
+        if (!identity.isEmpty() && outsideRecords.get()) {
+            // Contenu validé avec le squelette, où les contraintes d'identité sont désactivées :
+            // ses clés ne seraient pas relevées, la validation séquentielle s'en charge
+            return null;
+        }
+        Schema schema = SchemaCache.shared().getSchema(xsdFile);
+        long context = hash((SchemaCache.shared().getFingerprint(xsdFile) + root.namespaceDeclarations)
+                .getBytes(StandardCharsets.UTF_8));
+
+        // Empreintes : déjà connues pour les enregistrements non patchés lus par une validation
+        // précédente du même fichier, recalculées pour les enregistrements patchés
+        cache.attach(xmlFile.getAbsolutePath() + ":" + xmlFile.length() + ":" + xmlFile.lastModified(), index.size());
+        List<Record> pending = new ArrayList<>();
+        for (Record record : records) {
+            if (record.patched) {
+                hashContent(source, record);
+            } else {
+                record.contentHash = cache.getContentHash(record.firstFragment);
+            }
+            List<XMLError> cached = record.contentHash != 0
+                    ? cache.get(FragmentValidationCache.key(record.contentHash, context)) : null;
+            if (cached != null) {
+                record.diagnostics = cached;
+                if (!identity.isEmpty()) {
+                    // Les valeurs de clés ne sont pas en cache : l'enregistrement est relu sans être validé
+                    record.keysOnly = true;
+                    pending.add(record);
+                }
+            } else {
+                pending.add(record);
+            }
+        }
+
+        // Lots contigus, distribués aux workers au fil de l'eau
+        List<int[]> batches = new ArrayList<>();
+        int first = 0;
+        long bytes = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            bytes += pending.get(i).end - pending.get(i).start;
+            if (bytes >= BATCH_BYTES || i == pending.size() - 1) {
+                batches.add(new int[] {first, i + 1});
+                first = i + 1;
+                bytes = 0;
+            }
+        }
+        AtomicInteger nextBatch = new AtomicInteger();
+        int workers = Math.min(parallelism, batches.size());
+        Path keyDirectory = identity.isEmpty() ? null : Files.createTempDirectory("xml-keys");
+        List<IdentityConstraints.Spill> spills = new ArrayList<>();
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                IdentityConstraints.Spill spill = keyDirectory != null
+                        ? new IdentityConstraints.Spill(keyDirectory, keySpillBytes) : null;
+                if (spill != null) {
+                    spills.add(spill);
+                }
+                results.add(WORKERS.submit(() -> {
+                    RecordValidator validator = new RecordValidator(schema, root,
+                            spill != null ? identity.new Extractor(spill) : null);
+                    for (int b = nextBatch.getAndIncrement(); b < batches.size(); b = nextBatch.getAndIncrement()) {
+                        validator.validateBatch(source, pending, batches.get(b)[0], batches.get(b)[1], cache, context);
+                    }
+                    if (spill != null) {
+                        spill.flush();
+                    }
+                    return null;
+                }));
+            }
+
+            // Pendant ce temps : modèle de contenu de la racine sur le squelette
+            ErrorCollector skeletonErrors = new ErrorCollector();
+            int[] startLines = validateSkeleton(source, records, schema, !identity.isEmpty(), skeletonErrors);
+
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Validation interrompue", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+                    if (cause instanceof SAXException) throw (SAXException) cause;
+                    throw new IOException(cause);
+                }
+            }
+
+            // Contraintes d'identité : fusion des runs de tous les workers
+            List<List<XMLError>> identityErrors = new ArrayList<>(Collections.nCopies(records.size(), List.of()));
+            if (keyDirectory != null) {
+                for (IdentityConstraints.Violation v : identity.merge(spills)) {
+                    if (identityErrors.get(v.record).isEmpty()) {
+                        identityErrors.set(v.record, new ArrayList<>());
+                    }
+                    identityErrors.get(v.record).add(new XMLError(v.message, v.line, "VALIDATION_ERROR"));
+                }
+            }
+
+            // Diagnostics ramenés en lignes du document, statut des fragments
+            List<XMLError> errors = new ArrayList<>(skeletonErrors.getErrors());
+            for (int r = 0; r < records.size(); r++) {
+                Record record = records.get(r);
+                boolean malformed = false;
+                for (XMLError d : record.diagnostics) {
+                    errors.add(new XMLError(d.getMessage(), startLines[r] + d.getLineNumber() - 1, d.getType()));
+                    malformed |= d.getType().startsWith("FATAL");
+                }
+                for (XMLError d : identityErrors.get(r)) {
+                    errors.add(new XMLError(d.getMessage(), startLines[r] + d.getLineNumber() - 1, d.getType()));
+                }
+                FragmentStatus status = malformed ? FragmentStatus.MALFORMED
+                        : record.diagnostics.isEmpty() && identityErrors.get(r).isEmpty() ? FragmentStatus.VALID
+                        : FragmentStatus.INVALID;
+                for (int f = record.firstFragment; f <= record.lastFragment; f++) {
+                    index.getFragment(f).setStatus(status);
+                }
+            }
+            return finish(errors);
+        } finally {
+            for (IdentityConstraints.Spill spill : spills) {
+                spill.close();
+            }
+            if (keyDirectory != null) {
+                Files.deleteIfExists(keyDirectory);
+            }
+        }
+    }
+
+    /**
+     * Erreurs triées par ligne ; en mode strict, celles de structure seules si le document est mal formé.
+     */
+    private static List<XMLError> finish(List<XMLError> errors) {
+        // Mode strict : un document mal formé ne rapporte que ses erreurs de structure
+        boolean malformed = errors.stream().anyMatch(e -> e.getType().startsWith("FATAL"));
+        if (malformed) {
+            errors.removeIf(e -> !e.getType().startsWith("FATAL"));
+        }
+        errors.sort(Comparator.comparingInt(XMLError::getLineNumber));
+        ErrorCollector collector = new ErrorCollector();
+        for (XMLError e : errors) {
+            collector.addError(e.getMessage(), e.getLineNumber(), e.getType());
+        }
+        return collector.getErrors();
+    }
+
+    /**
+     * Enregistrements du document logique. Un patch contenu dans un enregistrement en change le
+     * contenu (empreinte recalculée) ; un patch à cheval sur une borne le fait sortir des
+     * enregistrements : ses octets sont alors validés avec le squelette, comme le texte hors
+     * enregistrements et les insertions entre deux enregistrements.
+     *
+     * @param outsideRecords positionné si du contenu patché est ainsi validé avec le squelette
+     */
+    private static List<Record> records(FragmentIndex index, List<Patch> patches, AtomicBoolean outsideRecords) {
+        List<Record> records = new ArrayList<>();
+        List<FragmentMetadata> fragments = index.getAllFragments();
+        int p = 0;
+        long delta = 0;
+        long coveredUntil = -1;
+        for (int i = 0; i < fragments.size(); ) {
+            int last = i;
+            while (last + 1 < fragments.size() && fragments.get(last + 1).isContinuation()) {
+                last++;
+            }
+            FragmentMetadata head = fragments.get(i);
+            long start = head.getStartOffset();
+            long end = fragments.get(last).getEndOffset();
+
+            // Patchs avant l'enregistrement (dont les insertions à son début)
+            while (p < patches.size() && patches.get(p).getGlobalEndOffset() <= start) {
+                if (patches.get(p).getNewLength() > 0) {
+                    outsideRecords.set(true);
+                }
+                delta += patches.get(p).getLengthDelta();
+                coveredUntil = Math.max(coveredUntil, patches.get(p).getGlobalEndOffset());
+                p++;
+            }
+            // Patchs qui commencent dans l'enregistrement (les insertions à sa fin n'en font pas partie)
+            boolean straddled = coveredUntil > start;
+            long inside = 0;
+            int q = p;
+            while (q < patches.size() && patches.get(q).getGlobalStartOffset() < end) {
+                Patch patch = patches.get(q);
+                straddled |= patch.getGlobalStartOffset() < start || patch.getGlobalEndOffset() > end;
+                inside += patch.getLengthDelta();
+                coveredUntil = Math.max(coveredUntil, patch.getGlobalEndOffset());
+                q++;
+            }
+            if (straddled) {
+                outsideRecords.set(true);
+            }
+            if (!straddled && end + inside > start) {
+                records.add(new Record(start + delta, end + delta + inside, i, last, index.getString(head.getTagId()),
+                        q > p, fragments.get(last).getEndLine() - head.getStartLine()));
+            } else {
+                for (int f = i; f <= last; f++) {
+                    fragments.get(f).setStatus(FragmentStatus.UNKNOWN);
+                }
+            }
+            delta += inside;
+            p = q;
+            i = last + 1;
+        }
+        for (; p < patches.size(); p++) {
+            if (patches.get(p).getNewLength() > 0) {
+                outsideRecords.set(true);
+            }
+        }
+        for (int r = 0; r < records.size(); r++) {
+            records.get(r).ordinal = r;
+        }
+        return records;
+    }
+
+    /**
+     * Relit un enregistrement patché : empreinte et nombre de lignes de son nouveau contenu.
+     */
+    private static void hashContent(Source source, Record record) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        int newlines = 0;
+        try (InputStream in = source.openAt(record.start)) {
+            long remaining = record.end - record.start;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n == -1) break;
+                digest.update(buffer, 0, n);
+                for (int k = 0; k < n; k++) {
+                    if (buffer[k] == '\n') newlines++;
+                }
+                remaining -= n;
+            }
+        }
+        record.newlines = newlines;
+        record.contentHash = toHash(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponible", e);
+        }
+    }
+
+    private static long hash(byte[] bytes) {
+        return toHash(sha256().digest(bytes));
+    }
+
+    // 64 premiers bits du condensé ; 0 est réservé à « empreinte inconnue »
+    private static long toHash(byte[] digest) {
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (digest[i] & 0xff);
+        }
+        return h != 0 ? h : 1;
+    }
+
+    private static Root readRoot(Source source) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        try (InputStream in = source.openAt(0)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                Root root = new Root();
+                root.encoding = reader.getCharacterEncodingScheme() != null
+                        ? reader.getCharacterEncodingScheme() : reader.getEncoding();
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        root.localName = reader.getLocalName();
+                        root.namespace = reader.getNamespaceURI();
+                        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                            String prefix = reader.getNamespacePrefix(i);
+                            root.namespaceDeclarations.append(prefix == null || prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix)
+                                    .append("=\"").append(escape(reader.getNamespaceURI(i))).append('"');
+                        }
+                        return root;
+                    }
+                }
+                return null;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            // Prologue ou racine illisible : la validation séquentielle rapportera l'erreur
+            return null;
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Les enregistrements peuvent être validés isolément : leurs déclarations sont globales, pas
+     * d'ID/IDREF, et les contraintes d'identité de la racine sont à la portée d'{@link IdentityConstraints}.
+     */
+    static boolean recordsAreIndependent(XSModel model, XSElementDeclaration root) {
+        if (IdentityConstraints.compile(model, root) == null) {
+            return false;
+        }
+        XSTypeDefinition type = root.getTypeDefinition();
+        if (type.getTypeCategory() != XSTypeDefinition.COMPLEX_TYPE) {
+            return false;
+        }
+        XSParticle particle = ((XSComplexTypeDefinition) type).getParticle();
+        if (particle != null && !childrenAreGlobal(particle.getTerm())) {
+            return false;
+        }
+        return !usesIds(root, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private static boolean childrenAreGlobal(XSTerm term) {
+        if (term instanceof XSElementDeclaration) {
+            return ((XSElementDeclaration) term).getScope() == XSConstants.SCOPE_GLOBAL;
+        }
+        if (term instanceof XSWildcard) {
+            return ((XSWildcard) term).getProcessContents() == XSWildcard.PC_STRICT;
+        }
+        XSObjectList particles = ((XSModelGroup) term).getParticles();
+        for (int i = 0; i < particles.getLength(); i++) {
+            if (!childrenAreGlobal(((XSParticle) particles.item(i)).getTerm())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean usesIds(XSObject component, Set<XSObject> visited) {
+        if (component == null || !visited.add(component)) {
+            return false;
+        }
+        if (component instanceof XSElementDeclaration) {
+            return usesIds(((XSElementDeclaration) component).getTypeDefinition(), visited);
+        }
+        if (component instanceof XSSimpleTypeDefinition) {
+            XSSimpleTypeDefinition simple = (XSSimpleTypeDefinition) component;
+            for (String name : new String[] {"ID", "IDREF", "IDREFS"}) {
+                if (simple.derivedFrom(XMLConstants.W3C_XML_SCHEMA_NS_URI, name, XSConstants.DERIVATION_RESTRICTION)) {
+                    return true;
+                }
+            }
+            return usesIds(simple.getItemType(), visited);
+        }
+        if (component instanceof XSComplexTypeDefinition) {
+            XSComplexTypeDefinition complex = (XSComplexTypeDefinition) component;
+            XSObjectList uses = complex.getAttributeUses();
+            for (int i = 0; i < uses.getLength(); i++) {
+                if (usesIds(((XSAttributeUse) uses.item(i)).getAttrDeclaration().getTypeDefinition(), visited)) {
+                    return true;
+                }
+            }
+            if (usesIds(complex.getSimpleType(), visited)) {
+                return true;
+            }
+            XSParticle particle = complex.getParticle();
+            return particle != null && usesIds(particle.getTerm(), visited);
+        }
+        if (component instanceof XSModelGroup) {
+            XSObjectList particles = ((XSModelGroup) component).getParticles();
+            for (int i = 0; i < particles.getLength(); i++) {
+                if (usesIds(((XSParticle) particles.item(i)).getTerm(), visited)) {
+                    return true;
+                }
+            }
+        }
+        // Joker : le contenu accepté est validé par sa propre déclaration globale
+        return false;
+    }
+
+    // === Squelette ===
+
+    /**
+     * Valide le document réduit à la racine et aux balises ouvrantes des enregistrements. Seules
+     * les erreurs du modèle de contenu de la racine sont conservées : celles sur le contenu d'un
+     * enregistrement (vidé ici) relèvent de sa propre validation.
+     *
+     * @return ligne de départ de chaque enregistrement dans le document validé
+     */
+    private static int[] validateSkeleton(Source source, List<Record> records, Schema schema,
+                                          boolean identityChecked, ErrorCollector collector) throws IOException {
+        try (SkeletonInputStream skeleton = new SkeletonInputStream(source, records)) {
+            Validator validator = schema.newValidator();
+            if (identityChecked) {
+                // Vérifiées sur le contenu complet des enregistrements, pas sur leurs seules balises ouvrantes
+                try {
+                    validator.setFeature(IDENTITY_CONSTRAINT_CHECKING, false);
+                } catch (SAXException e) {
+                    throw new IOException("Vérification des contraintes d'identité non désactivable", e);
+                }
+            }
+            validator.setErrorHandler(new DefaultHandler() {
+                @Override
+                public void warning(SAXParseException e) {
+                    add(e, "VALIDATION_WARNING");
+                }
+
+                @Override
+                public void error(SAXParseException e) {
+                    add(e, "VALIDATION_ERROR");
+                }
+
+                @Override
+                public void fatalError(SAXParseException e) {
+                    add(e, "FATAL_VALIDATION");
+                }
+
+                private void add(SAXParseException e, String type) {
+                    if (!type.startsWith("FATAL") && skeleton.insideRecord(e.getLineNumber())
+                            && !concernsParent(e.getMessage())) {
+                        return;
+                    }
+                    collector.addError(e.getMessage(), e.getLineNumber(), type);
+                }
+            });
+            try {
+                // Le parseur ferme son flux en fin de document : le squelette reste ouvert pour la suite
+                validator.validate(new StreamSource(new BoundedStream(skeleton, Long.MAX_VALUE)));
+            } catch (SAXException e) {
+                // Erreurs déjà collectées par le gestionnaire
+            }
+            // Après une erreur fatale, la suite du squelette donne encore les lignes des enregistrements
+            skeleton.transferTo(OutputStream.nullOutputStream());
+            return skeleton.startLines;
+        }
+    }
+
+    /**
+     * Sur la balise d'un enregistrement, seules ces erreurs concernent le contenu de la racine
+     * (élément inattendu, texte interdit) ; les autres portent sur l'enregistrement lui-même.
+     */
+    private static boolean concernsParent(String message) {
+        return message != null && (message.startsWith("cvc-complex-type.2.4.a")
+                || message.startsWith("cvc-complex-type.2.4.d")
+                || message.startsWith("cvc-complex-type.2.3"));
+    }
+
+    /**
+     * Flux du squelette : le texte hors enregistrements est recopié, chaque enregistrement est
+     * remplacé par sa balise ouvrante, la balise fermante correspondante et autant de retours à
+     * la ligne que son contenu en comptait. Le contenu des enregistrements est sauté sans être lu.
+     */
+    private static final class SkeletonInputStream extends InputStream {
+        private final Source source;
+        private final List<Record> records;
+        // Ligne de départ des enregistrements déjà émis
+        final int[] startLines;
+        private InputStream in;
+        private long position;
+        private int line = 1;
+        private int nextRecord;
+        private byte[] pending = new byte[0];
+        private int pendingPos;
+
+        SkeletonInputStream(Source source, List<Record> records) throws IOException {
+            this.source = source;
+            this.records = records;
+            this.startLines = new int[records.size()];
+            this.in = new BufferedInputStream(source.openAt(0), 64 * 1024);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (true) {
+                if (pendingPos < pending.length) {
+                    int n = Math.min(len, pending.length - pendingPos);
+                    System.arraycopy(pending, pendingPos, b, off, n);
+                    pendingPos += n;
+                    return n;
+                }
+                long limit = nextRecord < records.size() ? records.get(nextRecord).start : Long.MAX_VALUE;
+                if (position < limit) {
+                    // Texte entre deux enregistrements : recopié tel quel
+                    int n = in.read(b, off, (int) Math.min(len, limit - position));
+                    if (n > 0) {
+                        position += n;
+                        for (int k = off; k < off + n; k++) {
+                            if (b[k] == '\n') line++;
+                        }
+                    }
+                    return n;
+                }
+                if (nextRecord >= records.size()) {
+                    return -1;
+                }
+                startLines[nextRecord] = line;
+                pending = placeholder(records.get(nextRecord++));
+                pendingPos = 0;
+            }
+        }
+
+        private byte[] placeholder(Record record) throws IOException {
+            ByteArrayOutputStream tag = new ByteArrayOutputStream();
+            int newlines = 0;
+            int quote = 0;
+            int previous = 0;
+            while (position < record.end) {
+                int c = in.read();
+                if (c == -1) break;
+                position++;
+                tag.write(c);
+                if (c == '\n') newlines++;
+                if (quote != 0) {
+                    if (c == quote) quote = 0;
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    if (previous != '/') {
+                        tag.write(("</" + record.name + ">").getBytes(StandardCharsets.UTF_8));
+                    }
+                    break;
+                }
+                previous = c;
+            }
+            for (int i = newlines; i < record.newlines; i++) {
+                tag.write('\n');
+            }
+            line += Math.max(newlines, record.newlines);
+
+            long distance = record.end - position;
+            if (distance > REOPEN_DISTANCE) {
+                in.close();
+                in = new BufferedInputStream(source.openAt(record.end), 64 * 1024);
+            } else {
+                in.skipNBytes(distance);
+            }
+            position = record.end;
+            return tag.toByteArray();
+        }
+
+        /**
+         * La ligne appartient à un enregistrement déjà émis (balise ouvrante comprise).
+         */
+        boolean insideRecord(int line) {
+            int low = 0, high = nextRecord - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (line < startLines[mid]) {
+                    high = mid - 1;
+                } else if (line > startLines[mid] + records.get(mid).newlines) {
+                    low = mid + 1;
+                } else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // === Enregistrements ===
+
+    /**
+     * Validateur d'un worker : un {@link Validator} et un parseur SAX réutilisés pour tous ses
+     * enregistrements. Chaque enregistrement est précédé d'un élément englobant qui porte les
+     * déclarations d'espaces de noms de la racine ; cet élément est retiré du flux d'événements,
+     * l'enregistrement est donc validé comme élément racine contre sa déclaration globale. Avec
+     * des contraintes d'identité sur la racine, les valeurs de clés sont extraites au passage.
+     */
+    private static final class RecordValidator {
+        private final Validator validator;
+        private final XMLFilterImpl filter;
+        private final IdentityConstraints.Extractor extractor;
+        private final Charset charset;
+        private final byte[] prefix;
+        private final byte[] suffix;
+        // Diagnostics de l'enregistrement en cours, en lignes relatives (créés à la première erreur)
+        private ErrorCollector current;
+
+        RecordValidator(Schema schema, Root root, IdentityConstraints.Extractor extractor) throws SAXException {
+            this.charset = root.encoding != null ? Charset.forName(root.encoding) : StandardCharsets.UTF_8;
+            // Sur la même ligne que l'enregistrement : les lignes relatives commencent à 1
+            this.prefix = ("<_record" + root.namespaceDeclarations + ">").getBytes(charset);
+            this.suffix = "</_record>".getBytes(charset);
+
+            this.validator = schema.newValidator();
+            validator.setErrorHandler(new DefaultHandler() {
+                @Override
+                public void warning(SAXParseException e) {
+                    add(e, "VALIDATION_WARNING");
+                }
+
+                @Override
+                public void error(SAXParseException e) {
+                    add(e, "VALIDATION_ERROR");
+                }
+
+                @Override
+                public void fatalError(SAXParseException e) {
+                    add(e, "FATAL_VALIDATION");
+                }
+
+                private void add(SAXParseException e, String type) {
+                    if (current == null) {
+                        current = new ErrorCollector(MAX_RECORD_ERRORS);
+                    }
+                    current.addError(e.getMessage(), e.getLineNumber(), type);
+                }
+            });
+
+            try {
+                SAXParserFactory factory = SAXParserFactory.newInstance();
+                factory.setNamespaceAware(true);
+                factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+                factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+                WrapperFilter wrapper = new WrapperFilter();
+                wrapper.setParent(factory.newSAXParser().getXMLReader());
+                if (extractor != null) {
+                    extractor.setParent(wrapper);
+                    this.filter = extractor;
+                } else {
+                    this.filter = wrapper;
+                }
+                this.extractor = extractor;
+            } catch (ParserConfigurationException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        void validateBatch(Source source, List<Record> records, int from, int to,
+                           FragmentValidationCache cache, long context) throws IOException {
+            InputStream in = null;
+            long position = 0;
+            try {
+                for (int i = from; i < to; i++) {
+                    Record record = records.get(i);
+                    if (in == null || record.start - position > REOPEN_DISTANCE) {
+                        if (in != null) in.close();
+                        in = new BufferedInputStream(source.openAt(record.start), 64 * 1024);
+                    } else {
+                        in.skipNBytes(record.start - position);
+                    }
+                    position = record.end;
+
+                    // L'empreinte du contenu est calculée pendant la validation : une seule lecture
+                    MessageDigest digest = sha256();
+                    InputStream body = new SequenceInputStream(new ByteArrayInputStream(prefix),
+                            new SequenceInputStream(new DigestInputStream(new BoundedStream(in, record.end - record.start), digest),
+                                    new ByteArrayInputStream(suffix)));
+                    InputSource input = new InputSource(body);
+                    input.setEncoding(charset.name());
+                    current = null;
+                    if (extractor != null) {
+                        extractor.setRecord(record.ordinal);
+                    }
+                    try {
+                        if (record.keysOnly) {
+                            // Diagnostics déjà connus : seules les valeurs de clés sont relues
+                            filter.setContentHandler(null);
+                            filter.setErrorHandler(null);
+                            filter.parse(input);
+                        } else {
+                            validator.validate(new SAXSource(filter, input));
+                        }
+                    } catch (SAXException e) {
+                        // Erreurs déjà collectées par le gestionnaire
+                    }
+                    // Le parseur peut s'arrêter avant la fin (erreur fatale) : se recaler
+                    body.transferTo(OutputStream.nullOutputStream());
+                    if (record.keysOnly) {
+                        continue;
+                    }
+
+                    record.contentHash = toHash(digest.digest());
+                    record.diagnostics = current != null ? current.getErrors() : FragmentValidationCache.VALID;
+                    cache.put(FragmentValidationCache.key(record.contentHash, context), record.diagnostics);
+                    if (!record.patched) {
+                        cache.setContentHash(record.firstFragment, record.contentHash);
+                    }
+                }
+            } finally {
+                if (in != null) in.close();
+            }
+        }
+    }
+
+    /**
+     * Retire l'élément englobant du flux d'événements transmis au validateur.
+     */
+    private static final class WrapperFilter extends XMLFilterImpl {
+        private int depth;
+
+        @Override
+        public void startDocument() throws SAXException {
+            depth = 0;
+            super.startDocument();
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            if (depth++ > 0) {
+                super.startElement(uri, localName, qName, atts);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (--depth > 0) {
+                super.endElement(uri, localName, qName);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (depth > 1) {
+                super.characters(ch, start, length);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            if (depth > 1) {
+                super.ignorableWhitespace(ch, start, length);
+            }
+        }
+    }
+}
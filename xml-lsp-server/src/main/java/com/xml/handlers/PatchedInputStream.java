@@ -1,111 +1,188 @@
 package com.xml.handlers;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.xml.models.Patch;
+import com.xml.services.DirectIo;
+import com.xml.services.SeekableGzip;
+import com.xml.services.SourceFiles;
 
 /**
  * Custom InputStream that reconstructs a logical XML document by applying patches on-the-fly.
- * 
+ *
  * This stream seamlessly switches between reading from the original file and patch replacements,
  * enabling XSD validation and processing of the patched document without loading it into memory.
- * 
- * Memory usage: Only a small buffer (8KB default) is kept in memory at any time.
+ *
+ * Original bytes are fetched with positional {@link FileChannel} reads into a large direct
+ * buffer (borrowed from a small shared pool), so byte-by-byte consumers such as StAX parsers
+ * are served from memory instead of issuing one seek + read per byte.
+ * Unchanged spans can be handed to the OS with {@link #transferTo(WritableByteChannel)}, and
+ * {@link #seek(long)} positions the stream on any logical offset in O(log n) over the patches.
+ *
+ * Large replacement payloads spilled to the patch blob store are streamed from their blob
+ * file in chunks rather than held in memory.
+ *
+ * For full scans, the original file can be opened with O_DIRECT (see {@link DirectIo}):
+ * buffer refills are then block-aligned and bypass the page cache.
+ *
+ * A gzip-compressed original is read through {@link SeekableGzip}: patch offsets then refer to
+ * the decompressed content, sequential refills continue the same decompression cursor, and a
+ * seek far away restarts from the nearest checkpoint of the gzip index.
+ *
+ * Memory usage: one 256KB direct buffer per open stream, plus two longs per patch.
  * Suitable for files of any size, including 500GB+ files.
  */
 public class PatchedInputStream extends InputStream {
-    
-    private final RandomAccessFile originalFile;
-    private final List<Patch> patches; // Sorted by globalStartOffset
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final int BLOB_CHUNK_SIZE = 64 * 1024;
+    // Pooled buffers are aligned for O_DIRECT on usual block sizes
+    private static final int POOL_ALIGNMENT = 4096;
+    // Forward jumps shorter than this keep decompressing instead of restarting from a checkpoint
+    private static final long MAX_COMPRESSED_SKIP = SeekableGzip.DEFAULT_SPAN;
+
+    // Direct buffers are expensive to allocate and only freed by the GC: recycle them
+    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+
+    private final FileChannel channel; // null for a compressed original
+    private final SeekableGzip compressed;
+    private final Patch[] patches; // Sorted by globalStartOffset
     private final long fileLength;
-    
+    private final int alignment; // Block size for O_DIRECT reads, 1 otherwise
+
+    // Precomputed layout: logical offset where each patch's replacement starts,
+    // and file offset where reading resumes once the patch has been consumed
+    private final long[] logicalStarts;
+    private final long[] resumeFilePositions;
+    private final long logicalLength;
+
     // Current read state
     private long currentFilePosition;  // Position in the original file
     private long currentLogicalPosition; // Logical position in the reconstructed stream
-    
+    private long nextBoundary; // File position where the next patch starts (or EOF)
+
     // Patch application state
     private int currentPatchIndex;
-    private Patch activePatch; // Currently active patch we're reading from
-    private int activePatchOffset; // Offset within the active patch's replacement text
-    
-    // Buffer for efficient reading
-    private byte[] patchBuffer; // Cache for current patch replacement text
-    
+    private byte[] patchBuffer; // Replacement bytes of the active patch, null when reading the file
+    private int patchLimit; // Number of valid bytes in patchBuffer
+    private int activePatchOffset; // Offset within patchBuffer
+
+    // Spilled patch payloads are streamed from their blob file, one chunk at a time
+    private FileChannel blobChannel;
+    private long blobBase; // Channel offset of the payload (non-zero for source-range payloads)
+    private long blobPosition; // Next blob offset to load into patchBuffer
+    private long blobLength;
+    private byte[] blobChunk;
+    // Source-range payloads over a compressed file are read sequentially instead
+    private InputStream blobStream;
+
+    // Window of the original file currently held in the direct buffer
+    private ByteBuffer buffer;
+    private long bufferFileStart = -1;
+    private int bufferLimit;
+
+    // Decompression cursor over a compressed original, and the content offset it has reached
+    private InputStream compressedCursor;
+    private long cursorPosition;
+    private byte[] compressedChunk;
+
+    private final byte[] singleByte = new byte[1];
+    private boolean closed;
+
     /**
      * Creates a PatchedInputStream for the given file and patches.
-     * 
+     *
      * @param file Original XML file
      * @param patches List of patches, must be sorted by globalStartOffset (ascending)
      * @throws IOException if file cannot be opened
      */
     public PatchedInputStream(File file, List<Patch> patches) throws IOException {
-        this.originalFile = new RandomAccessFile(file, "r");
-        this.patches = patches;
-        this.fileLength = file.length();
-        
-        this.currentFilePosition = 0;
-        this.currentLogicalPosition = 0;
-        this.currentPatchIndex = 0;
-        this.activePatch = null;
-        this.activePatchOffset = 0;
-        this.patchBuffer = null;
-        
+        this(file, patches, false);
+    }
+
+    /**
+     * @param directIo read the original file with O_DIRECT when the filesystem supports it
+     */
+    public PatchedInputStream(File file, List<Patch> patches, boolean directIo) throws IOException {
+        this.patches = patches.toArray(new Patch[0]);
+
         // Validate patches are sorted
-        for (int i = 1; i < patches.size(); i++) {
-            if (patches.get(i).getGlobalStartOffset() < patches.get(i-1).getGlobalStartOffset()) {
+        for (int i = 1; i < this.patches.length; i++) {
+            if (this.patches[i].getGlobalStartOffset() < this.patches[i-1].getGlobalStartOffset()) {
                 throw new IllegalArgumentException("Patches must be sorted by globalStartOffset");
             }
         }
+
+        if (SourceFiles.isCompressed(file)) {
+            this.compressed = SeekableGzip.forFile(file);
+            this.channel = null;
+            this.alignment = 1;
+            this.fileLength = compressed.length();
+        } else {
+            FileChannel directChannel = directIo ? DirectIo.open(file.toPath(), StandardOpenOption.READ) : null;
+            this.compressed = null;
+            this.channel = directChannel != null ? directChannel : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.alignment = directChannel != null ? DirectIo.alignment(file.toPath()) : 1;
+            this.fileLength = channel.size();
+        }
+
+        // Lay out the logical document once: makes seek() a binary search
+        this.logicalStarts = new long[this.patches.length];
+        this.resumeFilePositions = new long[this.patches.length];
+        long filePos = 0;
+        long logical = 0;
+        for (int i = 0; i < this.patches.length; i++) {
+            Patch patch = this.patches[i];
+            logical += Math.max(0, Math.min(patch.getGlobalStartOffset(), fileLength) - filePos);
+            logicalStarts[i] = logical;
+            filePos = Math.max(filePos, patch.getGlobalEndOffset());
+            resumeFilePositions[i] = filePos;
+            logical += patch.getNewLength();
+        }
+        this.logicalLength = logical + Math.max(0, fileLength - filePos);
+
+        this.buffer = alignment <= POOL_ALIGNMENT ? acquireBuffer() : DirectIo.allocateAligned(BUFFER_SIZE, alignment);
+        this.currentFilePosition = 0;
+        this.currentLogicalPosition = 0;
+        this.currentPatchIndex = 0;
+        updateNextBoundary();
     }
-    
+
     @Override
     public int read() throws IOException {
-        // If we're reading from an active patch
-        if (activePatch != null) {
-            // Check if we've finished reading the patch
-            if (activePatchOffset >= patchBuffer.length) {
-                deactivatePatch();
-                // Continue to read from file below
-            } else {
-                // Read byte from patch buffer
-                byte b = patchBuffer[activePatchOffset++];
+        // Fast path: byte available in the active patch or in the buffered window
+        if (patchBuffer != null) {
+            if (activePatchOffset < patchLimit) {
+                currentLogicalPosition++;
+                return patchBuffer[activePatchOffset++] & 0xFF;
+            }
+        } else if (currentFilePosition < nextBoundary) {
+            long index = currentFilePosition - bufferFileStart;
+            if (bufferFileStart >= 0 && index >= 0 && index < bufferLimit) {
+                currentFilePosition++;
                 currentLogicalPosition++;
-                return b & 0xFF; // Convert to unsigned
-            }
-        }
-        
-        // Read from original file
-        if (currentFilePosition >= fileLength) {
-            return -1; // EOF
-        }
-        
-        // Check if we need to skip bytes (if next patch replaces upcoming content)
-        if (currentPatchIndex < patches.size()) {
-            Patch nextPatch = patches.get(currentPatchIndex);
-            
-            // If we've reached the start of the next patch, activate it
-            if (currentFilePosition >= nextPatch.getGlobalStartOffset()) {
-                activatePatch(nextPatch);
-                return read(); // Recursive call to read from patch
-            }
-        }
-        
-        // Normal file read
-        originalFile.seek(currentFilePosition);
-        int b = originalFile.read();
-        
-        if (b != -1) {
-            currentFilePosition++;
-            currentLogicalPosition++;
-        }
-        
-        return b;
-    }
-    
+                return buffer.get((int) index) & 0xFF;
+            }
+        }
+
+        int n = read(singleByte, 0, 1);
+        return n == -1 ? -1 : singleByte[0] & 0xFF;
+    }
+
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
         if (b == null) {
@@ -115,114 +192,423 @@ public class PatchedInputStream extends InputStream {
         } else if (len == 0) {
             return 0;
         }
-        
+        ensureOpen();
+
         int totalRead = 0;
-        
+
         while (totalRead < len) {
             // If we're reading from an active patch
-            if (activePatch != null) {
-                int available = patchBuffer.length - activePatchOffset;
-                if (available > 0) {
-                    int toRead = Math.min(available, len - totalRead);
-                    System.arraycopy(patchBuffer, activePatchOffset, b, off + totalRead, toRead);
-                    activePatchOffset += toRead;
-                    totalRead += toRead;
-                    currentLogicalPosition += toRead;
-                }
-                
-                if (activePatchOffset >= patchBuffer.length) {
-                    deactivatePatch();
+            if (patchBuffer != null) {
+                int toRead = Math.min(patchLimit - activePatchOffset, len - totalRead);
+                System.arraycopy(patchBuffer, activePatchOffset, b, off + totalRead, toRead);
+                activePatchOffset += toRead;
+                totalRead += toRead;
+                currentLogicalPosition += toRead;
+
+                if (activePatchOffset >= patchLimit) {
+                    nextPatchChunk();
                 }
-                
                 continue;
             }
-            
-            // Read from original file
-            if (currentFilePosition >= fileLength) {
-                // Check if we have pending patches at EOF (e.g. append)
-               if (currentPatchIndex < patches.size()) {
-                    Patch nextPatch = patches.get(currentPatchIndex);
-                    if (currentFilePosition >= nextPatch.getGlobalStartOffset()) {
-                         activatePatch(nextPatch);
-                         continue;
-                    }
-                }
-                break; // EOF
-            }
-            
-            // Calculate how much we can read before potentially hitting a patch
-            long maxRead = len - totalRead;
-            
-            if (currentPatchIndex < patches.size()) {
-                Patch nextPatch = patches.get(currentPatchIndex);
-                long distanceToPatch = nextPatch.getGlobalStartOffset() - currentFilePosition;
-                
-                if (distanceToPatch <= 0) {
-                    // We're at the patch start, activate it
-                    activatePatch(nextPatch);
+
+            long distanceToBoundary = nextBoundary - currentFilePosition;
+            if (distanceToBoundary <= 0) {
+                // Either a patch starts here (possibly an append at EOF) or we're done
+                if (currentPatchIndex < patches.length) {
+                    activatePatch();
                     continue;
                 }
-                
-                maxRead = Math.min(maxRead, distanceToPatch);
-            }
-            
-            // Read from file
-            originalFile.seek(currentFilePosition);
-            int bytesRead = originalFile.read(b, off + totalRead, (int) maxRead);
-            
-            if (bytesRead == -1) {
                 break; // EOF
             }
-            
+
+            int toRead = (int) Math.min(distanceToBoundary, len - totalRead);
+            int bytesRead = readFromFile(b, off + totalRead, toRead);
+            if (bytesRead <= 0) {
+                break; // File shrank underneath us
+            }
+
             currentFilePosition += bytesRead;
             currentLogicalPosition += bytesRead;
             totalRead += bytesRead;
         }
-        
+
         return totalRead > 0 ? totalRead : -1;
     }
-    
+
     /**
-     * Activates a patch, preparing to read from its replacement text.
+     * Positions the stream on the given logical offset of the patched document.
+     * Uses a binary search over the precomputed patch layout, so a patched view
+     * can be read from the middle without replaying everything before it.
+     *
+     * @param logicalOffset Target offset, between 0 and {@link #getLogicalLength()} inclusive
      */
-    private void activatePatch(Patch patch) throws IOException {
-        this.activePatch = patch;
-        this.activePatchOffset = 0;
-        
-        // Convert patch replacement text to bytes
-        this.patchBuffer = patch.getReplacementText().getBytes(java.nio.charset.StandardCharsets.UTF_8);
-        
+    public void seek(long logicalOffset) throws IOException {
+        ensureOpen();
+        if (logicalOffset < 0 || logicalOffset > logicalLength) {
+            throw new IllegalArgumentException("Logical offset out of range: " + logicalOffset
+                    + " (length " + logicalLength + ")");
+        }
+
+        // Last patch whose replacement starts at or before the target
+        int low = 0;
+        int high = patches.length - 1;
+        int k = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (logicalStarts[mid] <= logicalOffset) {
+                k = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        deactivatePatch();
+        currentLogicalPosition = logicalOffset;
+        if (k < 0) {
+            currentFilePosition = logicalOffset;
+            currentPatchIndex = 0;
+        } else {
+            long inPatch = logicalOffset - logicalStarts[k];
+            int replacementLength = patches[k].getNewLength();
+            currentPatchIndex = k + 1;
+            currentFilePosition = resumeFilePositions[k];
+            if (inPatch < replacementLength) {
+                openReplacement(patches[k], inPatch);
+            } else {
+                currentFilePosition += inPatch - replacementLength;
+            }
+        }
+        updateNextBoundary();
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long target = Math.min(logicalLength, currentLogicalPosition + n);
+        long skipped = target - currentLogicalPosition;
+        seek(target);
+        return skipped;
+    }
+
+    /**
+     * Streams the rest of the logical document to the given channel.
+     * Unchanged spans of the original file go through {@link FileChannel#transferTo},
+     * which lets the OS copy them without passing through the Java heap.
+     *
+     * @return Number of bytes transferred
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        Objects.requireNonNull(target);
+        ensureOpen();
+        long transferred = 0;
+
+        while (true) {
+            if (patchBuffer != null) {
+                int written = patchLimit - activePatchOffset;
+                ByteBuffer replacement = ByteBuffer.wrap(patchBuffer, activePatchOffset, written);
+                while (replacement.hasRemaining()) {
+                    target.write(replacement);
+                }
+                transferred += written;
+                currentLogicalPosition += written;
+
+                // Rest of a spilled payload: blob file to target without heap copies
+                if (blobChannel != null) {
+                    while (blobPosition < blobLength) {
+                        long n = blobChannel.transferTo(blobBase + blobPosition, blobLength - blobPosition, target);
+                        if (n <= 0) {
+                            throw new EOFException("Patch blob truncated at offset " + blobPosition);
+                        }
+                        blobPosition += n;
+                        transferred += n;
+                        currentLogicalPosition += n;
+                    }
+                }
+                if (blobStream != null && blobPosition < blobLength) {
+                    loadBlobChunk();
+                    continue;
+                }
+                deactivatePatch();
+                continue;
+            }
+
+            long span = nextBoundary - currentFilePosition;
+            if (span <= 0) {
+                if (currentPatchIndex < patches.length) {
+                    activatePatch();
+                    continue;
+                }
+                break; // EOF
+            }
+
+            long written = compressed != null
+                    ? copyFromFile(span, target)
+                    : channel.transferTo(currentFilePosition, span, target);
+            if (written <= 0) {
+                throw new EOFException("Original file truncated at offset " + currentFilePosition);
+            }
+            currentFilePosition += written;
+            currentLogicalPosition += written;
+            transferred += written;
+        }
+
+        return transferred;
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        Objects.requireNonNull(out);
+        if (out instanceof FileOutputStream) {
+            return transferTo(((FileOutputStream) out).getChannel());
+        }
+        return transferTo(Channels.newChannel(out));
+    }
+
+    /**
+     * Copies bytes at the current file position into the caller's array,
+     * refilling the direct buffer with a positional read when needed.
+     */
+    private int readFromFile(byte[] b, int off, int len) throws IOException {
+        long index = currentFilePosition - bufferFileStart;
+        if (bufferFileStart < 0 || index < 0 || index >= bufferLimit) {
+            fillBuffer(currentFilePosition);
+            index = currentFilePosition - bufferFileStart;
+            if (index >= bufferLimit) {
+                return -1;
+            }
+        }
+        int n = (int) Math.min(len, bufferLimit - index);
+        buffer.get((int) index, b, off, n);
+        return n;
+    }
+
+    /**
+     * Copies decompressed bytes through the buffer: a compressed original has nothing to hand to the OS.
+     */
+    private long copyFromFile(long span, WritableByteChannel target) throws IOException {
+        long index = currentFilePosition - bufferFileStart;
+        if (bufferFileStart < 0 || index < 0 || index >= bufferLimit) {
+            fillBuffer(currentFilePosition);
+            index = currentFilePosition - bufferFileStart;
+            if (index >= bufferLimit) {
+                return -1;
+            }
+        }
+        int n = (int) Math.min(span, bufferLimit - index);
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit((int) index + n).position((int) index);
+        while (slice.hasRemaining()) {
+            target.write(slice);
+        }
+        return n;
+    }
+
+    private void fillBuffer(long position) throws IOException {
+        if (compressed != null) {
+            fillFromCompressed(position);
+            return;
+        }
+        // O_DIRECT reads must start on a block boundary; the last one may be short at EOF
+        long start = DirectIo.alignDown(position, alignment);
+        buffer.clear();
+        while (buffer.hasRemaining() && start + buffer.position() < fileLength) {
+            int n = channel.read(buffer, start + buffer.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        bufferFileStart = start;
+        bufferLimit = buffer.position();
+    }
+
+    private void fillFromCompressed(long position) throws IOException {
+        if (compressedCursor != null && position >= cursorPosition && position - cursorPosition <= MAX_COMPRESSED_SKIP) {
+            compressedCursor.skipNBytes(position - cursorPosition);
+        } else {
+            if (compressedCursor != null) {
+                compressedCursor.close();
+            }
+            compressedCursor = compressed.openAt(Math.min(position, fileLength));
+        }
+        cursorPosition = position;
+        if (compressedChunk == null) {
+            compressedChunk = new byte[BUFFER_SIZE];
+        }
+        int n = compressedCursor.readNBytes(compressedChunk, 0, BUFFER_SIZE);
+        buffer.clear();
+        buffer.put(compressedChunk, 0, n);
+        cursorPosition += n;
+        bufferFileStart = position;
+        bufferLimit = n;
+    }
+
+    /**
+     * Activates the next patch, preparing to read from its replacement bytes.
+     */
+    private void activatePatch() throws IOException {
+        Patch patch = patches[currentPatchIndex];
+
         // Skip the bytes in the original file that are being replaced
-        long bytesToSkip = patch.getGlobalEndOffset() - patch.getGlobalStartOffset();
-        currentFilePosition += bytesToSkip;
-        
+        currentFilePosition = resumeFilePositions[currentPatchIndex];
+
         // Move to next patch for future reads
         currentPatchIndex++;
+        updateNextBoundary();
+
+        if (patch.getNewLength() > 0) {
+            openReplacement(patch, 0);
+        }
     }
-    
+
     /**
-     * Deactivates the current patch, returning to normal file reading.
+     * Points patchBuffer at the replacement bytes of the given patch, starting at an offset.
+     * In-memory payloads are used as-is; spilled ones are loaded chunk by chunk from their blob,
+     * and source-range ones from the referenced range of their source file.
      */
-    private void deactivatePatch() {
-        this.activePatch = null;
+    private void openReplacement(Patch patch, long offset) throws IOException {
+        if (patch.isSourceRange()) {
+            File source = patch.getSourceFile().toFile();
+            if (SourceFiles.isCompressed(source)) {
+                this.blobStream = SourceFiles.openAt(source, patch.getSourceOffset() + offset);
+                this.blobBase = 0;
+            } else {
+                this.blobChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                this.blobBase = patch.getSourceOffset();
+            }
+        } else if (patch.isSpilled()) {
+            this.blobChannel = FileChannel.open(patch.getBlobFile(), StandardOpenOption.READ);
+            this.blobBase = 0;
+        } else {
+            this.patchBuffer = patch.getReplacementBytes();
+            this.patchLimit = patchBuffer.length;
+            this.activePatchOffset = (int) offset;
+            return;
+        }
+        this.blobLength = patch.getNewLength();
+        this.blobPosition = offset;
+        if (blobChunk == null) {
+            blobChunk = new byte[BLOB_CHUNK_SIZE];
+        }
+        loadBlobChunk();
+    }
+
+    /**
+     * Called when patchBuffer is exhausted: loads the next blob chunk or ends the patch.
+     */
+    private void nextPatchChunk() throws IOException {
+        if ((blobChannel != null || blobStream != null) && blobPosition < blobLength) {
+            loadBlobChunk();
+        } else {
+            deactivatePatch();
+        }
+    }
+
+    private void loadBlobChunk() throws IOException {
+        int n = (int) Math.min(blobChunk.length, blobLength - blobPosition);
+        if (blobStream != null) {
+            if (blobStream.readNBytes(blobChunk, 0, n) < n) {
+                throw new EOFException("Patch source range truncated at offset " + blobPosition);
+            }
+        } else {
+            ByteBuffer target = ByteBuffer.wrap(blobChunk, 0, n);
+            while (target.hasRemaining()) {
+                if (blobChannel.read(target, blobBase + blobPosition + target.position()) < 0) {
+                    throw new EOFException("Patch blob truncated at offset " + (blobPosition + target.position()));
+                }
+            }
+        }
+        blobPosition += n;
+        this.patchBuffer = blobChunk;
+        this.patchLimit = n;
         this.activePatchOffset = 0;
+    }
+
+    /**
+     * Deactivates the current patch, returning to normal file reading.
+     */
+    private void deactivatePatch() throws IOException {
         this.patchBuffer = null;
+        this.patchLimit = 0;
+        this.activePatchOffset = 0;
+        if (blobChannel != null) {
+            blobChannel.close();
+            blobChannel = null;
+        }
+        if (blobStream != null) {
+            blobStream.close();
+            blobStream = null;
+        }
+    }
+
+    private void updateNextBoundary() {
+        nextBoundary = currentPatchIndex < patches.length
+                ? Math.min(patches[currentPatchIndex].getGlobalStartOffset(), fileLength)
+                : fileLength;
     }
-    
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer pooled = BUFFER_POOL.poll();
+        return pooled != null ? pooled : DirectIo.allocateAligned(BUFFER_SIZE, POOL_ALIGNMENT);
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        if (BUFFER_POOL.size() < MAX_POOLED_BUFFERS) {
+            buffer.clear();
+            BUFFER_POOL.offer(buffer);
+        }
+    }
+
     @Override
     public void close() throws IOException {
-        originalFile.close();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        deactivatePatch();
+        if (alignment <= POOL_ALIGNMENT) {
+            releaseBuffer(buffer);
+        }
+        buffer = null;
+        bufferFileStart = -1;
+        bufferLimit = 0;
+        if (compressedCursor != null) {
+            compressedCursor.close();
+            compressedCursor = null;
+        }
+        if (channel != null) {
+            channel.close();
+        }
     }
-    
+
     @Override
     public int available() throws IOException {
-        // This is an approximation
-        if (activePatch != null) {
-            return patchBuffer.length - activePatchOffset;
+        if (patchBuffer != null) {
+            return patchLimit - activePatchOffset;
         }
-        return 0; // Conservative estimate
+        // Bytes already buffered before the next patch boundary
+        long index = currentFilePosition - bufferFileStart;
+        if (bufferFileStart >= 0 && index >= 0 && index < bufferLimit) {
+            return (int) Math.min(bufferLimit - index, nextBoundary - currentFilePosition);
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the total length of the reconstructed (patched) document.
+     */
+    public long getLogicalLength() {
+        return logicalLength;
     }
-    
+
     /**
      * Gets the current logical position in the reconstructed stream.
      * This is useful for debugging and tracking read progress.
@@ -230,7 +616,7 @@ public class PatchedInputStream extends InputStream {
     public long getLogicalPosition() {
         return currentLogicalPosition;
     }
-    
+
     /**
      * Gets the current position in the original file.
      * This is useful for debugging patch application.
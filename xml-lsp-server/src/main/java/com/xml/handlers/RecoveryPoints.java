@@ -0,0 +1,125 @@
+package com.xml.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.Patch;
+import com.xml.services.SourceFiles;
+
+/**
+ * Points de reprise de l'analyse après une erreur fatale : débuts des enregistrements (fragments
+ * de profondeur 1 et leurs continuations) du document analysé, en offsets du flux (patchs
+ * appliqués).
+ * <p>
+ * Un enregistrement dont le début tombe dans un patch n'est pas un point de reprise : sa position
+ * dans le document patché n'est pas connue sans relire le patch.
+ */
+public final class RecoveryPoints {
+
+    /**
+     * Accès au document analysé à partir d'un offset.
+     */
+    interface Opener {
+        InputStream openAt(long offset) throws IOException;
+    }
+
+    private final long[] starts;
+    private final long end;
+    private final Opener opener;
+
+    RecoveryPoints(long[] starts, long end, Opener opener) {
+        this.starts = starts;
+        this.end = end;
+        this.opener = opener;
+    }
+
+    /**
+     * @param index   index des fragments du fichier original
+     * @param patches patchs triés par offset, vide pour le fichier tel quel
+     * @return points de reprise, ou null si l'index est vide
+     */
+    public static RecoveryPoints of(File file, FragmentIndex index, List<Patch> patches, boolean directIo) {
+        List<FragmentMetadata> fragments = index.getAllFragments();
+        long[] starts = new long[fragments.size()];
+        int count = 0;
+        long end = -1;
+        int p = 0;
+        long delta = 0;
+        long coveredUntil = -1;
+        for (int i = 0; i < fragments.size(); ) {
+            int last = i;
+            while (last + 1 < fragments.size() && fragments.get(last + 1).isContinuation()) {
+                last++;
+            }
+            long start = fragments.get(i).getStartOffset();
+            long recordEnd = fragments.get(last).getEndOffset();
+
+            // Patchs avant l'enregistrement (dont les insertions à son début)
+            while (p < patches.size() && patches.get(p).getGlobalEndOffset() <= start) {
+                delta += patches.get(p).getLengthDelta();
+                coveredUntil = Math.max(coveredUntil, patches.get(p).getGlobalEndOffset());
+                p++;
+            }
+            boolean straddled = coveredUntil > start
+                    || (p < patches.size() && patches.get(p).getGlobalStartOffset() < start);
+            if (!straddled) {
+                starts[count++] = start + delta;
+            }
+            // Patchs qui commencent dans l'enregistrement
+            long inside = 0;
+            boolean endCovered = false;
+            while (p < patches.size() && patches.get(p).getGlobalStartOffset() < recordEnd) {
+                Patch patch = patches.get(p);
+                inside += patch.getLengthDelta();
+                coveredUntil = Math.max(coveredUntil, patch.getGlobalEndOffset());
+                endCovered |= patch.getGlobalEndOffset() > recordEnd;
+                p++;
+            }
+            delta += inside;
+            end = endCovered ? -1 : recordEnd + delta;
+            i = last + 1;
+        }
+        if (count == 0) {
+            return null;
+        }
+        if (end < 0) {
+            // Fin du dernier enregistrement dans un patch : reprise jusqu'à celle du dernier point
+            end = starts[count - 1];
+        }
+
+        Opener opener = patches.isEmpty()
+                ? offset -> SourceFiles.openAt(file, offset)
+                : offset -> {
+                    PatchedInputStream in = new PatchedInputStream(file, patches, directIo);
+                    in.seek(offset);
+                    return in;
+                };
+        return new RecoveryPoints(Arrays.copyOf(starts, count), end, opener);
+    }
+
+    /**
+     * @return premier point de reprise strictement après {@code offset}, ou -1
+     */
+    long next(long offset) {
+        int i = Arrays.binarySearch(starts, offset);
+        i = i >= 0 ? i + 1 : -i - 1;
+        return i < starts.length && starts[i] < end ? starts[i] : -1;
+    }
+
+    /**
+     * @return fin du dernier enregistrement : la reprise s'arrête là (la balise fermante de la
+     *         racine n'est pas revérifiée)
+     */
+    long end() {
+        return end;
+    }
+
+    InputStream openAt(long offset) throws IOException {
+        return opener.openAt(offset);
+    }
+}
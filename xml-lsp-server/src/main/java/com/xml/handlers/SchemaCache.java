@@ -0,0 +1,325 @@
+package com.xml.handlers;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.apache.xerces.jaxp.validation.XSGrammarPoolContainer;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.grammars.XSGrammar;
+import org.apache.xerces.xs.XSModel;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.SAXException;
+
+/**
+ * Cache des schémas XSD compilés, partagé par toutes les validations du serveur.
+ * <p>
+ * Un {@link Schema} Xerces est une grammar pool en lecture seule : compilé une fois, il sert à
+ * autant de validateurs que nécessaire, en parallèle. L'entrée d'un schéma est indexée par son
+ * chemin et porte la date de modification de chaque document importé ou inclus (transitivement) :
+ * elle est recompilée dès que l'un d'eux change, et {@link #invalidate(File)} retire toutes les
+ * entrées qui dépendent d'un fichier. La mémoire est bornée par le nombre d'entrées et par la
+ * taille cumulée des documents XSD compilés (éviction du moins récemment utilisé).
+ */
+public final class SchemaCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 16;
+    private static final long DEFAULT_MAX_SCHEMA_BYTES = 64L * 1024 * 1024;
+
+    private static final SchemaCache SHARED = new SchemaCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_SCHEMA_BYTES);
+
+    private final int maxEntries;
+    private final long maxSchemaBytes;
+
+    // Ordre d'accès : le premier élément est le moins récemment utilisé. Protégé par "entries".
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    // Une compilation à la fois par schéma : les validations concurrentes attendent la première
+    private final Map<String, Object> compileLocks = new ConcurrentHashMap<>();
+
+    private int compilations;
+
+    /**
+     * Schéma compilé et documents dont il dépend, avec leur date de modification au moment de la compilation.
+     */
+    private static final class Entry {
+        final Schema schema;
+        final Map<Path, Long> dependencies;
+        final long bytes;
+        // Version du schéma : empreinte des documents et de leurs dates, stable d'une session à l'autre
+        final String fingerprint;
+
+        // Modèle des composants, chargé à la première demande (inspection du modèle de contenu)
+        volatile XSModel model;
+
+        Entry(Schema schema, Map<Path, Long> dependencies, long bytes) {
+            this.schema = schema;
+            this.dependencies = dependencies;
+            this.bytes = bytes;
+            this.fingerprint = fingerprint(dependencies);
+        }
+
+        private static String fingerprint(Map<Path, Long> dependencies) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                for (Map.Entry<Path, Long> dep : dependencies.entrySet()) {
+                    digest.update((dep.getKey() + "|" + dep.getValue() + "|" + dep.getKey().toFile().length() + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                return HexFormat.of().formatHex(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 indisponible", e);
+            }
+        }
+
+        boolean isFresh() {
+            for (Map.Entry<Path, Long> dep : dependencies.entrySet()) {
+                if (dep.getKey().toFile().lastModified() != dep.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public SchemaCache(int maxEntries, long maxSchemaBytes) {
+        this.maxEntries = maxEntries;
+        this.maxSchemaBytes = maxSchemaBytes;
+    }
+
+    /**
+     * @return le cache partagé par le serveur
+     */
+    public static SchemaCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Schéma compilé pour ce fichier XSD, recompilé si lui ou l'un des documents qu'il importe a changé.
+     *
+     * @throws SAXException si le schéma est invalide (l'échec n'est pas mis en cache)
+     */
+    public Schema getSchema(File xsdFile) throws SAXException {
+        return entry(xsdFile).schema;
+    }
+
+    /**
+     * Version du schéma compilé : change dès que lui ou l'un des documents qu'il importe change.
+     *
+     * @throws SAXException si le schéma est invalide
+     */
+    public String getFingerprint(File xsdFile) throws SAXException {
+        return entry(xsdFile).fingerprint;
+    }
+
+    /**
+     * Modèle des composants du schéma (déclarations, types, contraintes), pour inspecter le modèle
+     * de contenu. Chargé une fois par version du schéma.
+     *
+     * @throws SAXException si le schéma est invalide
+     */
+    public XSModel getModel(File xsdFile) throws SAXException {
+        Entry entry = entry(xsdFile);
+        XSModel model = entry.model;
+        if (model == null) {
+            synchronized (entry) {
+                model = entry.model;
+                if (model == null) {
+                    model = toModel(entry.schema, xsdFile);
+                    entry.model = model;
+                }
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Modèle des grammaires déjà compilées dans le schéma : même configuration sécurisée, même
+     * résolution des imports et mêmes versions des documents que la validation elle-même.
+     */
+    private static XSModel toModel(Schema schema, File xsdFile) throws SAXException {
+        if (!(schema instanceof XSGrammarPoolContainer)) {
+            throw new SAXException("Schéma non compilé par Xerces : " + xsdFile.getName());
+        }
+        Grammar[] grammars = ((XSGrammarPoolContainer) schema).getGrammarPool()
+                .retrieveInitialGrammarSet(XMLGrammarDescription.XML_SCHEMA);
+        if (grammars == null || grammars.length == 0) {
+            throw new SAXException("Schéma illisible : " + xsdFile.getName());
+        }
+        XSGrammar[] xsGrammars = new XSGrammar[grammars.length];
+        for (int i = 0; i < grammars.length; i++) {
+            xsGrammars[i] = (XSGrammar) grammars[i];
+        }
+        return xsGrammars[0].toXSModel(xsGrammars);
+    }
+
+    private Entry entry(File xsdFile) throws SAXException {
+        String key = xsdFile.getAbsolutePath();
+        Entry entry = lookup(key);
+        if (entry != null) {
+            return entry;
+        }
+
+        synchronized (compileLocks.computeIfAbsent(key, k -> new Object())) {
+            entry = lookup(key);
+            if (entry == null) {
+                entry = compile(xsdFile);
+                store(key, entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Retire les schémas qui dépendent de ce fichier (le schéma lui-même ou un document importé).
+     */
+    public void invalidate(File changedFile) {
+        Path changed = changedFile.toPath().toAbsolutePath().normalize();
+        synchronized (entries) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.dependencies.containsKey(changed)) {
+                    totalBytes -= entry.bytes;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return nombre de compilations effectuées (pour les tests et le diagnostic)
+     */
+    public int getCompilationCount() {
+        synchronized (entries) {
+            return compilations;
+        }
+    }
+
+    private Entry lookup(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (!entry.isFresh()) {
+                entries.remove(key);
+                totalBytes -= entry.bytes;
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        synchronized (entries) {
+            compilations++;
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                totalBytes -= previous.bytes;
+            }
+            totalBytes += entry.bytes;
+
+            // Éviction LRU ; le schéma qui vient d'être compilé est toujours conservé
+            Iterator<Entry> it = entries.values().iterator();
+            while ((entries.size() > maxEntries || totalBytes > maxSchemaBytes) && entries.size() > 1) {
+                Entry eldest = it.next();
+                totalBytes -= eldest.bytes;
+                it.remove();
+            }
+        }
+    }
+
+    private static Entry compile(File xsdFile) throws SAXException {
+        SchemaFactory factory = newSchemaFactory();
+
+        // Date de chaque document relevée avant que Xerces ne le lise : une modification pendant
+        // la compilation laisse une date périmée dans l'entrée, qui sera donc recompilée. Chaque
+        // document importé ou inclus passe par le résolveur ; la résolution reste celle de Xerces.
+        Map<Path, Long> dependencies = new LinkedHashMap<>();
+        Path root = xsdFile.toPath().toAbsolutePath().normalize();
+        dependencies.put(root, root.toFile().lastModified());
+        factory.setResourceResolver(new LSResourceResolver() {
+            @Override
+            public LSInput resolveResource(String type, String namespaceURI, String publicId,
+                                           String systemId, String baseURI) {
+                Path path = toPath(systemId, baseURI);
+                if (path != null) {
+                    synchronized (dependencies) {
+                        dependencies.putIfAbsent(path, path.toFile().lastModified());
+                    }
+                }
+                return null;
+            }
+        });
+
+        Schema schema = factory.newSchema(xsdFile);
+        long bytes = 0;
+        synchronized (dependencies) {
+            for (Path doc : dependencies.keySet()) {
+                bytes += doc.toFile().length();
+            }
+        }
+        return new Entry(schema, dependencies, bytes);
+    }
+
+    /**
+     * Fabrique configurée comme pour toutes les validations du serveur.
+     */
+    static SchemaFactory newSchemaFactory() throws SAXException {
+        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+
+        // Activation réelle continue-after-fatal-error (supporté par Xerces)
+        factory.setFeature("http://apache.org/xml/features/continue-after-fatal-error", true);
+
+        // Sécurité anti-XXE
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        return factory;
+    }
+
+    private static Path toPath(String systemId, String baseURI) {
+        if (systemId == null) {
+            return null;
+        }
+        try {
+            URI uri = baseURI != null ? new URI(baseURI).resolve(new URI(systemId)) : new URI(systemId);
+            if (!"file".equals(uri.getScheme())) {
+                return null;
+            }
+            return Paths.get(uri).toAbsolutePath().normalize();
+        } catch (Exception e) {
+            // Référence non locale ou mal formée : rien à surveiller
+            return null;
+        }
+    }
+}
@@ -4,16 +4,21 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayDeque;
 import java.util.Deque;
 
 import com.xml.models.FragmentIndex;
 import com.xml.models.FragmentMetadata;
+import com.xml.services.SeekableGzip;
+import com.xml.services.SourceFiles;
 
 /**
  * Indexeur lexical robuste pour fichiers XML massifs.
  * Utilise une machine à états pour scanner la structure sans validation stricte.
  * Tolère les erreurs de syntaxe (attributs mal formés, contenu invalide) tant que la structure des balises est lisible.
+ * Un fichier gzip est indexé sans décompression préalable : les offsets sont ceux du contenu décompressé,
+ * et le parcours construit au passage l'index des points de reprise de {@link SeekableGzip}.
  */
 public class StreamingIndexer {
 
@@ -24,6 +29,9 @@ public class StreamingIndexer {
     private long currentGlobalOffset = 0;
     private String lastIncompleteFragmentName = null;
 
+    // Parcours complet sans passer par le cache de pages (voir DirectIo)
+    private boolean directIo = com.xml.services.DirectIo.enabledByDefault();
+
     /**
      * Internal class to track tag information during parsing.
      */
@@ -47,6 +55,14 @@ public class StreamingIndexer {
     public StreamingIndexer(FragmentIndex index) {
         this.index = index;
     }
+
+    /**
+     * Full scans read the file with O_DIRECT, leaving the page cache to random fragment reads.
+     * Range re-scans (after a save) are small and keep using the page cache.
+     */
+    public void setDirectIo(boolean directIo) {
+        this.directIo = directIo;
+    }
     
     /**
      * Get a copy of the current tag stack for debugging.
@@ -85,111 +101,213 @@ public class StreamingIndexer {
     }
 
     public void indexFile(File file) {
-        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file))) {
-            long offset = 0;
-            int currentLine = 1; // 1-based line numbering
-            int depth = 0;
-            int b;
-            
-            State state = State.CONTENT;
-            StringBuilder tagNameBuffer = new StringBuilder();
-            
-            // État pour le fragment courant
-            long fragmentStart = -1;
-            int fragmentStartLine = -1;
-            String fragmentName = null;
-            int fragmentCount = 0;
-            int fragmentSplitCount = 0; // Track sub-chunks for dynamic fragmentation
+        try (InputStream in = openForScan(file)) {
+            scan(in, 0, Long.MAX_VALUE, 1, 0); // 1-based line numbering
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Indexe un document lu en flux, par exemple un {@link com.xml.services.PieceTable} composé
+     * de plages de plusieurs fichiers. Les offsets des fragments sont ceux du flux.
+     */
+    public void indexStream(InputStream in) throws IOException {
+        scan(in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 64 * 1024), 0, Long.MAX_VALUE, 1, 0);
+    }
+
+    /**
+     * Indexe uniquement la plage [start, end) d'un fichier, située au niveau des enfants
+     * de la racine (profondeur 1), par exemple entre deux fragments restés intacts.
+     * Les fragments trouvés sont ajoutés à la suite de l'index.
+     *
+     * @param startLine ligne (1-based) de l'offset start
+     * @return true si la plage se termine proprement : hors balise, à la profondeur 1,
+     *         sans fragment ouvert. Sinon la structure a changé et un index complet est nécessaire.
+     */
+    public boolean indexRange(File file, long start, long end, int startLine) throws IOException {
+        try (BufferedInputStream in = new BufferedInputStream(SourceFiles.openAt(file, start), 64 * 1024)) {
+            return scan(in, start, end, startLine, 1);
+        }
+    }
+
+    private InputStream openForScan(File file) throws IOException {
+        if (SourceFiles.isCompressed(file)) {
+            return new BufferedInputStream(SeekableGzip.forFile(file).openIndexingStream(), 64 * 1024);
+        }
+        return directIo
+                ? new DirectIoInputStream(file)
+                : new BufferedInputStream(new FileInputStream(file));
+    }
+
+    private boolean scan(InputStream in, long offset, long endOffset, int currentLine, int depth) throws IOException {
+        final int initialDepth = depth;
+        int b;
+        
+        State state = State.CONTENT;
+        StringBuilder tagNameBuffer = new StringBuilder();
+        
+        // État pour le fragment courant
+        long fragmentStart = -1;
+        int fragmentStartLine = -1;
+        String fragmentName = null;
+        int fragmentCount = 0;
+        int fragmentSplitCount = 0; // Track sub-chunks for dynamic fragmentation
+        
+        // État temporaire pour la balise en cours
+        long currentTagStart = -1;
+        int currentTagStartLine = -1;
+        boolean isClosingTag = false;
+        boolean isSelfClosing = false;
+        
+        // Buffers pour détection de fin de commentaire/CDATA
+        int dashCount = 0; // Pour -->
+        int bracketCount = 0; // Pour ]]>
+
+        while (offset < endOffset && (b = in.read()) != -1) {
+            char c = (char) b;
             
-            // État temporaire pour la balise en cours
-            long currentTagStart = -1;
-            int currentTagStartLine = -1;
-            boolean isClosingTag = false;
-            boolean isSelfClosing = false;
+            if (c == '\n') {
+                currentLine++;
+            }
             
-            // Buffers pour détection de fin de commentaire/CDATA
-            int dashCount = 0; // Pour -->
-            int bracketCount = 0; // Pour ]]>
-
-            while ((b = in.read()) != -1) {
-                char c = (char) b;
-                
-                if (c == '\n') {
-                    currentLine++;
-                }
-                
-                switch (state) {
-                    case CONTENT:
-                        if (c == '<') {
-                            state = State.TAG_START;
-                            currentTagStart = offset;
-                            currentTagStartLine = currentLine;
-                            tagNameBuffer.setLength(0);
-                            isClosingTag = false;
-                            isSelfClosing = false;
+            switch (state) {
+                case CONTENT:
+                    if (c == '<') {
+                        state = State.TAG_START;
+                        currentTagStart = offset;
+                        currentTagStartLine = currentLine;
+                        tagNameBuffer.setLength(0);
+                        isClosingTag = false;
+                        isSelfClosing = false;
+                    }
+                    break;
+                    
+                case TAG_START:
+                    if (c == '/') {
+                        isClosingTag = true;
+                        state = State.TAG_NAME;
+                    } else if (c == '?') {
+                        state = State.PI;
+                    } else if (c == '!') {
+                        state = State.COMMENT_START;
+                    } else if (Character.isWhitespace(c)) {
+                        // < espace : invalide mais on ignore et retourne au contenu
+                        state = State.CONTENT; 
+                    } else {
+                        // Début du nom de balise
+                        tagNameBuffer.append(c);
+                        state = State.TAG_NAME;
+                    }
+                    break;
+                    
+                case TAG_NAME:
+                    if (Character.isWhitespace(c)) {
+                        state = State.WAIT_GT;
+                    } else if (c == '>') {
+                        // Fin de balise directe (ex: <tag>)
+                        processTagEnd(tagNameBuffer.toString(), isClosingTag, isSelfClosing, offset, currentTagStart, 
+                                      depth, fragmentStart, fragmentName, fragmentCount);
+                        
+                        if (isClosingTag) {
+                            depth--;
+                            if (depth == 1 && fragmentStart != -1) {
+                                byte flags = fragmentSplitCount > 0 ? FragmentMetadata.FLAG_CONTINUATION : 0;
+                                indexFragment(fragmentName, ++fragmentCount, fragmentStart, offset + 1, fragmentStartLine, currentLine, flags);
+                                fragmentStart = -1;
+                                fragmentName = null;
+                                fragmentSplitCount = 0; // Reset for next fragment
+                            }
+                        } else {
+                            if (depth == 1) {
+                                fragmentStart = currentTagStart;
+                                fragmentStartLine = currentTagStartLine;
+                                fragmentName = tagNameBuffer.toString();
+                                fragmentSplitCount = 0; // Reset for new fragment
+                            }
+                            depth++;
                         }
-                        break;
+                        state = State.CONTENT;
+                    } else if (c == '/') {
+                        state = State.WAIT_GT;
+                        isSelfClosing = true;
+                    } else if (c == '<') {
+                        // RECOVERY: Balise précédente mal formée (manque '>'), nouvelle balise trouvée.
+                        processTagEnd(tagNameBuffer.toString(), isClosingTag, isSelfClosing, offset, currentTagStart, 
+                                      depth, fragmentStart, fragmentName, fragmentCount);
                         
-                    case TAG_START:
-                        if (c == '/') {
-                            isClosingTag = true;
-                            state = State.TAG_NAME;
-                        } else if (c == '?') {
-                            state = State.PI;
-                        } else if (c == '!') {
-                            state = State.COMMENT_START;
-                        } else if (Character.isWhitespace(c)) {
-                            // < espace : invalide mais on ignore et retourne au contenu
-                            state = State.CONTENT; 
+                        if (isClosingTag) {
+                            depth--;
+                            if (depth == 1 && fragmentStart != -1) {
+                                indexFragment(fragmentName, ++fragmentCount, fragmentStart, offset, fragmentStartLine, currentLine);
+                                fragmentStart = -1;
+                                fragmentName = null;
+                            }
                         } else {
-                            // Début du nom de balise
-                            tagNameBuffer.append(c);
-                            state = State.TAG_NAME;
+                            if (depth == 1) {
+                                fragmentStart = currentTagStart;
+                                fragmentStartLine = currentTagStartLine;
+                                fragmentName = tagNameBuffer.toString();
+                            }
+                            depth++;
                         }
-                        break;
                         
-                    case TAG_NAME:
-                        if (Character.isWhitespace(c)) {
-                            state = State.WAIT_GT;
-                        } else if (c == '>') {
-                            // Fin de balise directe (ex: <tag>)
-                            processTagEnd(tagNameBuffer.toString(), isClosingTag, isSelfClosing, offset, currentTagStart, 
-                                          depth, fragmentStart, fragmentName, fragmentCount);
-                            
-                            if (isClosingTag) {
-                                depth--;
-                                if (depth == 1 && fragmentStart != -1) {
-                                    byte flags = fragmentSplitCount > 0 ? FragmentMetadata.FLAG_CONTINUATION : 0;
-                                    indexFragment(fragmentName, ++fragmentCount, fragmentStart, offset + 1, fragmentStartLine, currentLine, flags);
-                                    fragmentStart = -1;
-                                    fragmentName = null;
-                                    fragmentSplitCount = 0; // Reset for next fragment
-                                }
+                        // Démarrer la nouvelle balise
+                        state = State.TAG_START;
+                        currentTagStart = offset;
+                        currentTagStartLine = currentLine;
+                        tagNameBuffer.setLength(0);
+                        isClosingTag = false;
+                        isSelfClosing = false;
+                    } else {
+                        tagNameBuffer.append(c);
+                    }
+                    break;
+                    
+                case WAIT_GT:
+                    if (c == '>') {
+                        processTagEnd(tagNameBuffer.toString(), isClosingTag, isSelfClosing, offset, currentTagStart, 
+                                      depth, fragmentStart, fragmentName, fragmentCount);
+                        
+                        if (isClosingTag) {
+                            depth--;
+                            if (depth == 1 && fragmentStart != -1) {
+                                indexFragment(fragmentName, ++fragmentCount, fragmentStart, offset + 1, fragmentStartLine, currentLine);
+                                fragmentStart = -1;
+                                fragmentName = null;
+                            }
+                        } else {
+                            if (isSelfClosing) {
+                                 if (depth == 1) {
+                                    indexFragment(tagNameBuffer.toString(), ++fragmentCount, currentTagStart, offset + 1, currentTagStartLine, currentLine);
+                                 }
                             } else {
                                 if (depth == 1) {
                                     fragmentStart = currentTagStart;
                                     fragmentStartLine = currentTagStartLine;
                                     fragmentName = tagNameBuffer.toString();
-                                    fragmentSplitCount = 0; // Reset for new fragment
                                 }
                                 depth++;
                             }
-                            state = State.CONTENT;
-                        } else if (c == '/') {
-                            state = State.WAIT_GT;
-                            isSelfClosing = true;
-                        } else if (c == '<') {
-                            // RECOVERY: Balise précédente mal formée (manque '>'), nouvelle balise trouvée.
-                            processTagEnd(tagNameBuffer.toString(), isClosingTag, isSelfClosing, offset, currentTagStart, 
-                                          depth, fragmentStart, fragmentName, fragmentCount);
-                            
-                            if (isClosingTag) {
-                                depth--;
-                                if (depth == 1 && fragmentStart != -1) {
-                                    indexFragment(fragmentName, ++fragmentCount, fragmentStart, offset, fragmentStartLine, currentLine);
-                                    fragmentStart = -1;
-                                    fragmentName = null;
-                                }
+                        }
+                        state = State.CONTENT;
+                    } else if (c == '<') {
+                        // RECOVERY: Balise précédente mal formée (manque '>'), nouvelle balise trouvée.
+                        processTagEnd(tagNameBuffer.toString(), isClosingTag, isSelfClosing, offset, currentTagStart, 
+                                      depth, fragmentStart, fragmentName, fragmentCount);
+                        
+                        if (isClosingTag) {
+                            depth--;
+                            if (depth == 1 && fragmentStart != -1) {
+                                indexFragment(fragmentName, ++fragmentCount, fragmentStart, offset, fragmentStartLine, currentLine);
+                                fragmentStart = -1;
+                                fragmentName = null;
+                            }
+                        } else {
+                            if (isSelfClosing) {
+                                 if (depth == 1) {
+                                    indexFragment(tagNameBuffer.toString(), ++fragmentCount, currentTagStart, offset, currentTagStartLine, currentLine);
+                                 }
                             } else {
                                 if (depth == 1) {
                                     fragmentStart = currentTagStart;
@@ -198,169 +316,101 @@ public class StreamingIndexer {
                                 }
                                 depth++;
                             }
-                            
-                            // Démarrer la nouvelle balise
-                            state = State.TAG_START;
-                            currentTagStart = offset;
-                            currentTagStartLine = currentLine;
-                            tagNameBuffer.setLength(0);
-                            isClosingTag = false;
-                            isSelfClosing = false;
-                        } else {
-                            tagNameBuffer.append(c);
-                        }
-                        break;
-                        
-                    case WAIT_GT:
-                        if (c == '>') {
-                            processTagEnd(tagNameBuffer.toString(), isClosingTag, isSelfClosing, offset, currentTagStart, 
-                                          depth, fragmentStart, fragmentName, fragmentCount);
-                            
-                            if (isClosingTag) {
-                                depth--;
-                                if (depth == 1 && fragmentStart != -1) {
-                                    indexFragment(fragmentName, ++fragmentCount, fragmentStart, offset + 1, fragmentStartLine, currentLine);
-                                    fragmentStart = -1;
-                                    fragmentName = null;
-                                }
-                            } else {
-                                if (isSelfClosing) {
-                                     if (depth == 1) {
-                                        indexFragment(tagNameBuffer.toString(), ++fragmentCount, currentTagStart, offset + 1, currentTagStartLine, currentLine);
-                                     }
-                                } else {
-                                    if (depth == 1) {
-                                        fragmentStart = currentTagStart;
-                                        fragmentStartLine = currentTagStartLine;
-                                        fragmentName = tagNameBuffer.toString();
-                                    }
-                                    depth++;
-                                }
-                            }
-                            state = State.CONTENT;
-                        } else if (c == '<') {
-                            // RECOVERY: Balise précédente mal formée (manque '>'), nouvelle balise trouvée.
-                            processTagEnd(tagNameBuffer.toString(), isClosingTag, isSelfClosing, offset, currentTagStart, 
-                                          depth, fragmentStart, fragmentName, fragmentCount);
-                            
-                            if (isClosingTag) {
-                                depth--;
-                                if (depth == 1 && fragmentStart != -1) {
-                                    indexFragment(fragmentName, ++fragmentCount, fragmentStart, offset, fragmentStartLine, currentLine);
-                                    fragmentStart = -1;
-                                    fragmentName = null;
-                                }
-                            } else {
-                                if (isSelfClosing) {
-                                     if (depth == 1) {
-                                        indexFragment(tagNameBuffer.toString(), ++fragmentCount, currentTagStart, offset, currentTagStartLine, currentLine);
-                                     }
-                                } else {
-                                    if (depth == 1) {
-                                        fragmentStart = currentTagStart;
-                                        fragmentStartLine = currentTagStartLine;
-                                        fragmentName = tagNameBuffer.toString();
-                                    }
-                                    depth++;
-                                }
-                            }
-                            
-                            // Démarrer la nouvelle balise
-                            state = State.TAG_START;
-                            currentTagStart = offset;
-                            currentTagStartLine = currentLine;
-                            tagNameBuffer.setLength(0);
-                            isClosingTag = false;
-                            isSelfClosing = false;
-                            
-                        } else if (c == '"') {
-                            state = State.IN_QUOTE_DOUBLE;
-                        } else if (c == '\'') {
-                            state = State.IN_QUOTE_SINGLE;
-                        } else if (c == '/') {
-                            isSelfClosing = true;
-                        }
-                        break;
-                        
-                    case IN_QUOTE_DOUBLE:
-                        if (c == '"') state = State.WAIT_GT;
-                        break;
-                        
-                    case IN_QUOTE_SINGLE:
-                        if (c == '\'') state = State.WAIT_GT;
-                        break;
-                        
-                    case PI:
-                        if (c == '>') state = State.CONTENT;
-                        break;
-                        
-                    case COMMENT_START:
-                        if (c == '-') {
-                            state = State.COMMENT;
-                            dashCount = 0;
-                        } else if (c == '[') {
-                            state = State.CDATA;
-                            bracketCount = 0;
-                        } else {
-                            state = State.PI; 
                         }
-                        break;
                         
-                    case COMMENT:
-                        if (c == '-') {
-                            dashCount++;
-                        } else if (c == '>') {
-                            if (dashCount >= 2) state = State.CONTENT;
-                            dashCount = 0;
-                        } else {
-                            dashCount = 0;
-                        }
-                        break;
+                        // Démarrer la nouvelle balise
+                        state = State.TAG_START;
+                        currentTagStart = offset;
+                        currentTagStartLine = currentLine;
+                        tagNameBuffer.setLength(0);
+                        isClosingTag = false;
+                        isSelfClosing = false;
                         
-                    case CDATA:
-                        if (c == ']') {
-                            bracketCount++;
-                        } else if (c == '>') {
-                            if (bracketCount >= 2) state = State.CONTENT;
-                            bracketCount = 0;
-                        } else {
-                            bracketCount = 0;
-                        }
-                        break;
-                }
-                
-                offset++;
-                
-                // Dynamic Fragmentation Check
-                // If we are in a fragment (depth 1) and it exceeds the threshold, split it.
-                if (fragmentStart != -1 && (offset - fragmentStart) > MAX_FRAGMENT_SIZE) {
-                    // Emit a chunk - this is NOT the first part anymore, so set Flag
-                    // Actually, the FIRST chunk we emit (the beginning of the element) should NOT have FLAG_CONTINUATION.
-                    // The second, third etc. chunks SHOULD have FLAG_CONTINUATION.
-                    // We need to track how many chunks we already emitted for THIS fragment.
+                    } else if (c == '"') {
+                        state = State.IN_QUOTE_DOUBLE;
+                    } else if (c == '\'') {
+                        state = State.IN_QUOTE_SINGLE;
+                    } else if (c == '/') {
+                        isSelfClosing = true;
+                    }
+                    break;
                     
-                    // `fragmentCount` is already incremented for each fragment.
-                    // But we need LOCAL tracking for sub-chunks of a single element.
-                    // Let's use a simple boolean: isContinuation = true after first emit.
+                case IN_QUOTE_DOUBLE:
+                    if (c == '"') state = State.WAIT_GT;
+                    break;
                     
-                    boolean isContinuation = (fragmentSplitCount > 0);
-                    byte flags = isContinuation ? FragmentMetadata.FLAG_CONTINUATION : 0;
+                case IN_QUOTE_SINGLE:
+                    if (c == '\'') state = State.WAIT_GT;
+                    break;
                     
-                    indexFragment(fragmentName, ++fragmentCount, fragmentStart, offset, fragmentStartLine, currentLine, flags);
-                    fragmentSplitCount++;
+                case PI:
+                    if (c == '>') state = State.CONTENT;
+                    break;
                     
-                    // Start next chunk
-                    fragmentStart = offset;
-                    fragmentStartLine = currentLine;
-                }
+                case COMMENT_START:
+                    if (c == '-') {
+                        state = State.COMMENT;
+                        dashCount = 0;
+                    } else if (c == '[') {
+                        state = State.CDATA;
+                        bracketCount = 0;
+                    } else {
+                        state = State.PI; 
+                    }
+                    break;
+                    
+                case COMMENT:
+                    if (c == '-') {
+                        dashCount++;
+                    } else if (c == '>') {
+                        if (dashCount >= 2) state = State.CONTENT;
+                        dashCount = 0;
+                    } else {
+                        dashCount = 0;
+                    }
+                    break;
+                    
+                case CDATA:
+                    if (c == ']') {
+                        bracketCount++;
+                    } else if (c == '>') {
+                        if (bracketCount >= 2) state = State.CONTENT;
+                        bracketCount = 0;
+                    } else {
+                        bracketCount = 0;
+                    }
+                    break;
             }
             
-            // Update final state
-            currentGlobalOffset = offset;
+            offset++;
             
-        } catch (IOException e) {
-            e.printStackTrace();
+            // Dynamic Fragmentation Check
+            // If we are in a fragment (depth 1) and it exceeds the threshold, split it.
+            if (fragmentStart != -1 && (offset - fragmentStart) > MAX_FRAGMENT_SIZE) {
+                // Emit a chunk - this is NOT the first part anymore, so set Flag
+                // Actually, the FIRST chunk we emit (the beginning of the element) should NOT have FLAG_CONTINUATION.
+                // The second, third etc. chunks SHOULD have FLAG_CONTINUATION.
+                // We need to track how many chunks we already emitted for THIS fragment.
+                
+                // `fragmentCount` is already incremented for each fragment.
+                // But we need LOCAL tracking for sub-chunks of a single element.
+                // Let's use a simple boolean: isContinuation = true after first emit.
+                
+                boolean isContinuation = (fragmentSplitCount > 0);
+                byte flags = isContinuation ? FragmentMetadata.FLAG_CONTINUATION : 0;
+                
+                indexFragment(fragmentName, ++fragmentCount, fragmentStart, offset, fragmentStartLine, currentLine, flags);
+                fragmentSplitCount++;
+                
+                // Start next chunk
+                fragmentStart = offset;
+                fragmentStartLine = currentLine;
+            }
         }
+        
+        // Update final state
+        currentGlobalOffset = offset;
+        return state == State.CONTENT && depth == initialDepth && fragmentStart == -1;
     }
     
     // Stack to track parent indices
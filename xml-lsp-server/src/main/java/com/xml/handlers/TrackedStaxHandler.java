@@ -1,20 +1,35 @@
 package com.xml.handlers;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.List;
 
 import javax.xml.stream.Location;
-import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.util.StreamReaderDelegate;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.validation.Validator;
 
+import org.codehaus.stax2.LocationInfo;
+import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.XMLStreamLocation2;
+import org.codehaus.stax2.XMLStreamReader2;
+import org.xml.sax.SAXException;
+
+import com.ctc.wstx.stax.WstxInputFactory;
 import com.xml.models.ErrorCollector;
+import com.xml.models.XMLError;
 
 /**
  * StAX-based handler pour détecter les balises non fermées avec précision.
@@ -22,10 +37,35 @@ import com.xml.models.ErrorCollector;
  * 
  * AMÉLIORATION: Détecte TOUTES les erreurs syntaxiques même après une erreur fatale
  * en faisant une analyse supplémentaire ligne par ligne.
+ * <p>
+ * Le parsing utilise le curseur {@link XMLStreamReader2} de Woodstox (aucun objet par nœud) et
+ * retient, pour chaque balise ouvrante et fermante, sa position exacte : début et fin en
+ * ligne/colonne et en octets. Les erreurs portant sur une balise en reçoivent l'étendue.
+ * <p>
+ * Avec des {@link RecoveryPoints}, une erreur fatale n'arrête plus l'analyse : le parser repart
+ * au début de l'enregistrement suivant, dans la même passe, et ce aussi pour un flux patché.
  */
 public class TrackedStaxHandler {
+
+    // Fabrique partagée : configurée une fois, sûre pour créer des lecteurs depuis plusieurs threads
+    private static final XMLInputFactory2 FACTORY = newFactory();
+
+    // Racine fictive autour des enregistrements relus après une erreur fatale
+    private static final byte[] RECOVERY_OPEN = "<_recovery>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RECOVERY_CLOSE = "</_recovery>".getBytes(StandardCharsets.US_ASCII);
+
     private final ErrorCollector collector;
 
+    // Position dans le document du début du flux en cours d'analyse (reprise après erreur)
+    private long offsetBase;
+    private int lineBase;
+    private int firstLineColumnShift;
+
+    // Début du jeton de la dernière erreur fatale, en coordonnées du document (offset -1 : inconnu)
+    private long failureOffset = -1;
+    private int failureLine;
+    private int failureColumn;
+
     // Stack pour suivre les balises ouvertes avec leur position exacte
     private final Deque<TagInfo> tagStack = new ArrayDeque<>();
 
@@ -33,31 +73,69 @@ public class TrackedStaxHandler {
         final String name;
         final int lineNumber;
         final int columnNumber;
-
-        TagInfo(String name, int lineNumber, int columnNumber) {
+        final int endLineNumber;
+        final int endColumnNumber;
+        // Position en octets dans le flux (-1 : inconnue)
+        final long startOffset;
+        final long endOffset;
+
+        TagInfo(String name, int lineNumber, int columnNumber, int endLineNumber, int endColumnNumber,
+                long startOffset, long endOffset) {
             this.name = name;
             this.lineNumber = lineNumber;
             this.columnNumber = columnNumber;
+            this.endLineNumber = endLineNumber;
+            this.endColumnNumber = endColumnNumber;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
         }
     }
 
+    private static XMLInputFactory2 newFactory() {
+        XMLInputFactory2 factory = new WstxInputFactory();
+
+        // Configuration de sécurité
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        return factory;
+    }
+
     public TrackedStaxHandler(ErrorCollector collector) {
         this.collector = collector;
     }
 
     public void parse(java.io.File file) {
+        parse(file, false);
+    }
+
+    /**
+     * @param directIo lire le fichier sans passer par le cache de pages (parcours complet d'un très gros fichier)
+     */
+    public void parse(java.io.File file, boolean directIo) {
+        parse(file, directIo, null);
+    }
+
+    /**
+     * @param recovery débuts des enregistrements du fichier, où reprendre après une erreur fatale
+     *                 (null : analyse ligne par ligne de tout le fichier)
+     */
+    public void parse(java.io.File file, boolean directIo, RecoveryPoints recovery) {
+        resetPositions();
         // Tentative de parsing StAX normal
         boolean staxSucceeded = false;
-        try (InputStream in = new java.io.FileInputStream(file)) {
-            staxSucceeded = tryStaxParsing(in);
+        try (InputStream in = directIo ? new DirectIoInputStream(file) : new java.io.FileInputStream(file)) {
+            staxSucceeded = tryStaxParsing(in, null);
         } catch (IOException e) {
             collector.addError("Erreur de lecture du fichier : " + e.getMessage(), 0, "IO_ERROR");
             return;
         }
 
-        // Si StAX a échoué (erreur fatale), faire une analyse ligne par ligne
-        // pour détecter TOUTES les erreurs syntaxiques
-        if (!staxSucceeded) {
+        if (!staxSucceeded && recovery != null && failureOffset >= 0) {
+            // Reprise aux frontières d'enregistrements, sans relire le fichier
+            recover(recovery);
+        } else if (!staxSucceeded) {
+            // Si StAX a échoué (erreur fatale), faire une analyse ligne par ligne
+            // pour détecter TOUTES les erreurs syntaxiques
             performLineByLineAnalysis(file);
         }
     }
@@ -69,7 +147,8 @@ public class TrackedStaxHandler {
      * StAX-based parsing. Line-by-line error recovery is NOT available for InputStreams
      * to avoid buffering the entire stream in memory.
      * 
-     * For comprehensive error detection with line-by-line recovery, use parse(File) instead.
+     * For comprehensive error detection, use parse(InputStream, Validator, RecoveryPoints),
+     * which restarts at the next record after a fatal error, or parse(File).
      * 
      * This design choice ensures we can handle files of any size (up to 500GB+) when
      * using PatchedInputStream without memory constraints.
@@ -77,32 +156,137 @@ public class TrackedStaxHandler {
     public void parse(InputStream in) {
         // TRUE STREAMING: Only StAX parsing, no mark/reset buffering
         // This ensures zero memory overhead for large files
-        tryStaxParsing(in);
+        parse(in, null, null);
         
         // Note: Line-by-line recovery is not performed for InputStreams
         // to maintain streaming behavior. If comprehensive error detection
         // is needed, use parse(File) which can read the file twice.
     }
 
-    private boolean tryStaxParsing(InputStream in) {
-        XMLInputFactory factory = XMLInputFactory.newFactory();
+    /**
+     * Analyse structurelle et validation XSD en une seule lecture : le validateur Xerces consomme
+     * le même curseur StAX que la pile des balises. Les erreurs de schéma vont au gestionnaire
+     * d'erreurs du validateur, les erreurs de structure au collecteur de ce handler.
+     *
+     * @param schemaValidator validateur XSD (null : analyse structurelle seule)
+     * @return true si le document est bien formé
+     */
+    public boolean parse(InputStream in, Validator schemaValidator) {
+        return parse(in, schemaValidator, null);
+    }
+
+    /**
+     * Comme {@link #parse(InputStream, Validator)}, mais après une erreur fatale l'analyse
+     * structurelle reprend au début de l'enregistrement suivant (la validation XSD, elle,
+     * s'arrête à la première erreur fatale).
+     *
+     * @param recovery débuts des enregistrements du flux analysé (null : pas de reprise)
+     * @return true si le document est bien formé
+     */
+    public boolean parse(InputStream in, Validator schemaValidator, RecoveryPoints recovery) {
+        resetPositions();
+        boolean wellFormed = tryStaxParsing(in, schemaValidator);
+        if (!wellFormed && recovery != null) {
+            recover(recovery);
+        }
+        return wellFormed;
+    }
 
-        // Configuration de sécurité
-        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
-        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    /**
+     * Relance l'analyse après chaque erreur fatale, au premier enregistrement qui suit le jeton
+     * fautif, jusqu'à la fin du dernier enregistrement. Les enregistrements sont enveloppés dans
+     * une racine fictive ; lignes, colonnes et offsets restent ceux du document.
+     */
+    private void recover(RecoveryPoints points) {
+        while (failureOffset >= 0 && !collector.isLimitReached()) {
+            long restart = points.next(failureOffset);
+            if (restart < 0) {
+                return;
+            }
+            try (InputStream in = new BufferedInputStream(points.openAt(failureOffset), 64 * 1024)) {
+                // Ligne et colonne du point de reprise : relues depuis le jeton fautif
+                int line = failureLine;
+                int column = failureColumn;
+                for (long k = failureOffset; k < restart; k++) {
+                    int b = in.read();
+                    if (b < 0) {
+                        return;
+                    }
+                    if (b == '\n') {
+                        line++;
+                        column = 1;
+                    } else if ((b & 0xC0) != 0x80) {
+                        column++;
+                    }
+                }
 
-        XMLEventReader reader = null;
+                offsetBase = restart - RECOVERY_OPEN.length;
+                lineBase = line - 1;
+                firstLineColumnShift = column - 1 - RECOVERY_OPEN.length;
+                failureOffset = -1;
+                tagStack.clear();
+                InputStream records = new SequenceInputStream(Collections.enumeration(List.of(
+                        new ByteArrayInputStream(RECOVERY_OPEN),
+                        new BoundedStream(in, points.end() - restart),
+                        new ByteArrayInputStream(RECOVERY_CLOSE))));
+                tryStaxParsing(records, null);
+            } catch (IOException e) {
+                collector.addError("Reprise de l'analyse impossible : " + e.getMessage(), 0, "IO_ERROR");
+                return;
+            }
+        }
+    }
 
-        try {
-            reader = factory.createXMLEventReader(in);
+    private void resetPositions() {
+        offsetBase = 0;
+        lineBase = 0;
+        firstLineColumnShift = 0;
+        failureOffset = -1;
+    }
+
+    private int documentLine(int line) {
+        return line + lineBase;
+    }
+
+    private int documentColumn(int line, int column) {
+        return line == 1 ? column + firstLineColumnShift : column;
+    }
+
+    private long documentOffset(long offset) {
+        return offset < 0 ? -1 : offset + offsetBase;
+    }
 
-            while (reader.hasNext()) {
-                XMLEvent event = reader.nextEvent();
+    private boolean tryStaxParsing(InputStream in, Validator schemaValidator) {
+        XMLStreamReader2 reader = null;
+        ByteOffsetReader source = null;
 
-                if (event.isStartElement()) {
-                    handleStartElement(event.asStartElement());
-                } else if (event.isEndElement()) {
-                    handleEndElement(event.asEndElement());
+        try {
+            // Un document UTF-8 est décodé par ByteOffsetReader, qui donne les positions en octets
+            source = new ByteOffsetReader(in);
+            reader = (XMLStreamReader2) (source.isUtf8()
+                    ? FACTORY.createXMLStreamReader(source)
+                    : FACTORY.createXMLStreamReader(source.remaining()));
+            TrackingReader tracking = new TrackingReader(reader, source);
+
+            if (schemaValidator != null) {
+                try {
+                    // Xerces tire les événements du curseur : la pile suit au passage
+                    schemaValidator.validate(new StAXSource(tracking));
+                } catch (SAXException | IOException e) {
+                    if (tracking.failure == null) {
+                        collector.addError("Validation XSD interrompue : " + e.getMessage(), 0, "VALIDATION_ERROR");
+                    }
+                }
+                // Le validateur s'arrête à la fin de l'élément racine : vider la suite du document
+                while (tracking.failure == null && tracking.hasNext()) {
+                    tracking.next();
+                }
+                if (tracking.failure != null) {
+                    throw tracking.failure;
+                }
+            } else {
+                while (tracking.hasNext()) {
+                    tracking.next();
                 }
             }
 
@@ -111,9 +295,14 @@ public class TrackedStaxHandler {
             return true; // Parsing réussi
 
         } catch (XMLStreamException ex) {
+            recordFailure(reader, source);
             handleParseError(ex);
             return false; // Parsing échoué, il faut analyser ligne par ligne
 
+        } catch (IOException e) {
+            collector.addError("Erreur de lecture du flux : " + e.getMessage(), 0, "IO_ERROR");
+            return false;
+
         } finally {
             if (reader != null) {
                 try {
@@ -125,6 +314,87 @@ public class TrackedStaxHandler {
         }
     }
 
+    /**
+     * Retient le début du jeton fautif, point de départ de la reprise. Inconnu si le flux n'est
+     * pas décodé par {@link ByteOffsetReader} (pas de position en octets).
+     */
+    private void recordFailure(XMLStreamReader2 reader, ByteOffsetReader source) {
+        failureOffset = -1;
+        if (reader == null || source == null || !source.isUtf8()) {
+            return;
+        }
+        LocationInfo info = reader.getLocationInfo();
+        XMLStreamLocation2 start = info.getStartLocation();
+        failureOffset = documentOffset(source.byteOffset(info.getStartingCharOffset()));
+        failureLine = documentLine(start.getLineNumber());
+        failureColumn = documentColumn(start.getLineNumber(), start.getColumnNumber());
+    }
+
+    /**
+     * Curseur qui met à jour la pile des balises à chaque événement, quel que soit celui qui
+     * l'avance (ce handler ou le validateur XSD), et retient la première erreur de syntaxe.
+     */
+    private final class TrackingReader extends StreamReaderDelegate {
+        private final XMLStreamReader2 cursor;
+        private final ByteOffsetReader source;
+        XMLStreamException failure;
+
+        TrackingReader(XMLStreamReader2 reader, ByteOffsetReader source) {
+            super(reader);
+            this.cursor = reader;
+            this.source = source;
+        }
+
+        @Override
+        public int next() throws XMLStreamException {
+            int event;
+            try {
+                event = super.next();
+            } catch (XMLStreamException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                throw e;
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                handleStartElement(currentTag());
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                handleEndElement(currentTag());
+            } else {
+                // Oublier les caractères multi-octets déjà dépassés (texte long sans balise)
+                source.byteOffset(cursor.getLocationInfo().getStartingCharOffset());
+            }
+            return event;
+        }
+
+        /**
+         * Étendue de la balise courante, du '&lt;' au '&gt;' inclus.
+         */
+        private TagInfo currentTag() throws XMLStreamException {
+            LocationInfo info = cursor.getLocationInfo();
+            XMLStreamLocation2 start = info.getStartLocation();
+            XMLStreamLocation2 end = info.getEndLocation();
+            long startOffset = documentOffset(source.byteOffset(info.getStartingCharOffset()));
+            long endOffset = documentOffset(source.byteOffset(info.getEndingCharOffset()));
+            return new TagInfo(getLocalName(),
+                    documentLine(start.getLineNumber()), documentColumn(start.getLineNumber(), start.getColumnNumber()),
+                    documentLine(end.getLineNumber()), documentColumn(end.getLineNumber(), end.getColumnNumber()),
+                    startOffset, endOffset);
+        }
+
+        @Override
+        public boolean hasNext() throws XMLStreamException {
+            try {
+                return super.hasNext();
+            } catch (XMLStreamException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                throw e;
+            }
+        }
+    }
+
 
     private void performLineByLineAnalysis(java.io.File file) {
         try (BufferedReader reader = new BufferedReader(
@@ -270,30 +540,22 @@ public class TrackedStaxHandler {
 
 
 
-    private void handleStartElement(javax.xml.stream.events.StartElement startElement) {
-        String tagName = startElement.getName().getLocalPart();
-        Location location = startElement.getLocation();
-
-        int line = location.getLineNumber();
-        int column = location.getColumnNumber();
-
-        //LOG.debug("Balise ouvrante: <{}> à ligne {}, colonne {}", tagName, line, column);
+    private void handleStartElement(TagInfo tag) {
+        //LOG.debug("Balise ouvrante: <{}> à ligne {}, colonne {}", tag.name, tag.lineNumber, tag.columnNumber);
 
         // Empiler la balise avec sa position
-        tagStack.push(new TagInfo(tagName, line, column));
+        tagStack.push(tag);
     }
 
-    private void handleEndElement(javax.xml.stream.events.EndElement endElement) {
-        String tagName = endElement.getName().getLocalPart();
-        Location location = endElement.getLocation();
-
-        //LOG.debug("Balise fermante: </{}> à ligne {}", tagName, location.getLineNumber());
+    private void handleEndElement(TagInfo endTag) {
+        //LOG.debug("Balise fermante: </{}> à ligne {}", endTag.name, endTag.lineNumber);
+        String tagName = endTag.name;
 
         if (tagStack.isEmpty()) {
             // Balise fermante sans balise ouvrante correspondante
-            collector.addError(
+            report(
                     "Balise fermante </" + tagName + "> sans balise ouvrante correspondante",
-                    location.getLineNumber(),
+                    endTag,
                     "STRUCTURE"
             );
             return;
@@ -303,21 +565,22 @@ public class TrackedStaxHandler {
 
         if (!lastOpenedTag.name.equals(tagName)) {
             // Mismatch de balises - cela indique souvent une fermeture manquante
-            collector.addError(
+            report(
                     "Balise fermante </" + tagName + "> inattendue. Attendue : </" + lastOpenedTag.name + ">",
-                    location.getLineNumber(),
+                    endTag,
                     "STRUCTURE"
             );
 
             // On peut essayer de retrouver la balise correspondante dans la stack
-            recoverFromMismatch(tagName, location.getLineNumber());
+            recoverFromMismatch(endTag);
         } else {
             // Balises correspondantes - dépiler normalement
             tagStack.pop();
         }
     }
 
-    private void recoverFromMismatch(String foundTagName, int errorLine) {
+    private void recoverFromMismatch(TagInfo endTag) {
+        String foundTagName = endTag.name;
         // Rechercher dans la stack si cette balise a été ouverte précédemment
         Deque<TagInfo> tempStack = new ArrayDeque<>();
         boolean found = false;
@@ -329,9 +592,9 @@ public class TrackedStaxHandler {
             if (tag.name.equals(foundTagName)) {
                 found = true;
                 // Signaler la balise ouvrante non fermée
-                collector.addError(
+                report(
                         "Balise <" + foundTagName + "> non fermée (ouverte à la ligne " + tag.lineNumber + ")",
-                        tag.lineNumber,
+                        tag,
                         "STRUCTURE"
                 );
                 break;
@@ -348,9 +611,9 @@ public class TrackedStaxHandler {
 
         if (!found) {
             // Balise fermante orpheline
-            collector.addError(
+            report(
                     "Balise fermante </" + foundTagName + "> sans ouvrante correspondante",
-                    errorLine,
+                    endTag,
                     "STRUCTURE"
             );
         }
@@ -368,21 +631,39 @@ public class TrackedStaxHandler {
                     unclosedTag.columnNumber
             );
 
-            collector.addError(
+            report(
                     message,
-                    unclosedTag.lineNumber,  // Ligne de la balise OUVERTE
+                    unclosedTag,  // Position de la balise OUVERTE
                     "STRUCTURE"
             );
 
         }
     }
 
+    /**
+     * Ajoute une erreur portant sur une balise, avec l'étendue exacte de celle-ci.
+     */
+    private void report(String message, TagInfo tag, String type) {
+        XMLError error = collector.addError(message, tag.lineNumber, type);
+        if (error != null) {
+            error.setColumn(tag.columnNumber);
+            error.setTagName(tag.name);
+            error.setPrecisePosition(tag.lineNumber, tag.columnNumber, tag.endLineNumber, tag.endColumnNumber);
+            error.setByteRange(tag.startOffset, tag.endOffset);
+        }
+    }
+
     private void handleParseError(XMLStreamException ex) {
         Location location = ex.getLocation();
-        int line = (location != null) ? location.getLineNumber() : 0;
+        int line = (location != null) ? documentLine(location.getLineNumber()) : 0;
 
         String message = ex.getMessage();
+        if (offsetBase != 0 && message != null && message.contains("\n at [row,col")) {
+            // En reprise, la position incluse par Woodstox est celle du flux relu, pas du document
+            message = message.substring(0, message.indexOf("\n at [row,col"));
+        }
         String type = "SYNTAX";
+        TagInfo unclosedTag = null;
 
         // Analyser le type d'erreur pour un message plus précis et traduire en français
         if (message != null) {
@@ -398,6 +679,7 @@ public class TrackedStaxHandler {
                                 message = "Balise <" + tagName + "> non fermée (ouverte à la ligne " +
                                         tag.lineNumber + ", colonne " + tag.columnNumber + ")";
                                 line = tag.lineNumber;
+                                unclosedTag = tag;
                                 break;
                             }
                         }
@@ -405,6 +687,15 @@ public class TrackedStaxHandler {
                         message = "Balise <" + tagName + "> non fermée correctement";
                     }
                 }
+            } else if ((message.startsWith("Unexpected close tag") || message.contains("was expecting a close tag"))
+                    && !tagStack.isEmpty()) {
+                // Message Woodstox : la balise ouverte la plus interne n'est pas fermée
+                TagInfo tag = tagStack.peek();
+                type = "STRUCTURE";
+                message = "Balise <" + tag.name + "> non fermée (ouverte à la ligne " +
+                        tag.lineNumber + ", colonne " + tag.columnNumber + ")";
+                line = tag.lineNumber;
+                unclosedTag = tag;
             } else if (message.contains("DOCTYPE")) {
                 type = "WARNING";
                 message = "Déclaration DOCTYPE présente (potentiel risque de sécurité)";
@@ -427,7 +718,16 @@ public class TrackedStaxHandler {
             }
         }
 
-        collector.addError(message, line, type);
+        if (unclosedTag != null) {
+            report(message, unclosedTag, type);
+            return;
+        }
+        XMLError error = collector.addError(message, line, type);
+        if (error != null && location != null && location.getColumnNumber() > 0) {
+            int column = documentColumn(location.getLineNumber(), location.getColumnNumber());
+            error.setColumn(column);
+            error.setPrecisePosition(line, column, line, column + 1);
+        }
     }
 
     private String extractTagNameFromErrorMessage(String message) {
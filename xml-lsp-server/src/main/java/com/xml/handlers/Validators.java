@@ -5,11 +5,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 
-import javax.xml.XMLConstants;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 
+import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -24,27 +23,25 @@ public class Validators {
     }
 
     public boolean validate(File xmlFile, File xsdFile) {
+        return validate(xmlFile, xsdFile, false);
+    }
+
+    /**
+     * @param directIo lecture sans cache de pages (voir {@link DirectIoInputStream})
+     */
+    public boolean validate(File xmlFile, File xsdFile, boolean directIo) {
 
         if (xsdFile == null || !xsdFile.exists()) {
             return true;
         }
 
         try {
-            // Les System.setProperty sont maintenant dans XmlLanguageServerLauncher (bloc static)
-            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-
-            // Activation réelle continue-after-fatal-error (supporté par Xerces)
-            factory.setFeature("http://apache.org/xml/features/continue-after-fatal-error", true);
-
-            // Sécurité anti-XXE
-            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-
-            Schema schema = factory.newSchema(xsdFile);
+            // Schéma compilé une seule fois pour tout le serveur (voir SchemaCache)
+            Schema schema = SchemaCache.shared().getSchema(xsdFile);
             javax.xml.validation.Validator validator = schema.newValidator();
             validator.setErrorHandler(new XsdErrorHandler(collector));
 
-            try (var is = Files.newInputStream(xmlFile.toPath())) {
+            try (var is = directIo ? new DirectIoInputStream(xmlFile) : Files.newInputStream(xmlFile.toPath())) {
                 validator.validate(new StreamSource(is));
             } catch (SAXException e) {
                 // Avec Xerces + continue-after-fatal-error, le parsing NE s'arrête plus ici.
@@ -77,16 +74,8 @@ public class Validators {
         }
 
         try {
-            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-
-            // Activation continue-after-fatal-error
-            factory.setFeature("http://apache.org/xml/features/continue-after-fatal-error", true);
-
-            // Sécurité anti-XXE
-            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-
-            Schema schema = factory.newSchema(xsdFile);
+            // Schéma compilé une seule fois pour tout le serveur (voir SchemaCache)
+            Schema schema = SchemaCache.shared().getSchema(xsdFile);
             javax.xml.validation.Validator validator = schema.newValidator();
             validator.setErrorHandler(new XsdErrorHandler(collector));
 
@@ -108,6 +97,29 @@ public class Validators {
         }
     }
 
+    /**
+     * Validateur XSD (schéma compilé en cache) dont les erreurs vont au collecteur, pour être
+     * alimenté par un flux d'événements existant (voir {@link TrackedStaxHandler#parse(InputStream, javax.xml.validation.Validator)}).
+     *
+     * @return null si aucun schéma n'est fourni
+     * @throws SAXException si le schéma est invalide
+     */
+    public javax.xml.validation.Validator newValidator(File xsdFile) throws SAXException {
+        if (xsdFile == null || !xsdFile.exists()) {
+            return null;
+        }
+        javax.xml.validation.Validator validator = SchemaCache.shared().getSchema(xsdFile).newValidator();
+        validator.setErrorHandler(new XsdErrorHandler(collector));
+        return validator;
+    }
+
+    /**
+     * Gestionnaire d'erreurs XSD alimentant le collecteur, à poser sur un validateur réutilisé.
+     */
+    public ErrorHandler errorHandler() {
+        return new XsdErrorHandler(collector);
+    }
+
     private static class XsdErrorHandler extends DefaultHandler {
         private final ErrorCollector col;
 
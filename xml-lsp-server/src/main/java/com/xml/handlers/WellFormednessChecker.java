@@ -0,0 +1,1548 @@
+package com.xml.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.xml.models.ErrorCollector;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.FragmentMetadata.FragmentStatus;
+import com.xml.models.XMLError;
+import com.xml.services.SourceFiles;
+
+/**
+ * Vérification de bonne formation XML 1.0 sur les octets bruts, sans parser StAX : premier
+ * niveau, à la vitesse du disque, avant toute validation XSD.
+ * <p>
+ * Le fichier est lu par blocs {@link MappedByteBuffer} et découpé en segments aux débuts
+ * d'enregistrements de l'index (fragments de profondeur 1), vérifiés en parallèle. Chaque
+ * segment applique les règles de XML 1.0 : UTF-8 valide, caractères autorisés, noms, syntaxe et
+ * unicité des attributs, références d'entités et de caractères, commentaires, CDATA, instructions
+ * de traitement, déclaration XML et appariement des balises, ainsi que les espaces de noms
+ * (noms qualifiés, préfixes déclarés, déclarations réservées, attributs uniques par nom étendu).
+ * Ce qui relie les segments (ouverture et fermeture de la racine, contenu après la racine,
+ * préfixes déclarés sur la racine) est vérifié à la fusion, dans l'ordre du document.
+ * <p>
+ * Un début d'enregistrement de l'index peut tomber dans une balise, un commentaire, une section
+ * CDATA ou une instruction de traitement (l'indexeur ne les analyse pas tous en entier) : le
+ * segment qui y arrive en cours de lecture poursuit dans le segment suivant, dont le résultat est
+ * alors écarté.
+ * <p>
+ * Après une erreur, un segment reprend au début de l'enregistrement suivant. Les erreurs portent
+ * leur position exacte en octets. Le contenu d'une DTD n'est pas vérifié ; avec une DTD, les
+ * références à des entités non prédéfinies sont acceptées.
+ */
+public final class WellFormednessChecker {
+
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "well-formedness");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Taille visée d'un segment (découpé aux débuts d'enregistrements)
+    private static final long DEFAULT_SEGMENT_BYTES = 32L * 1024 * 1024;
+    // Taille d'un bloc projeté en mémoire
+    private static final long BLOCK_BYTES = 64L * 1024 * 1024;
+    // Octets copiés du bloc à la fois (boucles sur tableau plutôt que sur le tampon projeté)
+    private static final int CHUNK_BYTES = 256 * 1024;
+    // Début du fichier lu pour l'encodage et la DTD
+    private static final int HEAD_BYTES = 1024 * 1024;
+    // Erreurs conservées par segment et au total
+    private static final int MAX_ERRORS = 1000;
+    // Au-delà, la colonne est comptée en octets
+    private static final long MAX_COLUMN_SCAN = 1024 * 1024;
+
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']+)[\"']");
+
+    // Valeurs des pseudo-attributs de la déclaration XML
+    private static final Pattern VERSION_NUM = Pattern.compile("1\\.[0-9]+");
+    private static final Pattern ENC_NAME = Pattern.compile("[A-Za-z][A-Za-z0-9._-]*");
+
+    private static final String XML_NS = "http://www.w3.org/XML/1998/namespace";
+    private static final String XMLNS_NS = "http://www.w3.org/2000/xmlns/";
+
+    private final int parallelism;
+    private final long segmentBytes;
+
+    public WellFormednessChecker() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public WellFormednessChecker(int parallelism) {
+        this(parallelism, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param segmentBytes taille visée d'un segment vérifié par un worker
+     */
+    public WellFormednessChecker(int parallelism, long segmentBytes) {
+        this.parallelism = Math.max(1, parallelism);
+        this.segmentBytes = Math.max(1, segmentBytes);
+    }
+
+    /**
+     * Vérifie la bonne formation du fichier. Le statut des fragments contenant une erreur passe
+     * à MALFORMED.
+     *
+     * @param index index des fragments du fichier (null ou vide : un seul segment, arrêt à la
+     *              première erreur)
+     * @return erreurs triées par position ; null si le fichier ne se prête pas à la vérification
+     *         sur octets (compressé, encodage autre que UTF-8)
+     */
+    public List<XMLError> check(File file, FragmentIndex index) throws IOException {
+        if (SourceFiles.isCompressed(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+
+            // Enregistrements : débuts et premiers fragments
+            List<FragmentMetadata> fragments = index != null ? index.getAllFragments() : List.of();
+            long[] records = new long[fragments.size()];
+            int[] firstFragments = new int[fragments.size() + 1];
+            int recordCount = 0;
+            for (int i = 0; i < fragments.size(); i++) {
+                if (!fragments.get(i).isContinuation() || recordCount == 0) {
+                    records[recordCount] = fragments.get(i).getStartOffset();
+                    firstFragments[recordCount++] = i;
+                }
+            }
+            firstFragments[recordCount] = fragments.size();
+            records = Arrays.copyOf(records, recordCount);
+
+            // Prologue : encodage et présence d'une DTD
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(HEAD_BYTES, length));
+            while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+                // Lecture du début du fichier
+            }
+            String prolog = new String(head.array(), 0, head.position(), StandardCharsets.ISO_8859_1);
+            if (!isUtf8(prolog)) {
+                return null;
+            }
+            int rootGuess = recordCount > 0 ? (int) Math.min(records[0], prolog.length()) : prolog.length();
+            boolean doctype = prolog.substring(0, rootGuess).contains("<!DOCTYPE");
+
+            // Segments : coupés aux débuts d'enregistrements
+            List<Scanner> segments = new ArrayList<>();
+            long segmentStart = 0;
+            int firstRecord = 0;
+            for (int r = 0; r < recordCount; r++) {
+                if (records[r] - segmentStart >= segmentBytes && records[r] > segmentStart) {
+                    segments.add(new Scanner(channel, segmentStart, records[r], segments.isEmpty(), false,
+                            doctype, records, firstRecord, r));
+                    segmentStart = records[r];
+                    firstRecord = r;
+                }
+            }
+            segments.add(new Scanner(channel, segmentStart, length, segments.isEmpty(), true,
+                    doctype, records, firstRecord, recordCount));
+            for (int s = 0; s < segments.size(); s++) {
+                segments.get(s).follow(segments, s);
+            }
+
+            run(segments);
+            List<Problem> problems = merge(segments);
+
+            // Erreurs du document, triées et plafonnées
+            problems.sort(Comparator.comparingLong(p -> p.offset));
+            ErrorCollector collector = new ErrorCollector(MAX_ERRORS);
+            for (Problem p : problems) {
+                XMLError error = collector.addError(p.message, p.line, p.type);
+                if (error != null) {
+                    int column = column(channel, p.lineStart, p.offset);
+                    long width = p.end > p.offset && p.end - p.offset <= 512 ? p.end - p.offset : 1;
+                    error.setColumn(column);
+                    error.setPrecisePosition(p.line, column, p.line, column + (int) width);
+                    error.setByteRange(p.offset, p.offset + width);
+                }
+                if (recordCount > 0) {
+                    int r = Arrays.binarySearch(records, p.offset);
+                    r = r >= 0 ? r : -r - 2;
+                    if (r >= 0) {
+                        for (int f = firstFragments[r]; f < firstFragments[r + 1]; f++) {
+                            fragments.get(f).setStatus(FragmentStatus.MALFORMED);
+                        }
+                    }
+                }
+            }
+            return collector.getErrors();
+        }
+    }
+
+    private static boolean isUtf8(String prolog) {
+        if (prolog.length() >= 2) {
+            char b0 = prolog.charAt(0);
+            char b1 = prolog.charAt(1);
+            // Marques UTF-16/UTF-32 ou déclaration sur plusieurs octets
+            if (b0 == 0 || b1 == 0 || b0 == 0xFE || b0 == 0xFF) {
+                return false;
+            }
+        }
+        String start = prolog.startsWith("\u00EF\u00BB\u00BF") ? prolog.substring(3) : prolog;
+        if (!start.startsWith("<?xml")) {
+            return true;
+        }
+        int end = start.indexOf("?>");
+        Matcher m = ENCODING.matcher(end >= 0 ? start.substring(0, end) : start);
+        if (!m.find()) {
+            return true;
+        }
+        String encoding = m.group(1).toUpperCase(Locale.ROOT);
+        return encoding.equals("UTF-8") || encoding.equals("UTF8") || encoding.equals("US-ASCII") || encoding.equals("ASCII");
+    }
+
+    private void run(List<Scanner> segments) throws IOException {
+        if (parallelism == 1 || segments.size() == 1) {
+            for (Scanner segment : segments) {
+                segment.run();
+            }
+            return;
+        }
+        List<Future<?>> running = new ArrayList<>(segments.size());
+        for (Scanner segment : segments) {
+            running.add(WORKERS.submit(() -> {
+                segment.run();
+                return null;
+            }));
+        }
+        for (Future<?> task : running) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Vérification interrompue", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+            }
+        }
+    }
+
+    /**
+     * Relie les segments : lignes globales, fermeture de la racine et contenu qui la suit.
+     */
+    private static List<Problem> merge(List<Scanner> segments) {
+        List<Problem> problems = new ArrayList<>();
+        Scanner first = segments.get(0);
+        boolean rootClosed = first.rootClosed;
+        boolean gaveUp = first.gaveUp;
+        int linesBefore = 0;
+        long lastLineStart = 0;
+        for (int s = 0; s < segments.size(); s = segments.get(s).lastSegment + 1) {
+            Scanner segment = segments.get(s);
+            for (Problem p : segment.problems) {
+                p.line += linesBefore + 1;
+                if (p.lineStart < 0) {
+                    p.lineStart = lastLineStart;
+                }
+                problems.add(p);
+            }
+            if (segment != first && !segment.gaveUp) {
+                if (rootClosed && segment.firstTopLevel != null) {
+                    Problem p = segment.firstTopLevel;
+                    p.line += linesBefore + 1;
+                    if (p.lineStart < 0) {
+                        p.lineStart = lastLineStart;
+                    }
+                    problems.add(p);
+                } else if (segment.rootClose != null) {
+                    Problem p = segment.rootClose;
+                    if (first.rootName != null && !first.rootName.equals(segment.rootCloseName)) {
+                        p.line += linesBefore + 1;
+                        if (p.lineStart < 0) {
+                            p.lineStart = lastLineStart;
+                        }
+                        problems.add(p.withMessage("Balise fermante </" + segment.rootCloseName
+                                + "> inattendue. Attendue : </" + first.rootName + ">"));
+                    }
+                    rootClosed = true;
+                }
+            }
+            // Préfixes non déclarés dans le segment : déclarés sur la racine, ou erreur
+            if (segment != first && first.rootBindings != null) {
+                List<Problem> found = new ArrayList<>();
+                for (Map.Entry<String, Problem> unbound : segment.unboundPrefixes.entrySet()) {
+                    if (!first.rootBindings.containsKey(unbound.getKey())) {
+                        found.add(unbound.getValue());
+                    }
+                }
+                for (DeferredAttributes deferred : segment.deferredAttributes) {
+                    if (deferred.hasDuplicate(first.rootBindings)) {
+                        found.add(deferred.problem());
+                    }
+                }
+                for (Problem p : found) {
+                    p.line += linesBefore + 1;
+                    if (p.lineStart < 0) {
+                        p.lineStart = lastLineStart;
+                    }
+                    problems.add(p);
+                }
+            }
+            gaveUp |= segment.gaveUp;
+            linesBefore += segment.line;
+            if (segment.lineStart >= 0) {
+                lastLineStart = segment.lineStart;
+            }
+        }
+        if (!rootClosed && !gaveUp && first.rootTag != null && segments.size() > 1) {
+            Problem p = first.rootTag.withMessage("Balise <" + first.rootName + "> non fermée");
+            p.line++;
+            p.lineStart = Math.max(0, p.lineStart);
+            problems.add(p);
+        }
+        return problems;
+    }
+
+    /**
+     * Colonne (1-based, en caractères) de {@code offset} sur la ligne commençant à {@code lineStart}.
+     */
+    private static int column(FileChannel channel, long lineStart, long offset) {
+        long distance = offset - lineStart;
+        if (distance <= 0) {
+            return 1;
+        }
+        if (distance > MAX_COLUMN_SCAN) {
+            return (int) Math.min(Integer.MAX_VALUE, distance + 1);
+        }
+        try {
+            ByteBuffer line = ByteBuffer.allocate((int) distance);
+            while (line.hasRemaining() && channel.read(line, lineStart + line.position()) > 0) {
+                // Lecture de la ligne jusqu'à l'erreur
+            }
+            int column = 1;
+            for (int i = 0; i < line.position(); i++) {
+                if ((line.get(i) & 0xC0) != 0x80) {
+                    column++;
+                }
+            }
+            return column;
+        } catch (IOException e) {
+            return (int) (distance + 1);
+        }
+    }
+
+    /**
+     * Erreur relevée dans un segment ; ligne relative au segment jusqu'à la fusion.
+     */
+    private static final class Problem {
+        final long offset;
+        final long end;
+        final String message;
+        final String type;
+        int line;
+        // Début de la ligne en octets (-1 : ligne commencée avant le segment)
+        long lineStart;
+
+        Problem(long offset, long end, int line, long lineStart, String message, String type) {
+            this.offset = offset;
+            this.end = end;
+            this.line = line;
+            this.lineStart = lineStart;
+            this.message = message;
+            this.type = type;
+        }
+
+        Problem withMessage(String message) {
+            return new Problem(offset, end, line, lineStart, message, "STRUCTURE");
+        }
+    }
+
+    /**
+     * Noms étendus des attributs préfixés d'une balise (":préfixe nom" quand le préfixe est
+     * déclaré sur la racine), comparés à la fusion.
+     */
+    private record DeferredAttributes(List<String> names, Problem problem) {
+
+        boolean hasDuplicate(Map<String, String> rootBindings) {
+            Set<String> seen = new HashSet<>();
+            for (String name : names) {
+                if (name.startsWith(":")) {
+                    int space = name.indexOf(' ');
+                    String uri = rootBindings.get(name.substring(1, space));
+                    if (uri == null) {
+                        // Préfixe non déclaré : déjà signalé
+                        return false;
+                    }
+                    name = uri + name.substring(space);
+                }
+                if (!seen.add(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Interruption de l'analyse d'un enregistrement.
+     */
+    private static final class Malformed extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final transient Problem problem;
+
+        Malformed(Problem problem) {
+            super(problem.message, null, false, false);
+            this.problem = problem;
+        }
+    }
+
+    /**
+     * Nom lu dans le flux, en UTF-8.
+     */
+    private static final class Name {
+        byte[] bytes = new byte[64];
+        int length;
+
+        void reset() {
+            length = 0;
+        }
+
+        void append(int cp) {
+            if (length + 4 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            if (cp < 0x80) {
+                bytes[length++] = (byte) cp;
+            } else if (cp < 0x800) {
+                bytes[length++] = (byte) (0xC0 | (cp >> 6));
+                bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (cp < 0x10000) {
+                bytes[length++] = (byte) (0xE0 | (cp >> 12));
+                bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                bytes[length++] = (byte) (0xF0 | (cp >> 18));
+                bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+            }
+        }
+
+        void append(byte[] source, int from, int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+            System.arraycopy(source, from, bytes, length, count);
+            length += count;
+        }
+
+        boolean startsWith(String ascii) {
+            if (ascii.length() > length) {
+                return false;
+            }
+            for (int i = 0; i < ascii.length(); i++) {
+                if (bytes[i] != ascii.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean is(String ascii) {
+            if (ascii.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != ascii.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private enum Phase { PROLOG, CONTENT, EPILOG }
+
+    /**
+     * Analyse d'un segment [start, end) du fichier, projeté en mémoire bloc par bloc.
+     */
+    private static final class Scanner {
+        private final FileChannel channel;
+        private final long start;
+        private long end;
+        private final boolean first;
+        private boolean last;
+        private final boolean doctype;
+        private final long[] records;
+        private int recordTo;
+        private int nextRecord;
+
+        // Segments du fichier ; dernier segment couvert par celui-ci (les suivants s'il a dû y poursuivre)
+        private List<Scanner> segments;
+        int lastSegment;
+        // Lecture d'une balise, d'un commentaire, d'une section CDATA ou d'une instruction de traitement
+        private boolean inMarkup;
+
+        private MappedByteBuffer block;
+        private long blockStart;
+        private long blockEnd;
+
+        // Octets en cours de lecture : buf[0..limit) à partir de chunkStart, prochain en buf[index]
+        private final byte[] buf = new byte[CHUNK_BYTES];
+        private long chunkStart;
+        private int index;
+        private int limit;
+
+        // Retours à la ligne lus et début de la ligne courante (-1 : avant le segment)
+        int line;
+        long lineStart = -1;
+
+        // Début du dernier caractère lu
+        private long charStart;
+        private int charLine;
+        private long charLineStart;
+
+        // Début du jeton courant
+        private long tokenStart;
+        private int tokenLine;
+        private long tokenLineStart;
+
+        private Phase phase;
+        private int brackets;
+
+        // Pile des éléments ouverts dans le segment (hors racine pour les segments intérieurs)
+        private byte[] names = new byte[4096];
+        private int namesLength;
+        private int[] nameStarts = new int[64];
+        // Position des balises ouvrantes (-1 : racine illisible)
+        private long[] tagStarts = new long[64];
+        private long[] tagEnds = new long[64];
+        private int[] tagLines = new int[64];
+        private long[] tagLineStarts = new long[64];
+        private int depth;
+
+        private final Name tagName = new Name();
+        private final Name attributeName = new Name();
+        private final Name referenceName = new Name();
+        // Noms des attributs de la balise courante, mis bout à bout
+        private final Name attributes = new Name();
+        private int[] attributeEnds = new int[16];
+        private int attributeCount;
+        private final Name attributeValue = new Name();
+
+        // Espaces de noms déclarés par la balise courante, puis en portée (préfixe "" : défaut) ;
+        // nombre de déclarations en portée à l'ouverture de chaque élément de la pile
+        private final List<String> tagPrefixes = new ArrayList<>();
+        private final List<String> tagUris = new ArrayList<>();
+        private final List<String> boundPrefixes = new ArrayList<>();
+        private final List<String> boundUris = new ArrayList<>();
+        private int[] scopeMarks = new int[64];
+
+        final List<Problem> problems = new ArrayList<>();
+        boolean gaveUp;
+
+        // Premier segment : racine
+        String rootName;
+        Problem rootTag;
+        boolean rootClosed;
+        private boolean declarationAllowed = true;
+        private boolean doctypeSeen;
+
+        // Espaces de noms déclarés sur la racine, par préfixe (null si sa balise est illisible)
+        Map<String, String> rootBindings;
+
+        // Segments suivants : fermeture de la racine et premier contenu de niveau racine
+        String rootCloseName;
+        Problem rootClose;
+        Problem firstTopLevel;
+        // Préfixes non déclarés dans le segment, avec leur première utilisation
+        final Map<String, Problem> unboundPrefixes = new LinkedHashMap<>();
+        // Balises dont des attributs préfixés ne se comparent qu'avec les URI de la racine
+        final List<DeferredAttributes> deferredAttributes = new ArrayList<>();
+
+        Scanner(FileChannel channel, long start, long end, boolean first, boolean last, boolean doctype,
+                long[] records, int recordFrom, int recordTo) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.first = first;
+            this.last = last;
+            this.doctype = doctype;
+            this.records = records;
+            this.nextRecord = recordFrom;
+            this.recordTo = recordTo;
+            this.chunkStart = start;
+            this.phase = first ? Phase.PROLOG : Phase.CONTENT;
+        }
+
+        void follow(List<Scanner> segments, int position) {
+            this.segments = segments;
+            this.lastSegment = position;
+        }
+
+        /**
+         * Poursuit la lecture dans le segment suivant, dont le résultat sera écarté.
+         *
+         * @return false s'il n'y a pas de segment suivant
+         */
+        private boolean extend() {
+            if (segments == null || lastSegment + 1 >= segments.size()) {
+                return false;
+            }
+            Scanner next = segments.get(++lastSegment);
+            end = next.end;
+            last = next.last;
+            recordTo = next.recordTo;
+            return true;
+        }
+
+        void run() throws IOException {
+            if (first && peek() == 0xEF && limit >= 3 && (buf[1] & 0xFF) == 0xBB && (buf[2] & 0xFF) == 0xBF) {
+                index = 3;
+            }
+            while (true) {
+                try {
+                    if (!step()) {
+                        break;
+                    }
+                } catch (Malformed e) {
+                    inMarkup = false;
+                    problems.add(e.problem);
+                    if (problems.size() >= MAX_ERRORS || !recover()) {
+                        gaveUp = true;
+                        // Lignes du reste du segment, pour les segments suivants
+                        while (next() >= 0) {
+                            // Comptage des retours à la ligne
+                        }
+                        return;
+                    }
+                }
+            }
+            finish();
+        }
+
+        /**
+         * Reprise au premier enregistrement qui n'a pas encore été lu.
+         */
+        private boolean recover() throws IOException {
+            while (nextRecord < recordTo && records[nextRecord] < pos()) {
+                nextRecord++;
+            }
+            if (nextRecord >= recordTo || records[nextRecord] >= end) {
+                return false;
+            }
+            long target = records[nextRecord++];
+            // Retours à la ligne jusqu'au point de reprise
+            while (pos() < target) {
+                next();
+            }
+            if (first) {
+                if (rootName == null) {
+                    // Racine illisible : pile réduite à une racine qui ferme n'importe quel nom
+                    depth = 0;
+                    namesLength = 0;
+                    push(null);
+                }
+                while (depth > 1) {
+                    pop();
+                }
+            } else {
+                while (depth > 0) {
+                    pop();
+                }
+            }
+            phase = Phase.CONTENT;
+            brackets = 0;
+            return true;
+        }
+
+        private void finish() {
+            if (phase == Phase.PROLOG) {
+                if (last) {
+                    problems.add(new Problem(pos(), pos(), line, lineStart, "Document sans élément racine", "STRUCTURE"));
+                }
+                return;
+            }
+            if (phase != Phase.CONTENT) {
+                return;
+            }
+            // Éléments restés ouverts : la racine (premier segment) se ferme dans un segment suivant
+            int keep = first && !last ? 1 : 0;
+            for (int d = depth - 1; d >= keep && problems.size() < MAX_ERRORS; d--) {
+                if (tagStarts[d] >= 0) {
+                    problems.add(new Problem(tagStarts[d], tagEnds[d], tagLines[d], tagLineStarts[d],
+                            "Balise <" + nameAt(d) + "> non fermée", "STRUCTURE"));
+                }
+            }
+        }
+
+        // ---- Lecture des octets ----
+
+        private long pos() {
+            return chunkStart + index;
+        }
+
+        /**
+         * Copie les octets suivants du bloc projeté, projeté à nouveau au besoin.
+         *
+         * @return false en fin de segment
+         */
+        private boolean fill() throws IOException {
+            chunkStart += limit;
+            index = 0;
+            limit = 0;
+            // Fin du segment au milieu d'une construction : elle se termine dans le segment suivant
+            while (chunkStart >= end) {
+                if (!inMarkup || !extend()) {
+                    return false;
+                }
+            }
+            if (chunkStart >= blockEnd || chunkStart < blockStart) {
+                blockStart = chunkStart;
+                blockEnd = Math.min(end, chunkStart + BLOCK_BYTES);
+                block = channel.map(FileChannel.MapMode.READ_ONLY, blockStart, blockEnd - blockStart);
+            }
+            limit = (int) Math.min(buf.length, blockEnd - chunkStart);
+            block.get((int) (chunkStart - blockStart), buf, 0, limit);
+            return true;
+        }
+
+        private int peek() throws IOException {
+            if (index >= limit && !fill()) {
+                return -1;
+            }
+            return buf[index] & 0xFF;
+        }
+
+        private int next() throws IOException {
+            if (index >= limit && !fill()) {
+                return -1;
+            }
+            int b = buf[index++] & 0xFF;
+            if (b == '\n') {
+                line++;
+                lineStart = chunkStart + index;
+            }
+            return b;
+        }
+
+        /**
+         * Caractère suivant, décodé et vérifié (UTF-8 valide, caractère autorisé en XML).
+         *
+         * @return le point de code, -1 en fin de segment
+         */
+        private int nextChar() throws IOException, Malformed {
+            charStart = pos();
+            charLine = line;
+            charLineStart = lineStart;
+            int b = next();
+            if (b < 0x80) {
+                if (b >= 0x20 || b == '\n' || b == '\t' || b == '\r' || b < 0) {
+                    return b;
+                }
+                throw new Malformed(atChar(String.format("Caractère interdit en XML (U+%04X)", b), "SYNTAX"));
+            }
+            int extra;
+            int cp;
+            if (b >= 0xC2 && b < 0xE0) {
+                extra = 1;
+                cp = b & 0x1F;
+            } else if (b >= 0xE0 && b < 0xF0) {
+                extra = 2;
+                cp = b & 0x0F;
+            } else if (b >= 0xF0 && b < 0xF5) {
+                extra = 3;
+                cp = b & 0x07;
+            } else {
+                throw new Malformed(atChar("Séquence UTF-8 invalide", "SYNTAX"));
+            }
+            for (int i = 0; i < extra; i++) {
+                int c = peek();
+                if (c < 0 || (c & 0xC0) != 0x80) {
+                    throw new Malformed(atChar("Séquence UTF-8 invalide", "SYNTAX"));
+                }
+                index++;
+                cp = (cp << 6) | (c & 0x3F);
+            }
+            if ((extra == 2 && cp < 0x800) || (extra == 3 && (cp < 0x10000 || cp > 0x10FFFF))
+                    || (cp >= 0xD800 && cp <= 0xDFFF)) {
+                throw new Malformed(atChar("Séquence UTF-8 invalide", "SYNTAX"));
+            }
+            if (cp == 0xFFFE || cp == 0xFFFF) {
+                throw new Malformed(atChar(String.format("Caractère interdit en XML (U+%04X)", cp), "SYNTAX"));
+            }
+            return cp;
+        }
+
+        private Problem atChar(String message, String type) {
+            return new Problem(charStart, pos(), charLine, charLineStart, message, type);
+        }
+
+        private Problem atToken(String message, String type) {
+            return new Problem(tokenStart, pos(), tokenLine, tokenLineStart, message, type);
+        }
+
+        private void startToken() {
+            tokenStart = charStart;
+            tokenLine = charLine;
+            tokenLineStart = charLineStart;
+        }
+
+        private int required(int cp, String construct) throws Malformed {
+            if (cp < 0) {
+                throw new Malformed(atToken(construct + " non terminé(e) : fin de fichier inattendue", "SYNTAX"));
+            }
+            return cp;
+        }
+
+        // ---- Grammaire ----
+
+        private boolean step() throws IOException, Malformed {
+            int c = nextChar();
+            if (c < 0) {
+                return false;
+            }
+            startToken();
+            if (c == '<') {
+                brackets = 0;
+                inMarkup = true;
+                markup();
+                inMarkup = false;
+            } else if (c == '&') {
+                brackets = 0;
+                if (phase != Phase.CONTENT) {
+                    throw new Malformed(atToken("Contenu non autorisé hors de l'élément racine", "STRUCTURE"));
+                }
+                reference();
+                topLevelContent();
+            } else {
+                text(c);
+                if (phase == Phase.CONTENT && (depth > 0 || first)) {
+                    asciiText();
+                }
+            }
+            declarationAllowed = false;
+            return true;
+        }
+
+        private void text(int c) throws Malformed {
+            boolean space = c == ' ' || c == '\n' || c == '\t' || c == '\r';
+            if (phase != Phase.CONTENT) {
+                if (!space) {
+                    throw new Malformed(atToken("Contenu non autorisé hors de l'élément racine", "STRUCTURE"));
+                }
+                return;
+            }
+            if (c == ']') {
+                brackets++;
+            } else {
+                if (c == '>' && brackets >= 2) {
+                    throw new Malformed(new Problem(tokenStart - 2, pos(), tokenLine, tokenLineStart,
+                            "Séquence ']]>' interdite dans le texte", "SYNTAX"));
+                }
+                brackets = 0;
+            }
+            if (!space) {
+                topLevelContent();
+            }
+        }
+
+        /**
+         * Suite du texte en ASCII sans caractère particulier, lue directement dans le tampon.
+         */
+        private void asciiText() {
+            int i = index;
+            while (i < limit) {
+                int b = buf[i];
+                if (b >= 0x20) {
+                    if (b == '<' || b == '&' || b == ']' || b == '>') {
+                        break;
+                    }
+                } else if (b == '\n') {
+                    line++;
+                    lineStart = chunkStart + i + 1;
+                } else if (b != '\t' && b != '\r') {
+                    // Octet non ASCII ou de contrôle
+                    break;
+                }
+                i++;
+            }
+            if (i > index) {
+                index = i;
+                brackets = 0;
+            }
+        }
+
+        /**
+         * Octets ASCII ordinaires (hors contrôle et {@code stop}) sautés dans le tampon.
+         */
+        private void skipAscii(int stop1, int stop2, int stop3) {
+            int i = index;
+            while (i < limit) {
+                int b = buf[i];
+                if (b < 0x20) {
+                    if (b != '\n') {
+                        break;
+                    }
+                    line++;
+                    lineStart = chunkStart + i + 1;
+                } else if (b == stop1 || b == stop2 || b == stop3) {
+                    break;
+                }
+                i++;
+            }
+            index = i;
+        }
+
+        /**
+         * Contenu placé directement dans la racine d'un segment intérieur : interdit si la racine
+         * a été fermée dans un segment précédent (vérifié à la fusion).
+         */
+        private void topLevelContent() {
+            if (!first && depth == 0 && firstTopLevel == null) {
+                firstTopLevel = atToken("Contenu non autorisé après l'élément racine", "STRUCTURE");
+            }
+        }
+
+        private void markup() throws IOException, Malformed {
+            int c = required(nextChar(), "Balise");
+            if (c == '?') {
+                processingInstruction();
+            } else if (c == '!') {
+                bang();
+            } else if (c == '/') {
+                endTag();
+            } else {
+                startTag(c);
+            }
+        }
+
+        private void startTag(int c) throws IOException, Malformed {
+            if (phase == Phase.EPILOG) {
+                throw new Malformed(atToken("Contenu non autorisé après l'élément racine", "STRUCTURE"));
+            }
+            if (!isNameStart(c)) {
+                throw new Malformed(atToken("Nom de balise invalide après '<'", "SYNTAX"));
+            }
+            c = name(c, tagName);
+            attributes.reset();
+            attributeCount = 0;
+            tagPrefixes.clear();
+            tagUris.clear();
+            while (true) {
+                boolean space = false;
+                while (isSpace(c)) {
+                    space = true;
+                    c = nextChar();
+                }
+                if (c == '>') {
+                    openElement(false);
+                    return;
+                }
+                if (c == '/') {
+                    if (nextChar() != '>') {
+                        throw new Malformed(atToken("Balise <" + tagName + "> mal formée : '>' attendu après '/'", "SYNTAX"));
+                    }
+                    openElement(true);
+                    return;
+                }
+                if (c < 0) {
+                    throw new Malformed(atToken("Balise <" + tagName + "> non terminée : fin de fichier inattendue", "SYNTAX"));
+                }
+                long attributeStart = charStart;
+                int attributeLine = charLine;
+                long attributeLineStart = charLineStart;
+                if (!space || !isNameStart(c)) {
+                    throw new Malformed(new Problem(attributeStart, pos(), attributeLine, attributeLineStart,
+                            "Balise <" + tagName + "> mal formée : attribut ou '>' attendu", "SYNTAX"));
+                }
+                c = name(c, attributeName);
+                while (isSpace(c)) {
+                    c = nextChar();
+                }
+                if (c != '=') {
+                    throw new Malformed(new Problem(attributeStart, pos(), attributeLine, attributeLineStart,
+                            "Attribut " + attributeName + " sans valeur", "SYNTAX"));
+                }
+                c = nextChar();
+                while (isSpace(c)) {
+                    c = nextChar();
+                }
+                if (c != '"' && c != '\'') {
+                    throw new Malformed(new Problem(attributeStart, pos(), attributeLine, attributeLineStart,
+                            "Valeur de l'attribut " + attributeName + " sans guillemets", "SYNTAX"));
+                }
+                int quote = c;
+                boolean declaration = attributeName.is("xmlns") || attributeName.startsWith("xmlns:");
+                attributeValue.reset();
+                while (true) {
+                    if (!declaration) {
+                        skipAscii(quote, '<', '&');
+                    }
+                    if ((c = nextChar()) == quote) {
+                        break;
+                    }
+                    if (c < 0) {
+                        throw new Malformed(new Problem(attributeStart, pos(), attributeLine, attributeLineStart,
+                                "Valeur de l'attribut " + attributeName + " non terminée : fin de fichier inattendue", "SYNTAX"));
+                    }
+                    if (c == '<') {
+                        throw new Malformed(atChar("Caractère '<' interdit dans la valeur de l'attribut " + attributeName, "SYNTAX"));
+                    }
+                    if (c == '&') {
+                        reference();
+                    }
+                    if (declaration) {
+                        attributeValue.append(c);
+                    }
+                }
+                if (declaration) {
+                    tagPrefixes.add(attributeName.length == 5 ? "" : attributeName.toString().substring(6));
+                    tagUris.add(attributeValue.toString());
+                }
+                for (int a = 0, from = 0; a < attributeCount; from = attributeEnds[a++]) {
+                    if (Arrays.equals(attributes.bytes, from, attributeEnds[a], attributeName.bytes, 0, attributeName.length)) {
+                        throw new Malformed(new Problem(attributeStart, pos(), attributeLine, attributeLineStart,
+                                "Attribut " + attributeName + " en double", "SYNTAX"));
+                    }
+                }
+                if (attributeCount == attributeEnds.length) {
+                    attributeEnds = Arrays.copyOf(attributeEnds, attributeCount * 2);
+                }
+                attributes.append(attributeName.bytes, 0, attributeName.length);
+                attributeEnds[attributeCount++] = attributes.length;
+                c = nextChar();
+            }
+        }
+
+        private void openElement(boolean empty) throws Malformed {
+            checkNamespaces();
+            if (phase == Phase.PROLOG) {
+                rootName = tagName.toString();
+                rootBindings = new HashMap<>();
+                for (int i = 0; i < tagPrefixes.size(); i++) {
+                    rootBindings.put(tagPrefixes.get(i), tagUris.get(i));
+                }
+                phase = empty ? Phase.EPILOG : Phase.CONTENT;
+                rootClosed = empty;
+                rootTag = atToken("Balise <" + rootName + "> non fermée", "STRUCTURE");
+            } else {
+                topLevelContent();
+            }
+            if (!empty) {
+                int mark = boundPrefixes.size();
+                boundPrefixes.addAll(tagPrefixes);
+                boundUris.addAll(tagUris);
+                push(tagName);
+                scopeMarks[depth - 1] = mark;
+                tagStarts[depth - 1] = tokenStart;
+                tagEnds[depth - 1] = pos();
+                tagLines[depth - 1] = tokenLine;
+                tagLineStarts[depth - 1] = tokenLineStart;
+            }
+        }
+
+        /**
+         * Espaces de noms de la balise lue : noms qualifiés, déclarations réservées, préfixes
+         * déclarés et unicité des attributs par nom étendu.
+         */
+        private void checkNamespaces() throws Malformed {
+            for (int i = 0; i < tagPrefixes.size(); i++) {
+                String prefix = tagPrefixes.get(i);
+                String uri = tagUris.get(i);
+                if (prefix.equals("xmlns") || uri.equals(XMLNS_NS) || prefix.equals("xml") != uri.equals(XML_NS)) {
+                    throw new Malformed(atToken("Déclaration d'espace de noms réservée : "
+                            + (prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix) + "=\"" + uri + "\"", "SYNTAX"));
+                }
+                if (!prefix.isEmpty() && uri.isEmpty()) {
+                    throw new Malformed(atToken("Préfixe " + prefix + " lié à un espace de noms vide", "SYNTAX"));
+                }
+            }
+            int colon = qualifiedName(tagName);
+            if (colon > 0) {
+                String prefix = new String(tagName.bytes, 0, colon, StandardCharsets.UTF_8);
+                if (prefix.equals("xmlns")) {
+                    throw new Malformed(atToken("Préfixe xmlns réservé : <" + tagName + ">", "SYNTAX"));
+                }
+                resolve(prefix);
+            }
+            // Attributs préfixés : nom étendu (URI, nom local), comparé aux précédents. Une URI
+            // inconnue du segment (préfixe de la racine) est remplacée par le préfixe jusqu'à la fusion.
+            List<String> expanded = null;
+            boolean unresolved = false;
+            for (int a = 0, from = 0; a < attributeCount; from = attributeEnds[a++]) {
+                Name name = attributeName;
+                name.reset();
+                name.append(attributes.bytes, from, attributeEnds[a] - from);
+                colon = qualifiedName(name);
+                if (colon <= 0) {
+                    continue;
+                }
+                String prefix = new String(name.bytes, 0, colon, StandardCharsets.UTF_8);
+                if (prefix.equals("xmlns")) {
+                    continue;
+                }
+                String uri = resolve(prefix);
+                unresolved |= uri == null;
+                String key = (uri != null ? uri : ':' + prefix) + ' '
+                        + new String(name.bytes, colon + 1, name.length - colon - 1, StandardCharsets.UTF_8);
+                if (expanded == null) {
+                    expanded = new ArrayList<>();
+                } else if (expanded.contains(key)) {
+                    throw new Malformed(atToken("Attribut " + name + " en double (même nom étendu)", "SYNTAX"));
+                }
+                expanded.add(key);
+            }
+            if (unresolved && expanded.size() > 1) {
+                deferredAttributes.add(new DeferredAttributes(expanded,
+                        atToken("Attribut en double (même nom étendu) dans <" + tagName + ">", "SYNTAX")));
+            }
+        }
+
+        /**
+         * Position du ':' d'un nom qualifié, -1 sans préfixe.
+         */
+        private int qualifiedName(Name name) throws Malformed {
+            int colon = -1;
+            for (int i = 0; i < name.length; i++) {
+                if (name.bytes[i] == ':') {
+                    if (colon >= 0) {
+                        colon = 0;
+                        break;
+                    }
+                    colon = i;
+                }
+            }
+            if (colon == 0 || colon == name.length - 1
+                    || (colon > 0 && !isNameStart(new String(name.bytes, colon + 1, name.length - colon - 1,
+                            StandardCharsets.UTF_8).codePointAt(0)))) {
+                throw new Malformed(atToken("Nom qualifié invalide : " + name, "SYNTAX"));
+            }
+            return colon;
+        }
+
+        /**
+         * URI liée au préfixe. Hors de tout élément du segment, le préfixe peut être déclaré sur la
+         * racine : il est vérifié à la fusion.
+         *
+         * @return l'URI, ou null si elle n'est pas connue dans le segment
+         */
+        private String resolve(String prefix) throws Malformed {
+            if (prefix.equals("xml")) {
+                return XML_NS;
+            }
+            int i = tagPrefixes.lastIndexOf(prefix);
+            if (i >= 0) {
+                return tagUris.get(i);
+            }
+            i = boundPrefixes.lastIndexOf(prefix);
+            if (i >= 0) {
+                return boundUris.get(i);
+            }
+            if (!first) {
+                unboundPrefixes.putIfAbsent(prefix, atToken("Préfixe d'espace de noms non déclaré : " + prefix, "SYNTAX"));
+                return null;
+            }
+            if (depth > 0 && nameStarts[0] < 0) {
+                // Racine illisible : ses déclarations sont inconnues
+                return null;
+            }
+            throw new Malformed(atToken("Préfixe d'espace de noms non déclaré : " + prefix, "SYNTAX"));
+        }
+
+        private void endTag() throws IOException, Malformed {
+            int c = required(nextChar(), "Balise fermante");
+            if (!isNameStart(c)) {
+                throw new Malformed(atToken("Nom de balise fermante invalide", "SYNTAX"));
+            }
+            c = name(c, tagName);
+            while (isSpace(c)) {
+                c = nextChar();
+            }
+            if (c != '>') {
+                throw new Malformed(atToken("Balise fermante </" + tagName + "> mal formée : '>' attendu", "SYNTAX"));
+            }
+            if (phase != Phase.CONTENT) {
+                throw new Malformed(atToken("Balise fermante </" + tagName + "> sans balise ouvrante correspondante", "STRUCTURE"));
+            }
+            if (depth > 0) {
+                if (!topMatches(tagName)) {
+                    throw new Malformed(atToken("Balise fermante </" + tagName + "> inattendue. Attendue : </"
+                            + nameAt(depth - 1) + ">", "STRUCTURE"));
+                }
+                pop();
+                if (first && depth == 0) {
+                    rootClosed = true;
+                    phase = Phase.EPILOG;
+                }
+            } else {
+                // Segment intérieur : fermeture de la racine, vérifiée à la fusion
+                rootCloseName = tagName.toString();
+                rootClose = atToken("", "STRUCTURE");
+                phase = Phase.EPILOG;
+            }
+        }
+
+        private void processingInstruction() throws IOException, Malformed {
+            int c = required(nextChar(), "Instruction de traitement");
+            if (!isNameStart(c)) {
+                throw new Malformed(atToken("Cible d'instruction de traitement invalide", "SYNTAX"));
+            }
+            c = name(c, attributeName);
+            if (attributeName.length == 3 && attributeName.toString().equalsIgnoreCase("xml")) {
+                if (!(first && declarationAllowed && attributeName.is("xml"))) {
+                    throw new Malformed(atToken("Déclaration XML ailleurs qu'au début du document", "SYNTAX"));
+                }
+                xmlDeclaration(c);
+                return;
+            }
+            if (c == '?') {
+                c = required(nextChar(), "Instruction de traitement");
+                if (c == '>') {
+                    return;
+                }
+                throw new Malformed(atToken("Instruction de traitement mal formée", "SYNTAX"));
+            }
+            if (!isSpace(c)) {
+                throw new Malformed(atToken("Instruction de traitement mal formée", "SYNTAX"));
+            }
+            boolean question = false;
+            while (true) {
+                c = required(nextChar(), "Instruction de traitement");
+                if (question && c == '>') {
+                    return;
+                }
+                question = c == '?';
+            }
+        }
+
+        /**
+         * Déclaration XML après {@code <?xml} : version obligatoire, puis encodage et
+         * {@code standalone} facultatifs, dans cet ordre.
+         */
+        private void xmlDeclaration(int c) throws IOException, Malformed {
+            int seen = 0;
+            while (true) {
+                boolean space = false;
+                while (isSpace(c)) {
+                    space = true;
+                    c = nextChar();
+                }
+                required(c, "Déclaration XML");
+                if (c == '?') {
+                    if (required(nextChar(), "Déclaration XML") != '>') {
+                        throw new Malformed(atToken("Déclaration XML mal formée", "SYNTAX"));
+                    }
+                    if (seen == 0) {
+                        throw new Malformed(atToken("Déclaration XML sans version", "SYNTAX"));
+                    }
+                    return;
+                }
+                if (!space || !isNameStart(c)) {
+                    throw new Malformed(atToken("Déclaration XML mal formée", "SYNTAX"));
+                }
+                c = name(c, attributeName);
+                int kind = attributeName.is("version") ? 1 : attributeName.is("encoding") ? 2
+                        : attributeName.is("standalone") ? 3 : 0;
+                if (kind == 0 || kind <= seen || (seen == 0 && kind != 1)) {
+                    throw new Malformed(atToken(seen == 0 ? "Déclaration XML sans version"
+                            : "Pseudo-attribut " + attributeName + " inattendu dans la déclaration XML", "SYNTAX"));
+                }
+                while (isSpace(c)) {
+                    c = nextChar();
+                }
+                if (c != '=') {
+                    throw new Malformed(atToken("Pseudo-attribut " + attributeName + " sans valeur", "SYNTAX"));
+                }
+                c = nextChar();
+                while (isSpace(c)) {
+                    c = nextChar();
+                }
+                if (c != '"' && c != '\'') {
+                    throw new Malformed(atToken("Valeur de " + attributeName + " sans guillemets", "SYNTAX"));
+                }
+                int quote = c;
+                attributeValue.reset();
+                while ((c = required(nextChar(), "Déclaration XML")) != quote) {
+                    attributeValue.append(c);
+                }
+                String value = attributeValue.toString();
+                boolean valid = kind == 1 ? VERSION_NUM.matcher(value).matches()
+                        : kind == 2 ? ENC_NAME.matcher(value).matches()
+                        : value.equals("yes") || value.equals("no");
+                if (!valid) {
+                    throw new Malformed(atToken("Valeur invalide pour " + attributeName + " : \"" + value + "\"", "SYNTAX"));
+                }
+                seen = kind;
+                c = nextChar();
+            }
+        }
+
+        private void bang() throws IOException, Malformed {
+            int c = required(nextChar(), "Déclaration");
+            if (c == '-') {
+                expect("-", "Commentaire mal formé");
+                comment();
+            } else if (c == '[') {
+                expect("CDATA[", "Section CDATA mal formée");
+                if (phase != Phase.CONTENT) {
+                    throw new Malformed(atToken("Section CDATA hors de l'élément racine", "STRUCTURE"));
+                }
+                cdata();
+                topLevelContent();
+            } else if (c == 'D') {
+                expect("OCTYPE", "Déclaration '<!' invalide");
+                if (!first || phase != Phase.PROLOG || doctypeSeen) {
+                    throw new Malformed(atToken("Déclaration DOCTYPE mal placée", "SYNTAX"));
+                }
+                doctypeSeen = true;
+                doctypeDeclaration();
+            } else {
+                throw new Malformed(atToken("Déclaration '<!' invalide", "SYNTAX"));
+            }
+        }
+
+        private void expect(String ascii, String message) throws IOException, Malformed {
+            for (int i = 0; i < ascii.length(); i++) {
+                if (nextChar() != ascii.charAt(i)) {
+                    throw new Malformed(atToken(message, "SYNTAX"));
+                }
+            }
+        }
+
+        private void comment() throws IOException, Malformed {
+            int dashes = 0;
+            while (true) {
+                if (dashes == 0) {
+                    skipAscii('-', '-', '-');
+                }
+                int c = required(nextChar(), "Commentaire");
+                if (dashes >= 2) {
+                    if (c == '>') {
+                        return;
+                    }
+                    throw new Malformed(atToken("'--' interdit dans un commentaire", "SYNTAX"));
+                }
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+        }
+
+        private void cdata() throws IOException, Malformed {
+            int closing = 0;
+            while (true) {
+                if (closing == 0) {
+                    skipAscii(']', ']', ']');
+                }
+                int c = required(nextChar(), "Section CDATA");
+                if (c == '>' && closing >= 2) {
+                    return;
+                }
+                closing = c == ']' ? closing + 1 : 0;
+            }
+        }
+
+        private void doctypeDeclaration() throws IOException, Malformed {
+            int brackets = 0;
+            int quote = 0;
+            while (true) {
+                int c = required(nextChar(), "Déclaration DOCTYPE");
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '[') {
+                    brackets++;
+                } else if (c == ']') {
+                    brackets--;
+                } else if (c == '>' && brackets <= 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Référence après '&' : entité prédéfinie (ou déclarée dans une DTD) ou caractère.
+         */
+        private void reference() throws IOException, Malformed {
+            long referenceStart = charStart;
+            int referenceLine = charLine;
+            long referenceLineStart = charLineStart;
+            int c = nextChar();
+            if (c == '#') {
+                int radix = 10;
+                c = nextChar();
+                if (c == 'x') {
+                    radix = 16;
+                    c = nextChar();
+                }
+                long value = 0;
+                int digits = 0;
+                while (c >= 0 && Character.digit(c, radix) >= 0 && c < 0x80) {
+                    value = Math.min(value * radix + Character.digit(c, radix), 0x110000);
+                    digits++;
+                    c = nextChar();
+                }
+                if (digits == 0 || c != ';' || !isChar((int) value)) {
+                    throw new Malformed(new Problem(referenceStart, pos(), referenceLine, referenceLineStart,
+                            "Référence de caractère invalide", "SYNTAX"));
+                }
+                return;
+            }
+            if (c < 0 || !isNameStart(c)) {
+                throw new Malformed(new Problem(referenceStart, pos(), referenceLine, referenceLineStart,
+                        "'&' doit introduire une référence (&amp;amp; pour le caractère lui-même)", "SYNTAX"));
+            }
+            c = name(c, referenceName);
+            if (c != ';') {
+                throw new Malformed(new Problem(referenceStart, pos(), referenceLine, referenceLineStart,
+                        "Référence d'entité &" + referenceName + " non terminée par ';'", "SYNTAX"));
+            }
+            if (!doctype && !(referenceName.is("lt") || referenceName.is("gt") || referenceName.is("amp")
+                    || referenceName.is("apos") || referenceName.is("quot"))) {
+                throw new Malformed(new Problem(referenceStart, pos(), referenceLine, referenceLineStart,
+                        "Référence d'entité non définie : &" + referenceName + ";", "SYNTAX"));
+            }
+        }
+
+        /**
+         * Lit un nom dont le premier caractère est {@code c}.
+         *
+         * @return le caractère qui suit le nom
+         */
+        private int name(int c, Name into) throws IOException, Malformed {
+            into.reset();
+            into.append(c);
+            while (true) {
+                // Caractères ASCII du nom copiés directement depuis le tampon
+                int i = index;
+                while (i < limit && isAsciiNameChar(buf[i])) {
+                    i++;
+                }
+                if (i > index) {
+                    into.append(buf, index, i - index);
+                    index = i;
+                }
+                c = nextChar();
+                if (c < 0 || !isNameChar(c)) {
+                    return c;
+                }
+                into.append(c);
+            }
+        }
+
+        // ---- Pile des éléments ----
+
+        private void push(Name name) {
+            if (depth == nameStarts.length) {
+                nameStarts = Arrays.copyOf(nameStarts, depth * 2);
+                scopeMarks = Arrays.copyOf(scopeMarks, depth * 2);
+                tagStarts = Arrays.copyOf(tagStarts, depth * 2);
+                tagEnds = Arrays.copyOf(tagEnds, depth * 2);
+                tagLines = Arrays.copyOf(tagLines, depth * 2);
+                tagLineStarts = Arrays.copyOf(tagLineStarts, depth * 2);
+            }
+            int length = name != null ? name.length : 0;
+            if (namesLength + length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + length));
+            }
+            nameStarts[depth] = name != null ? namesLength : -1;
+            if (name != null) {
+                System.arraycopy(name.bytes, 0, names, namesLength, length);
+                namesLength += length;
+            }
+            tagStarts[depth] = -1;
+            scopeMarks[depth] = boundPrefixes.size();
+            depth++;
+        }
+
+        private void pop() {
+            depth--;
+            if (nameStarts[depth] >= 0) {
+                namesLength = nameStarts[depth];
+            }
+            // Déclarations de l'élément fermé hors de portée
+            int mark = scopeMarks[depth];
+            if (boundPrefixes.size() > mark) {
+                boundPrefixes.subList(mark, boundPrefixes.size()).clear();
+                boundUris.subList(mark, boundUris.size()).clear();
+            }
+        }
+
+        private int nameEnd(int d) {
+            for (int k = d + 1; k < depth; k++) {
+                if (nameStarts[k] >= 0) {
+                    return nameStarts[k];
+                }
+            }
+            return namesLength;
+        }
+
+        private boolean topMatches(Name name) {
+            int from = nameStarts[depth - 1];
+            if (from < 0) {
+                // Racine illisible : accepte n'importe quel nom
+                return true;
+            }
+            return Arrays.equals(names, from, nameEnd(depth - 1), name.bytes, 0, name.length);
+        }
+
+        private String nameAt(int d) {
+            int from = nameStarts[d];
+            return from < 0 ? "?" : new String(names, from, nameEnd(d) - from, StandardCharsets.UTF_8);
+        }
+    }
+
+    // ---- Classes de caractères XML 1.0 (5e édition) ----
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    private static boolean isChar(int c) {
+        return (c >= 0x20 && c <= 0xD7FF) || c == 0x9 || c == 0xA || c == 0xD
+                || (c >= 0xE000 && c <= 0xFFFD) || (c >= 0x10000 && c <= 0x10FFFF);
+    }
+
+    private static boolean isNameStart(int c) {
+        if (c < 0x80) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':';
+        }
+        return (c >= 0xC0 && c <= 0xD6) || (c >= 0xD8 && c <= 0xF6) || (c >= 0xF8 && c <= 0x2FF)
+                || (c >= 0x370 && c <= 0x37D) || (c >= 0x37F && c <= 0x1FFF) || (c >= 0x200C && c <= 0x200D)
+                || (c >= 0x2070 && c <= 0x218F) || (c >= 0x2C00 && c <= 0x2FEF) || (c >= 0x3001 && c <= 0xD7FF)
+                || (c >= 0xF900 && c <= 0xFDCF) || (c >= 0xFDF0 && c <= 0xFFFD) || (c >= 0x10000 && c <= 0xEFFFF);
+    }
+
+    private static boolean isAsciiNameChar(byte c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '_' || c == ':' || c == '-' || c == '.';
+    }
+
+    private static boolean isNameChar(int c) {
+        if (c < 0x80) {
+            return isAsciiNameChar((byte) c);
+        }
+        return isNameStart(c) || c == 0xB7 || (c >= 0x300 && c <= 0x36F) || (c >= 0x203F && c <= 0x2040);
+    }
+}
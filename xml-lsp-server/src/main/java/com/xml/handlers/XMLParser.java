@@ -2,8 +2,10 @@ package com.xml.handlers;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.List;
 
 import com.xml.models.ErrorCollector;
+import com.xml.models.FragmentIndex;
 
 /**
  * Analyse SAX en streaming (adapté aux très gros fichiers).
@@ -23,9 +25,16 @@ public class XMLParser {
      * Le fichier n'est JAMAIS chargé entièrement en mémoire.
      */
     public void parse(File xmlFile) {
+        parse(xmlFile, false);
+    }
+
+    /**
+     * @param directIo lecture sans cache de pages (voir {@link DirectIoInputStream})
+     */
+    public void parse(File xmlFile, boolean directIo) {
         
         try {
-            new TrackedStaxHandler(errorCollector).parse(xmlFile);
+            new TrackedStaxHandler(errorCollector).parse(xmlFile, directIo);
             
         } catch (Exception e) {
             errorCollector.addError("Fichier illisible : " + e.getMessage(), 0, "FATAL_PARSE");
@@ -33,6 +42,24 @@ public class XMLParser {
         }
     }
 
+    /**
+     * Comme {@link #parse(File, boolean)}, mais après une erreur fatale l'analyse reprend au début
+     * de l'enregistrement suivant de l'index, au lieu de relire tout le fichier ligne par ligne.
+     *
+     * @param index index des fragments du fichier (null ou vide : analyse ligne par ligne)
+     */
+    public void parse(File xmlFile, boolean directIo, FragmentIndex index) {
+
+        try {
+            RecoveryPoints recovery = index != null ? RecoveryPoints.of(xmlFile, index, List.of(), directIo) : null;
+            new TrackedStaxHandler(errorCollector).parse(xmlFile, directIo, recovery);
+
+        } catch (Exception e) {
+            errorCollector.addError("Fichier illisible : " + e.getMessage(), 0, "FATAL_PARSE");
+
+        }
+    }
+
     /**
      * Parsing STREAMING depuis un InputStream (utile pour PatchedInputStream).
      * Le stream n'est pas chargé entièrement en mémoire.
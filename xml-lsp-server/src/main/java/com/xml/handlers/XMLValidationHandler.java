@@ -124,13 +124,22 @@ public class XMLValidationHandler {
             Diagnostic diagnostic = new Diagnostic();
 
             // Position (LSP utilise des indices 0-based)
-            int line = Math.max(0, error.getLineNumber() - 1);
-            int column = Math.max(0, error.getColumn() - 1);
-
-            Range range = new Range(
-                    new Position(line, column),
-                    new Position(line, column + 30) // Zone de soulignement approximative
-            );
+            Range range;
+            if (error.getStartOffset() >= 0 || error.getPreciseStartColumn() > 1) {
+                // Étendue exacte de la balise fautive
+                range = new Range(
+                        new Position(Math.max(0, error.getPreciseStartLine() - 1), Math.max(0, error.getPreciseStartColumn() - 1)),
+                        new Position(Math.max(0, error.getPreciseEndLine() - 1), Math.max(0, error.getPreciseEndColumn() - 1))
+                );
+            } else {
+                int line = Math.max(0, error.getLineNumber() - 1);
+                int column = Math.max(0, error.getColumn() - 1);
+
+                range = new Range(
+                        new Position(line, column),
+                        new Position(line, column + 30) // Zone de soulignement approximative
+                );
+            }
             diagnostic.setRange(range);
 
             // Sévérité
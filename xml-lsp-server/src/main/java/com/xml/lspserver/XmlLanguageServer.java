@@ -10,8 +10,15 @@ import org.eclipse.lsp4j.InitializeResult;
 import org.eclipse.lsp4j.InitializedParams;
 import org.eclipse.lsp4j.MessageParams;
 import org.eclipse.lsp4j.MessageType;
+import org.eclipse.lsp4j.ProgressParams;
 import org.eclipse.lsp4j.ServerCapabilities;
 import org.eclipse.lsp4j.TextDocumentSyncKind;
+import org.eclipse.lsp4j.WorkDoneProgressBegin;
+import org.eclipse.lsp4j.WorkDoneProgressCancelParams;
+import org.eclipse.lsp4j.WorkDoneProgressCreateParams;
+import org.eclipse.lsp4j.WorkDoneProgressEnd;
+import org.eclipse.lsp4j.WorkDoneProgressReport;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.eclipse.lsp4j.jsonrpc.services.JsonRequest;
 import org.eclipse.lsp4j.jsonrpc.services.JsonSegment;
 import org.eclipse.lsp4j.services.LanguageClient;
@@ -52,9 +59,16 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
     private final com.xml.services.FragmentValidator fragmentValidator = new com.xml.services.FragmentValidator();
     private final com.xml.services.FileSaver fileSaver = new com.xml.services.FileSaver();
     private final LargeXmlValidator largeXmlValidator = new LargeXmlValidator();
+    private com.xml.services.ValidationResultStore resultStore; // Initialisé dans initialize()
     private java.io.File currentXsdFile;
     private java.io.File currentXmlFile;
+    // Empreinte (chemin, taille, date) du fichier décrit par fragmentIndex
+    private volatile String indexedFileStamp;
     
+    // Sauvegarde en cours (une seule à la fois) : jeton de progression -> suivi
+    private final java.util.Map<String, com.xml.services.SaveProgress> activeSaves = new java.util.concurrent.ConcurrentHashMap<>();
+    private final java.util.concurrent.atomic.AtomicInteger saveCounter = new java.util.concurrent.atomic.AtomicInteger();
+
     // Global error tracking for xml/getErrors
     private final List<XMLError> globalErrors = new ArrayList<>();
 
@@ -76,7 +90,18 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
                 System.err.println("Invalid root URI: " + rootUri);
             }
         }
-        this.patchManager = new com.xml.services.PatchManager(rootPath);
+        // Politique fsync du journal configurable : -Dxml.journal.fsync=ALWAYS|BATCH|NEVER
+        com.xml.services.PatchJournal.FsyncPolicy fsyncPolicy = com.xml.services.PatchJournal.FsyncPolicy.BATCH;
+        String fsyncProperty = System.getProperty("xml.journal.fsync");
+        if (fsyncProperty != null) {
+            try {
+                fsyncPolicy = com.xml.services.PatchJournal.FsyncPolicy.valueOf(fsyncProperty.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Politique fsync inconnue: " + fsyncProperty + " (BATCH utilisé)");
+            }
+        }
+        this.patchManager = new com.xml.services.PatchManager(rootPath, fsyncPolicy);
+        this.resultStore = new com.xml.services.ValidationResultStore(rootPath);
         
         ServerCapabilities caps = new ServerCapabilities();
         caps.setTextDocumentSync(TextDocumentSyncKind.Full);
@@ -91,8 +116,18 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
                         "xml.validateFragment",
                         "xml.updateFragment",
                         "xml.saveFile",
+                        "xml.cancelSave",
                         "xml/getDiagnostics",
-                        "xml/applyFragmentPatch")));
+                        "xml/applyFragmentPatch",
+                        "xml/applyPatches",
+                        "xml/moveFragment",
+                        "xml/duplicateFragment",
+                        "xml/deleteFragments",
+                        "xml/createBranch",
+                        "xml/switchBranch",
+                        "xml/listBranches",
+                        "xml/deleteBranch",
+                        "xml/exportBranch")));
 
         InitializeResult result = new InitializeResult();
         result.setCapabilities(caps);
@@ -107,6 +142,9 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
     @Override
     public CompletableFuture<Object> shutdown() {
         logInfo("Arrêt du serveur LSP XML");
+        if (patchManager != null) {
+            patchManager.close();
+        }
         return CompletableFuture.completedFuture(null);
     }
 
@@ -180,15 +218,8 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
                     return response;
                 }
 
-                // 2. Enrichir les erreurs avec les infos de fragment
-                for (com.xml.models.XMLError error : response.errors) {
-                    com.xml.models.FragmentMetadata frag = fragmentIndex.getFragmentForLine(error.getLineNumber());
-                    if (frag != null) {
-                        error.setFragment(frag.getId());
-                        error.setFragmentStartLine(frag.getStartLine());
-                        error.setFragmentEndLine(frag.getEndLine());
-                    }
-                }
+                // 2. Enrichir les erreurs avec les infos de fragment (fichier sur disque : pas de patchs)
+                enrichErrors(response.errors, com.xml.services.OffsetTranslator.identity());
 
                 return response;
             } catch (Exception e) {
@@ -212,18 +243,31 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
                     throw new java.io.FileNotFoundException("Fichier introuvable");
                 }
 
+                // Une sauvegarde sur place interrompue (arrêt brutal) est annulée avant l'indexation
+                if (fileSaver.recoverInterruptedSave(file)) {
+                    logInfo("Sauvegarde interrompue annulée : " + file.getName());
+                }
+
                 String xsdPath = file.getAbsolutePath().replace(".xml", ".xsd");
                 currentXsdFile = new java.io.File(xsdPath);
                 if (!currentXsdFile.exists()) {
                     currentXsdFile = null;
                 }
 
-                com.xml.handlers.StreamingIndexer indexer = new com.xml.handlers.StreamingIndexer(fragmentIndex);
-                indexer.indexFile(file);
+                // Fichier inchangé depuis la dernière indexation (ou la dernière sauvegarde) : index réutilisé
+                String stamp = fileStamp(file);
+                if (!stamp.equals(indexedFileStamp) || fragmentIndex.size() == 0) {
+                    fragmentIndex.clear();
+                    com.xml.handlers.StreamingIndexer indexer = new com.xml.handlers.StreamingIndexer(fragmentIndex);
+                    indexer.indexFile(file);
+                    indexedFileStamp = stamp;
+                    restoreValidation(file);
+                }
 
                 this.currentXmlFile = file;
                 // Initialisation avec FragmentIndex pour supporter updateFragment
                 this.fragmentManager = new com.xml.services.PatchedFragmentManager(file, patchManager, fragmentIndex);
+                patchManager.attachDocument(file, fragmentIndex);
 
                 int count = fragmentIndex.getAllFragments().size();
                 logInfo("Indexation OK : " + count + " fragments");
@@ -297,20 +341,7 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
                 }
 
                 // Créer le patch
-                com.xml.models.PatchType type = com.xml.models.PatchType.REPLACE;
-                if (params.getReplacementText().isEmpty()) {
-                    type = com.xml.models.PatchType.DELETE;
-                } else if (params.getGlobalStartOffset() == params.getGlobalEndOffset()) {
-                    type = com.xml.models.PatchType.INSERT;
-                }
-
-                com.xml.models.Patch patch = new com.xml.models.Patch(
-                    params.getGlobalStartOffset(),
-                    params.getGlobalEndOffset(),
-                    params.getReplacementText(),
-                    type,
-                    params.getFragmentId()
-                );
+                com.xml.models.Patch patch = toPatch(params);
 
                 // Ajouter au gestionnaire (gère conflits, fusion, persistence)
                 patchManager.addPatch(patch);
@@ -325,6 +356,244 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
         });
     }
 
+    /**
+     * xml/applyPatches : applique un lot ordonné de patchs en une seule transaction.
+     * Les conflits sont résolus une seule fois et le lot est journalisé en un seul enregistrement.
+     * Si un patch est invalide, aucun n'est appliqué.
+     */
+    @JsonRequest("applyPatches")
+    public CompletableFuture<String> applyPatches(com.xml.models.ApplyPatchesParams params) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                if (patchManager == null) {
+                    return "ERROR:PatchManager non initialisé";
+                }
+                if (params == null || params.getPatches() == null || params.getPatches().isEmpty()) {
+                    return "OK:" + patchManager.getPatchCount();
+                }
+
+                // Valider tout le lot avant d'appliquer quoi que ce soit
+                // Offsets du contenu XML : taille décompressée pour un original gzip
+                long fileLength = currentXmlFile != null
+                        ? com.xml.services.SourceFiles.length(currentXmlFile)
+                        : Long.MAX_VALUE;
+                List<com.xml.models.Patch> batch = new ArrayList<>(params.getPatches().size());
+                for (int i = 0; i < params.getPatches().size(); i++) {
+                    com.xml.models.FragmentPatchParams p = params.getPatches().get(i);
+                    if (p == null || p.getReplacementText() == null) {
+                        return "ERROR:Patch #" + i + " incomplet";
+                    }
+                    if (p.getGlobalEndOffset() > fileLength) {
+                        return "ERROR:Patch #" + i + " dépasse la fin du fichier";
+                    }
+                    try {
+                        batch.add(toPatch(p));
+                    } catch (IllegalArgumentException e) {
+                        return "ERROR:Patch #" + i + " invalide : " + e.getMessage();
+                    }
+                }
+
+                int retained = patchManager.addPatches(batch);
+
+                int patchCount = patchManager.getPatchCount();
+                logInfo("Lot de patchs appliqué : " + batch.size() + " reçus, " + retained + " retenus");
+                return "OK:" + patchCount;
+            } catch (Exception e) {
+                logError("Erreur applyPatches : " + e.getMessage());
+                return "ERROR:" + e.getMessage();
+            }
+        });
+    }
+
+    /**
+     * xml/moveFragment : déplace un fragment avant ou après un autre. Le contenu n'est ni lu ni
+     * copié : la destination référence la plage d'origine du fichier.
+     */
+    @JsonRequest("moveFragment")
+    public CompletableFuture<String> moveFragment(com.xml.models.MoveFragmentParams params) {
+        return structuralEdit("moveFragment", () -> fragmentManager.moveFragment(
+                params.getFragmentId(), params.getTargetFragmentId(), params.isAfter()));
+    }
+
+    /**
+     * xml/duplicateFragment : insère une copie du fragment juste après lui, sans copier son contenu.
+     */
+    @JsonRequest("duplicateFragment")
+    public CompletableFuture<String> duplicateFragment(String fragmentId) {
+        return structuralEdit("duplicateFragment", () -> fragmentManager.duplicateFragment(fragmentId));
+    }
+
+    /**
+     * xml/deleteFragments : supprime un ensemble de fragments en un seul lot.
+     */
+    @JsonRequest("deleteFragments")
+    public CompletableFuture<String> deleteFragments(com.xml.models.DeleteFragmentsParams params) {
+        return structuralEdit("deleteFragments", () -> {
+            if (params == null || params.getFragmentIds() == null || params.getFragmentIds().isEmpty()) {
+                return;
+            }
+            fragmentManager.deleteFragments(params.getFragmentIds());
+        });
+    }
+
+    private CompletableFuture<String> structuralEdit(String name, Runnable edit) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                if (fragmentManager == null) {
+                    return "ERROR:Aucun fichier indexé";
+                }
+                edit.run();
+
+                int patchCount = fragmentManager.getUnsavedPatchCount();
+                logInfo("Édition structurelle appliquée : " + name);
+                return "OK:" + patchCount;
+            } catch (Exception e) {
+                logError("Erreur " + name + " : " + e.getMessage());
+                return "ERROR:" + e.getMessage();
+            }
+        });
+    }
+
+    /**
+     * xml/createBranch : crée une branche de patchs à partir de l'état d'une autre, sans copie.
+     */
+    @JsonRequest("createBranch")
+    public CompletableFuture<String> createBranch(com.xml.models.CreateBranchParams params) {
+        return branchCommand("createBranch", () -> patchManager.createBranch(params.getName(), params.getFrom()));
+    }
+
+    /**
+     * xml/switchBranch : active une branche ; les éditions suivantes s'y appliquent.
+     */
+    @JsonRequest("switchBranch")
+    public CompletableFuture<String> switchBranch(String name) {
+        return branchCommand("switchBranch", () -> {
+            patchManager.switchBranch(name);
+            if (fragmentManager != null) {
+                fragmentManager.clearCache();
+            }
+        });
+    }
+
+    /**
+     * xml/deleteBranch : supprime une branche inactive et son journal.
+     */
+    @JsonRequest("deleteBranch")
+    public CompletableFuture<String> deleteBranch(String name) {
+        return branchCommand("deleteBranch", () -> patchManager.deleteBranch(name));
+    }
+
+    /**
+     * xml/listBranches : noms des branches, la branche active en premier.
+     */
+    @JsonRequest("listBranches")
+    public CompletableFuture<List<String>> listBranches() {
+        return CompletableFuture.supplyAsync(() -> {
+            List<String> names = new ArrayList<>();
+            if (patchManager == null) {
+                return names;
+            }
+            String active = patchManager.getActiveBranch();
+            names.add(active);
+            for (String name : patchManager.getBranchNames()) {
+                if (!name.equals(active)) {
+                    names.add(name);
+                }
+            }
+            return names;
+        });
+    }
+
+    /**
+     * xml/exportBranch : écrit le document d'une branche dans un autre fichier. Les patchs de la
+     * branche sont conservés et le fichier original n'est pas modifié.
+     */
+    @JsonRequest("exportBranch")
+    public CompletableFuture<String> exportBranch(com.xml.models.ExportBranchParams params) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                if (patchManager == null || currentXmlFile == null) {
+                    return "ERROR:Aucun fichier indexé";
+                }
+                String branch = params.getBranch() != null ? params.getBranch() : patchManager.getActiveBranch();
+                java.io.File outputFile = new java.io.File(new java.net.URI(params.getOutputUri()));
+                fileSaver.exportBranch(currentXmlFile, outputFile, patchManager, branch,
+                        new com.xml.services.SaveProgress());
+                logInfo("Branche " + branch + " exportée : " + outputFile.getName());
+                return "OK:" + outputFile.getName();
+            } catch (Exception e) {
+                logError("Erreur exportBranch : " + e.getMessage());
+                return "ERROR:" + e.getMessage();
+            }
+        });
+    }
+
+    private CompletableFuture<String> branchCommand(String name, Runnable command) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                if (patchManager == null) {
+                    return "ERROR:Aucun fichier indexé";
+                }
+                command.run();
+                logInfo("Branches : " + name + " (active : " + patchManager.getActiveBranch() + ")");
+                return "OK:" + patchManager.getActiveBranch();
+            } catch (Exception e) {
+                logError("Erreur " + name + " : " + e.getMessage());
+                return "ERROR:" + e.getMessage();
+            }
+        });
+    }
+
+    /**
+     * Recharge les résultats de validation enregistrés pour ce fichier : les erreurs sont servies
+     * tout de suite par xml/getErrors si le fichier et son schéma n'ont pas changé, et les
+     * résultats par enregistrement évitent de revalider ce qui n'a pas bougé.
+     */
+    private void restoreValidation(java.io.File file) {
+        if (resultStore == null) {
+            return;
+        }
+        try {
+            ValidationResult stored = resultStore.load(file, schemaFingerprint(currentXsdFile), fragmentIndex,
+                    largeXmlValidator.getResultCache());
+            if (stored != null && patchManager.getPatchCount() == 0) {
+                enrichErrors(stored.getErrors(), com.xml.services.OffsetTranslator.identity());
+                synchronized (globalErrors) {
+                    globalErrors.clear();
+                    globalErrors.addAll(stored.getErrors());
+                }
+                logInfo("Résultats de validation restaurés : " + stored.getErrors().size() + " erreurs");
+            }
+        } catch (Exception e) {
+            logError("Résultats de validation non restaurés : " + e.getMessage());
+        }
+    }
+
+    private static String schemaFingerprint(java.io.File xsdFile) throws org.xml.sax.SAXException {
+        return xsdFile != null ? com.xml.handlers.SchemaCache.shared().getFingerprint(xsdFile) : "";
+    }
+
+    private static String fileStamp(java.io.File file) {
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    private com.xml.models.Patch toPatch(com.xml.models.FragmentPatchParams params) {
+        com.xml.models.PatchType type = com.xml.models.PatchType.REPLACE;
+        if (params.getReplacementText().isEmpty()) {
+            type = com.xml.models.PatchType.DELETE;
+        } else if (params.getGlobalStartOffset() == params.getGlobalEndOffset()) {
+            type = com.xml.models.PatchType.INSERT;
+        }
+
+        return new com.xml.models.Patch(
+            params.getGlobalStartOffset(),
+            params.getGlobalEndOffset(),
+            params.getReplacementText(),
+            type,
+            params.getFragmentId()
+        );
+    }
+
     private CompletableFuture<String> applyPatchInternal(String fragmentId, String newContent) {
         return CompletableFuture.supplyAsync(() -> {
             try {
@@ -344,9 +613,25 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
         });
     }
 
+    /**
+     * xml/saveFile : sauvegarde en arrière-plan sur un snapshot figé des patchs.
+     * L'avancement (bytes écrits) est publié via $/progress ; la sauvegarde s'annule par
+     * window/workDoneProgress/cancel, $/cancelRequest ou xml/cancelSave, sans toucher au fichier original.
+     * Les patchs appliqués pendant l'écriture sont conservés pour la sauvegarde suivante.
+     */
     @JsonRequest("saveFile")
     public CompletableFuture<String> saveFile(String fileUriOrNull) {
-        return CompletableFuture.supplyAsync(() -> {
+        String token = "xml-save-" + saveCounter.incrementAndGet();
+        java.util.concurrent.atomic.AtomicInteger lastPercent = new java.util.concurrent.atomic.AtomicInteger(-1);
+        com.xml.services.SaveProgress progress = new com.xml.services.SaveProgress((written, total) -> {
+            // Une notification par point de pourcentage au plus
+            int percent = total > 0 ? (int) Math.min(100, written * 100 / total) : 100;
+            if (lastPercent.getAndSet(percent) != percent) {
+                reportProgress(token, percent, written + " / " + total + " bytes");
+            }
+        });
+
+        CompletableFuture<String> result = CompletableFuture.supplyAsync(() -> {
             try {
                 if (fragmentManager == null || currentXmlFile == null) {
                     return "ERROR:Aucun fichier indexé";
@@ -362,15 +647,94 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
                     outputFile = new java.io.File(new java.net.URI(fileUriOrNull));
                 }
 
-                fileSaver.saveWithPatches(currentXmlFile, outputFile, fragmentIndex, patchManager);
+                synchronized (activeSaves) {
+                    if (!activeSaves.isEmpty()) {
+                        return "ERROR:Une sauvegarde est déjà en cours";
+                    }
+                    activeSaves.put(token, progress);
+                }
+                try {
+                    beginProgress(token, "Sauvegarde de " + outputFile.getName());
+                    fileSaver.saveWithPatches(currentXmlFile, outputFile, fragmentIndex, patchManager, progress);
+                } catch (java.util.concurrent.CancellationException e) {
+                    endProgress(token, "Sauvegarde annulée");
+                    logInfo("Sauvegarde annulée : fichier inchangé");
+                    return "ERROR:Sauvegarde annulée";
+                } finally {
+                    activeSaves.remove(token);
+                }
 
+                if (outputFile.getAbsoluteFile().equals(currentXmlFile.getAbsoluteFile())) {
+                    // L'index a été mis à jour par la sauvegarde : une réouverture n'a rien à re-scanner
+                    indexedFileStamp = fileStamp(currentXmlFile);
+                    fragmentManager.clearCache();
+                }
+
+                endProgress(token, patchCount + " patchs appliqués");
                 logInfo("Sauvegarde OK : " + patchCount + " patchs appliqués");
                 return "OK:" + patchCount + " patchs appliqués";
             } catch (Exception e) {
+                endProgress(token, "Erreur : " + e.getMessage());
                 logError("Erreur sauvegarde : " + e.getMessage());
                 return "ERROR:" + e.getMessage();
             }
         });
+
+        // $/cancelRequest annule le future renvoyé : propager à l'écriture en cours
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) {
+                progress.cancel();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * xml/cancelSave : annule la sauvegarde en cours (pour les clients sans interface de progression).
+     */
+    @JsonRequest("cancelSave")
+    public CompletableFuture<String> cancelSave() {
+        if (activeSaves.isEmpty()) {
+            return CompletableFuture.completedFuture("OK:Aucune sauvegarde en cours");
+        }
+        activeSaves.values().forEach(com.xml.services.SaveProgress::cancel);
+        return CompletableFuture.completedFuture("OK:Annulation demandée");
+    }
+
+    @Override
+    public void cancelProgress(WorkDoneProgressCancelParams params) {
+        String token = params.getToken().isLeft()
+                ? params.getToken().getLeft()
+                : String.valueOf(params.getToken().getRight());
+        com.xml.services.SaveProgress progress = activeSaves.get(token);
+        if (progress != null) {
+            progress.cancel();
+        }
+    }
+
+    private void beginProgress(String token, String title) {
+        if (client == null) return;
+        client.createProgress(new WorkDoneProgressCreateParams(Either.forLeft(token)));
+        WorkDoneProgressBegin begin = new WorkDoneProgressBegin();
+        begin.setTitle(title);
+        begin.setCancellable(true);
+        begin.setPercentage(0);
+        client.notifyProgress(new ProgressParams(Either.forLeft(token), Either.forLeft(begin)));
+    }
+
+    private void reportProgress(String token, int percent, String message) {
+        if (client == null) return;
+        WorkDoneProgressReport report = new WorkDoneProgressReport();
+        report.setPercentage(percent);
+        report.setMessage(message);
+        client.notifyProgress(new ProgressParams(Either.forLeft(token), Either.forLeft(report)));
+    }
+
+    private void endProgress(String token, String message) {
+        if (client == null) return;
+        WorkDoneProgressEnd end = new WorkDoneProgressEnd();
+        end.setMessage(message);
+        client.notifyProgress(new ProgressParams(Either.forLeft(token), Either.forLeft(end)));
     }
 
     // === New Custom Requests for Streaming Architecture ===
@@ -390,8 +754,25 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
                     new java.io.File(new java.net.URI(params.getXsdPath())) : null;
                 
                 ValidationResult result;
+                boolean usedPatches = params.isApplyPatches() && patchManager != null && patchManager.getPatchCount() > 0;
+                String branch = params.isApplyPatches() && patchManager != null ? params.getBranch() : null;
                 
-                if (params.isApplyPatches() && patchManager != null && patchManager.getPatchCount() > 0) {
+                if (branch != null) {
+                    // Branche désignée : validée sans changer la branche active
+                    usedPatches = true;
+                    result = largeXmlValidator.validateBranch(xmlFile, xsdFile, patchManager, branch);
+                    logInfo("Validation de la branche " + branch + " : " +
+                           (result.isSuccess() ? "OK" : result.getErrors().size() + " erreurs"));
+                } else if (xmlFile.equals(currentXmlFile) && fileStamp(xmlFile).equals(indexedFileStamp)) {
+                    // Fichier ouvert et index à jour : seuls les enregistrements modifiés depuis la
+                    // dernière validation sont revalidés (sur tous les cœurs si demandé). Sans
+                    // schéma, l'index sert à reprendre l'analyse après une erreur fatale.
+                    int workers = params.isParallel() ? Runtime.getRuntime().availableProcessors() : 1;
+                    result = largeXmlValidator.validateIncremental(xmlFile, xsdFile, fragmentIndex,
+                            usedPatches ? patchManager : null, workers);
+                    logInfo("Validation incrémentale" + (usedPatches ? " avec " + patchManager.getPatchCount() + " patches" : "")
+                            + " : " + (result.isSuccess() ? "OK" : result.getErrors().size() + " erreurs"));
+                } else if (usedPatches) {
                     // Validation avec patches (streaming)
                     result = largeXmlValidator.validateWithPatches(xmlFile, xsdFile, patchManager);
                     logInfo("Validation avec " + patchManager.getPatchCount() + " patches : " + 
@@ -402,21 +783,31 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
                     logInfo("Validation normale : " + (result.isSuccess() ? "OK" : result.getErrors().size() + " erreurs"));
                 }
                 
-                // Enrich errors with fragment information before storing
-                for (XMLError error : result.getErrors()) {
-                    com.xml.models.FragmentMetadata frag = fragmentIndex.getFragmentForLine(error.getLineNumber());
-                    if (frag != null) {
-                        error.setFragment(frag.getId());
-                        error.setFragmentStartLine(frag.getStartLine());
-                        error.setFragmentEndLine(frag.getEndLine());
-                    }
-                }
+                // Enrich errors with fragment information before storing.
+                // Avec patches, les lignes rapportées sont celles du flux patché.
+                com.xml.services.OffsetTranslator translator = branch != null
+                        ? patchManager.getOffsetTranslator(branch)
+                        : usedPatches
+                        ? patchManager.getOffsetTranslator()
+                        : com.xml.services.OffsetTranslator.identity();
+                enrichErrors(result.getErrors(), translator);
                 
                 // Stocker les erreurs globalement
                 synchronized (globalErrors) {
                     globalErrors.clear();
                     globalErrors.addAll(result.getErrors());
                 }
+
+                // Résultats persistés pour la prochaine ouverture du fichier
+                if (resultStore != null && branch == null && xmlFile.equals(currentXmlFile)
+                        && fileStamp(xmlFile).equals(indexedFileStamp)) {
+                    try {
+                        resultStore.save(xmlFile, schemaFingerprint(xsdFile), usedPatches ? null : result,
+                                fragmentIndex, largeXmlValidator.getResultCache());
+                    } catch (Exception e) {
+                        logError("Résultats de validation non enregistrés : " + e.getMessage());
+                    }
+                }
                 
                 return result;
                 
@@ -429,6 +820,25 @@ public class XmlLanguageServer implements LanguageServer, LanguageClientAware {
         });
     }
 
+    /**
+     * Associe chaque erreur à son fragment. Les lignes des erreurs sont dans le repère du
+     * document validé (logique) ; le traducteur les ramène dans le repère de l'index (original)
+     * et exprime en retour les bornes du fragment dans le repère logique.
+     */
+    private void enrichErrors(List<XMLError> errors, com.xml.services.OffsetTranslator translator) {
+        for (XMLError error : errors) {
+            int originalLine = translator.toOriginalLine(error.getLineNumber());
+            error.setOriginalLineNumber(originalLine);
+
+            com.xml.models.FragmentMetadata frag = fragmentIndex.getFragmentForLine(originalLine);
+            if (frag != null) {
+                error.setFragment(frag.getId());
+                error.setFragmentStartLine(translator.toLogicalLine(frag.getStartLine()));
+                error.setFragmentEndLine(translator.toLogicalLine(frag.getEndLine()));
+            }
+        }
+    }
+
     /**
      * xml/getErrors : Récupère toutes les erreurs détectées lors de la dernière validation.
      * Les erreurs incluent les offsets globaux et les infos de fragments.
@@ -35,5 +35,13 @@ public class XmlTextDocumentService implements TextDocumentService {
     @Override
     public void didSave(DidSaveTextDocumentParams params) {
         server.logInfo("Document sauvegardé : " + params.getTextDocument().getUri());
+        String uri = params.getTextDocument().getUri();
+        if (uri.endsWith(".xsd")) {
+            try {
+                com.xml.handlers.SchemaCache.shared().invalidate(new java.io.File(new java.net.URI(uri)));
+            } catch (Exception e) {
+                server.logError("URI de schéma invalide : " + uri);
+            }
+        }
     }
 }
@@ -3,6 +3,9 @@ package com.xml.lspserver;
 import org.eclipse.lsp4j.services.WorkspaceService;
 import org.eclipse.lsp4j.DidChangeConfigurationParams;
 import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.FileEvent;
+
+import com.xml.handlers.SchemaCache;
 
 /**
  * Service de gestion du workspace pour le serveur LSP
@@ -23,5 +26,13 @@ public class XmlWorkspaceService implements WorkspaceService {
     @Override
     public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
         server.logInfo("Fichiers surveillés modifiés");
+        // Un XSD modifié invalide les schémas compilés qui l'importent
+        for (FileEvent event : params.getChanges()) {
+            try {
+                SchemaCache.shared().invalidate(new java.io.File(new java.net.URI(event.getUri())));
+            } catch (Exception e) {
+                server.logError("URI de fichier surveillé invalide : " + event.getUri());
+            }
+        }
     }
 }
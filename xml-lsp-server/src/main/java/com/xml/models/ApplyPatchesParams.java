@@ -0,0 +1,26 @@
+package com.xml.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Paramètres pour la commande xml/applyPatches.
+ * Lot ordonné de patchs granulaires appliqué de façon atomique : tout ou rien.
+ */
+public class ApplyPatchesParams {
+    private List<FragmentPatchParams> patches = new ArrayList<>();
+
+    public ApplyPatchesParams() {}
+
+    public ApplyPatchesParams(List<FragmentPatchParams> patches) {
+        this.patches = patches;
+    }
+
+    public List<FragmentPatchParams> getPatches() {
+        return patches;
+    }
+
+    public void setPatches(List<FragmentPatchParams> patches) {
+        this.patches = patches;
+    }
+}
@@ -0,0 +1,33 @@
+package com.xml.models;
+
+/**
+ * Paramètres pour la commande xml/createBranch.
+ * La nouvelle branche part de l'état courant de {@code from} (la branche active si absent).
+ */
+public class CreateBranchParams {
+    private String name;
+    private String from;
+
+    public CreateBranchParams() {}
+
+    public CreateBranchParams(String name, String from) {
+        this.name = name;
+        this.from = from;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public void setFrom(String from) {
+        this.from = from;
+    }
+}
@@ -0,0 +1,26 @@
+package com.xml.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Paramètres pour la commande xml/deleteFragments.
+ * Fragments supprimés en une seule transaction : tout ou rien.
+ */
+public class DeleteFragmentsParams {
+    private List<String> fragmentIds = new ArrayList<>();
+
+    public DeleteFragmentsParams() {}
+
+    public DeleteFragmentsParams(List<String> fragmentIds) {
+        this.fragmentIds = fragmentIds;
+    }
+
+    public List<String> getFragmentIds() {
+        return fragmentIds;
+    }
+
+    public void setFragmentIds(List<String> fragmentIds) {
+        this.fragmentIds = fragmentIds;
+    }
+}
@@ -40,7 +40,11 @@ public class ErrorCollector {
         this.maxErrors = maxErrors;
     }
 
-    public void addError(String message, int lineNumber, String type) {
+    /**
+     * @return l'erreur ajoutée (pour y préciser sa position), ou null si elle est en doublon ou
+     *         au-delà de la limite
+     */
+    public XMLError addError(String message, int lineNumber, String type) {
         // Check if we've reached the error limit
         if (errors.size() >= maxErrors) {
             if (!limitReached) {
@@ -53,7 +57,7 @@ public class ErrorCollector {
                 );
                 errors.add(limitError);
             }
-            return; // Stop adding more errors
+            return null; // Stop adding more errors
         }
         
         // Créer une signature unique pour cette erreur
@@ -62,14 +66,14 @@ public class ErrorCollector {
         // Vérifier si cette erreur existe déjà
         if (errorSignatures.contains(signature)) {
             // Erreur en doublon, ignorer
-            return;
+            return null;
         }
         
         // Ajouter l'erreur
         XMLError err = new XMLError(message, lineNumber, type);
         errors.add(err);
         errorSignatures.add(signature);
-
+        return err;
     }
 
     public List<XMLError> getErrors() {
@@ -0,0 +1,33 @@
+package com.xml.models;
+
+/**
+ * Paramètres pour la commande xml/exportBranch.
+ * Le document de la branche est écrit dans {@code outputUri} ; le fichier original n'est pas modifié.
+ */
+public class ExportBranchParams {
+    private String branch;
+    private String outputUri;
+
+    public ExportBranchParams() {}
+
+    public ExportBranchParams(String branch, String outputUri) {
+        this.branch = branch;
+        this.outputUri = outputUri;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public void setBranch(String branch) {
+        this.branch = branch;
+    }
+
+    public String getOutputUri() {
+        return outputUri;
+    }
+
+    public void setOutputUri(String outputUri) {
+        this.outputUri = outputUri;
+    }
+}
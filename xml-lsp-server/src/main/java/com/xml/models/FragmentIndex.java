@@ -71,10 +71,55 @@ public class FragmentIndex {
         return null;
     }
 
+    /**
+     * Trouve le dernier fragment qui commence au plus tard à l'offset donné
+     * (le fragment contenant l'offset, ou le précédent si l'offset tombe entre deux fragments).
+     */
+    public FragmentMetadata findFragmentAtOrBefore(long offset) {
+        synchronized (fragments) {
+            int low = 0;
+            int high = fragments.size() - 1;
+            FragmentMetadata result = null;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                FragmentMetadata midVal = fragments.get(mid);
+
+                if (midVal.getStartOffset() <= offset) {
+                    result = midVal;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return result;
+        }
+    }
+
     public FragmentMetadata getFragmentForLine(int line) {
         synchronized (fragments) {
-            // Recherche binaire possible aussi
-            for (FragmentMetadata frag : fragments) {
+            // Recherche binaire : les fragments sont triés par ligne de début.
+            // Plusieurs fragments peuvent partager une ligne : on garde le premier qui la contient.
+            int low = 0;
+            int high = fragments.size() - 1;
+            int candidate = -1;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (fragments.get(mid).getStartLine() <= line) {
+                    candidate = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            // Remonter vers le premier fragment démarrant sur la même ligne que le candidat
+            while (candidate > 0 && fragments.get(candidate - 1).getEndLine() >= line) {
+                candidate--;
+            }
+            if (candidate >= 0) {
+                FragmentMetadata frag = fragments.get(candidate);
                 if (line >= frag.getStartLine() && line <= frag.getEndLine()) {
                     return frag;
                 }
@@ -105,6 +150,22 @@ public class FragmentIndex {
         nextStringId = 0;
     }
 
+    /**
+     * Remplace le contenu de l'index par celui d'un autre (fragments et pool de chaînes).
+     * Permet de reconstruire un index à part puis de le publier sur l'instance partagée.
+     */
+    public void replaceWith(FragmentIndex other) {
+        synchronized (fragments) {
+            fragments.clear();
+            fragments.addAll(other.getAllFragments());
+            stringToId.clear();
+            idToString.clear();
+            stringToId.putAll(other.stringToId);
+            idToString.putAll(other.idToString);
+            nextStringId = other.nextStringId;
+        }
+    }
+
     public int size() {
         return fragments.size();
     }
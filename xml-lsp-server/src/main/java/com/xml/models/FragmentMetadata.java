@@ -71,4 +71,15 @@ public class FragmentMetadata {
     public long getLength() {
         return endOffset - startOffset;
     }
+
+    /**
+     * Copie déplacée du fragment (contenu inchangé après une sauvegarde) :
+     * même structure et même statut, coordonnées décalées et nouvel ID.
+     */
+    public FragmentMetadata shifted(int newId, long offsetDelta, int lineDelta, int newTagId) {
+        FragmentMetadata copy = new FragmentMetadata(newId, startOffset + offsetDelta, endOffset + offsetDelta,
+                startLine + lineDelta, endLine + lineDelta, parentIndex, newTagId, depth, flags);
+        copy.status = status;
+        return copy;
+    }
 }
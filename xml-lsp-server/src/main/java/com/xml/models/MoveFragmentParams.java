@@ -0,0 +1,43 @@
+package com.xml.models;
+
+/**
+ * Paramètres pour la commande xml/moveFragment.
+ * Le fragment est placé avant ou après le fragment cible, sans que son contenu transite par le client.
+ */
+public class MoveFragmentParams {
+    private String fragmentId;
+    private String targetFragmentId;
+    private boolean after;
+
+    public MoveFragmentParams() {}
+
+    public MoveFragmentParams(String fragmentId, String targetFragmentId, boolean after) {
+        this.fragmentId = fragmentId;
+        this.targetFragmentId = targetFragmentId;
+        this.after = after;
+    }
+
+    public String getFragmentId() {
+        return fragmentId;
+    }
+
+    public void setFragmentId(String fragmentId) {
+        this.fragmentId = fragmentId;
+    }
+
+    public String getTargetFragmentId() {
+        return targetFragmentId;
+    }
+
+    public void setTargetFragmentId(String targetFragmentId) {
+        this.targetFragmentId = targetFragmentId;
+    }
+
+    public boolean isAfter() {
+        return after;
+    }
+
+    public void setAfter(boolean after) {
+        this.after = after;
+    }
+}
@@ -1,8 +1,18 @@
 package com.xml.models;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Objects;
 
+import com.xml.services.SourceFiles;
+
 /**
  * Représente une modification atomique sur le fichier XML.
  * 
@@ -20,6 +30,14 @@ import java.util.Objects;
  *       (= originalEndOffset - originalStartOffset)</li>
  *   <li><b>newLength</b>: Nombre de bytes UTF-8 du texte de remplacement</li>
  * </ul>
+ *
+ * <h2>Payload:</h2>
+ * Le texte de remplacement est stocké une seule fois, encodé en UTF-8. Un gros payload peut
+ * être déporté dans un blob sur disque ({@link #withBlob(Path, String)}) : le patch ne garde
+ * alors que la référence, et le contenu est relu en streaming via {@link #openReplacement()}.
+ * Enfin, le payload peut désigner une plage d'un fichier source existant
+ * ({@link #fromSource(long, long, Path, long, int, PatchType, String)}) : déplacer ou dupliquer un
+ * enregistrement ne copie alors aucun byte, la plage est relue au moment de l'écriture.
  */
 public class Patch implements Comparable<Patch> {
     
@@ -27,7 +45,12 @@ public class Patch implements Comparable<Patch> {
     private final long originalStartOffset;
     private final long originalEndOffset;
     
-    private final String replacementText;
+    // Payload UTF-8 : en mémoire, dans un blob adressé par contenu, ou plage d'un fichier source
+    private final byte[] replacementBytes;
+    private final Path blobFile;
+    private final String blobHash;
+    private final Path sourceFile;
+    private final long sourceOffset;
     private final PatchType type;
     private final String fragmentId;
     
@@ -45,6 +68,47 @@ public class Patch implements Comparable<Patch> {
      * @param fragmentId ID du fragment concerné (peut être null)
      */
     public Patch(long originalStartOffset, long originalEndOffset, String replacementText, PatchType type, String fragmentId) {
+        this(originalStartOffset, originalEndOffset,
+                replacementText != null ? replacementText.getBytes(StandardCharsets.UTF_8) : new byte[0],
+                type, fragmentId);
+    }
+
+    /**
+     * Constructeur à partir d'un payload déjà encodé en UTF-8 (journal, sauvegarde).
+     * Le tableau est conservé tel quel : l'appelant ne doit plus le modifier.
+     */
+    public Patch(long originalStartOffset, long originalEndOffset, byte[] replacementBytes, PatchType type, String fragmentId) {
+        this(originalStartOffset, originalEndOffset,
+                replacementBytes != null ? replacementBytes : new byte[0], null, null, null, 0,
+                replacementBytes != null ? replacementBytes.length : 0, type, fragmentId);
+    }
+
+    /**
+     * Crée un patch dont le payload est déjà stocké dans un blob (rechargement du journal).
+     *
+     * @param newLength Taille du payload en bytes
+     */
+    public static Patch spilled(long originalStartOffset, long originalEndOffset, Path blobFile, String blobHash,
+                                int newLength, PatchType type, String fragmentId) {
+        return new Patch(originalStartOffset, originalEndOffset, null,
+                Objects.requireNonNull(blobFile), Objects.requireNonNull(blobHash), null, 0, newLength, type, fragmentId);
+    }
+
+    /**
+     * Crée un patch dont le payload est la plage [sourceOffset, sourceOffset + length) d'un fichier
+     * (contenu décompressé pour un fichier gzip). Aucun byte n'est lu à la création.
+     */
+    public static Patch fromSource(long originalStartOffset, long originalEndOffset, Path sourceFile,
+                                   long sourceOffset, int length, PatchType type, String fragmentId) {
+        if (sourceOffset < 0 || length < 0) {
+            throw new IllegalArgumentException("Plage source invalide: " + sourceOffset + " +" + length);
+        }
+        return new Patch(originalStartOffset, originalEndOffset, null, null, null,
+                Objects.requireNonNull(sourceFile), sourceOffset, length, type, fragmentId);
+    }
+
+    private Patch(long originalStartOffset, long originalEndOffset, byte[] replacementBytes, Path blobFile,
+                  String blobHash, Path sourceFile, long sourceOffset, int newLength, PatchType type, String fragmentId) {
         // Validation: pour INSERT, start == end est valide
         if (originalStartOffset < 0) {
             throw new IllegalArgumentException("originalStartOffset doit être >= 0: " + originalStartOffset);
@@ -55,15 +119,34 @@ public class Patch implements Comparable<Patch> {
         
         this.originalStartOffset = originalStartOffset;
         this.originalEndOffset = originalEndOffset;
-        this.replacementText = replacementText != null ? replacementText : "";
+        this.replacementBytes = replacementBytes;
+        this.blobFile = blobFile;
+        this.blobHash = blobHash;
+        this.sourceFile = sourceFile;
+        this.sourceOffset = sourceOffset;
         this.type = type;
         this.fragmentId = fragmentId;
         
         // Calcul des longueurs
         this.originalLength = (int)(originalEndOffset - originalStartOffset);
-        this.newLength = this.replacementText.getBytes(StandardCharsets.UTF_8).length;
+        this.newLength = newLength;
     }
-    
+
+    /**
+     * @return un patch équivalent dont le payload est lu depuis le blob donné
+     */
+    public Patch withBlob(Path blobFile, String blobHash) {
+        return spilled(originalStartOffset, originalEndOffset, blobFile, blobHash, newLength, type, fragmentId);
+    }
+
+    /**
+     * @return le même payload appliqué à une autre plage (report sur un fichier sauvegardé)
+     */
+    public Patch withRange(long originalStartOffset, long originalEndOffset, String fragmentId) {
+        return new Patch(originalStartOffset, originalEndOffset, replacementBytes, blobFile, blobHash,
+                sourceFile, sourceOffset, newLength, type, fragmentId);
+    }
+
     // === OFFSETS ORIGINAUX (pour FileSaver) ===
     
     /**
@@ -123,8 +206,92 @@ public class Patch implements Comparable<Patch> {
 
     // === ACCESSEURS STANDARD ===
     
+    // === PAYLOAD ===
+
+    /**
+     * Décode le texte de remplacement. Pour un payload déporté, le blob est lu en entier :
+     * préférer {@link #openReplacement()} dans les chemins de streaming.
+     */
     public String getReplacementText() {
-        return replacementText;
+        return new String(getReplacementBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Texte de remplacement encodé en UTF-8. Le tableau en mémoire est partagé :
+     *         les appelants ne doivent pas le modifier. Pour un payload déporté ou une plage
+     *         source, le contenu est relu.
+     */
+    public byte[] getReplacementBytes() {
+        if (replacementBytes != null) {
+            return replacementBytes;
+        }
+        if (sourceFile != null) {
+            try (InputStream in = openReplacement()) {
+                return in.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Plage source illisible: " + sourceFile, e);
+            }
+        }
+        try {
+            return Files.readAllBytes(blobFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Blob de patch illisible: " + blobFile, e);
+        }
+    }
+
+    /**
+     * Ouvre le payload en lecture séquentielle, sans le charger en mémoire s'il est déporté.
+     */
+    public InputStream openReplacement() throws IOException {
+        if (replacementBytes != null) {
+            return new ByteArrayInputStream(replacementBytes);
+        }
+        if (sourceFile != null) {
+            return new SourceRangeInputStream(SourceFiles.openAt(sourceFile.toFile(), sourceOffset), newLength);
+        }
+        return Files.newInputStream(blobFile);
+    }
+
+    /**
+     * @return true si le payload est stocké dans un blob plutôt qu'en mémoire
+     */
+    public boolean isSpilled() {
+        return blobFile != null;
+    }
+
+    /**
+     * @return true si le payload est une plage d'un fichier source (voir {@link #fromSource})
+     */
+    public boolean isSourceRange() {
+        return sourceFile != null;
+    }
+
+    /**
+     * @return Fichier source du payload (null sauf pour une plage source)
+     */
+    public Path getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * @return Offset du payload dans le fichier source
+     */
+    public long getSourceOffset() {
+        return sourceOffset;
+    }
+
+    /**
+     * @return Fichier du blob (null si le payload est en mémoire)
+     */
+    public Path getBlobFile() {
+        return blobFile;
+    }
+
+    /**
+     * @return Empreinte SHA-256 du blob (null si le payload est en mémoire)
+     */
+    public String getBlobHash() {
+        return blobHash;
     }
 
     public PatchType getType() {
@@ -138,10 +305,16 @@ public class Patch implements Comparable<Patch> {
     /**
      * Trie les patchs par offset de début ORIGINAL croissant.
      * C'est l'ordre requis pour appliquer les patches au fichier.
+     * À début égal, l'insertion (fin plus petite) passe avant le remplacement :
+     * les offsets de fin restent ainsi croissants dans une liste de patchs disjoints.
      */
     @Override
     public int compareTo(Patch other) {
-        return Long.compare(this.originalStartOffset, other.originalStartOffset);
+        int byStart = Long.compare(this.originalStartOffset, other.originalStartOffset);
+        if (byStart != 0) {
+            return byStart;
+        }
+        return Long.compare(this.originalEndOffset, other.originalEndOffset);
     }
 
     @Override
@@ -149,15 +322,31 @@ public class Patch implements Comparable<Patch> {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Patch patch = (Patch) o;
-        return originalStartOffset == patch.originalStartOffset &&
-                originalEndOffset == patch.originalEndOffset &&
-                Objects.equals(replacementText, patch.replacementText) &&
-                type == patch.type;
+        if (originalStartOffset != patch.originalStartOffset ||
+                originalEndOffset != patch.originalEndOffset ||
+                newLength != patch.newLength ||
+                type != patch.type) {
+            return false;
+        }
+        if (replacementBytes != null && patch.replacementBytes != null) {
+            return Arrays.equals(replacementBytes, patch.replacementBytes);
+        }
+        // Deux plages source : même fichier, même offset
+        if (sourceFile != null && patch.sourceFile != null
+                && sourceFile.equals(patch.sourceFile) && sourceOffset == patch.sourceOffset) {
+            return true;
+        }
+        // Deux blobs : l'empreinte suffit, sans relire le contenu
+        if (blobHash != null && patch.blobHash != null) {
+            return blobHash.equals(patch.blobHash);
+        }
+        return Arrays.equals(getReplacementBytes(), patch.getReplacementBytes());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(originalStartOffset, originalEndOffset, replacementText, type);
+        // Le payload est exclu : cohérent que le contenu soit en mémoire ou déporté
+        return Objects.hash(originalStartOffset, originalEndOffset, newLength, type);
     }
 
     @Override
@@ -167,8 +356,56 @@ public class Patch implements Comparable<Patch> {
                 ", type=" + type +
                 ", origLen=" + originalLength +
                 ", newLen=" + newLength +
-                ", text='" + (replacementText.length() > 20 ? replacementText.substring(0, 20) + "..." : replacementText) + '\'' +
+                ", text='" + preview() + '\'' +
                 ", frag='" + fragmentId + '\'' +
                 '}';
     }
+
+    private String preview() {
+        if (sourceFile != null) {
+            return "source:" + sourceFile.getFileName() + "@" + sourceOffset;
+        }
+        if (replacementBytes == null) {
+            return "blob:" + blobHash;
+        }
+        String text = new String(replacementBytes, 0, Math.min(replacementBytes.length, 80), StandardCharsets.UTF_8);
+        return text.length() > 20 ? text.substring(0, 20) + "..." : text;
+    }
+
+    /**
+     * Lecture bornée à la longueur du payload ; une plage tronquée est une erreur.
+     */
+    private static final class SourceRangeInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        SourceRangeInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("Plage source tronquée");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
 }
@@ -7,6 +7,8 @@ public class ValidateDocumentParams {
     private String xmlPath;
     private String xsdPath;
     private boolean applyPatches;
+    private String branch; // optionnel : branche de patchs à valider (défaut : branche active)
+    private boolean parallel; // optionnel : revalidation des enregistrements sur tous les cœurs
 
     public ValidateDocumentParams() {
     }
@@ -40,4 +42,20 @@ public class ValidateDocumentParams {
     public void setApplyPatches(boolean applyPatches) {
         this.applyPatches = applyPatches;
     }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public void setBranch(String branch) {
+        this.branch = branch;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
 }
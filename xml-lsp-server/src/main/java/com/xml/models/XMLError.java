@@ -15,12 +15,17 @@ public class XMLError {
     private int fragmentStartLine;
     private int fragmentEndLine;
     private String tagName;
+    private int originalLineNumber; // Ligne dans le fichier ORIGINAL (diffère de lineNumber si patché)
 
     private int preciseStartLine;
     private int preciseStartColumn;
     private int preciseEndLine;
     private int preciseEndColumn;
 
+    // Position en octets de la balise fautive dans le flux analysé (-1 : inconnue)
+    private long startOffset = -1;
+    private long endOffset = -1;
+
     private String zoneContent;
     private int zoneStartLine;
     private int zoneEndLine;
@@ -34,6 +39,7 @@ public class XMLError {
         this.column = 1;
         this.severity = mapSeverity(type);
         this.code = type;
+        this.originalLineNumber = lineNumber;
 
         this.preciseStartLine = lineNumber;
         this.preciseStartColumn = 1;
@@ -61,6 +67,9 @@ public class XMLError {
         this.tagName = tagName;
     }
 
+    public int getOriginalLineNumber() { return originalLineNumber; }
+    public void setOriginalLineNumber(int line) { this.originalLineNumber = line; }
+
     public String getId() { return id; }
     public int getColumn() { return column; }
     public void setColumn(int column) { this.column = column; }
@@ -112,6 +121,14 @@ public class XMLError {
         this.preciseEndColumn = endColumn;
     }
 
+    public long getStartOffset() { return startOffset; }
+    public long getEndOffset() { return endOffset; }
+
+    public void setByteRange(long startOffset, long endOffset) {
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+    }
+
     // Méthode pour obtenir la position précise au format JSON
     public String getPreciseRangeJson() {
         return String.format(
@@ -0,0 +1,91 @@
+package com.xml.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+/**
+ * Accès disque en mode direct (O_DIRECT) pour les parcours complets : indexation, validation
+ * et sauvegarde d'un fichier de plusieurs centaines de Go ne doivent pas évincer du cache de
+ * pages le reste de la machine (index, autres fichiers ouverts).
+ * <p>
+ * En mode direct, les offsets, tailles et adresses mémoire des lectures/écritures doivent être
+ * alignés sur la taille de bloc du système de fichiers : les buffers sont alloués alignés et
+ * les positions arrondies au bloc. Les lectures ponctuelles de fragments gardent le cache de
+ * pages, qui reste alors disponible pour elles.
+ * <p>
+ * Activé par la propriété système {@code xml.io.direct=true}, ou explicitement par composant.
+ * Si le système de fichiers refuse O_DIRECT (tmpfs, certains montages réseau), les E/S
+ * classiques sont utilisées.
+ */
+public final class DirectIo {
+
+    public static final String PROPERTY = "xml.io.direct";
+
+    // Taille de bloc supposée si le système de fichiers ne la donne pas
+    private static final int DEFAULT_ALIGNMENT = 4096;
+
+    private DirectIo() {
+    }
+
+    /**
+     * @return true si le mode direct est demandé par défaut ({@code -Dxml.io.direct=true})
+     */
+    public static boolean enabledByDefault() {
+        return Boolean.getBoolean(PROPERTY);
+    }
+
+    /**
+     * Ouvre un fichier en mode direct.
+     *
+     * @return le canal, ou null si le système de fichiers ne supporte pas O_DIRECT
+     */
+    public static FileChannel open(Path path, OpenOption... options) {
+        OpenOption[] direct = new OpenOption[options.length + 1];
+        System.arraycopy(options, 0, direct, 0, options.length);
+        direct[options.length] = ExtendedOpenOption.DIRECT;
+        try {
+            return FileChannel.open(path, direct);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("E/S directes indisponibles pour " + path + " : " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return la taille de bloc du système de fichiers, à laquelle les E/S directes doivent être alignées
+     */
+    public static int alignment(Path path) {
+        try {
+            Path existing = Files.exists(path) ? path : path.toAbsolutePath().getParent();
+            long blockSize = Files.getFileStore(existing).getBlockSize();
+            if (blockSize > 0 && blockSize <= 1024 * 1024 && Long.bitCount(blockSize) == 1) {
+                return (int) blockSize;
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // Taille par défaut
+        }
+        return DEFAULT_ALIGNMENT;
+    }
+
+    /**
+     * Alloue un buffer direct dont l'adresse et la capacité sont multiples de {@code alignment}.
+     */
+    public static ByteBuffer allocateAligned(int capacity, int alignment) {
+        int size = (int) alignUp(capacity, alignment);
+        return ByteBuffer.allocateDirect(size + alignment).alignedSlice(alignment).slice(0, size);
+    }
+
+    public static long alignDown(long value, int alignment) {
+        return value & -alignment;
+    }
+
+    public static long alignUp(long value, int alignment) {
+        return (value + alignment - 1) & -alignment;
+    }
+}
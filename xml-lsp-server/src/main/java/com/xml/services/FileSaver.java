@@ -1,152 +1,982 @@
 package com.xml.services;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import com.xml.handlers.DirectIoInputStream;
+import com.xml.handlers.PatchedInputStream;
 import com.xml.models.FragmentIndex;
 import com.xml.models.Patch;
 
 /**
  * Gestionnaire de sauvegarde pour appliquer les patchs au fichier final.
  * Utilise un streaming approach pour ne pas charger l'intégralité du fichier en mémoire.
+ *
+ * <h2>Copie zéro-copie et parallèle</h2>
+ * Le plan de sauvegarde découpe le document logique en segments (zone inchangée du fichier
+ * original ou payload d'un patch) dont l'offset de sortie est connu d'avance grâce aux deltas
+ * des patchs. La sortie est alors partagée en plages contiguës écrites en parallèle, chacune
+ * par son propre canal : les zones inchangées passent par {@link FileChannel#transferTo}
+ * (sendfile/copy dans le noyau), sans transiter par le tas Java.
+ *
+ * <h2>Sauvegarde sur place</h2>
+ * Quand la sortie est le fichier original et que peu de bytes changent de place (patchs de même
+ * longueur, ou delta net limité à la fin du fichier), seules les plages modifiées sont réécrites
+ * dans le fichier lui-même, protégées par un petit journal d'annulation ({@code <fichier>.undo}).
+ * Sinon, le fichier est entièrement réécrit dans un fichier temporaire.
+ *
+ * <h2>Sortie compressée</h2>
+ * Une sortie {@code .gz} est compressée dans la même passe, en parallèle par blocs indépendants
+ * (voir {@link ParallelGzipWriter}) ; le résultat se décompresse avec les outils standards.
+ * Un original gzip est lu via {@link SeekableGzip} (offsets décompressés) et, sauvegardé sur
+ * lui-même, reste compressé.
+ *
+ * <h2>Sauvegarde en arrière-plan</h2>
+ * La sauvegarde travaille sur un snapshot figé des patchs et ne modifie le fichier original qu'à
+ * la toute fin (renommage, ou écriture des plages sur place). Jusque-là, elle peut être annulée
+ * via {@link SaveProgress}, qui rapporte aussi le nombre de bytes écrits.
  */
 public class FileSaver {
-    
+
+    // En dessous de cette taille par plage, paralléliser coûte plus que cela ne rapporte
+    private static final long DEFAULT_MIN_BYTES_PER_WORKER = 64L * 1024 * 1024; // 64MB
+    private static final int DEFAULT_MAX_WORKERS = 8;
+
+    // Budget du journal d'annulation : au-delà, réécriture complète dans un fichier temporaire
+    private static final long DEFAULT_MAX_IN_PLACE_BYTES = 64L * 1024 * 1024; // 64MB
+    private static final int UNDO_MAGIC = 0x584D4C55; // "XMLU"
+
+    // Granularité du suivi d'avancement et des points d'annulation
+    private static final long PROGRESS_CHUNK = 8L * 1024 * 1024; // 8MB
+
+    // Taille des écritures alignées en mode direct
+    private static final int DIRECT_CHUNK = 4 * 1024 * 1024; // 4MB
+
+    // Pool partagé pour les écritures parallèles
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "file-saver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Segment du document logique : une zone du fichier original ou le payload d'un patch.
+     */
+    private static final class Segment {
+        final long outputOffset;
+        final long length;
+        final long sourceOffset; // offset dans le fichier original (zones inchangées)
+        final Patch patch;       // non null pour un payload de patch
+
+        Segment(long outputOffset, long length, long sourceOffset, Patch patch) {
+            this.outputOffset = outputOffset;
+            this.length = length;
+            this.sourceOffset = sourceOffset;
+            this.patch = patch;
+        }
+
+        /** Zone originale qui ne bouge pas : rien à écrire lors d'une sauvegarde sur place. */
+        boolean isInPlace() {
+            return patch == null && sourceOffset == outputOffset;
+        }
+    }
+
+    private final int maxWorkers;
+    private final long minBytesPerWorker;
+    private long maxInPlaceBytes = DEFAULT_MAX_IN_PLACE_BYTES;
+    private boolean directIo = DirectIo.enabledByDefault();
+
+    public FileSaver() {
+        this(DEFAULT_MAX_WORKERS, DEFAULT_MIN_BYTES_PER_WORKER);
+    }
+
+    /**
+     * @param maxWorkers Nombre maximal d'écrivains parallèles (le travail est borné par le disque, pas le CPU)
+     * @param minBytesPerWorker Taille minimale d'une plage de sortie confiée à un écrivain
+     */
+    public FileSaver(int maxWorkers, long minBytesPerWorker) {
+        if (maxWorkers < 1 || minBytesPerWorker < 1) {
+            throw new IllegalArgumentException("Configuration de sauvegarde invalide: "
+                    + maxWorkers + " écrivains, " + minBytesPerWorker + " bytes par plage");
+        }
+        this.maxWorkers = maxWorkers;
+        this.minBytesPerWorker = minBytesPerWorker;
+    }
+
+    /**
+     * @param maxInPlaceBytes Volume maximal réécrit sur place (0 désactive la sauvegarde sur place)
+     */
+    public void setMaxInPlaceBytes(long maxInPlaceBytes) {
+        this.maxInPlaceBytes = maxInPlaceBytes;
+    }
+
+    /**
+     * Réécriture complète en O_DIRECT (voir {@link DirectIo}) : la copie de tout le fichier ne passe
+     * plus par le cache de pages. La sauvegarde sur place, qui ne touche que quelques plages, n'est pas concernée.
+     */
+    public void setDirectIo(boolean directIo) {
+        this.directIo = directIo;
+    }
+
     /**
      * Sauvegarde le fichier avec tous les patchs appliqués.
-     * 
+     *
      * @param originalFile Fichier XML original
      * @param outputFile Fichier de sortie (peut être le même que l'original)
-     * @param index Index des fragments (non utilisé avec la nouvelle logique de patchs, gardé pour compatibilité)
+     * @param index Index des fragments du fichier original (peut être null). Si la sortie est le fichier
+     *              original, il est mis à jour pour décrire le fichier sauvegardé (voir {@link IndexUpdater})
      * @param patchManager Gestionnaire de patchs
      */
-    public void saveWithPatches(File originalFile, File outputFile, 
+    public void saveWithPatches(File originalFile, File outputFile,
                                 FragmentIndex index, PatchManager patchManager) throws IOException {
+        saveWithPatches(originalFile, outputFile, index, patchManager, new SaveProgress());
+    }
+
+    /**
+     * Sauvegarde avec suivi d'avancement et annulation.
+     * <p>
+     * Les patchs sont figés au début ({@link PatchManager#freezeForSave()}) : l'édition peut continuer
+     * pendant l'écriture, les nouveaux patchs sont reportés sur le fichier sauvegardé à la fin
+     * ({@link PatchManager#completeSave}). Une annulation ou une erreur avant la validation laisse
+     * le fichier original intact.
+     *
+     * @throws java.util.concurrent.CancellationException si {@code progress} a été annulé avant la validation
+     */
+    public void saveWithPatches(File originalFile, File outputFile, FragmentIndex index,
+                                PatchManager patchManager, SaveProgress progress) throws IOException {
 
         long startTime = System.currentTimeMillis();
-        
-        // Récupérer et valider les patchs AVANT la sauvegarde
-        List<Patch> patches = patchManager.getAllPatchesSorted();
-        validatePatches(patches, originalFile.length());
-        
-        // Si c'est le même fichier, créer un fichier temporaire
-        File tempFile = null;
-        File targetFile = outputFile;
-        
-        if (originalFile.getAbsolutePath().equals(outputFile.getAbsolutePath())) {
-            tempFile = new File(outputFile.getParent(), outputFile.getName() + ".tmp");
-            targetFile = tempFile;
-        }
-        
-        try (RandomAccessFile raf = new RandomAccessFile(originalFile, "r");
-             java.io.BufferedOutputStream bos = new java.io.BufferedOutputStream(new FileOutputStream(targetFile))) {
-            
-            long currentPos = 0;
-            
-            for (Patch patch : patches) {
-                // Écrire le contenu original avant ce patch
-                // IMPORTANT: Utiliser getOriginalStartOffset() pour la position dans le fichier ORIGINAL
-                if (patch.getOriginalStartOffset() > currentPos) {
-                    copyBytes(raf, bos, currentPos, patch.getOriginalStartOffset());
+
+        boolean sameFile = originalFile.getAbsolutePath().equals(outputFile.getAbsolutePath());
+        if (sameFile) {
+            // Une sauvegarde sur place interrompue doit être annulée avant toute lecture
+            recoverInterruptedSave(originalFile);
+        }
+
+        // Figer et valider les patchs AVANT la sauvegarde
+        PatchManager.SaveSnapshot snapshot = patchManager.freezeForSave();
+        List<Patch> patches = snapshot.getPatches();
+        boolean compressedSource = SourceFiles.isCompressed(originalFile);
+        long originalLength = SourceFiles.length(originalFile);
+        validatePatches(patches, originalLength);
+
+        List<Segment> plan = planSegments(patches, originalLength);
+        long outputLength = plan.isEmpty() ? 0 : last(plan).outputOffset + last(plan).length;
+
+        // Le plan de mise à jour de l'index lit le fichier original : avant toute écriture
+        IndexUpdater indexUpdater = sameFile && index != null
+                ? (compressedSource ? IndexUpdater.reindexAll() : IndexUpdater.prepare(originalFile, index, patches))
+                : null;
+
+        // Un original gzip réécrit sur lui-même reste compressé
+        boolean gzip = isGzipOutput(outputFile) || (sameFile && compressedSource);
+        if (gzip && sameFile && !compressedSource) {
+            throw new IllegalArgumentException("Le fichier original ne peut pas être réécrit compressé: " + outputFile.getName());
+        }
+
+        try (PreparedSave prepared = gzip
+                ? prepareCompressed(originalFile, outputFile, patches, outputLength, progress)
+                : compressedSource
+                ? prepareDecompressed(originalFile, outputFile, patches, outputLength, progress)
+                : sameFile && canSaveInPlace(plan, originalFile, originalLength)
+                ? prepareInPlace(originalFile, plan, originalLength, outputLength, progress)
+                : prepareFullCopy(originalFile, outputFile, plan, outputLength, progress)) {
+
+            // Validation sous le verrou du gestionnaire : les patchs arrivés pendant l'écriture
+            // sont reportés sur le fichier sauvegardé, puis seuls ceux du snapshot sont retirés
+            patchManager.completeSave(snapshot, originalFile, sameFile, index, () -> {
+                // Dernier point d'annulation : au-delà, le fichier original est modifié
+                progress.checkCancelled();
+                prepared.commit();
+
+                // Décaler les fragments intacts, re-scanner seulement les zones patchées
+                if (indexUpdater != null) {
+                    indexUpdater.apply(outputFile, index);
                 }
-                
-                // Écrire le contenu du patch (convertir String -> bytes UTF-8)
-                byte[] patchBytes = patch.getReplacementText().getBytes(StandardCharsets.UTF_8);
-                bos.write(patchBytes);
-                
-                // Avancer la position courante
-                // CRITICAL FIX: Utiliser getOriginalEndOffset() pour savoir combien de bytes 
-                // du fichier ORIGINAL ont été remplacés
-                currentPos = patch.getOriginalEndOffset();
-            }
-            
-            // Copier le reste du fichier
-            if (currentPos < originalFile.length()) {
-                copyBytes(raf, bos, currentPos, originalFile.length());
-            }
-            
-            bos.flush();
-        }
-        
-        // Si c'était un fichier temporaire, remplacer l'original
-        if (tempFile != null) {
-            if (!originalFile.delete()) {
-                throw new IOException("Impossible de supprimer le fichier original");
-            }
-            if (!tempFile.renameTo(outputFile)) {
-                throw new IOException("Impossible de renommer le fichier temporaire");
-            }
-        }
-        
+            });
+        }
+
         long saveTime = System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Écrit le document d'une branche de patchs (active ou non) dans un autre fichier.
+     * <p>
+     * Contrairement à {@link #saveWithPatches}, les patchs de la branche sont conservés : l'export
+     * ne modifie ni le fichier original ni l'état du gestionnaire.
+     */
+    public void exportBranch(File originalFile, File outputFile, PatchManager patchManager,
+                             String branch, SaveProgress progress) throws IOException {
+        if (originalFile.getAbsolutePath().equals(outputFile.getAbsolutePath())) {
+            throw new IllegalArgumentException("Une branche ne peut pas être exportée sur le fichier original");
+        }
+        List<Patch> patches = patchManager.getBranchPatches(branch);
+        boolean compressedSource = SourceFiles.isCompressed(originalFile);
+        long originalLength = SourceFiles.length(originalFile);
+        validatePatches(patches, originalLength);
+
+        List<Segment> plan = planSegments(patches, originalLength);
+        long outputLength = plan.isEmpty() ? 0 : last(plan).outputOffset + last(plan).length;
+
+        try (PreparedSave prepared = isGzipOutput(outputFile)
+                ? prepareCompressed(originalFile, outputFile, patches, outputLength, progress)
+                : compressedSource
+                ? prepareDecompressed(originalFile, outputFile, patches, outputLength, progress)
+                : prepareFullCopy(originalFile, outputFile, plan, outputLength, progress)) {
+            progress.checkCancelled();
+            prepared.commit();
+        }
+    }
+
+    /**
+     * Sauvegarde écrite mais pas encore validée. {@link #close()} libère les ressources et
+     * supprime ce qui n'a pas été validé.
+     */
+    private interface PreparedSave extends Closeable {
+        /** Rend la sauvegarde effective : le fichier original est modifié à partir d'ici. */
+        void commit() throws IOException;
+    }
+
+    /**
+     * Réécriture complète : copie patchée dans un fichier temporaire, remplacement atomique à la validation.
+     */
+    private PreparedSave prepareFullCopy(File originalFile, File outputFile, List<Segment> plan,
+                                         long outputLength, SaveProgress progress) throws IOException {
+        File tempFile = sidecar(outputFile, ".tmp");
+        progress.begin(outputLength);
+
+        try (FileChannel source = FileChannel.open(originalFile.toPath(), StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            int alignment = directIo ? directAlignment(tempFile) : 0;
+            if (alignment > 0) {
+                writeInParallelDirect(plan, outputLength, originalFile, tempFile, alignment, progress);
+                // Le dernier bloc a été complété pour rester aligné
+                target.truncate(outputLength);
+            } else {
+                writeInParallel(plan, outputLength, source, tempFile, progress);
+            }
+
+            // Un seul fsync suffit : il couvre les écritures de tous les canaux du fichier
+            target.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        }
+
+        return renameOnCommit(tempFile, outputFile);
+    }
+
+    /**
+     * Sortie compressée (.gz) : le document logique est lu en un seul passage et compressé en
+     * parallèle par blocs indépendants (voir {@link ParallelGzipWriter}), sans fichier intermédiaire en clair.
+     */
+    private PreparedSave prepareCompressed(File originalFile, File outputFile, List<Patch> patches,
+                                           long outputLength, SaveProgress progress) throws IOException {
+        File tempFile = sidecar(outputFile, ".tmp");
+        progress.begin(outputLength);
+
+        try (PatchedInputStream in = new PatchedInputStream(originalFile, patches, directIo);
+             FileChannel target = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            new ParallelGzipWriter().write(in, target, progress);
+            target.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        }
+
+        return renameOnCommit(tempFile, outputFile);
+    }
+
+    /**
+     * Sortie non compressée d'un original gzip : rien à confier à {@link FileChannel#transferTo},
+     * le contenu décompressé et patché est recopié en streaming.
+     */
+    private PreparedSave prepareDecompressed(File originalFile, File outputFile, List<Patch> patches,
+                                             long outputLength, SaveProgress progress) throws IOException {
+        File tempFile = sidecar(outputFile, ".tmp");
+        progress.begin(outputLength);
+
+        try (PatchedInputStream in = new PatchedInputStream(originalFile, patches);
+             FileChannel target = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] chunk = new byte[1024 * 1024];
+            int n;
+            while ((n = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+                progress.checkCancelled();
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, n);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                progress.advance(n);
+            }
+            target.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        }
+
+        return renameOnCommit(tempFile, outputFile);
+    }
+
+    private static PreparedSave renameOnCommit(File tempFile, File outputFile) {
+        return new PreparedSave() {
+            @Override
+            public void commit() throws IOException {
+                Files.move(tempFile.toPath(), outputFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            @Override
+            public void close() throws IOException {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        };
+    }
+
+    /**
+     * @return true si la sortie doit être compressée en gzip (d'après son extension)
+     */
+    private static boolean isGzipOutput(File outputFile) {
+        String name = outputFile.getName().toLowerCase();
+        if (name.endsWith(".zst") || name.endsWith(".zstd")) {
+            throw new IllegalArgumentException("Compression zstd non disponible, utiliser .gz: " + outputFile.getName());
+        }
+        return name.endsWith(".gz");
+    }
+
+    // --- Sauvegarde sur place ---
+
+    /**
+     * Sauvegarde sur place possible si les zones à réécrire (payloads et zones originales décalées)
+     * tiennent dans le budget du journal d'annulation et restent minoritaires dans le fichier.
+     * Les zones originales qui gardent leur offset (delta cumulé nul) ne sont jamais touchées.
+     * Un payload qui est une plage du fichier lui-même l'exclut : elle serait relue après avoir
+     * pu être écrasée.
+     */
+    private boolean canSaveInPlace(List<Segment> plan, File file, long originalLength) {
+        long dirtyBytes = 0;
+        for (Segment segment : plan) {
+            if (segment.patch != null && segment.patch.isSourceRange()
+                    && segment.patch.getSourceFile().toFile().getAbsoluteFile().equals(file.getAbsoluteFile())) {
+                return false;
+            }
+            if (!segment.isInPlace()) {
+                dirtyBytes += segment.length;
+            }
+        }
+        return dirtyBytes <= maxInPlaceBytes && dirtyBytes <= originalLength / 2;
+    }
+
+    /**
+     * Réécrit uniquement les segments déplacés ou patchés du fichier original.
+     * <ol>
+     *   <li>Les zones originales décalées sont d'abord copiées dans un fichier de travail :
+     *       toutes les sources sont lues avant la moindre écriture.</li>
+     *   <li>Le contenu actuel des plages à écraser est sauvegardé dans le journal d'annulation.</li>
+     *   <li>À la validation, le journal est publié par renommage atomique, les plages sont écrites,
+     *       le fichier tronqué à sa nouvelle taille et synchronisé, puis le journal est supprimé.</li>
+     * </ol>
+     * Les étapes 1 et 2 ne modifient pas le fichier : elles peuvent être annulées.
+     * Un arrêt brutal pendant l'étape 3 est annulé par {@link #recoverInterruptedSave(File)}.
+     */
+    private PreparedSave prepareInPlace(File file, List<Segment> plan, long originalLength, long outputLength,
+                                        SaveProgress progress) throws IOException {
+        List<Segment> dirty = new ArrayList<>();
+        long dirtyBytes = 0;
+        for (Segment segment : plan) {
+            if (!segment.isInPlace()) {
+                dirty.add(segment);
+                dirtyBytes += segment.length;
+            }
+        }
+        progress.begin(dirtyBytes);
+        if (dirty.isEmpty() && outputLength == originalLength) {
+            return new PreparedSave() {
+                @Override
+                public void commit() {
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        File scratchFile = sidecar(file, ".scratch");
+        File undoFile = sidecar(file, ".undo");
+        File pendingUndoFile = sidecar(file, ".undo.tmp");
+
+        FileChannel channel = null;
+        FileChannel scratch = null;
+        long[] scratchOffsets = new long[dirty.size()];
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            scratch = FileChannel.open(scratchFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            // 1. Copie des zones originales décalées (leur source peut être écrasée ensuite)
+            for (int i = 0; i < dirty.size(); i++) {
+                Segment segment = dirty.get(i);
+                if (segment.patch == null) {
+                    progress.checkCancelled();
+                    scratchOffsets[i] = scratch.size();
+                    scratch.position(scratchOffsets[i]);
+                    transferFully(channel, segment.sourceOffset, segment.length, scratch);
+                }
+            }
 
-        
-        // Vider les patchs après sauvegarde réussie
-        patchManager.clearAll();
+            // 2. Journal d'annulation : contenu actuel de chaque plage écrasée
+            progress.checkCancelled();
+            writeUndoLog(channel, dirty, originalLength, pendingUndoFile);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(channel);
+            closeQuietly(scratch);
+            Files.deleteIfExists(scratchFile.toPath());
+            Files.deleteIfExists(pendingUndoFile.toPath());
+            throw e;
+        }
+
+        FileChannel target = channel;
+        FileChannel moved = scratch;
+        return new PreparedSave() {
+            @Override
+            public void commit() throws IOException {
+                try {
+                    Files.move(pendingUndoFile.toPath(), undoFile.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                    // 3. Écriture des seules plages modifiées
+                    for (int i = 0; i < dirty.size(); i++) {
+                        Segment segment = dirty.get(i);
+                        target.position(segment.outputOffset);
+                        if (segment.patch == null) {
+                            transferFully(moved, scratchOffsets[i], segment.length, target);
+                            progress.advance(segment.length);
+                        } else {
+                            writePayload(segment.patch, 0, segment.length, target, progress);
+                        }
+                    }
+                    if (outputLength < originalLength) {
+                        target.truncate(outputLength);
+                    }
+                    target.force(true);
+                } catch (IOException | RuntimeException e) {
+                    // Le fichier a pu être partiellement écrit : le remettre dans son état d'origine
+                    recoverInterruptedSave(file);
+                    throw e;
+                }
+                Files.deleteIfExists(undoFile.toPath());
+            }
+
+            @Override
+            public void close() throws IOException {
+                closeQuietly(target);
+                closeQuietly(moved);
+                Files.deleteIfExists(scratchFile.toPath());
+                Files.deleteIfExists(pendingUndoFile.toPath());
+            }
+        };
     }
-    
+
+    /**
+     * @return la taille de bloc si le fichier peut être écrit en O_DIRECT, 0 sinon
+     */
+    private static int directAlignment(File file) {
+        try (FileChannel probe = DirectIo.open(file.toPath(), StandardOpenOption.WRITE)) {
+            return probe != null ? DirectIo.alignment(file.toPath()) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            System.err.println("Fermeture impossible: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Annule une sauvegarde sur place interrompue : restaure les plages sauvegardées dans
+     * le journal d'annulation et la taille d'origine du fichier.
+     *
+     * @return true si une sauvegarde interrompue a été annulée
+     */
+    public boolean recoverInterruptedSave(File file) throws IOException {
+        // Journal incomplet : le fichier n'a pas encore été modifié
+        Files.deleteIfExists(sidecar(file, ".undo.tmp").toPath());
+        Files.deleteIfExists(sidecar(file, ".scratch").toPath());
+
+        File undoFile = sidecar(file, ".undo");
+        if (!undoFile.exists()) {
+            return false;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(undoFile)));
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            if (in.readInt() != UNDO_MAGIC) {
+                throw new IOException("Journal d'annulation invalide: " + undoFile);
+            }
+            long originalLength = in.readLong();
+            int ranges = in.readInt();
+            byte[] buffer = new byte[64 * 1024];
+            for (int r = 0; r < ranges; r++) {
+                long offset = in.readLong();
+                long length = in.readLong();
+                while (length > 0) {
+                    int n = (int) Math.min(buffer.length, length);
+                    in.readFully(buffer, 0, n);
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                    while (chunk.hasRemaining()) {
+                        offset += channel.write(chunk, offset);
+                    }
+                    length -= n;
+                }
+            }
+            channel.truncate(originalLength);
+            channel.force(true);
+        }
+
+        Files.delete(undoFile.toPath());
+        System.err.println("Sauvegarde interrompue annulée: " + file.getName());
+        return true;
+    }
+
+    private void writeUndoLog(FileChannel channel, List<Segment> dirty, long originalLength, File undoFile)
+            throws IOException {
+        // Plages contiguës fusionnées, limitées à la taille d'origine (au-delà : simple troncature)
+        List<long[]> ranges = new ArrayList<>();
+        for (Segment segment : dirty) {
+            long start = segment.outputOffset;
+            long end = Math.min(segment.outputOffset + segment.length, originalLength);
+            if (start >= end) continue;
+            long[] previous = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (previous != null && previous[1] == start) {
+                previous[1] = end;
+            } else {
+                ranges.add(new long[] { start, end });
+            }
+        }
+
+        try (FileOutputStream fos = new FileOutputStream(undoFile);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(UNDO_MAGIC);
+            out.writeLong(originalLength);
+            out.writeInt(ranges.size());
+            out.flush();
+            FileChannel undo = fos.getChannel();
+            for (long[] range : ranges) {
+                out.writeLong(range[0]);
+                out.writeLong(range[1] - range[0]);
+                out.flush();
+                transferFully(channel, range[0], range[1] - range[0], undo);
+            }
+            out.flush();
+            undo.force(true);
+        }
+    }
+
+    private static File sidecar(File file, String suffix) {
+        return new File(file.getParentFile(), file.getName() + suffix);
+    }
+
+    /**
+     * Construit la liste ordonnée des segments du document logique, avec leur offset de sortie.
+     */
+    private List<Segment> planSegments(List<Patch> patches, long originalLength) {
+        List<Segment> plan = new ArrayList<>(patches.size() * 2 + 1);
+        long currentPos = 0;
+        long outputPos = 0;
+
+        for (Patch patch : patches) {
+            // Contenu original avant ce patch
+            // IMPORTANT: Utiliser getOriginalStartOffset() pour la position dans le fichier ORIGINAL
+            long gap = patch.getOriginalStartOffset() - currentPos;
+            if (gap > 0) {
+                plan.add(new Segment(outputPos, gap, currentPos, null));
+                outputPos += gap;
+            }
+
+            if (patch.getNewLength() > 0) {
+                plan.add(new Segment(outputPos, patch.getNewLength(), -1, patch));
+                outputPos += patch.getNewLength();
+            }
+
+            // CRITICAL FIX: Utiliser getOriginalEndOffset() pour savoir combien de bytes
+            // du fichier ORIGINAL ont été remplacés
+            currentPos = patch.getOriginalEndOffset();
+        }
+
+        // Reste du fichier
+        if (currentPos < originalLength) {
+            plan.add(new Segment(outputPos, originalLength - currentPos, currentPos, null));
+        }
+        return plan;
+    }
+
+    /**
+     * Répartit la sortie en plages contiguës de tailles égales, écrites chacune par un worker.
+     * Le thread appelant traite la première plage.
+     */
+    private void writeInParallel(List<Segment> plan, long outputLength, FileChannel source, File targetFile,
+                                 SaveProgress progress) throws IOException {
+        int workers = (int) Math.max(1, Math.min(maxWorkers, outputLength / minBytesPerWorker));
+        long rangeSize = (outputLength + workers - 1) / Math.max(1, workers);
+        runRanges(outputLength, workers, rangeSize,
+                (from, to) -> writeRange(plan, from, to, source, targetFile, progress));
+    }
+
+    /**
+     * Variante O_DIRECT : plages alignées sur les blocs, chacune écrite par blocs alignés.
+     */
+    private void writeInParallelDirect(List<Segment> plan, long outputLength, File originalFile, File targetFile,
+                                       int alignment, SaveProgress progress) throws IOException {
+        int workers = (int) Math.max(1, Math.min(maxWorkers, outputLength / minBytesPerWorker));
+        long rangeSize = DirectIo.alignUp((outputLength + workers - 1) / Math.max(1, workers), alignment);
+        runRanges(outputLength, workers, rangeSize,
+                (from, to) -> writeRangeDirect(plan, from, to, originalFile, targetFile, alignment, progress));
+    }
+
+    @FunctionalInterface
+    private interface RangeWriter {
+        void write(long from, long to) throws IOException;
+    }
+
+    private void runRanges(long outputLength, int workers, long rangeSize, RangeWriter writer) throws IOException {
+        List<Future<?>> pending = new ArrayList<>(workers - 1);
+        for (int w = 1; w < workers; w++) {
+            long from = w * rangeSize;
+            long to = Math.min(outputLength, from + rangeSize);
+            pending.add(WRITERS.submit(() -> {
+                writer.write(from, to);
+                return null;
+            }));
+        }
+
+        // Toujours attendre les autres plages, même en cas d'échec ou d'annulation de la première
+        Exception failure = null;
+        try {
+            writer.write(0, Math.min(outputLength, rangeSize));
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+        for (Future<?> f : pending) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception
+                            ? (Exception) e.getCause()
+                            : new IOException("Échec d'écriture parallèle", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new IOException("Sauvegarde interrompue", e);
+                }
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw new IOException("Échec d'écriture parallèle", failure);
+        }
+    }
+
+    /**
+     * Écrit la plage de sortie [from, to) avec un canal dédié, positionné une seule fois :
+     * les segments sont contigus, les écritures restent séquentielles dans la plage.
+     */
+    private void writeRange(List<Segment> plan, long from, long to, FileChannel source, File targetFile,
+                            SaveProgress progress) throws IOException {
+        if (from >= to) return;
+
+        try (FileChannel out = FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE)) {
+            out.position(from);
+            for (int i = firstSegmentAt(plan, from); i < plan.size(); i++) {
+                Segment segment = plan.get(i);
+                if (segment.outputOffset >= to) break;
+
+                long skip = Math.max(0, from - segment.outputOffset);
+                long length = Math.min(segment.outputOffset + segment.length, to) - segment.outputOffset - skip;
+
+                if (segment.patch == null) {
+                    transferFully(source, segment.sourceOffset + skip, length, out, progress);
+                } else {
+                    writePayload(segment.patch, skip, length, out, progress);
+                }
+            }
+        }
+    }
+
+    /**
+     * Écrit la plage [skip, skip + length) du payload d'un patch à la position courante de out.
+     * Blobs et plages source non compressées passent par transferTo, sans traverser le tas.
+     */
+    private static void writePayload(Patch patch, long skip, long length, FileChannel out,
+                                     SaveProgress progress) throws IOException {
+        if (patch.isSourceRange() && !SourceFiles.isCompressed(patch.getSourceFile().toFile())) {
+            try (FileChannel range = FileChannel.open(patch.getSourceFile(), StandardOpenOption.READ)) {
+                transferFully(range, patch.getSourceOffset() + skip, length, out, progress);
+            }
+        } else if (patch.isSourceRange()) {
+            try (InputStream payload = patch.openReplacement()) {
+                payload.skipNBytes(skip);
+                byte[] chunk = new byte[(int) Math.min(length, 1 << 20)];
+                while (length > 0) {
+                    progress.checkCancelled();
+                    int n = payload.readNBytes(chunk, 0, (int) Math.min(chunk.length, length));
+                    if (n <= 0) {
+                        throw new EOFException("Plage source tronquée: " + patch.getSourceFile());
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, n);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    progress.advance(n);
+                    length -= n;
+                }
+            }
+        } else if (patch.isSpilled()) {
+            // Payload déporté : blob -> sortie sans passer par le tas
+            try (FileChannel blob = FileChannel.open(patch.getBlobFile(), StandardOpenOption.READ)) {
+                transferFully(blob, skip, length, out, progress);
+            }
+        } else {
+            ByteBuffer payload = ByteBuffer.wrap(patch.getReplacementBytes(), (int) skip, (int) length);
+            while (payload.hasRemaining()) {
+                out.write(payload);
+            }
+            progress.advance(length);
+        }
+    }
+
+    /**
+     * Écrit la plage de sortie [from, to) en O_DIRECT : les données sont accumulées dans un buffer
+     * aligné et écrites par blocs entiers. {@code from} est aligné ; si {@code to} ne l'est pas (fin
+     * du fichier), le dernier bloc est complété par des zéros, retirés ensuite par troncature.
+     */
+    private void writeRangeDirect(List<Segment> plan, long from, long to, File originalFile, File targetFile,
+                                  int alignment, SaveProgress progress) throws IOException {
+        if (from >= to) return;
+
+        try (FileChannel out = DirectIo.open(targetFile.toPath(), StandardOpenOption.WRITE);
+             DirectIoInputStream source = new DirectIoInputStream(originalFile)) {
+            if (out == null) {
+                throw new IOException("E/S directes refusées pour " + targetFile);
+            }
+            AlignedWriter writer = new AlignedWriter(out, from, alignment, progress);
+            for (int i = firstSegmentAt(plan, from); i < plan.size(); i++) {
+                Segment segment = plan.get(i);
+                if (segment.outputOffset >= to) break;
+
+                long skip = Math.max(0, from - segment.outputOffset);
+                long length = Math.min(segment.outputOffset + segment.length, to) - segment.outputOffset - skip;
+
+                if (segment.patch == null) {
+                    source.seek(segment.sourceOffset + skip);
+                    writer.copy(source, length);
+                } else {
+                    try (InputStream payload = segment.patch.openReplacement()) {
+                        payload.skipNBytes(skip);
+                        writer.copy(payload, length);
+                    }
+                }
+            }
+            writer.finish();
+        }
+    }
+
+    /**
+     * Accumule les bytes d'une plage dans un buffer aligné et l'écrit par blocs entiers.
+     */
+    private static final class AlignedWriter {
+        private final FileChannel out;
+        private final int alignment;
+        private final SaveProgress progress;
+        private final ByteBuffer block;
+        private final byte[] chunk = new byte[64 * 1024];
+        private long position;
+
+        AlignedWriter(FileChannel out, long position, int alignment, SaveProgress progress) {
+            this.out = out;
+            this.position = position;
+            this.alignment = alignment;
+            this.progress = progress;
+            this.block = DirectIo.allocateAligned(DIRECT_CHUNK, alignment);
+        }
+
+        void copy(InputStream in, long length) throws IOException {
+            while (length > 0) {
+                int n = in.read(chunk, 0, (int) Math.min(chunk.length, length));
+                if (n < 0) {
+                    throw new EOFException("Source tronquée, " + length + " bytes manquants");
+                }
+                for (int off = 0; off < n; ) {
+                    int count = Math.min(n - off, block.remaining());
+                    block.put(chunk, off, count);
+                    off += count;
+                    if (!block.hasRemaining()) {
+                        flush();
+                    }
+                }
+                length -= n;
+            }
+        }
+
+        void finish() throws IOException {
+            int data = block.position();
+            if (data == 0) return;
+            // Compléter le dernier bloc : O_DIRECT n'écrit que des blocs entiers
+            while (block.position() % alignment != 0) {
+                block.put((byte) 0);
+            }
+            write(data);
+        }
+
+        private void flush() throws IOException {
+            write(block.position());
+        }
+
+        private void write(int dataBytes) throws IOException {
+            progress.checkCancelled();
+            block.flip();
+            while (block.hasRemaining()) {
+                position += out.write(block, position);
+            }
+            block.clear();
+            progress.advance(dataBytes);
+        }
+    }
+
+    private static void validateSourceRange(int i, Patch patch) {
+        File source = patch.getSourceFile().toFile();
+        long sourceLength;
+        try {
+            sourceLength = source.isFile() ? SourceFiles.length(source) : -1;
+        } catch (IOException e) {
+            throw new IllegalStateException("Patch #" + i + " : source illisible " + source + ": " + e.getMessage());
+        }
+        if (sourceLength < 0 || patch.getSourceOffset() + patch.getNewLength() > sourceLength) {
+            throw new IllegalStateException("Patch #" + i + " référence une plage absente de " + source
+                    + ": " + patch.getSourceOffset() + " +" + patch.getNewLength());
+        }
+    }
+
+    private static void transferFully(FileChannel from, long position, long count, FileChannel to) throws IOException {
+        while (count > 0) {
+            long n = from.transferTo(position, count, to);
+            if (n <= 0) {
+                throw new EOFException("Fichier source tronqué à l'offset " + position);
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Copie par tranches, en rapportant l'avancement et en testant l'annulation entre deux tranches.
+     */
+    private static void transferFully(FileChannel from, long position, long count, FileChannel to,
+                                      SaveProgress progress) throws IOException {
+        while (count > 0) {
+            progress.checkCancelled();
+            long chunk = Math.min(count, PROGRESS_CHUNK);
+            transferFully(from, position, chunk, to);
+            progress.advance(chunk);
+            position += chunk;
+            count -= chunk;
+        }
+    }
+
+    private static int firstSegmentAt(List<Segment> plan, long outputOffset) {
+        // Premier segment dont la fin dépasse outputOffset
+        int low = 0;
+        int high = plan.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            Segment s = plan.get(mid);
+            if (s.outputOffset + s.length <= outputOffset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static Segment last(List<Segment> plan) {
+        return plan.get(plan.size() - 1);
+    }
+
     /**
      * Valide la liste de patchs avant sauvegarde.
      * Lance une exception si les patchs sont invalides.
      */
     private void validatePatches(List<Patch> patches, long fileLength) {
         long lastEndOffset = 0;
-        
+
         for (int i = 0; i < patches.size(); i++) {
             Patch patch = patches.get(i);
-            
+
             // Vérifier que le patch a des offsets valides
             if (patch.getOriginalStartOffset() < 0) {
                 throw new IllegalStateException(
                     "Patch #" + i + " a un originalStartOffset négatif: " + patch.getOriginalStartOffset());
             }
-            
-            // Vérifier que le texte n'est pas null (déjà géré par Patch, mais double check)
-            if (patch.getReplacementText() == null) {
-                throw new IllegalStateException("Patch #" + i + " a un texte de remplacement null");
+
+            // Vérifier que le payload déporté est toujours disponible
+            if (patch.isSpilled() && !Files.isRegularFile(patch.getBlobFile())) {
+                throw new IllegalStateException("Patch #" + i + " référence un blob absent: " + patch.getBlobHash());
+            }
+            if (patch.isSourceRange()) {
+                validateSourceRange(i, patch);
             }
-            
+
             // Vérifier que le patch ne dépasse pas la fin du fichier
             if (patch.getOriginalEndOffset() > fileLength) {
                 throw new IllegalStateException(
-                    "Patch #" + i + " dépasse la fin du fichier. Offset fin: " + 
+                    "Patch #" + i + " dépasse la fin du fichier. Offset fin: " +
                     patch.getOriginalEndOffset() + ", taille fichier: " + fileLength);
             }
-            
+
             // Vérifier que les patchs sont triés et ne se chevauchent pas
             if (patch.getOriginalStartOffset() < lastEndOffset) {
                 throw new IllegalStateException(
-                    "Patch #" + i + " chevauche le patch précédent. Start: " + 
+                    "Patch #" + i + " chevauche le patch précédent. Start: " +
                     patch.getOriginalStartOffset() + ", dernier end: " + lastEndOffset);
             }
-            
+
             lastEndOffset = patch.getOriginalEndOffset();
         }
     }
-    
-    /**
-     * Copie des bytes depuis le fichier source vers l'output stream par petits blocs.
-     */
-    private void copyBytes(RandomAccessFile raf, java.io.BufferedOutputStream bos, long start, long end) throws IOException {
-        if (start >= end) return;
-        
-        raf.seek(start);
-        long remaining = end - start;
-        byte[] buffer = new byte[8192]; // Buffer de 8KB
-        
-        while (remaining > 0) {
-            int toRead = (int) Math.min(buffer.length, remaining);
-            int read = raf.read(buffer, 0, toRead);
-            
-            if (read == -1) break;
-            
-            bos.write(buffer, 0, read);
-            remaining -= read;
-        }
-    }
 }
-
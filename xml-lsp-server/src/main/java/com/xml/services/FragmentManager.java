@@ -2,8 +2,10 @@ package com.xml.services;
 
 import com.xml.models.FragmentMetadata;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
@@ -14,6 +16,7 @@ import java.util.Map;
  * Gère l'accès aux fragments XML sur le disque.
  * Utilise RandomAccessFile pour une lecture rapide et thread-safe.
  * Intègre un cache LRU pour les fragments fréquemment accédés.
+ * Un fichier gzip est lu via {@link SeekableGzip}, en décompressant depuis le point de reprise le plus proche.
  */
 public class FragmentManager {
 
@@ -35,6 +38,13 @@ public class FragmentManager {
         );
     }
 
+    /**
+     * @return Fichier source des fragments
+     */
+    protected File getFile() {
+        return file;
+    }
+
     /**
      * Récupère le contenu textuel d'un fragment.
      * Utilise le cache si disponible, sinon lit sur le disque.
@@ -53,12 +63,22 @@ public class FragmentManager {
      * Lit les octets bruts du fragment depuis le fichier.
      */
     private String readFromDisk(FragmentMetadata fragment) throws IOException {
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-            long length = fragment.getLength();
-            if (length > Integer.MAX_VALUE) {
-                throw new IOException("Fragment trop grand pour être chargé en mémoire : " + length);
+        long length = fragment.getLength();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Fragment trop grand pour être chargé en mémoire : " + length);
+        }
+
+        if (SourceFiles.isCompressed(file)) {
+            try (InputStream in = SourceFiles.openAt(file, fragment.getStartOffset())) {
+                byte[] buffer = in.readNBytes((int) length);
+                if (buffer.length < length) {
+                    throw new EOFException("Fragment tronqué : " + fragment.getId());
+                }
+                return new String(buffer, StandardCharsets.UTF_8);
             }
+        }
 
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
             byte[] buffer = new byte[(int) length];
             raf.seek(fragment.getStartOffset());
             raf.readFully(buffer);
@@ -5,8 +5,21 @@ import java.io.File;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+
+import org.xml.sax.SAXException;
+
+import com.xml.handlers.SchemaCache;
 import com.xml.handlers.TrackedStaxHandler;
 import com.xml.handlers.Validators;
 import com.xml.models.ErrorCollector;
@@ -16,9 +29,33 @@ import com.xml.models.XMLError;
 /**
  * Validateur pour fragments XML isolés.
  * Contrairement à LargeXmlValidator qui travaille sur Files, celui-ci valide des Strings/Streams.
+ * <p>
+ * Tout se passe en mémoire : le fragment est validé depuis ses octets, sans fichier temporaire,
+ * contre le schéma compilé du {@link SchemaCache}. Chaque thread garde son {@link Validator}
+ * d'une validation à l'autre ; {@link #validateFragments} valide un lot sur tous les cœurs.
  */
 public class FragmentValidator {
 
+    // Pool partagé des validations par lot
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "fragment-validator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Validateur du thread courant, remplacé quand le schéma est recompilé
+    private static final ThreadLocal<PooledValidator> POOL = new ThreadLocal<>();
+
+    private static final class PooledValidator {
+        final Schema schema;
+        final Validator validator;
+
+        PooledValidator(Schema schema) {
+            this.schema = schema;
+            this.validator = schema.newValidator();
+        }
+    }
+
     /**
      * Valide un fragment XML contre un schéma XSD.
      * Le fragment peut être incomplet (ex: manque namespaces racine).
@@ -29,6 +66,62 @@ public class FragmentValidator {
      * @return ValidationResult avec les erreurs détectées
      */
     public ValidationResult validateFragment(String fragmentContent, File xsdFile, boolean wrapWithRoot) {
+        Schema schema = null;
+        String schemaError = null;
+        if (xsdFile != null && xsdFile.exists()) {
+            try {
+                schema = SchemaCache.shared().getSchema(xsdFile);
+            } catch (Exception e) {
+                schemaError = e.getMessage();
+            }
+        }
+        return validate(fragmentContent, schema, schemaError, wrapWithRoot);
+    }
+
+    /**
+     * Valide plusieurs fragments en un appel : le schéma est résolu une seule fois et les
+     * fragments sont répartis sur les cœurs, chaque thread réutilisant son validateur.
+     *
+     * @return un résultat par fragment, dans l'ordre de la liste
+     */
+    public List<ValidationResult> validateFragments(List<String> fragments, File xsdFile, boolean wrapWithRoot) {
+        Schema schema = null;
+        String schemaError = null;
+        if (xsdFile != null && xsdFile.exists()) {
+            try {
+                schema = SchemaCache.shared().getSchema(xsdFile);
+            } catch (Exception e) {
+                schemaError = e.getMessage();
+            }
+        }
+
+        ValidationResult[] results = new ValidationResult[fragments.size()];
+        int tasks = Math.min(fragments.size(), Runtime.getRuntime().availableProcessors());
+        AtomicInteger next = new AtomicInteger();
+        Schema sharedSchema = schema;
+        String sharedError = schemaError;
+        List<Future<?>> running = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            running.add(WORKERS.submit(() -> {
+                for (int i = next.getAndIncrement(); i < results.length; i = next.getAndIncrement()) {
+                    results[i] = validate(fragments.get(i), sharedSchema, sharedError, wrapWithRoot);
+                }
+            }));
+        }
+        for (Future<?> task : running) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Validation des fragments interrompue", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Erreur de validation des fragments : " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private ValidationResult validate(String fragmentContent, Schema schema, String schemaError, boolean wrapWithRoot) {
         long startTime = System.currentTimeMillis();
         
         ErrorCollector collector = new ErrorCollector();
@@ -38,10 +131,11 @@ public class FragmentValidator {
         if (wrapWithRoot) {
             contentToValidate = wrapFragmentWithRoot(fragmentContent);
         }
+        byte[] bytes = contentToValidate.getBytes(StandardCharsets.UTF_8);
         
         // Parsing structurel avec TrackedStaxHandler
         TrackedStaxHandler handler = new TrackedStaxHandler(collector);
-        try (InputStream in = new ByteArrayInputStream(contentToValidate.getBytes(StandardCharsets.UTF_8))) {
+        try (InputStream in = new ByteArrayInputStream(bytes)) {
             handler.parse(in);
         } catch (Exception e) {
             collector.addError("Erreur de parsing du fragment : " + e.getMessage(), 0, "FRAGMENT_PARSE_ERROR");
@@ -50,10 +144,11 @@ public class FragmentValidator {
         // Validation XSD si aucune erreur structurelle critique
         boolean xsdValid = true;
         if (collector.getErrors().isEmpty() || !hasCriticalErrors(collector.getErrors())) {
-            if (xsdFile != null && xsdFile.exists()) {
-                // Pour la validation XSD, on doit créer un fichier temporaire
-                // ou utiliser un StreamSource. Pour simplifier, on utilise StreamSource.
-                xsdValid = validateAgainstXsd(contentToValidate, xsdFile, collector);
+            if (schemaError != null) {
+                collector.addError("Erreur de validation XSD : " + schemaError, 0, "XSD_ERROR");
+                xsdValid = false;
+            } else if (schema != null) {
+                xsdValid = validateAgainstXsd(bytes, schema, collector);
             }
         }
         
@@ -76,24 +171,27 @@ public class FragmentValidator {
     }
 
     /**
-     * Valide le contenu contre un schéma XSD.
+     * Valide le contenu contre un schéma XSD, en mémoire, avec le validateur du thread courant.
      */
-    private boolean validateAgainstXsd(String content, File xsdFile, ErrorCollector collector) {
+    private boolean validateAgainstXsd(byte[] content, Schema schema, ErrorCollector collector) {
+        PooledValidator pooled = POOL.get();
+        if (pooled == null || pooled.schema != schema) {
+            pooled = new PooledValidator(schema);
+            POOL.set(pooled);
+        }
+        Validator validator = pooled.validator;
         try {
-            // Créer un fichier temporaire pour la validation XSD
-            // Alternative: utiliser StreamSource directement
-            java.io.File tempFile = java.io.File.createTempFile("fragment_", ".xml");
-            tempFile.deleteOnExit();
-            
-            java.nio.file.Files.write(tempFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
-            
-            Validators validator = new Validators(collector);
-            boolean valid = validator.validate(tempFile, xsdFile);
-            
-            tempFile.delete();
-            return valid;
+            validator.reset();
+            validator.setErrorHandler(new Validators(collector).errorHandler());
+            validator.validate(new StreamSource(new ByteArrayInputStream(content)));
+            return true;
+        } catch (SAXException e) {
+            // Avec Xerces + continue-after-fatal-error, les erreurs sont déjà collectées
+            return true;
         } catch (Exception e) {
             collector.addError("Erreur de validation XSD : " + e.getMessage(), 0, "XSD_ERROR");
+            // Validateur dans un état inconnu : recréé à la prochaine validation
+            POOL.remove();
             return false;
         }
     }
@@ -120,10 +218,12 @@ public class FragmentValidator {
             XMLError lite = new XMLError(e.getMessage(), e.getLineNumber(), e.getType());
             lite.setColumn(e.getColumn());
             lite.setTagName(e.getTagName());
+            lite.setOriginalLineNumber(e.getOriginalLineNumber());
             lite.setPrecisePosition(
                 e.getPreciseStartLine(), e.getPreciseStartColumn(),
                 e.getPreciseEndLine(), e.getPreciseEndColumn()
             );
+            lite.setByteRange(e.getStartOffset(), e.getEndOffset());
             
             // Copy fragment fields to preserve fragment information
             if (e.getFragment() != null) {
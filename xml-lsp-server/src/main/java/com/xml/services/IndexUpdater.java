@@ -0,0 +1,215 @@
+package com.xml.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.xml.handlers.StreamingIndexer;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.Patch;
+
+/**
+ * Met à jour l'index des fragments après une sauvegarde, sans ré-indexer tout le fichier.
+ * <p>
+ * Le plan est préparé AVANT l'écriture, tant que le fichier original est lisible : chaque patch
+ * est rattaché aux fragments qu'il touche (ou à l'interstice entre deux fragments), ce qui forme
+ * des régions sales. Après l'écriture, les fragments intacts sont recopiés avec leurs offsets et
+ * lignes décalés des deltas cumulés des patchs qui les précèdent, et seules les régions sales
+ * sont re-scannées dans le nouveau fichier.
+ * <p>
+ * Si un patch touche le prologue ou la fin du document, ou si une région re-scannée ne se
+ * referme pas proprement (structure modifiée), l'index est reconstruit entièrement.
+ */
+public class IndexUpdater {
+
+    /**
+     * Région à re-scanner : fragments [firstFragment, lastFragment] et interstices voisins.
+     * lastFragment < firstFragment pour une région réduite à un interstice (insertion entre deux fragments).
+     */
+    private static final class Region {
+        int firstFragment;
+        int lastFragment;
+        long start;      // plage ORIGINALE [start, end)
+        long end;
+        int startLine;   // ligne originale de start
+        long byteDelta;  // somme des deltas des patchs de la région
+        int lineDelta;
+    }
+
+    private final List<FragmentMetadata> fragments;
+    private final List<Region> regions;
+    private final boolean fullReindex;
+
+    private IndexUpdater(List<FragmentMetadata> fragments, List<Region> regions, boolean fullReindex) {
+        this.fragments = fragments;
+        this.regions = regions;
+        this.fullReindex = fullReindex;
+    }
+
+    /**
+     * Prépare la mise à jour à partir de l'index courant et des patchs triés.
+     * À appeler avant que le fichier original ne soit réécrit.
+     */
+    public static IndexUpdater prepare(File originalFile, FragmentIndex index, List<Patch> patches) {
+        List<FragmentMetadata> fragments = index.getAllFragments();
+        if (fragments.isEmpty()) {
+            return new IndexUpdater(fragments, List.of(), true);
+        }
+
+        int n = fragments.size();
+        long firstStart = fragments.get(0).getStartOffset();
+        long lastEnd = fragments.get(n - 1).getEndOffset();
+        List<Region> regions = new ArrayList<>();
+
+        for (Patch patch : patches) {
+            long start = patch.getOriginalStartOffset();
+            long end = patch.getOriginalEndOffset();
+            if (start < firstStart || end > lastEnd) {
+                // Prologue, racine ou fin de document : pas de point d'ancrage fiable
+                return new IndexUpdater(fragments, List.of(), true);
+            }
+
+            // Fragments chevauchés : fin > start et début < end (vide si le patch tombe dans un interstice)
+            int first = firstEndingAfter(fragments, start);
+            int last = lastStartingBefore(fragments, end);
+            if (first > last && first < n && fragments.get(first).isContinuation()) {
+                // Frontière entre deux morceaux d'un même élément découpé : l'élément est touché
+                last = first;
+            }
+
+            // Un élément découpé (> 5MB) se re-scanne en entier
+            while (first > 0 && first <= last && fragments.get(first).isContinuation()) {
+                first--;
+            }
+            while (last + 1 < n && fragments.get(last + 1).isContinuation()) {
+                last++;
+            }
+
+            Region region = new Region();
+            region.firstFragment = first;
+            region.lastFragment = last;
+            region.start = first > 0 ? fragments.get(first - 1).getEndOffset() : firstStart;
+            region.startLine = first > 0 ? fragments.get(first - 1).getEndLine() : fragments.get(0).getStartLine();
+            region.end = last + 1 < n ? fragments.get(last + 1).getStartOffset() : fragments.get(n - 1).getEndOffset();
+            region.byteDelta = patch.getLengthDelta();
+            region.lineDelta = OffsetTranslator.countNewlines(patch)
+                    - OffsetTranslator.countNewlines(originalFile, start, end);
+
+            Region previous = regions.isEmpty() ? null : regions.get(regions.size() - 1);
+            if (previous != null && (region.start < previous.end || region.firstFragment <= previous.lastFragment + 1)) {
+                previous.lastFragment = Math.max(previous.lastFragment, region.lastFragment);
+                previous.end = Math.max(previous.end, region.end);
+                previous.byteDelta += region.byteDelta;
+                previous.lineDelta += region.lineDelta;
+            } else {
+                regions.add(region);
+            }
+        }
+
+        return new IndexUpdater(fragments, regions, false);
+    }
+
+    /**
+     * Mise à jour par ré-indexation complète, quand le fichier sauvegardé ne peut pas être
+     * re-scanné par plages (sortie gzip : son index de points de reprise est à reconstruire).
+     */
+    public static IndexUpdater reindexAll() {
+        return new IndexUpdater(List.of(), List.of(), true);
+    }
+
+    /**
+     * Publie dans {@code index} la description du fichier sauvegardé.
+     */
+    public void apply(File savedFile, FragmentIndex index) {
+        if (fullReindex) {
+            reindexFully(savedFile, index);
+            return;
+        }
+
+        FragmentIndex rebuilt = new FragmentIndex();
+        StreamingIndexer indexer = new StreamingIndexer(rebuilt);
+        long byteDelta = 0;
+        int lineDelta = 0;
+        int next = 0; // prochain fragment de l'ancien index à recopier
+
+        try {
+            for (Region region : regions) {
+                for (; next < region.firstFragment; next++) {
+                    copyShifted(index, fragments.get(next), byteDelta, lineDelta, rebuilt);
+                }
+
+                long newStart = region.start + byteDelta;
+                int newStartLine = region.startLine + lineDelta;
+                byteDelta += region.byteDelta;
+                lineDelta += region.lineDelta;
+                long newEnd = region.end + byteDelta;
+
+                if (!indexer.indexRange(savedFile, newStart, newEnd, newStartLine)) {
+                    reindexFully(savedFile, index);
+                    return;
+                }
+                next = Math.max(next, region.lastFragment + 1);
+            }
+        } catch (IOException e) {
+            System.err.println("Mise à jour incrémentale de l'index impossible: " + e.getMessage());
+            reindexFully(savedFile, index);
+            return;
+        }
+
+        for (; next < fragments.size(); next++) {
+            copyShifted(index, fragments.get(next), byteDelta, lineDelta, rebuilt);
+        }
+        index.replaceWith(rebuilt);
+    }
+
+    /**
+     * @return true si l'index a dû être reconstruit entièrement
+     */
+    public boolean requiresFullReindex() {
+        return fullReindex;
+    }
+
+    private static void copyShifted(FragmentIndex source, FragmentMetadata fragment, long byteDelta, int lineDelta,
+                                    FragmentIndex target) {
+        int tagId = target.internString(source.getString(fragment.getTagId()));
+        target.addFragment(fragment.shifted(target.size(), byteDelta, lineDelta, tagId));
+    }
+
+    private static void reindexFully(File file, FragmentIndex index) {
+        FragmentIndex rebuilt = new FragmentIndex();
+        new StreamingIndexer(rebuilt).indexFile(file);
+        index.replaceWith(rebuilt);
+    }
+
+    // Premier fragment dont la fin dépasse offset
+    private static int firstEndingAfter(List<FragmentMetadata> fragments, long offset) {
+        int low = 0;
+        int high = fragments.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fragments.get(mid).getEndOffset() <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Dernier fragment qui commence avant offset (-1 si aucun)
+    private static int lastStartingBefore(List<FragmentMetadata> fragments, long offset) {
+        int low = 0;
+        int high = fragments.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (fragments.get(mid).getStartOffset() < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+}
@@ -0,0 +1,453 @@
+package com.xml.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.Patch;
+
+/**
+ * Traduction de coordonnées entre le fichier ORIGINAL et le document LOGIQUE (patché).
+ *
+ * <p>Les patchs (disjoints) sont rangés dans un arbre binaire équilibré (treap) trié dans l'ordre
+ * de {@link Patch}. Chaque nœud porte la somme, sur son sous-arbre, des écarts de longueur
+ * {@code newLength - originalLength} ; la fin logique d'un patch s'en déduit directement :
+ * <pre>
+ *   logicalEnd(i) = end_i + Σ_{j≤i} (newLength_j - originalLength_j)
+ * </pre>
+ * Le même schéma est appliqué aux lignes. Les fins originales comme les fins logiques sont
+ * croissantes : les deux sens de traduction sont une descente dans l'arbre en O(log n).
+ *
+ * <p>Ajouter ou retirer un patch, où qu'il soit, est en O(log n). Les nœuds sont immuables
+ * (copie de chemin) : {@link #copy()} partage l'arbre en O(1).
+ */
+public class OffsetTranslator {
+
+    /**
+     * Donne la ligne (1-based) du fichier ORIGINAL à laquelle se trouve un offset.
+     */
+    @FunctionalInterface
+    public interface LineLocator {
+        int lineAt(long offset);
+    }
+
+    /**
+     * Nœud immuable du treap : un patch, ses lignes originales et les sommes de son sous-arbre.
+     */
+    private static final class Node {
+        final Patch patch;
+        final int newLines;   // nombre de '\n' dans le texte de remplacement
+        final int startLine;  // ligne originale de start
+        final int endLine;    // ligne originale de end
+        final int priority;
+        final Node left;
+        final Node right;
+
+        final int size;
+        final long byteDelta; // Σ (newLength - originalLength) sur le sous-arbre
+        final long lineDelta; // Σ (newLines - (endLine - startLine)) sur le sous-arbre
+
+        Node(Patch patch, int newLines, int startLine, int endLine, int priority, Node left, Node right) {
+            this.patch = patch;
+            this.newLines = newLines;
+            this.startLine = startLine;
+            this.endLine = endLine;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + size(left) + size(right);
+            this.byteDelta = byteDelta(left) + ownBytes() + byteDelta(right);
+            this.lineDelta = lineDelta(left) + ownLines() + lineDelta(right);
+        }
+
+        Node with(Node left, Node right) {
+            return left == this.left && right == this.right
+                    ? this
+                    : new Node(patch, newLines, startLine, endLine, priority, left, right);
+        }
+
+        long start() { return patch.getOriginalStartOffset(); }
+        long end() { return patch.getOriginalEndOffset(); }
+
+        long ownBytes() { return patch.getNewLength() - (end() - start()); }
+        long ownLines() { return newLines - (endLine - startLine); }
+
+        static int size(Node n) { return n != null ? n.size : 0; }
+        static long byteDelta(Node n) { return n != null ? n.byteDelta : 0; }
+        static long lineDelta(Node n) { return n != null ? n.lineDelta : 0; }
+    }
+
+    /**
+     * Résultat d'une descente : dernier patch dont la fin est atteinte, somme des écarts jusqu'à
+     * lui inclus, et patch suivant.
+     */
+    private static final class Position {
+        Node last;
+        long delta;
+        Node next;
+    }
+
+    private Node root;
+
+    private LineLocator lineLocator;
+
+    /**
+     * @return un traducteur sans patch (identité)
+     */
+    public static OffsetTranslator identity() {
+        return new OffsetTranslator();
+    }
+
+    /**
+     * Construit un localisateur de lignes s'appuyant sur l'index : la ligne de départ du fragment
+     * le plus proche est connue, seuls les octets entre ce fragment et l'offset sont relus.
+     */
+    public static LineLocator lineLocatorFor(File file, FragmentIndex index) {
+        return offset -> {
+            FragmentMetadata anchor = index != null ? index.findFragmentAtOrBefore(offset) : null;
+            long from = anchor != null ? anchor.getStartOffset() : 0;
+            int line = anchor != null ? anchor.getStartLine() : 1;
+            return line + countNewlines(file, from, offset);
+        };
+    }
+
+    /**
+     * Définit le localisateur de lignes et recalcule les lignes des patchs déjà connus.
+     */
+    public synchronized void setLineLocator(LineLocator locator) {
+        this.lineLocator = locator;
+        List<Node> nodes = new ArrayList<>(Node.size(root));
+        collect(root, nodes);
+        for (int i = 0; i < nodes.size(); i++) {
+            Node n = nodes.get(i);
+            nodes.set(i, located(n.patch, n.newLines, n.priority));
+        }
+        root = build(nodes);
+    }
+
+    public synchronized void addPatch(Patch patch) {
+        Node node = located(patch, countNewlines(patch), ThreadLocalRandom.current().nextInt());
+        // Après les patchs qui ne lui sont pas supérieurs (ordre de Patch)
+        Node[] parts = split(root, patch);
+        root = merge(merge(parts[0], node), parts[1]);
+    }
+
+    public synchronized void removePatch(Patch patch) {
+        root = remove(root, patch);
+    }
+
+    /**
+     * Remplace l'ensemble des patchs (liste triée et disjointe), par exemple après un lot.
+     */
+    public synchronized void reset(List<Patch> sortedPatches) {
+        // Les patchs déjà connus gardent leurs lignes (évite de relire le fichier)
+        List<Node> current = new ArrayList<>(Node.size(root));
+        collect(root, current);
+        Map<Patch, Node> known = new IdentityHashMap<>();
+        for (Node n : current) {
+            known.put(n.patch, n);
+        }
+        List<Node> nodes = new ArrayList<>(sortedPatches.size());
+        for (Patch p : sortedPatches) {
+            Node n = known.get(p);
+            nodes.add(n != null ? n.with(null, null) : located(p, countNewlines(p), ThreadLocalRandom.current().nextInt()));
+        }
+        root = build(nodes);
+    }
+
+    /**
+     * Copie indépendante (pour une nouvelle branche) en O(1) : l'arbre immuable est partagé, les
+     * modifications ultérieures de l'une ou l'autre copie ne recopient que leur chemin.
+     */
+    public synchronized OffsetTranslator copy() {
+        OffsetTranslator copy = new OffsetTranslator();
+        copy.root = root;
+        copy.lineLocator = lineLocator;
+        return copy;
+    }
+
+    public synchronized void clear() {
+        root = null;
+    }
+
+    public synchronized int size() {
+        return Node.size(root);
+    }
+
+    // === Offsets ===
+
+    /**
+     * Offset ORIGINAL → offset LOGIQUE. Un offset situé dans une zone remplacée est ramené
+     * dans le texte de remplacement (borné à sa longueur).
+     */
+    public synchronized long toLogicalOffset(long originalOffset) {
+        // Dernier patch entièrement avant l'offset (end <= offset)
+        Position pos = locate(originalOffset, false, false);
+        long logicalEnd = pos.last != null ? pos.last.end() + pos.delta : 0;
+        long originalEnd = pos.last != null ? pos.last.end() : 0;
+
+        if (pos.next != null) {
+            Node next = pos.next;
+            if (next.start() < originalOffset) {
+                long logicalStart = logicalEnd + (next.start() - originalEnd);
+                return logicalStart + Math.min(originalOffset - next.start(), next.patch.getNewLength());
+            }
+        }
+        return logicalEnd + (originalOffset - originalEnd);
+    }
+
+    /**
+     * Offset LOGIQUE → offset ORIGINAL. Un offset situé dans un texte de remplacement est ramené
+     * au début de la zone originale remplacée (borné à sa longueur).
+     */
+    public synchronized long toOriginalOffset(long logicalOffset) {
+        Position pos = locate(logicalOffset, true, false);
+        long logicalEnd = pos.last != null ? pos.last.end() + pos.delta : 0;
+        long originalEnd = pos.last != null ? pos.last.end() : 0;
+
+        if (pos.next != null) {
+            Node next = pos.next;
+            long logicalStart = logicalEnd + (next.start() - originalEnd);
+            if (logicalOffset >= logicalStart) {
+                return next.start() + Math.min(logicalOffset - logicalStart, next.patch.getOriginalLength());
+            }
+        }
+        return originalEnd + (logicalOffset - logicalEnd);
+    }
+
+    // === Lignes (1-based) ===
+
+    public synchronized int toLogicalLine(int originalLine) {
+        if (root == null || lineLocator == null) return originalLine;
+        Position pos = locate(originalLine, false, true);
+        long logicalEnd = pos.last != null ? pos.last.endLine + pos.delta : 1;
+        int originalEnd = pos.last != null ? pos.last.endLine : 1;
+
+        if (pos.next != null) {
+            Node next = pos.next;
+            if (next.startLine < originalLine) {
+                long logicalStart = logicalEnd + (next.startLine - originalEnd);
+                return (int) (logicalStart + Math.min(originalLine - next.startLine, next.newLines));
+            }
+        }
+        return (int) (logicalEnd + (originalLine - originalEnd));
+    }
+
+    public synchronized int toOriginalLine(int logicalLine) {
+        if (root == null || lineLocator == null) return logicalLine;
+        Position pos = locate(logicalLine, true, true);
+        long logicalEnd = pos.last != null ? pos.last.endLine + pos.delta : 1;
+        int originalEnd = pos.last != null ? pos.last.endLine : 1;
+
+        if (pos.next != null) {
+            Node next = pos.next;
+            long logicalStart = logicalEnd + (next.startLine - originalEnd);
+            if (logicalLine >= logicalStart) {
+                return (int) (next.startLine + Math.min(logicalLine - logicalStart, next.endLine - next.startLine));
+            }
+        }
+        return (int) (originalEnd + (logicalLine - logicalEnd));
+    }
+
+    // === Treap ===
+
+    /**
+     * Descente jusqu'au dernier patch dont la fin (originale, ou logique si {@code logical}) est
+     * inférieure ou égale à {@code value}. Valable car ces fins sont croissantes dans l'ordre des
+     * patchs : les écarts cumulés ne font jamais reculer une fin logique.
+     */
+    private Position locate(long value, boolean logical, boolean lines) {
+        Position pos = new Position();
+        Node node = root;
+        long before = 0; // écarts des patchs à gauche du sous-arbre courant
+        while (node != null) {
+            long through = before + (lines ? Node.lineDelta(node.left) + node.ownLines()
+                    : Node.byteDelta(node.left) + node.ownBytes());
+            long end = lines ? node.endLine : node.end();
+            if (end + (logical ? through : 0) <= value) {
+                pos.last = node;
+                pos.delta = through;
+                before = through;
+                node = node.right;
+            } else {
+                pos.next = node;
+                node = node.left;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Sépare l'arbre en deux : les patchs inférieurs ou égaux à {@code patch}, puis les autres.
+     */
+    private static Node[] split(Node node, Patch patch) {
+        if (node == null) {
+            return new Node[2];
+        }
+        if (node.patch.compareTo(patch) <= 0) {
+            Node[] parts = split(node.right, patch);
+            parts[0] = node.with(node.left, parts[0]);
+            return parts;
+        }
+        Node[] parts = split(node.left, patch);
+        parts[1] = node.with(parts[1], node.right);
+        return parts;
+    }
+
+    /**
+     * Concatène deux arbres, tous les patchs de {@code a} précédant ceux de {@code b}.
+     */
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority >= b.priority) {
+            return a.with(a.left, merge(a.right, b));
+        }
+        return b.with(merge(a, b.left), b.right);
+    }
+
+    /**
+     * Retire le nœud de ce patch (par identité). Les patchs égaux au sens de {@link Patch#compareTo}
+     * (insertions au même offset) peuvent se trouver des deux côtés : les deux sont explorés.
+     */
+    private static Node remove(Node node, Patch patch) {
+        if (node == null) {
+            return null;
+        }
+        if (node.patch == patch) {
+            return merge(node.left, node.right);
+        }
+        int cmp = patch.compareTo(node.patch);
+        if (cmp <= 0) {
+            Node left = remove(node.left, patch);
+            if (left != node.left || cmp < 0) {
+                return node.with(left, node.right);
+            }
+        }
+        return node.with(node.left, remove(node.right, patch));
+    }
+
+    /**
+     * Construit un treap à partir de nœuds sans enfants déjà triés, en O(n) (arbre cartésien).
+     */
+    private static Node build(List<Node> nodes) {
+        int n = nodes.size();
+        if (n == 0) {
+            return null;
+        }
+        int[] left = new int[n];
+        int[] right = new int[n];
+        Arrays.fill(left, -1);
+        Arrays.fill(right, -1);
+        int[] stack = new int[n];
+        int top = 0;
+        for (int i = 0; i < n; i++) {
+            int last = -1;
+            while (top > 0 && nodes.get(stack[top - 1]).priority < nodes.get(i).priority) {
+                last = stack[--top];
+            }
+            left[i] = last;
+            if (top > 0) {
+                right[stack[top - 1]] = i;
+            }
+            stack[top++] = i;
+        }
+        return assemble(nodes, left, right, stack[0]);
+    }
+
+    private static Node assemble(List<Node> nodes, int[] left, int[] right, int i) {
+        if (i < 0) {
+            return null;
+        }
+        return nodes.get(i).with(assemble(nodes, left, right, left[i]), assemble(nodes, left, right, right[i]));
+    }
+
+    private static void collect(Node node, List<Node> into) {
+        // Parcours infixe itératif : la profondeur n'est bornée qu'en moyenne
+        Deque<Node> stack = new ArrayDeque<>();
+        while (node != null || !stack.isEmpty()) {
+            while (node != null) {
+                stack.push(node);
+                node = node.left;
+            }
+            node = stack.pop();
+            into.add(node);
+            node = node.right;
+        }
+    }
+
+    // === Lignes ===
+
+    /**
+     * @return nœud sans enfants du patch, lignes originales localisées
+     */
+    private Node located(Patch patch, int newLines, int priority) {
+        if (lineLocator == null) {
+            return new Node(patch, newLines, 1, 1, priority, null, null);
+        }
+        int startLine = lineLocator.lineAt(patch.getOriginalStartOffset());
+        int endLine = patch.getOriginalEndOffset() == patch.getOriginalStartOffset()
+                ? startLine
+                : lineLocator.lineAt(patch.getOriginalEndOffset());
+        return new Node(patch, newLines, startLine, endLine, priority, null, null);
+    }
+
+    static int countNewlines(Patch patch) {
+        int count = 0;
+        if (!patch.isSpilled() && !patch.isSourceRange()) {
+            for (byte b : patch.getReplacementBytes()) {
+                if (b == '\n') count++;
+            }
+            return count;
+        }
+        // Payload déporté ou plage source : lecture en streaming, sans le charger en mémoire
+        try (InputStream in = patch.openReplacement()) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') count++;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Comptage de lignes impossible: " + e.getMessage());
+        }
+        return count;
+    }
+
+    static int countNewlines(File file, long from, long to) {
+        if (to <= from) return 0;
+        int count = 0;
+        // Contenu décompressé si le fichier original est gzip
+        try (InputStream in = SourceFiles.openAt(file, from)) {
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = to - from;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) break;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') count++;
+                }
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            System.err.println("Comptage de lignes impossible: " + e.getMessage());
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OffsetTranslator{patches=" + Node.size(root) + ", lines=" + (lineLocator != null) + "}";
+    }
+}
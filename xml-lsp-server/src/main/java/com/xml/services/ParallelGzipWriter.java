@@ -0,0 +1,139 @@
+package com.xml.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression gzip parallèle par blocs indépendants, à la manière de pigz.
+ * <p>
+ * Le flux est découpé en blocs de taille fixe, chacun compressé par un thread en un membre gzip
+ * complet (en-tête, données deflate, CRC32 et taille). Les membres sont écrits dans l'ordre : un
+ * fichier gzip multi-membres est décompressé par les outils standards (gunzip, zcat,
+ * {@link java.util.zip.GZIPInputStream}) comme un flux unique. Le taux de compression est à
+ * peine inférieur à celui d'un flux unique, le débit croît avec le nombre de cœurs.
+ * <p>
+ * La mémoire est bornée : au plus deux blocs par thread de compression sont en vol.
+ */
+public class ParallelGzipWriter {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024; // 4MB
+    public static final int DEFAULT_LEVEL = 6; // Niveau par défaut de gzip et pigz
+
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // Pool partagé : la compression est bornée par le CPU
+    private static final ExecutorService COMPRESSORS = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread t = new Thread(r, "gzip-compressor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final int blockSize;
+    private final int level;
+
+    public ParallelGzipWriter() {
+        this(DEFAULT_BLOCK_SIZE, DEFAULT_LEVEL);
+    }
+
+    /**
+     * @param blockSize Taille des blocs non compressés (un membre gzip par bloc)
+     * @param level Niveau de compression deflate (1 à 9)
+     */
+    public ParallelGzipWriter(int blockSize, int level) {
+        if (blockSize < 1 || level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Configuration gzip invalide: blocs de " + blockSize
+                    + " bytes, niveau " + level);
+        }
+        this.blockSize = blockSize;
+        this.level = level;
+    }
+
+    /**
+     * Compresse tout le flux {@code in} à la suite de la position courante de {@code out}.
+     *
+     * @param progress reçoit le nombre de bytes non compressés traités ; testé entre deux blocs
+     * @return nombre de bytes compressés écrits
+     */
+    public long write(InputStream in, FileChannel out, SaveProgress progress) throws IOException {
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        Deque<Integer> blockLengths = new ArrayDeque<>();
+        long written = 0;
+        boolean empty = true;
+
+        try {
+            while (true) {
+                progress.checkCancelled();
+                byte[] block = in.readNBytes(blockSize);
+                if (block.length == 0) {
+                    break;
+                }
+                empty = false;
+                inFlight.add(COMPRESSORS.submit(() -> compress(block)));
+                blockLengths.add(block.length);
+
+                // Écrire dans l'ordre dès que la fenêtre est pleine
+                while (inFlight.size() >= 2 * THREADS) {
+                    written += writeMember(inFlight.poll(), out);
+                    progress.advance(blockLengths.poll());
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                written += writeMember(inFlight.poll(), out);
+                progress.advance(blockLengths.poll());
+            }
+            if (empty) {
+                // Un fichier gzip contient au moins un membre
+                written += writeFully(compress(new byte[0]), out);
+            }
+        } finally {
+            for (Future<byte[]> pending : inFlight) {
+                pending.cancel(true);
+            }
+        }
+        return written;
+    }
+
+    private byte[] compress(byte[] block) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(block.length / 3 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member, 64 * 1024) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            gzip.write(block);
+        }
+        return member.toByteArray();
+    }
+
+    private static long writeMember(Future<byte[]> member, FileChannel out) throws IOException {
+        try {
+            return writeFully(member.get(), out);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException("Échec de compression", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Compression interrompue", e);
+        }
+    }
+
+    private static long writeFully(byte[] bytes, FileChannel out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return bytes.length;
+    }
+}
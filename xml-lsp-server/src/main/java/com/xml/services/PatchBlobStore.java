@@ -0,0 +1,276 @@
+package com.xml.services;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.xml.models.Patch;
+
+/**
+ * Stockage adressé par contenu des gros textes de remplacement.
+ * <p>
+ * Au-delà d'un seuil, le payload UTF-8 d'un patch est écrit une seule fois dans
+ * {@code .xml-massive-lsp/blobs/<sha256>} et le patch ne garde qu'une référence : le tas
+ * ne contient plus les fragments de plusieurs centaines de Mo, qui sont relus en streaming
+ * par la validation et la sauvegarde. Deux patchs au contenu identique partagent le même blob.
+ * <p>
+ * Un payload construit à partir d'autres plages (report d'une sauvegarde) est écrit en flux via
+ * {@link #openWriter()}, sans jamais être assemblé en mémoire.
+ */
+public class PatchBlobStore {
+
+    public static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024; // 1MB
+
+    private final Path blobDirectory;
+    private final int spillThreshold;
+    private final int maxBlobLength;
+
+    // Blobs écrits depuis le dernier nettoyage : protégés tant que leur patch
+    // n'est pas encore visible dans l'ensemble des patchs vivants
+    private final Set<String> pinned = new HashSet<>();
+
+    public PatchBlobStore(Path workspaceRoot) {
+        this(workspaceRoot, Integer.getInteger("xml.patch.spillThreshold", DEFAULT_SPILL_THRESHOLD));
+    }
+
+    public PatchBlobStore(Path workspaceRoot, int spillThreshold) {
+        this(workspaceRoot, spillThreshold, Integer.getInteger("xml.patch.maxBlobLength", Integer.MAX_VALUE));
+    }
+
+    /**
+     * @param maxBlobLength taille maximale d'un blob : la longueur d'un patch est un int, un payload
+     *                      plus long est découpé par l'appelant en plusieurs patchs consécutifs
+     */
+    public PatchBlobStore(Path workspaceRoot, int spillThreshold, int maxBlobLength) {
+        this.blobDirectory = workspaceRoot.resolve(".xml-massive-lsp").resolve("blobs");
+        this.spillThreshold = spillThreshold;
+        this.maxBlobLength = maxBlobLength;
+    }
+
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    public int getMaxBlobLength() {
+        return maxBlobLength;
+    }
+
+    /**
+     * @return chemin du blob correspondant à une empreinte (le fichier peut ne pas exister)
+     */
+    public Path resolve(String hash) {
+        return blobDirectory.resolve(hash);
+    }
+
+    /**
+     * Déporte le payload du patch dans le store s'il dépasse le seuil.
+     *
+     * @return le patch d'origine s'il est petit (ou déjà déporté, ou plage source), sinon un
+     *         patch équivalent ne référençant que le blob
+     */
+    public Patch spillIfLarge(Patch patch) {
+        if (patch.isSpilled() || patch.isSourceRange() || patch.getNewLength() <= spillThreshold) {
+            return patch;
+        }
+        try {
+            byte[] payload = patch.getReplacementBytes();
+            String hash = store(payload);
+            return patch.withBlob(resolve(hash), hash);
+        } catch (IOException e) {
+            // Le patch reste en mémoire : plus coûteux, mais aucune perte
+            System.err.println("Impossible de déporter le payload du patch: " + e.getMessage());
+            return patch;
+        }
+    }
+
+    /**
+     * Écrit un payload (s'il n'existe pas déjà) et retourne son empreinte SHA-256.
+     * Le blob est synchronisé sur disque avant que le journal ne puisse le référencer.
+     */
+    public String store(byte[] payload) throws IOException {
+        String hash = sha256(payload);
+        synchronized (pinned) {
+            pinned.add(hash);
+        }
+        Path target = resolve(hash);
+        if (Files.exists(target)) {
+            return hash;
+        }
+
+        Files.createDirectories(blobDirectory);
+        Path tmp = Files.createTempFile(blobDirectory, hash, ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(true);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // Écrit en parallèle par un autre appelant : même contenu
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return hash;
+    }
+
+    /**
+     * Ouvre l'écriture en flux d'un payload. L'empreinte est calculée au fil de l'écriture ; le
+     * blob n'est publié qu'à {@link BlobWriter#commit()}, un writer fermé sans commit est abandonné.
+     */
+    public BlobWriter openWriter() throws IOException {
+        Files.createDirectories(blobDirectory);
+        return new BlobWriter(Files.createTempFile(blobDirectory, "stream", ".tmp"));
+    }
+
+    /**
+     * Payload en cours d'écriture dans le store.
+     */
+    public final class BlobWriter extends OutputStream {
+        private final Path tmp;
+        private final FileChannel channel;
+        private final OutputStream out;
+        private final MessageDigest digest = newDigest();
+        private long size;
+        private boolean closed;
+
+        private BlobWriter(Path tmp) throws IOException {
+            this.tmp = tmp;
+            this.channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+        }
+
+        /**
+         * @return nombre de bytes écrits
+         */
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            digest.update((byte) b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            digest.update(b, off, len);
+            size += len;
+        }
+
+        /**
+         * Synchronise le payload sur disque et le publie sous son empreinte.
+         *
+         * @return l'empreinte SHA-256 du payload
+         */
+        public String commit() throws IOException {
+            out.flush();
+            channel.force(true);
+            close();
+            String hash = hex(digest.digest());
+            synchronized (pinned) {
+                pinned.add(hash);
+            }
+            Path target = resolve(hash);
+            try {
+                if (!Files.exists(target)) {
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (FileAlreadyExistsException e) {
+                // Écrit en parallèle par un autre appelant : même contenu
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            return hash;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.close();
+            } finally {
+                channel.close();
+            }
+        }
+
+        /**
+         * Ferme le writer sans publier le payload.
+         */
+        public void abort() {
+            try {
+                close();
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                System.err.println("Impossible de supprimer un blob abandonné: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Supprime les blobs qui ne sont plus référencés.
+     * Les blobs écrits depuis le dernier appel sont conservés : leur patch peut être
+     * en cours d'ajout et absent de {@code liveHashes}.
+     */
+    public void retainOnly(Set<String> liveHashes) {
+        Set<String> keep = new HashSet<>(liveHashes);
+        synchronized (pinned) {
+            keep.addAll(pinned);
+            pinned.clear();
+        }
+        if (!Files.isDirectory(blobDirectory)) {
+            return;
+        }
+        try (DirectoryStream<Path> blobs = Files.newDirectoryStream(blobDirectory)) {
+            for (Path blob : blobs) {
+                String name = blob.getFileName().toString();
+                if (!name.endsWith(".tmp") && !keep.contains(name)) {
+                    Files.deleteIfExists(blob);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Erreur lors du nettoyage des blobs: " + e.getMessage());
+        }
+    }
+
+    private static String sha256(byte[] payload) {
+        return hex(newDigest().digest(payload));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponible", e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -1,75 +1,626 @@
 package com.xml.services;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import com.xml.models.Patch;
 import com.xml.models.PatchType;
 
 /**
- * Gère la persistance des patchs dans un journal (append-only).
- * Format simple JSON-like par ligne pour éviter les dépendances lourdes.
+ * Gère la persistance des patchs dans un journal binaire (append-only).
+ *
+ * <h2>Format d'un enregistrement</h2>
+ * <pre>
+ *   [int longueurPayload][int crc32c(payload)][payload]
+ *   payload = [byte type][long sequence][corps]
+ * </pre>
+ * Un enregistrement tronqué ou dont le CRC ne correspond pas marque la fin du journal
+ * valide : la queue corrompue est coupée au prochain démarrage.
+ *
+ * <h2>Durabilité</h2>
+ * Chaque enregistrement est écrit immédiatement dans le canal ; seul le {@code fsync}
+ * dépend de la {@link FsyncPolicy}. En mode {@code ALWAYS}, les appelants concurrents
+ * partagent un même {@code force()} (group commit).
+ *
+ * <h2>Checkpoints</h2>
+ * Un snapshot ({@code patches.snapshot}) contient l'ensemble des patchs vivants jusqu'à une
+ * séquence donnée. Le démarrage charge le snapshot puis rejoue la courte queue du journal.
+ * Écrire un snapshot compacte le journal : les patchs écrasés ou sauvegardés disparaissent.
+ *
+ * <h2>Ancien format</h2>
+ * Un journal texte des versions précédentes ({@code patches.log}, un objet JSON par ligne) est
+ * rejoué une seule fois dans le journal binaire au chargement, puis supprimé.
  */
-public class PatchJournal {
+public class PatchJournal implements Closeable {
+
+    /**
+     * Politique de synchronisation disque.
+     */
+    public enum FsyncPolicy {
+        /** fsync avant de rendre la main (group commit entre appelants concurrents). */
+        ALWAYS,
+        /** fsync périodique en arrière-plan (toutes les {@link #GROUP_COMMIT_INTERVAL_MS} ms). */
+        BATCH,
+        /** Aucun fsync explicite, le système d'exploitation décide. */
+        NEVER
+    }
+
+    private static final int SNAPSHOT_MAGIC = 0x584D4C53; // "XMLS"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte REC_PATCH = 1;
+    private static final byte REC_BATCH = 2;
+    // Lot issu de la migration de l'ancien journal texte
+    private static final byte REC_LEGACY_BATCH = 3;
+
+    // Longueur de texte réservée : le payload est une référence vers le PatchBlobStore
+    private static final int BLOB_REFERENCE = -1;
+    // Longueur de texte réservée : le payload est une plage d'un fichier source
+    private static final int SOURCE_REFERENCE = -2;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = Integer.MAX_VALUE - RECORD_HEADER_SIZE;
+
+    // Configuration
+    private static final long GROUP_COMMIT_INTERVAL_MS = 20;
+    private static final int CHECKPOINT_RECORD_THRESHOLD = 1000;
+    private static final long CHECKPOINT_BYTES_THRESHOLD = 64L * 1024 * 1024; // 64MB
+
+    // Thread partagé pour les fsync périodiques et les compactions
+    private static final ScheduledExecutorService BACKGROUND = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "patch-journal");
+        t.setDaemon(true);
+        return t;
+    });
 
     private final Path journalPath;
+    private final Path snapshotPath;
+    private final Path legacyPath;
+    private final FsyncPolicy fsyncPolicy;
+    private final PatchBlobStore blobStore;
+
+    // État protégé par "this"
+    private FileChannel channel;
+    private ScheduledFuture<?> flusher;
+    private long lastSequence;      // dernière séquence écrite
+    private long durableSequence;   // dernière séquence garantie sur disque
+    private long snapshotSequence;  // séquence couverte par le snapshot courant
+    private long clearedSequence;   // séquence au dernier clearJournal (sauvegarde)
+    private int recordsSinceCheckpoint;
+    private long bytesSinceCheckpoint;
+    private boolean forcing;
 
     public PatchJournal(Path workspaceRoot) {
-        this.journalPath = workspaceRoot.resolve(".xml-massive-lsp").resolve("patches.log");
+        this(workspaceRoot, FsyncPolicy.BATCH);
     }
 
-    public void logPatch(Patch patch) {
-        ensureJournalExists();
-        String json = serializePatch(patch);
-        try (BufferedWriter writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, 
-                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-            writer.write(json);
-            writer.newLine();
+    public PatchJournal(Path workspaceRoot, FsyncPolicy fsyncPolicy) {
+        this(workspaceRoot.resolve(".xml-massive-lsp"), fsyncPolicy, new PatchBlobStore(workspaceRoot));
+    }
+
+    /**
+     * Journal rangé dans {@code directory}, avec un store de blobs partagé (branches de patchs).
+     */
+    public PatchJournal(Path directory, FsyncPolicy fsyncPolicy, PatchBlobStore blobStore) {
+        this.journalPath = directory.resolve("patches.journal");
+        this.snapshotPath = directory.resolve("patches.snapshot");
+        this.legacyPath = directory.resolve("patches.log");
+        this.fsyncPolicy = fsyncPolicy;
+        this.blobStore = blobStore;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * @return le store des gros payloads, rangé à côté du journal
+     */
+    public PatchBlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * Ajoute un patch au journal.
+     *
+     * @return la séquence de l'enregistrement, à passer à {@link #awaitDurable(long)}
+     */
+    public long logPatch(Patch patch) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64 + inlineLength(patch));
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            writePatch(out, patch);
         } catch (IOException e) {
-            System.err.println("Erreur lors de l'écriture du patch dans le journal: " + e.getMessage());
+            throw new IllegalStateException("Sérialisation du patch impossible", e);
         }
+        return append(REC_PATCH, body.toByteArray());
     }
 
-    public List<Patch> loadPatches() {
-        List<Patch> patches = new ArrayList<>();
-        if (!Files.exists(journalPath)) {
-            return patches;
+    /**
+     * Ajoute un lot de patchs en un seul enregistrement : au rechargement, le lot est rejoué
+     * entièrement ou pas du tout (un enregistrement tronqué est ignoré en bloc).
+     *
+     * @return la séquence de l'enregistrement, à passer à {@link #awaitDurable(long)}
+     */
+    public long logBatch(List<Patch> patches) {
+        return append(REC_BATCH, serializeBatch(patches));
+    }
+
+    private static byte[] serializeBatch(List<Patch> patches) {
+        long estimated = 4;
+        for (Patch p : patches) {
+            estimated += 64 + inlineLength(p);
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) Math.min(estimated, Integer.MAX_VALUE - 8));
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            out.writeInt(patches.size());
+            for (Patch p : patches) {
+                writePatch(out, p);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Sérialisation du lot impossible", e);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Bloque jusqu'à ce que l'enregistrement {@code sequence} soit sur disque.
+     * Sans effet hors du mode {@link FsyncPolicy#ALWAYS}.
+     */
+    public void awaitDurable(long sequence) {
+        if (fsyncPolicy != FsyncPolicy.ALWAYS || sequence <= 0) return;
+        forceUpTo(sequence);
+    }
+
+    /**
+     * Force l'écriture sur disque de tout ce qui a été journalisé.
+     */
+    public void sync() {
+        long target;
+        synchronized (this) {
+            target = lastSequence;
+        }
+        forceUpTo(target);
+    }
+
+    /**
+     * @return true si la queue du journal est assez longue pour justifier un checkpoint
+     */
+    public synchronized boolean needsCheckpoint() {
+        return recordsSinceCheckpoint >= CHECKPOINT_RECORD_THRESHOLD
+                || bytesSinceCheckpoint >= CHECKPOINT_BYTES_THRESHOLD;
+    }
+
+    /**
+     * @return la dernière séquence écrite (à capturer avec l'état vivant pour un checkpoint)
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Exécute une tâche sur le thread d'arrière-plan du journal (compaction).
+     */
+    public void runInBackground(Runnable task) {
+        BACKGROUND.execute(task);
+    }
+
+    /**
+     * Écrit un snapshot des patchs vivants puis compacte le journal.
+     * Seuls les enregistrements postérieurs à {@code upToSequence} sont conservés.
+     *
+     * @param livePatches patchs vivants triés, capturés au moment où {@code upToSequence} était la dernière séquence
+     * @param upToSequence séquence couverte par le snapshot
+     * @return false si le snapshot a été écarté car périmé (journal vidé ou remplacé entre-temps)
+     */
+    public boolean writeCheckpoint(List<Patch> livePatches, long upToSequence) throws IOException {
+        ensureJournalExists();
+
+        // 1. Snapshot (hors verrou : peut être volumineux). Fichier temporaire propre à l'appel :
+        // une compaction et un remplacement d'état peuvent écrire en même temps.
+        Path tmp = Files.createTempFile(snapshotPath.getParent(), snapshotPath.getFileName().toString(), ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32C crc = new CRC32C();
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(ch), 64 * 1024), crc);
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(upToSequence);
+            out.writeInt(livePatches.size());
+            for (Patch p : livePatches) {
+                writePatch(out, p);
+            }
+            out.flush();
+            // Le CRC final n'est pas inclus dans le calcul
+            DataOutputStream trailer = new DataOutputStream(Channels.newOutputStream(ch));
+            trailer.writeInt((int) crc.getValue());
+            trailer.flush();
+            ch.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        // 2. Publication + compaction de la queue du journal (sous verrou : bloque brièvement les ajouts)
+        synchronized (this) {
+            while (forcing) {
+                waitUninterruptibly();
+            }
+            if (upToSequence <= clearedSequence || upToSequence < snapshotSequence) {
+                // Une sauvegarde a vidé ou remplacé le journal entre-temps : ce snapshot est périmé
+                Files.deleteIfExists(tmp);
+                return false;
+            }
+            Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            snapshotSequence = upToSequence;
+            rewriteTail();
+            return true;
+        }
+    }
+
+    /**
+     * Remplace tout l'état persistant par {@code patches} (report après une sauvegarde). Le nouvel
+     * état est écrit comme un checkpoint : le snapshot est publié atomiquement, puis la queue est
+     * vidée. Un arrêt à tout moment laisse l'ancien état complet ou le nouveau, jamais un journal vide.
+     * Une compaction en cours, qui porte sur l'ancien état, est écartée.
+     */
+    public void replaceState(List<Patch> patches) throws IOException {
+        long sequence;
+        synchronized (this) {
+            // Séquence réservée au nouvel état : tout checkpoint antérieur est périmé
+            sequence = ++lastSequence;
+            clearedSequence = sequence - 1;
         }
+        writeCheckpoint(patches, sequence);
+    }
+
+    /**
+     * @return true si un snapshot existe : l'état persistant ne dépend d'aucune autre branche
+     */
+    public boolean hasSnapshot() {
+        return Files.exists(snapshotPath);
+    }
 
-        try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
-                try {
-                    Patch patch = deserializePatch(line);
-                    if (patch != null) {
-                        patches.add(patch);
+    /**
+     * Lit, sans modifier le journal, l'état tel qu'il était à la séquence {@code upToSequence} :
+     * le snapshot, puis les enregistrements de la queue jusqu'à cette séquence. Sert à rejouer
+     * l'historique partagé par une branche créée à partir de celle-ci.
+     */
+    public Recovery readUpTo(long upToSequence) {
+        List<Patch> snapshot = new ArrayList<>();
+        List<Patch> tail = new ArrayList<>();
+        long snapSeq = readSnapshot(snapshot);
+        if (snapSeq > upToSequence) {
+            System.err.println("Historique compacté au-delà de la séquence " + upToSequence + ": " + journalPath);
+        }
+        if (Files.exists(journalPath)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(journalPath), 64 * 1024))) {
+                long remaining = Files.size(journalPath);
+                Record record;
+                while ((record = readRecord(in, remaining)) != null && record.sequence <= upToSequence) {
+                    remaining -= RECORD_HEADER_SIZE + record.size;
+                    if (record.sequence > snapSeq) {
+                        tail.addAll(record.patches);
                     }
-                } catch (Exception e) {
-                    System.err.println("Patch corrompu ignoré: " + line);
                 }
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la lecture du journal de patchs: " + e.getMessage());
             }
+        }
+        return new Recovery(snapshot, tail);
+    }
+
+    /**
+     * Charge l'état persistant : le dernier snapshot, puis la queue du journal. Un ancien
+     * journal texte est migré à cette occasion.
+     */
+    public Recovery loadPatches() {
+        List<Patch> snapshot = new ArrayList<>();
+        List<Patch> tail = new ArrayList<>();
+        long snapSeq = readSnapshot(snapshot);
+
+        long maxSeq = snapSeq;
+        int tailRecords = 0;
+        long tailBytes = 0;
+        boolean legacyMigrated = false;
+
+        if (Files.exists(journalPath)) {
+            long validLength = 0;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(journalPath), 64 * 1024))) {
+                long fileSize = Files.size(journalPath);
+                Record record;
+                while ((record = readRecord(in, fileSize - validLength)) != null) {
+                    validLength += RECORD_HEADER_SIZE + record.size;
+                    legacyMigrated |= record.type == REC_LEGACY_BATCH;
+                    if (record.sequence <= snapSeq) continue; // déjà couvert par le snapshot
+                    maxSeq = Math.max(maxSeq, record.sequence);
+                    tail.addAll(record.patches);
+                    tailRecords++;
+                    tailBytes += RECORD_HEADER_SIZE + record.size;
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la lecture du journal de patchs: " + e.getMessage());
+            }
+            truncateCorruptedTail(validLength);
+        }
+
+        synchronized (this) {
+            lastSequence = Math.max(lastSequence, maxSeq);
+            durableSequence = Math.max(durableSequence, maxSeq);
+            snapshotSequence = snapSeq;
+            recordsSinceCheckpoint = tailRecords;
+            bytesSinceCheckpoint = tailBytes;
+        }
+        if (Files.exists(legacyPath)) {
+            tail.addAll(migrateLegacyLog(legacyMigrated));
+        }
+        return new Recovery(snapshot, tail);
+    }
+
+    /**
+     * Rejoue l'ancien journal texte dans le journal binaire, puis le supprime. Le lot migré est
+     * marqué : si l'arrêt survient entre sa journalisation et la suppression de l'ancien fichier,
+     * il n'est pas rejoué une seconde fois.
+     *
+     * @param alreadyMigrated true si le journal binaire contient déjà le lot migré
+     * @return patchs migrés, à rejouer après la queue
+     */
+    private List<Patch> migrateLegacyLog(boolean alreadyMigrated) {
+        List<Patch> patches = new ArrayList<>();
+        if (!alreadyMigrated) {
+            try (BufferedReader reader = Files.newBufferedReader(legacyPath, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) continue;
+                    try {
+                        patches.add(deserializeLegacyPatch(line));
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Patch corrompu ignoré: " + line);
+                    }
+                }
+            } catch (IOException e) {
+                // L'ancien journal est conservé : la migration sera retentée au prochain démarrage
+                System.err.println("Ancien journal de patchs illisible, migration reportée: " + e.getMessage());
+                return new ArrayList<>();
+            }
+            if (!patches.isEmpty()) {
+                append(REC_LEGACY_BATCH, serializeBatch(patches));
+                sync();
+                System.err.println(patches.size() + " patch(s) migré(s) depuis " + legacyPath);
+            }
+        }
+        try {
+            Files.delete(legacyPath);
         } catch (IOException e) {
-            System.err.println("Erreur lors de la lecture du journal de patchs: " + e.getMessage());
+            System.err.println("Impossible de supprimer l'ancien journal: " + e.getMessage());
         }
         return patches;
     }
 
     public void clearJournal() {
+        synchronized (this) {
+            while (forcing) {
+                waitUninterruptibly();
+            }
+            closeChannel();
+            recordsSinceCheckpoint = 0;
+            bytesSinceCheckpoint = 0;
+            snapshotSequence = lastSequence;
+            clearedSequence = lastSequence;
+        }
         try {
             Files.deleteIfExists(journalPath);
+            Files.deleteIfExists(snapshotPath);
         } catch (IOException e) {
             System.err.println("Impossible de supprimer le journal: " + e.getMessage());
         }
     }
 
+    @Override
+    public void close() {
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            sync();
+        }
+        synchronized (this) {
+            while (forcing) {
+                waitUninterruptibly();
+            }
+            closeChannel();
+        }
+    }
+
+    /**
+     * Résultat du chargement : le snapshot (patchs disjoints, triés) et la queue à rejouer dans l'ordre.
+     */
+    public static final class Recovery {
+        private final List<Patch> snapshotPatches;
+        private final List<Patch> tailPatches;
+
+        Recovery(List<Patch> snapshotPatches, List<Patch> tailPatches) {
+            this.snapshotPatches = snapshotPatches;
+            this.tailPatches = tailPatches;
+        }
+
+        public List<Patch> getSnapshotPatches() { return snapshotPatches; }
+        public List<Patch> getTailPatches() { return tailPatches; }
+    }
+
+    // --- Écriture ---
+
+    private synchronized long append(byte type, byte[] body) {
+        long sequence = lastSequence + 1;
+        int payloadSize = 1 + 8 + body.length;
+        if (payloadSize > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Enregistrement de journal trop grand: " + payloadSize);
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+        payload.put(type).putLong(sequence).put(body).flip();
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(payloadSize).putInt((int) crc.getValue()).flip();
+
+        try {
+            FileChannel ch = openChannel();
+            ByteBuffer[] buffers = { header, payload };
+            while (header.hasRemaining() || payload.hasRemaining()) {
+                ch.write(buffers);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Erreur lors de l'écriture du patch dans le journal: " + e.getMessage(), e);
+        }
+
+        lastSequence = sequence;
+        recordsSinceCheckpoint++;
+        bytesSinceCheckpoint += RECORD_HEADER_SIZE + payloadSize;
+        return sequence;
+    }
+
+    private FileChannel openChannel() throws IOException {
+        if (channel == null) {
+            ensureJournalExists();
+            channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            if (fsyncPolicy == FsyncPolicy.BATCH && flusher == null) {
+                flusher = BACKGROUND.scheduleWithFixedDelay(this::sync,
+                        GROUP_COMMIT_INTERVAL_MS, GROUP_COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return channel;
+    }
+
+    private void closeChannel() {
+        if (flusher != null) {
+            flusher.cancel(false);
+            flusher = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Erreur lors de la fermeture du journal: " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Group commit : un seul thread exécute {@code force()} pour tous ceux qui attendent.
+     */
+    private void forceUpTo(long sequence) {
+        while (true) {
+            long target;
+            FileChannel ch;
+            synchronized (this) {
+                while (forcing && durableSequence < sequence) {
+                    waitUninterruptibly();
+                }
+                if (durableSequence >= sequence || channel == null) {
+                    return;
+                }
+                forcing = true;
+                target = lastSequence;
+                ch = channel;
+            }
+
+            boolean ok = false;
+            try {
+                ch.force(false);
+                ok = true;
+            } catch (IOException e) {
+                System.err.println("Erreur lors du fsync du journal: " + e.getMessage());
+            } finally {
+                synchronized (this) {
+                    forcing = false;
+                    if (ok) {
+                        durableSequence = Math.max(durableSequence, target);
+                    }
+                    notifyAll();
+                }
+            }
+            if (!ok) return;
+        }
+    }
+
+    /**
+     * Réécrit le journal en ne gardant que les enregistrements postérieurs au snapshot.
+     * Appelé sous verrou.
+     */
+    private void rewriteTail() throws IOException {
+        closeChannel();
+        recordsSinceCheckpoint = 0;
+        bytesSinceCheckpoint = 0;
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+
+        Path tmp = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+        try (DataInputStream in = new DataInputStream(
+                     new BufferedInputStream(Files.newInputStream(journalPath), 64 * 1024));
+             FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long remaining = Files.size(journalPath);
+            RawRecord raw;
+            while ((raw = readRawRecord(in, remaining)) != null) {
+                remaining -= RECORD_HEADER_SIZE + raw.payload.length;
+                if (raw.sequence <= snapshotSequence) continue;
+                ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+                header.putInt(raw.payload.length).putInt(raw.crc).flip();
+                ByteBuffer[] buffers = { header, ByteBuffer.wrap(raw.payload) };
+                while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+                    out.write(buffers);
+                }
+                recordsSinceCheckpoint++;
+                bytesSinceCheckpoint += RECORD_HEADER_SIZE + raw.payload.length;
+            }
+            out.force(true);
+        }
+        Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        durableSequence = lastSequence;
+    }
+
+    private void truncateCorruptedTail(long validLength) {
+        try {
+            if (Files.size(journalPath) > validLength) {
+                System.err.println("Queue de journal corrompue ignorée à partir de l'offset " + validLength);
+                try (FileChannel ch = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+                    ch.truncate(validLength);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Impossible de tronquer le journal: " + e.getMessage());
+        }
+    }
+
     private void ensureJournalExists() {
         try {
             if (!Files.exists(journalPath.getParent())) {
@@ -80,42 +631,214 @@ public class PatchJournal {
         }
     }
 
-    // Sérialisation manuelle simple pour éviter les dépendances externes comme Gson/Jackson si non disponibles
-    private String serializePatch(Patch patch) {
-        // Échappement basique des guillemets et backslashes
-        String safeText = patch.getReplacementText()
-                .replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace("\n", "\\n")
-                .replace("\r", "\\r");
+    private void waitUninterruptibly() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --- Lecture ---
 
-        return String.format("{\"start\":%d,\"end\":%d,\"type\":\"%s\",\"text\":\"%s\",\"fragment\":\"%s\"}",
-                patch.getGlobalStartOffset(),
-                patch.getGlobalEndOffset(),
-                patch.getType().name(),
-                safeText,
-                patch.getFragmentId() != null ? patch.getFragmentId() : "");
+    private long readSnapshot(List<Patch> into) {
+        if (!Files.exists(snapshotPath)) {
+            return 0;
+        }
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(snapshotPath), 64 * 1024)) {
+            CRC32C crc = new CRC32C();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(raw, crc));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("En-tête de snapshot invalide");
+            }
+            long sequence = in.readLong();
+            int count = in.readInt();
+            List<Patch> patches = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                patches.add(readPatch(in));
+            }
+            int expected = (int) crc.getValue();
+            int stored = new DataInputStream(raw).readInt();
+            if (stored != expected) {
+                throw new IOException("Checksum du snapshot invalide");
+            }
+            into.addAll(patches);
+            return sequence;
+        } catch (IOException | RuntimeException e) {
+            // Un snapshot n'est remplacé qu'atomiquement : s'il est illisible, on l'ignore
+            System.err.println("Snapshot de patchs ignoré: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private static final class RawRecord {
+        final int crc;
+        final byte[] payload;
+        final long sequence;
+
+        RawRecord(int crc, byte[] payload, long sequence) {
+            this.crc = crc;
+            this.payload = payload;
+            this.sequence = sequence;
+        }
     }
 
-    private Patch deserializePatch(String json) {
-        // Parsing manuel très basique
+    private static final class Record {
+        final byte type;
+        final long sequence;
+        final int size;
+        final List<Patch> patches;
+
+        Record(byte type, long sequence, int size, List<Patch> patches) {
+            this.type = type;
+            this.sequence = sequence;
+            this.size = size;
+            this.patches = patches;
+        }
+    }
+
+    /**
+     * Lit un enregistrement brut et vérifie son CRC. Retourne null en fin de journal valide.
+     *
+     * @param available bytes restants dans le fichier à partir de l'en-tête : une longueur qui les
+     *                  dépasse est une écriture interrompue ou corrompue, rien n'est alloué
+     */
+    private RawRecord readRawRecord(DataInputStream in, long available) throws IOException {
+        int size;
+        int crcValue;
+        try {
+            size = in.readInt();
+            crcValue = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (size < 9 || size > MAX_RECORD_SIZE || size > available - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        byte[] payload = new byte[size];
         try {
-            long start = Long.parseLong(extractValue(json, "start"));
-            long end = Long.parseLong(extractValue(json, "end"));
-            String typeStr = extractString(json, "type");
-            String text = extractString(json, "text");
-            String fragment = extractString(json, "fragment");
+            in.readFully(payload);
+        } catch (EOFException e) {
+            return null; // Écriture interrompue
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        if ((int) crc.getValue() != crcValue) {
+            return null;
+        }
+        long sequence = ByteBuffer.wrap(payload, 1, 8).getLong();
+        return new RawRecord(crcValue, payload, sequence);
+    }
+
+    private Record readRecord(DataInputStream in, long available) throws IOException {
+        RawRecord raw = readRawRecord(in, available);
+        if (raw == null) return null;
 
-            // Unescape is now handled by extractString
-            // text = text.replace("\\r", "\r") ...
+        DataInputStream body = new DataInputStream(
+                new java.io.ByteArrayInputStream(raw.payload, 9, raw.payload.length - 9));
+        byte type = raw.payload[0];
+        List<Patch> patches = new ArrayList<>(1);
+        if (type == REC_PATCH) {
+            patches.add(readPatch(body));
+        } else if (type == REC_BATCH || type == REC_LEGACY_BATCH) {
+            int count = body.readInt();
+            for (int i = 0; i < count; i++) {
+                patches.add(readPatch(body));
+            }
+        } else {
+            System.err.println("Type d'enregistrement inconnu ignoré: " + type);
+        }
+        return new Record(type, raw.sequence, raw.payload.length, patches);
+    }
 
+    // --- Sérialisation binaire d'un patch ---
+
+    private static int inlineLength(Patch patch) {
+        return patch.isSpilled() || patch.isSourceRange() ? 0 : patch.getNewLength();
+    }
+
+    private static void writePatch(DataOutputStream out, Patch patch) throws IOException {
+        out.writeLong(patch.getOriginalStartOffset());
+        out.writeLong(patch.getOriginalEndOffset());
+        out.writeByte(patch.getType().ordinal());
+        writeNullableString(out, patch.getFragmentId());
+        if (patch.isSpilled()) {
+            // Payload déporté : seule la référence au blob est journalisée
+            out.writeInt(BLOB_REFERENCE);
+            out.writeInt(patch.getNewLength());
+            writeNullableString(out, patch.getBlobHash());
+            return;
+        }
+        if (patch.isSourceRange()) {
+            // Plage d'un fichier existant : ni le contenu ni une copie ne sont journalisés
+            out.writeInt(SOURCE_REFERENCE);
+            out.writeInt(patch.getNewLength());
+            writeNullableString(out, patch.getSourceFile().toString());
+            out.writeLong(patch.getSourceOffset());
+            return;
+        }
+        byte[] text = patch.getReplacementBytes();
+        out.writeInt(text.length);
+        out.write(text);
+    }
+
+    private Patch readPatch(DataInputStream in) throws IOException {
+        long start = in.readLong();
+        long end = in.readLong();
+        PatchType type = PatchType.values()[in.readUnsignedByte()];
+        String fragment = readNullableString(in);
+        int length = in.readInt();
+        if (length == BLOB_REFERENCE) {
+            int newLength = in.readInt();
+            String hash = readNullableString(in);
+            return Patch.spilled(start, end, blobStore.resolve(hash), hash, newLength, type, fragment);
+        }
+        if (length == SOURCE_REFERENCE) {
+            int newLength = in.readInt();
+            Path source = Path.of(readNullableString(in));
+            long sourceOffset = in.readLong();
+            return Patch.fromSource(start, end, source, sourceOffset, newLength, type, fragment);
+        }
+        byte[] text = new byte[length];
+        in.readFully(text);
+        return new Patch(start, end, text, type, fragment);
+    }
+
+    private static void writeNullableString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // --- Ancien format texte (migration) ---
+
+    private static Patch deserializeLegacyPatch(String json) {
+        // Parsing manuel très basique, identique à celui de l'ancien journal
+        try {
+            long start = Long.parseLong(extractLegacyValue(json, "start"));
+            long end = Long.parseLong(extractLegacyValue(json, "end"));
+            String typeStr = extractLegacyString(json, "type");
+            String text = extractLegacyString(json, "text");
+            String fragment = extractLegacyString(json, "fragment");
             return new Patch(start, end, text, PatchType.valueOf(typeStr), fragment.isEmpty() ? null : fragment);
-        } catch (Exception e) {
+        } catch (RuntimeException e) {
             throw new IllegalArgumentException("Format JSON invalide", e);
         }
     }
 
-    private String extractValue(String json, String key) {
+    private static String extractLegacyValue(String json, String key) {
         String search = "\"" + key + "\":";
         int start = json.indexOf(search);
         if (start == -1) throw new IllegalArgumentException("Clé manquante: " + key);
@@ -125,27 +848,26 @@ public class PatchJournal {
         return json.substring(start, end).trim();
     }
 
-    private String extractString(String json, String key) {
+    private static String extractLegacyString(String json, String key) {
         String search = "\"" + key + "\":\"";
         int start = json.indexOf(search);
         if (start == -1) throw new IllegalArgumentException("Clé manquante: " + key);
         start += search.length();
-        
+
+        // L'ancien format échappait \\, \", \n et \r
         StringBuilder sb = new StringBuilder();
         boolean escaped = false;
         for (int i = start; i < json.length(); i++) {
             char c = json.charAt(i);
             if (escaped) {
-                sb.append(c);
+                sb.append(c == 'n' ? '\n' : c == 'r' ? '\r' : c);
                 escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '"') {
+                return sb.toString();
             } else {
-                if (c == '\\') {
-                    escaped = true;
-                } else if (c == '"') {
-                    return sb.toString();
-                } else {
-                    sb.append(c);
-                }
+                sb.append(c);
             }
         }
         throw new IllegalArgumentException("Chaîne non terminée pour: " + key);
@@ -1,121 +1,1218 @@
 package com.xml.services;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
 import com.xml.models.Patch;
+import com.xml.models.PatchType;
 
 /**
  * Gestionnaire de patchs robuste.
  * Maintient une liste triée de patchs et un index par fragment.
  * Gère la fusion des conflits et la persistance.
+ * <p>
+ * Les patchs sont organisés en branches nommées ({@link #DEFAULT_BRANCH} au départ). Une branche
+ * créée par {@link #createBranch} partage en copie sur écriture l'historique de sa branche
+ * d'origine ; changer de branche active ne fait que changer de référence. Chaque branche a son
+ * journal ({@code .xml-massive-lsp/branches/<nom>/}), les blobs sont partagés.
+ * <p>
+ * Sur disque aussi, l'historique est partagé : une nouvelle branche ne note que sa branche
+ * d'origine et la séquence de son journal au moment de la création (fichier {@code fork}). Au
+ * démarrage, elle rejoue l'historique de l'origine jusqu'à cette séquence, puis sa propre queue.
+ * Avant que l'origine ne compacte ou ne vide cet historique, la branche est matérialisée : son
+ * état complet est écrit dans son propre snapshot et le lien disparaît.
  */
 public class PatchManager {
 
-    // Liste globale triée par offset (pour l'application finale)
-    private final List<Patch> patchesSortedByOffset = new CopyOnWriteArrayList<>();
+    public static final String DEFAULT_BRANCH = "main";
 
-    // Index par fragment (pour l'édition locale)
-    private final Map<String, List<Patch>> patchesByFragment = new ConcurrentHashMap<>();
+    private static final Pattern BRANCH_NAME = Pattern.compile("[A-Za-z0-9._-]{1,64}");
 
-    private final PatchJournal journal;
+    // Lien d'une branche vers l'historique de sa branche d'origine : "<origine>\n<séquence>\n"
+    private static final String FORK_FILE = "fork";
+
+    /**
+     * État d'une branche : patchs triés, index par fragment, traducteur d'offsets et journal.
+     */
+    private static final class Branch {
+        final String name;
+
+        // Liste globale triée par offset (pour l'application finale).
+        // Volatile : un lot publie une nouvelle liste d'un seul coup.
+        volatile CopyOnWriteArrayList<Patch> patchesSortedByOffset = new CopyOnWriteArrayList<>();
+
+        // Index par fragment (pour l'édition locale)
+        volatile Map<String, List<Patch>> patchesByFragment = new ConcurrentHashMap<>();
+
+        // Index par fragment partagé avec une autre branche : copié à la première écriture
+        boolean fragmentsShared;
+
+        // Branche d'origine dont le journal porte l'historique de celle-ci jusqu'à forkSequence
+        // (null une fois la branche matérialisée dans son propre snapshot)
+        Branch parent;
+        long forkSequence;
+
+        // Traduction original <-> logique, maintenue au fil des ajouts
+        OffsetTranslator offsetTranslator = new OffsetTranslator();
+
+        final PatchJournal journal;
+
+        // Évite de planifier plusieurs compactions simultanées
+        final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+
+        Branch(String name, PatchJournal journal) {
+            this.name = name;
+            this.journal = journal;
+        }
+    }
+
+    private final Path stateDirectory;
+    private final PatchJournal.FsyncPolicy fsyncPolicy;
+    private final PatchBlobStore blobStore;
+
+    // Branches par nom, dans l'ordre de création ; protégées par "this"
+    private final Map<String, Branch> branches = new LinkedHashMap<>();
+
+    // Branche active : les éditions, la validation et la sauvegarde par défaut s'y appliquent
+    private volatile Branch active;
+
+    private OffsetTranslator.LineLocator lineLocator;
 
     public PatchManager(Path workspaceRoot) {
-        this.journal = new PatchJournal(workspaceRoot);
-        reloadPatches();
+        this(workspaceRoot, PatchJournal.FsyncPolicy.BATCH);
+    }
+
+    public PatchManager(Path workspaceRoot, PatchJournal.FsyncPolicy fsyncPolicy) {
+        this.stateDirectory = workspaceRoot.resolve(".xml-massive-lsp");
+        this.fsyncPolicy = fsyncPolicy;
+        this.blobStore = new PatchBlobStore(workspaceRoot);
+        Branch main = new Branch(DEFAULT_BRANCH, new PatchJournal(stateDirectory, fsyncPolicy, blobStore));
+        branches.put(DEFAULT_BRANCH, main);
+        reloadPatches(main);
+        this.active = main;
+        loadBranches();
     }
     
     // Constructeur sans journal pour les tests ou usage temporaire
     public PatchManager() {
-        this.journal = null;
+        this.stateDirectory = null;
+        this.fsyncPolicy = null;
+        this.blobStore = null;
+        this.active = new Branch(DEFAULT_BRANCH, null);
+        branches.put(DEFAULT_BRANCH, active);
     }
 
     /**
      * Ajoute un patch avec gestion des conflits et normalisation.
      */
-    public synchronized void addPatch(Patch newPatch) {
-        // 1. Normalisation (déjà faite par le constructeur de Patch, mais on pourrait en faire plus ici)
-        
-        // 2. Gestion des conflits et fusion
-        List<Patch> conflictingPatches = findConflictingPatches(newPatch);
-        
-        if (!conflictingPatches.isEmpty()) {
-            // Retirer les patchs en conflit
-            patchesSortedByOffset.removeAll(conflictingPatches);
-            removeFromFragmentIndex(conflictingPatches);
-            
-            // Fusionner
-            newPatch = mergePatches(conflictingPatches, newPatch);
+    public void addPatch(Patch newPatch) {
+        // Gros payload : écrit dans le blob store avant le verrou, le patch ne garde que la référence
+        newPatch = spillIfLarge(newPatch);
+
+        long sequence;
+        PatchJournal journal;
+        synchronized (this) {
+            Branch branch = active;
+            journal = branch.journal;
+
+            // 1. Normalisation (déjà faite par le constructeur de Patch, mais on pourrait en faire plus ici)
+
+            // 2-4. Gestion des conflits, insertion triée et indexation par fragment
+            newPatch = applyInMemory(branch, newPatch);
+
+            // 5. Persistance
+            if (journal == null) {
+                return;
+            }
+            sequence = journal.logPatch(newPatch);
+            if (journal.needsCheckpoint()) {
+                scheduleCompaction(branch);
+            }
         }
 
-        // 3. Insertion triée
-        insertSorted(newPatch);
-        
-        // 4. Indexation par fragment
-        addToFragmentIndex(newPatch);
+        // 6. Durabilité : attendue hors verrou pour que les appelants concurrents partagent le même fsync
+        journal.awaitDurable(sequence);
+    }
+
+    /**
+     * Applique un lot ordonné de patchs de façon transactionnelle.
+     * <p>
+     * Le résultat est identique à des appels successifs à {@link #addPatch(Patch)}, mais les
+     * conflits sont résolus en une seule passe, le lot est journalisé en un seul enregistrement
+     * et le nouvel état est publié atomiquement. Si la journalisation échoue, rien n'est appliqué.
+     *
+     * @return nombre de patchs du lot retenus (les autres sont écrasés par un patch plus récent du lot)
+     */
+    public int addPatches(List<Patch> batch) {
+        if (batch == null || batch.isEmpty()) {
+            return 0;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i) == null) {
+                throw new IllegalArgumentException("Patch #" + i + " null dans le lot");
+            }
+        }
+        List<Patch> spilledBatch = new ArrayList<>(batch.size());
+        for (Patch p : batch) {
+            spilledBatch.add(spillIfLarge(p));
+        }
+        batch = spilledBatch;
+
+        long sequence = 0;
+        List<Patch> survivors;
+        PatchJournal journal;
+        synchronized (this) {
+            Branch branch = active;
+            journal = branch.journal;
+
+            // 1. Résolution des conflits en une passe (le dernier gagne, comme addPatch)
+            Coverage coverage = new Coverage();
+            survivors = new ArrayList<>();
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                Patch p = batch.get(i);
+                if (!coverage.overlaps(p)) {
+                    survivors.add(p);
+                }
+                coverage.add(p);
+            }
+            Collections.reverse(survivors);
+
+            List<Patch> kept = new ArrayList<>(branch.patchesSortedByOffset.size());
+            for (Patch existing : branch.patchesSortedByOffset) {
+                if (!coverage.overlaps(existing)) {
+                    kept.add(existing);
+                }
+            }
+
+            // 2. Journalisation (avant publication : un échec laisse l'état intact).
+            // Le lot complet est journalisé : un patch écrasé dans le lot a pu lui-même
+            // écraser un patch existant, le rejeu doit le reproduire.
+            if (journal != null) {
+                sequence = journal.logBatch(batch);
+            }
+
+            // 3. Publication atomique du nouvel état
+            List<Patch> added = new ArrayList<>(survivors);
+            added.sort(null); // tri stable : l'ordre du lot est conservé à position égale
+            publish(branch, mergeSorted(kept, added));
+
+            if (journal != null && journal.needsCheckpoint()) {
+                scheduleCompaction(branch);
+            }
+        }
 
-        // 5. Persistance
         if (journal != null) {
-            journal.logPatch(newPatch);
+            journal.awaitDurable(sequence);
         }
+        return survivors.size();
     }
 
     public List<Patch> getPatchesForFragment(String fragmentId) {
-        return patchesByFragment.getOrDefault(fragmentId, Collections.emptyList());
+        return active.patchesByFragment.getOrDefault(fragmentId, Collections.emptyList());
+    }
+
+    /**
+     * Patchs vivants qui touchent la plage originale [start, end) : chevauchement, ou insertion
+     * dans [start, end). Avec start == end, retourne les patchs qui contiennent strictement start.
+     * Recherche dichotomique : O(log n + k).
+     */
+    public synchronized List<Patch> getPatchesInRange(long start, long end) {
+        List<Patch> patches = active.patchesSortedByOffset;
+        // Premier patch qui finit à start ou après
+        int low = 0;
+        int high = patches.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (patches.get(mid).getOriginalEndOffset() >= start) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        List<Patch> result = new ArrayList<>();
+        for (int i = low; i < patches.size(); i++) {
+            Patch p = patches.get(i);
+            if (p.getOriginalStartOffset() >= end) {
+                break;
+            }
+            boolean insertion = p.getOriginalStartOffset() == p.getOriginalEndOffset();
+            if (insertion ? p.getOriginalStartOffset() >= start : p.getOriginalEndOffset() > start) {
+                result.add(p);
+            }
+        }
+        return result;
     }
 
     public List<Patch> getAllPatchesSorted() {
-        return new ArrayList<>(patchesSortedByOffset);
+        return new ArrayList<>(active.patchesSortedByOffset);
     }
 
     public int getPatchCount() {
-        return patchesSortedByOffset.size();
+        return active.patchesSortedByOffset.size();
+    }
+
+    public OffsetTranslator getOffsetTranslator() {
+        return active.offsetTranslator;
+    }
+
+    /**
+     * Associe le fichier original et son index pour permettre la traduction des lignes.
+     */
+    public synchronized void attachDocument(File originalFile, FragmentIndex index) {
+        lineLocator = OffsetTranslator.lineLocatorFor(originalFile, index);
+        for (Branch branch : branches.values()) {
+            branch.offsetTranslator.setLineLocator(lineLocator);
+        }
+    }
+
+    // --- Branches ---
+
+    /**
+     * @return nom de la branche active
+     */
+    public String getActiveBranch() {
+        return active.name;
+    }
+
+    /**
+     * @return noms des branches, dans l'ordre de création
+     */
+    public synchronized List<String> getBranchNames() {
+        return new ArrayList<>(branches.keySet());
+    }
+
+    /**
+     * Crée une branche à partir de l'état courant d'une autre (la branche active si {@code from}
+     * est null). Les patchs ne sont pas copiés : les deux branches partagent la même liste, le même
+     * index par fragment et le même arbre de traduction jusqu'à la première modification de l'une
+     * d'elles. Sur disque, seul le lien vers l'historique de l'origine est écrit : la création est
+     * en O(1), quel que soit le nombre de patchs. La branche créée n'est pas activée.
+     */
+    public void createBranch(String name, String from) {
+        PatchJournal origin = null;
+        long forkSequence = 0;
+        synchronized (this) {
+            if (name == null || !BRANCH_NAME.matcher(name).matches()) {
+                throw new IllegalArgumentException("Nom de branche invalide: " + name);
+            }
+            if (branches.containsKey(name)) {
+                throw new IllegalArgumentException("La branche existe déjà: " + name);
+            }
+            Branch source = from == null ? active : requireBranch(from);
+
+            Branch branch = new Branch(name, stateDirectory != null ? openBranchJournal(name, true) : null);
+            @SuppressWarnings("unchecked")
+            CopyOnWriteArrayList<Patch> shared = (CopyOnWriteArrayList<Patch>) source.patchesSortedByOffset.clone();
+            branch.patchesSortedByOffset = shared;
+            branch.patchesByFragment = source.patchesByFragment;
+            branch.fragmentsShared = true;
+            source.fragmentsShared = true;
+            branch.offsetTranslator = source.offsetTranslator.copy();
+
+            if (branch.journal != null) {
+                forkSequence = source.journal.getLastSequence();
+                writeForkLink(name, source.name, forkSequence);
+                branch.parent = source;
+                branch.forkSequence = forkSequence;
+                origin = source.journal;
+            }
+            branches.put(name, branch);
+        }
+
+        // L'historique partagé doit être sur disque avant que la branche ne s'y appuie
+        if (origin != null) {
+            origin.awaitDurable(forkSequence);
+        }
+    }
+
+    /**
+     * Active une branche : les éditions suivantes s'y appliquent. O(1).
+     */
+    public synchronized void switchBranch(String name) {
+        active = requireBranch(name);
+        if (stateDirectory != null) {
+            try {
+                Files.createDirectories(stateDirectory);
+                Files.write(stateDirectory.resolve("active-branch"), name.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("Impossible d'enregistrer la branche active: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Supprime une branche et son journal. La branche active et {@link #DEFAULT_BRANCH} ne
+     * peuvent pas être supprimées.
+     */
+    public synchronized void deleteBranch(String name) {
+        Branch branch = requireBranch(name);
+        if (branch == active || DEFAULT_BRANCH.equals(name)) {
+            throw new IllegalStateException("Branche non supprimable: " + name);
+        }
+        materializeDependents(branch);
+        branches.remove(name);
+        if (branch.journal != null) {
+            branch.journal.close();
+            branch.journal.clearJournal();
+            unlink(branch);
+            try {
+                Files.deleteIfExists(branchDirectory(name));
+            } catch (IOException e) {
+                System.err.println("Impossible de supprimer la branche " + name + ": " + e.getMessage());
+            }
+            blobStore.retainOnly(liveBlobs());
+        }
+    }
+
+    /**
+     * @return patchs triés d'une branche, active ou non (pour valider ou exporter une branche)
+     */
+    public synchronized List<Patch> getBranchPatches(String name) {
+        return new ArrayList<>(requireBranch(name).patchesSortedByOffset);
+    }
+
+    /**
+     * @return traducteur d'offsets d'une branche, active ou non
+     */
+    public synchronized OffsetTranslator getOffsetTranslator(String name) {
+        return requireBranch(name).offsetTranslator;
+    }
+
+    private Branch requireBranch(String name) {
+        Branch branch = branches.get(name);
+        if (branch == null) {
+            throw new IllegalArgumentException("Branche inconnue: " + name);
+        }
+        return branch;
+    }
+
+    private Path branchDirectory(String name) {
+        return stateDirectory.resolve("branches").resolve(name);
+    }
+
+    private PatchJournal openBranchJournal(String name, boolean create) {
+        Path directory = branchDirectory(name);
+        if (create) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                throw new IllegalStateException("Impossible de créer la branche " + name + ": " + e.getMessage(), e);
+            }
+        }
+        return new PatchJournal(directory, fsyncPolicy, blobStore);
+    }
+
+    private void writeForkLink(String name, String origin, long sequence) {
+        Path link = branchDirectory(name).resolve(FORK_FILE);
+        Path tmp = link.resolveSibling(FORK_FILE + ".tmp");
+        try {
+            Files.write(tmp, (origin + "\n" + sequence + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, link, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Impossible de créer la branche " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Détache une branche de l'historique de son origine : son état persistant est désormais complet.
+     */
+    private void unlink(Branch branch) {
+        if (branch.parent == null) {
+            return;
+        }
+        branch.parent = null;
+        try {
+            Files.deleteIfExists(branchDirectory(branch.name).resolve(FORK_FILE));
+        } catch (IOException e) {
+            // Sans conséquence : le snapshot de la branche prime sur le lien au rechargement
+            System.err.println("Impossible de supprimer le lien de la branche " + branch.name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Matérialise les branches qui s'appuient sur l'historique de {@code branch}, avant que
+     * celui-ci ne soit vidé ou remplacé.
+     */
+    private void materializeDependents(Branch branch) {
+        for (Branch other : new ArrayList<>(branches.values())) {
+            if (other.parent == branch && !compact(other)) {
+                throw new IllegalStateException("Impossible de détacher la branche " + other.name
+                        + " de l'historique de " + branch.name);
+            }
+        }
+    }
+
+    private static int depth(Branch branch) {
+        int depth = 0;
+        for (Branch b = branch.parent; b != null; b = b.parent) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Recharge les branches persistées et la branche active du dernier démarrage.
+     */
+    private void loadBranches() {
+        Path root = stateDirectory.resolve("branches");
+        List<Branch> loaded = new ArrayList<>();
+        if (Files.isDirectory(root)) {
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path dir : dirs) {
+                    String name = dir.getFileName().toString();
+                    if (!BRANCH_NAME.matcher(name).matches() || DEFAULT_BRANCH.equals(name)) continue;
+                    Branch branch = new Branch(name, openBranchJournal(name, false));
+                    branches.put(name, branch);
+                    loaded.add(branch);
+                }
+            } catch (IOException e) {
+                System.err.println("Erreur lors du chargement des branches: " + e.getMessage());
+            }
+        }
+        // Liens vers l'historique d'origine : ignorés si la branche a son propre snapshot
+        for (Branch branch : loaded) {
+            Path link = branchDirectory(branch.name).resolve(FORK_FILE);
+            if (!Files.exists(link) || branch.journal.hasSnapshot()) continue;
+            try {
+                List<String> lines = Files.readAllLines(link, StandardCharsets.UTF_8);
+                Branch origin = branches.get(lines.get(0));
+                if (origin == null) {
+                    System.err.println("Branche d'origine introuvable pour " + branch.name + ": " + lines.get(0));
+                    continue;
+                }
+                branch.parent = origin;
+                branch.forkSequence = Long.parseLong(lines.get(1).trim());
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Lien de la branche " + branch.name + " illisible: " + e.getMessage());
+            }
+        }
+        for (Branch branch : loaded) {
+            reloadPatches(branch);
+        }
+        Path activeFile = stateDirectory.resolve("active-branch");
+        try {
+            if (Files.exists(activeFile)) {
+                Branch branch = branches.get(new String(Files.readAllBytes(activeFile), StandardCharsets.UTF_8).trim());
+                if (branch != null) {
+                    active = branch;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Branche active illisible: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Blobs référencés par au moins une branche (les blobs sont partagés entre branches).
+     */
+    private Set<String> liveBlobs() {
+        Set<String> live = new HashSet<>();
+        for (Branch branch : branches.values()) {
+            for (Patch p : branch.patchesSortedByOffset) {
+                if (p.isSpilled()) {
+                    live.add(p.getBlobHash());
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Fige l'ensemble des patchs à sauvegarder. Les patchs ajoutés ensuite forment la génération
+     * suivante : ils restent vivants après {@link #completeSave}.
+     */
+    public synchronized SaveSnapshot freezeForSave() {
+        return new SaveSnapshot(active, new ArrayList<>(active.patchesSortedByOffset));
+    }
+
+    /**
+     * Termine une sauvegarde : retire les patchs du snapshot et conserve ceux ajoutés pendant l'écriture.
+     * <p>
+     * Si le fichier sauvegardé remplace l'original ({@code rebase}), les patchs de la génération
+     * suivante sont reportés dans ses coordonnées. Le report est calculé avant {@code commit}, tant
+     * que le fichier original est encore lisible, et le tout s'exécute sous le verrou : aucun patch
+     * ne peut arriver entre la validation de la sauvegarde et la publication du nouvel état.
+     * Si {@code commit} échoue, l'état n'est pas modifié.
+     * <p>
+     * Les autres branches se rapportent elles aussi à l'original : lors d'un remplacement, elles
+     * sont reportées dans le fichier sauvegardé, les patchs sauvegardés qu'elles n'ont pas étant
+     * annulés par un patch qui restaure les bytes originaux.
+     *
+     * @param originalFile fichier auquel les offsets des patchs se rapportent
+     * @param index index du fichier sauvegardé une fois {@code commit} exécuté (peut être null),
+     *              pour rattacher les patchs reportés à leur nouveau fragment
+     * @param commit validation de la sauvegarde (remplacement du fichier, mise à jour de l'index)
+     */
+    public void completeSave(SaveSnapshot snapshot, File originalFile, boolean rebase,
+                             FragmentIndex index, SaveCommit commit) throws IOException {
+        synchronized (this) {
+            Branch branch = snapshot.branch;
+            Set<Patch> saved = Collections.newSetFromMap(new IdentityHashMap<>());
+            saved.addAll(snapshot.getPatches());
+            List<Patch> nextGeneration = new ArrayList<>();
+            for (Patch p : branch.patchesSortedByOffset) {
+                if (!saved.contains(p)) {
+                    nextGeneration.add(p);
+                }
+            }
+
+            List<Patch> remaining = rebase && !nextGeneration.isEmpty()
+                    ? rebaseOnSaved(nextGeneration, snapshot.getPatches(), originalFile)
+                    : nextGeneration;
+
+            // Reports des autres branches, calculés eux aussi tant que l'original est lisible
+            Map<Branch, List<Patch>> others = new IdentityHashMap<>();
+            if (rebase) {
+                for (Branch other : branches.values()) {
+                    if (other != branch) {
+                        others.put(other, rebaseBranch(other, snapshot.getPatches(), originalFile));
+                    }
+                }
+            }
+
+            // Branches qui s'appuient sur un historique remplacé sans être elles-mêmes reportées
+            for (Branch other : branches.values()) {
+                if (other.parent != null && !others.containsKey(other)
+                        && (other.parent == branch || others.containsKey(other.parent))) {
+                    if (!compact(other)) {
+                        throw new IOException("Impossible de détacher la branche " + other.name);
+                    }
+                }
+            }
+
+            commit.commit();
+
+            others.put(branch, remaining);
+            // Les branches dépendantes d'abord : l'historique d'une origine n'est remplacé
+            // qu'une fois écrites les branches qui le partagent
+            List<Branch> order = new ArrayList<>(others.keySet());
+            order.sort(Comparator.comparingInt(PatchManager::depth).reversed());
+            for (Branch target : order) {
+                List<Patch> patches = others.get(target);
+                if (rebase && index != null) {
+                    patches = assignFragments(patches, index);
+                }
+                publish(target, patches);
+
+                // Remplacement atomique : snapshot publié par renommage, puis queue vidée
+                if (target.journal != null) {
+                    target.journal.replaceState(patches);
+                    unlink(target);
+                }
+            }
+            if (blobStore != null) {
+                blobStore.retainOnly(liveBlobs());
+            }
+        }
+    }
+
+    /**
+     * Reporte une branche dans le fichier où {@code saved} (patchs d'une autre branche) a été appliqué.
+     * Les patchs communs aux deux branches sont déjà dans le fichier ; ceux propres à la branche
+     * sont reportés par {@link #rebaseOnSaved} ; les patchs sauvegardés absents de la branche et
+     * qu'aucun de ses patchs ne recouvre sont annulés.
+     */
+    private List<Patch> rebaseBranch(Branch branch, List<Patch> saved, File originalFile) throws IOException {
+        // Égalité par contenu : après un redémarrage, les patchs partagés ne sont plus les mêmes objets
+        Set<Patch> savedSet = new HashSet<>(saved);
+        Set<Patch> branchSet = new HashSet<>(branch.patchesSortedByOffset);
+        List<Patch> own = new ArrayList<>();
+        for (Patch p : branch.patchesSortedByOffset) {
+            if (!savedSet.contains(p)) {
+                own.add(p);
+            }
+        }
+
+        List<Patch> reverts = new ArrayList<>();
+        long delta = 0;
+        for (Patch p : saved) {
+            long savedStart = p.getOriginalStartOffset() + delta;
+            delta += p.getLengthDelta();
+            if (branchSet.contains(p) || !findConflicts(own, p).isEmpty()) {
+                continue;
+            }
+            // Bytes originaux écrits en flux dans le store de blobs, quelle que soit leur taille
+            long originalLength = p.getOriginalEndOffset() - p.getOriginalStartOffset();
+            PatchType type = originalLength == 0 ? PatchType.DELETE
+                    : p.getNewLength() == 0 ? PatchType.INSERT : PatchType.REPLACE;
+            reverts.addAll(streamedPatches(savedStart, savedStart + p.getNewLength(), originalLength, type,
+                    p.getFragmentId(), maxChunk(),
+                    out -> copyOriginal(originalFile, p.getOriginalStartOffset(), p.getOriginalEndOffset(), out)));
+        }
+
+        List<Patch> rebased = own.isEmpty() ? own : rebaseOnSaved(own, saved, originalFile);
+        return mergeSorted(rebased, reverts);
     }
 
     public synchronized void clearAll() {
-        patchesSortedByOffset.clear();
-        patchesByFragment.clear();
-        if (journal != null) {
-            journal.clearJournal();
+        Branch branch = active;
+        materializeDependents(branch);
+        publish(branch, Collections.emptyList());
+        if (branch.journal != null) {
+            branch.journal.clearJournal();
+            unlink(branch);
+            blobStore.retainOnly(liveBlobs());
+        }
+    }
+
+    /**
+     * Écrit un checkpoint des patchs vivants de la branche active et compacte son journal.
+     * Les patchs écrasés par un patch plus récent ne sont plus rejoués au démarrage.
+     */
+    public void compact() {
+        compact(active);
+    }
+
+    /**
+     * Écrit un checkpoint complet de la branche. Les branches créées à partir d'elle avant la
+     * séquence du checkpoint perdraient l'historique qu'elles partagent : elles sont matérialisées
+     * d'abord. Une branche encore liée à son origine est elle-même matérialisée.
+     *
+     * @return false si la branche s'appuie toujours sur l'historique de son origine
+     */
+    private boolean compact(Branch branch) {
+        PatchJournal journal = branch.journal;
+        if (journal == null) return true;
+        List<Patch> live;
+        long sequence;
+        boolean linked;
+        List<Branch> dependents = new ArrayList<>();
+        synchronized (this) {
+            live = new ArrayList<>(branch.patchesSortedByOffset);
+            sequence = journal.getLastSequence();
+            linked = branch.parent != null;
+            for (Branch other : branches.values()) {
+                // Une branche liée remplace tout son historique : toutes ses dérivées en dépendent
+                if (other.parent == branch && (linked || other.forkSequence < sequence)) {
+                    dependents.add(other);
+                }
+            }
+        }
+        for (Branch dependent : dependents) {
+            if (!compact(dependent)) {
+                System.err.println("Compaction de " + branch.name + " reportée : branche " + dependent.name + " non détachée");
+                return false;
+            }
+        }
+        if (linked) {
+            return materialize(branch);
+        }
+        try {
+            journal.writeCheckpoint(live, sequence);
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la compaction du journal: " + e.getMessage());
+            return true;
+        }
+
+        // Les blobs des patchs écrasés ne sont plus référencés par le snapshot
+        Set<String> liveBlobs;
+        synchronized (this) {
+            liveBlobs = liveBlobs();
+        }
+        blobStore.retainOnly(liveBlobs);
+        return true;
+    }
+
+    /**
+     * Écrit l'état complet d'une branche liée dans son propre snapshot, puis la détache de son
+     * origine. L'état est figé sous le verrou : aucun patch ne peut s'intercaler.
+     */
+    private synchronized boolean materialize(Branch branch) {
+        if (branch.parent == null) {
+            return true;
+        }
+        try {
+            branch.journal.replaceState(new ArrayList<>(branch.patchesSortedByOffset));
+        } catch (IOException e) {
+            System.err.println("Impossible de matérialiser la branche " + branch.name + ": " + e.getMessage());
+            return false;
+        }
+        unlink(branch);
+        return true;
+    }
+
+    /**
+     * Force la persistance des patchs journalisés et libère les journaux.
+     */
+    public synchronized void close() {
+        for (Branch branch : branches.values()) {
+            if (branch.journal != null) {
+                branch.journal.close();
+            }
+        }
+    }
+
+    /**
+     * Reporte des patchs (offsets du fichier original) dans le fichier où {@code saved} a été appliqué.
+     * <p>
+     * Un patch disjoint des patchs sauvegardés est simplement décalé. Un patch qui en chevauchait
+     * un (et l'a donc remplacé dans l'état vivant) couvre dans le fichier sauvegardé tout le texte
+     * de ce patch : les bytes originaux qu'il ne couvrait pas sont réintégrés dans son payload, de
+     * façon à reproduire exactement le document logique vivant.
+     * <p>
+     * Un payload qui est une plage du fichier original est lui aussi décalé, sauf si un patch
+     * sauvegardé l'a modifiée : il est alors relu, tant que l'original est encore intact.
+     * <p>
+     * Les payloads reconstitués sont écrits en flux dans le store de blobs : ni les plages
+     * originales ni les payloads déportés ne passent par le tas.
+     */
+    private List<Patch> rebaseOnSaved(List<Patch> patches, List<Patch> saved, File originalFile) throws IOException {
+        OffsetTranslator savedOffsets = new OffsetTranslator();
+        savedOffsets.reset(saved);
+        List<Patch> rebased = new ArrayList<>(patches.size());
+
+        int i = 0;
+        while (i < patches.size()) {
+            Patch p = rebaseSource(patches.get(i), saved, savedOffsets, originalFile);
+            List<Patch> overlapped = findConflicts(saved, p);
+            if (overlapped.isEmpty()) {
+                rebased.add(p.withRange(savedOffsets.toLogicalOffset(p.getOriginalStartOffset()),
+                        savedOffsets.toLogicalOffset(p.getOriginalEndOffset()), p.getFragmentId()));
+                i++;
+                continue;
+            }
+
+            // Zone recouverte par les patchs sauvegardés touchés, et les patchs vivants qui y tombent
+            long start = Math.min(p.getOriginalStartOffset(), overlapped.get(0).getOriginalStartOffset());
+            long end = Math.max(p.getOriginalEndOffset(), overlapped.get(overlapped.size() - 1).getOriginalEndOffset());
+            int j = i + 1;
+            while (j < patches.size() && patches.get(j).getOriginalStartOffset() < end) {
+                Patch q = patches.get(j);
+                List<Patch> more = findConflicts(saved, q);
+                end = Math.max(end, q.getOriginalEndOffset());
+                if (!more.isEmpty()) {
+                    end = Math.max(end, more.get(more.size() - 1).getOriginalEndOffset());
+                }
+                j++;
+            }
+
+            long length = 0;
+            long cursor = start;
+            for (int k = i; k < j; k++) {
+                Patch q = patches.get(k);
+                length += q.getOriginalStartOffset() - cursor + q.getNewLength();
+                cursor = q.getOriginalEndOffset();
+            }
+            length += end - cursor;
+
+            int from = i;
+            int to = j;
+            long zoneStart = start;
+            long zoneEnd = end;
+            rebased.addAll(streamedPatches(savedOffsets.toLogicalOffset(start), savedOffsets.toLogicalOffset(end),
+                    length, PatchType.REPLACE, p.getFragmentId(), maxChunk(), out -> {
+                        long position = zoneStart;
+                        for (int k = from; k < to; k++) {
+                            Patch q = patches.get(k);
+                            copyOriginal(originalFile, position, q.getOriginalStartOffset(), out);
+                            try (InputStream in = q.openReplacement()) {
+                                in.transferTo(out);
+                            }
+                            position = q.getOriginalEndOffset();
+                        }
+                        copyOriginal(originalFile, position, zoneEnd, out);
+                    }));
+            i = j;
         }
+        return rebased;
     }
 
-    private void reloadPatches() {
-        if (journal == null) return;
-        List<Patch> loaded = journal.loadPatches();
-        for (Patch p : loaded) {
-            // On réinsère sans relogger pour reconstruire les structures en mémoire
-            // Note: On suppose que le journal est déjà une suite d'états valides, 
-            // mais pour être sûr on repasse par la logique de fusion si nécessaire.
-            // Cependant, le journal est append-only, donc les derniers patchs prévalent.
-            // Une stratégie simple est de tout rejouer.
-            
-            // Optimisation: insérer directement si on fait confiance au journal, 
-            // mais addPatch est plus sûr.
-            // Attention: addPatch va relogger. Il faut éviter ça.
-            insertSorted(p);
-            addToFragmentIndex(p);
+    private Patch rebaseSource(Patch p, List<Patch> saved, OffsetTranslator savedOffsets, File originalFile)
+            throws IOException {
+        if (!p.isSourceRange() || !p.getSourceFile().toFile().getAbsoluteFile().equals(originalFile.getAbsoluteFile())) {
+            return p;
+        }
+        long sourceStart = p.getSourceOffset();
+        long sourceEnd = sourceStart + p.getNewLength();
+        if (findConflicts(saved, new Patch(sourceStart, sourceEnd, "", PatchType.REPLACE, null)).isEmpty()) {
+            return Patch.fromSource(p.getOriginalStartOffset(), p.getOriginalEndOffset(), p.getSourceFile(),
+                    savedOffsets.toLogicalOffset(sourceStart), p.getNewLength(), p.getType(), p.getFragmentId());
+        }
+        // Une plage source tient dans un int : jamais découpée
+        return streamedPatches(p.getOriginalStartOffset(), p.getOriginalEndOffset(), p.getNewLength(),
+                p.getType(), p.getFragmentId(), Integer.MAX_VALUE, out -> {
+                    try (InputStream in = p.openReplacement()) {
+                        in.transferTo(out);
+                    }
+                }).get(0);
+    }
+
+    /**
+     * Copie la plage [from, to) du fichier original en flux, sans limite de taille.
+     */
+    private static void copyOriginal(File originalFile, long from, long to, OutputStream out) throws IOException {
+        if (to <= from) return;
+        // Contenu décompressé si le fichier original est gzip
+        try (InputStream in = SourceFiles.openAt(originalFile, from)) {
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = to - from;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Fichier original tronqué à l'offset " + (to - remaining));
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
         }
     }
 
-    private List<Patch> findConflictingPatches(Patch newPatch) {
+    /**
+     * Producteur d'un payload écrit en flux.
+     */
+    @FunctionalInterface
+    private interface PayloadSource {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Crée le patch qui remplace [start, end) par un payload de {@code length} bytes produit en flux.
+     * Un payload sous le seuil de déport est construit en mémoire ; au-delà, il est écrit
+     * directement dans le store de blobs. Un payload plus long que {@code maxChunk} est découpé :
+     * le premier morceau remplace la plage, les suivants sont des insertions à sa fin, dans l'ordre.
+     */
+    private List<Patch> streamedPatches(long start, long end, long length, PatchType type, String fragmentId,
+                                        int maxChunk, PayloadSource source) throws IOException {
+        if (blobStore == null || length <= blobStore.getSpillThreshold()) {
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IOException("Payload trop grand pour être construit en mémoire: " + length);
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) length);
+            source.writeTo(buffer);
+            return List.of(new Patch(start, end, buffer.toByteArray(), type, fragmentId));
+        }
+
+        List<Patch> patches = new ArrayList<>();
+        try (ChunkedBlobOutput out = new ChunkedBlobOutput(maxChunk)) {
+            source.writeTo(out);
+            out.finish();
+            for (int c = 0; c < out.hashes.size(); c++) {
+                String hash = out.hashes.get(c);
+                patches.add(c == 0
+                        ? Patch.spilled(start, end, blobStore.resolve(hash), hash, out.lengths.get(c), type, fragmentId)
+                        : Patch.spilled(end, end, blobStore.resolve(hash), hash, out.lengths.get(c),
+                                PatchType.INSERT, fragmentId));
+            }
+        }
+        return patches;
+    }
+
+    private int maxChunk() {
+        return blobStore != null ? blobStore.getMaxBlobLength() : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Flux écrit dans des blobs successifs d'au plus {@code maxChunk} bytes.
+     */
+    private final class ChunkedBlobOutput extends OutputStream {
+        final List<String> hashes = new ArrayList<>();
+        final List<Integer> lengths = new ArrayList<>();
+        private final int maxChunk;
+        private PatchBlobStore.BlobWriter current;
+
+        ChunkedBlobOutput(int maxChunk) {
+            this.maxChunk = maxChunk;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (current == null) {
+                    current = blobStore.openWriter();
+                }
+                int n = (int) Math.min(len, maxChunk - current.size());
+                current.write(b, off, n);
+                off += n;
+                len -= n;
+                if (current.size() == maxChunk) {
+                    commitCurrent();
+                }
+            }
+        }
+
+        void finish() throws IOException {
+            if (current != null || hashes.isEmpty()) {
+                if (current == null) {
+                    current = blobStore.openWriter();
+                }
+                commitCurrent();
+            }
+        }
+
+        private void commitCurrent() throws IOException {
+            int length = (int) current.size();
+            hashes.add(current.commit());
+            lengths.add(length);
+            current = null;
+        }
+
+        @Override
+        public void close() {
+            if (current != null) {
+                current.abort();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Rattache chaque patch au fragment du nouvel index qui le contient (null si aucun).
+     */
+    private static List<Patch> assignFragments(List<Patch> patches, FragmentIndex index) {
+        List<Patch> assigned = new ArrayList<>(patches.size());
+        for (Patch p : patches) {
+            FragmentMetadata fragment = index.findFragmentAtOrBefore(p.getOriginalStartOffset());
+            String fragmentId = fragment != null && fragment.getEndOffset() >= p.getOriginalEndOffset()
+                    ? fragment.getId()
+                    : null;
+            assigned.add(p.withRange(p.getOriginalStartOffset(), p.getOriginalEndOffset(), fragmentId));
+        }
+        return assigned;
+    }
+
+    private Patch spillIfLarge(Patch patch) {
+        return blobStore != null ? blobStore.spillIfLarge(patch) : patch;
+    }
+
+    private void scheduleCompaction(Branch branch) {
+        if (branch.compactionScheduled.compareAndSet(false, true)) {
+            branch.journal.runInBackground(() -> {
+                try {
+                    compact(branch);
+                } finally {
+                    branch.compactionScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    private static void reloadPatches(Branch branch) {
+        // Historique partagé avec la branche d'origine, jusqu'à la création de la branche
+        if (branch.parent != null) {
+            replayHistory(branch, branch.parent, branch.forkSequence);
+        }
+        PatchJournal.Recovery recovery = branch.journal.loadPatches();
+
+        // Le snapshot ne contient que des patchs disjoints et triés : insertion directe
+        if (branch.patchesSortedByOffset.isEmpty()) {
+            branch.patchesSortedByOffset.addAll(recovery.getSnapshotPatches());
+            for (Patch p : recovery.getSnapshotPatches()) {
+                addToFragmentIndex(branch, p);
+                branch.offsetTranslator.addPatch(p);
+            }
+        } else {
+            for (Patch p : recovery.getSnapshotPatches()) {
+                applyInMemory(branch, p);
+            }
+        }
+
+        // La queue est rejouée dans l'ordre avec la logique de conflits (le dernier gagne)
+        for (Patch p : recovery.getTailPatches()) {
+            applyInMemory(branch, p);
+        }
+    }
+
+    /**
+     * Rejoue dans {@code into} l'état de {@code origin} à la séquence {@code upToSequence} de son
+     * journal, précédé de l'historique que {@code origin} partage elle-même avec son origine.
+     */
+    private static void replayHistory(Branch into, Branch origin, long upToSequence) {
+        if (origin.parent != null) {
+            replayHistory(into, origin.parent, origin.forkSequence);
+        }
+        PatchJournal.Recovery recovery = origin.journal.readUpTo(upToSequence);
+        for (Patch p : recovery.getSnapshotPatches()) {
+            applyInMemory(into, p);
+        }
+        for (Patch p : recovery.getTailPatches()) {
+            applyInMemory(into, p);
+        }
+    }
+
+    /**
+     * Applique un patch aux structures en mémoire (conflits, tri, index) sans le journaliser.
+     */
+    private static Patch applyInMemory(Branch branch, Patch newPatch) {
+        List<Patch> conflictingPatches = findConflicts(branch.patchesSortedByOffset, newPatch);
+
+        if (!conflictingPatches.isEmpty()) {
+            // Retirer les patchs en conflit
+            branch.patchesSortedByOffset.removeAll(conflictingPatches);
+            removeFromFragmentIndex(branch, conflictingPatches);
+            for (Patch p : conflictingPatches) {
+                branch.offsetTranslator.removePatch(p);
+            }
+
+            // Fusionner
+            newPatch = mergePatches(conflictingPatches, newPatch);
+        }
+
+        insertSorted(branch, newPatch);
+        addToFragmentIndex(branch, newPatch);
+        branch.offsetTranslator.addPatch(newPatch);
+        return newPatch;
+    }
+
+    private static List<Patch> findConflicts(List<Patch> patches, Patch newPatch) {
         List<Patch> conflicts = new ArrayList<>();
-        for (Patch existing : patchesSortedByOffset) {
+
+        // Patchs disjoints triés : les fins sont croissantes, les conflits sont contigus.
+        // Premier patch dont la fin dépasse le début du nouveau.
+        int low = 0;
+        int high = patches.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (patches.get(mid).getGlobalEndOffset() > newPatch.getGlobalStartOffset()) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        for (int i = low; i < patches.size(); i++) {
+            Patch existing = patches.get(i);
+            if (existing.getGlobalStartOffset() >= newPatch.getGlobalEndOffset()) {
+                break;
+            }
             // Chevauchement: start1 < end2 && start2 < end1
-            if (existing.getGlobalStartOffset() < newPatch.getGlobalEndOffset() &&
-                newPatch.getGlobalStartOffset() < existing.getGlobalEndOffset()) {
+            if (newPatch.getGlobalStartOffset() < existing.getGlobalEndOffset()) {
                 conflicts.add(existing);
             }
         }
         return conflicts;
     }
 
-    private Patch mergePatches(List<Patch> existingPatches, Patch newPatch) {
+    /**
+     * Remplace l'état en mémoire par une liste triée et disjointe.
+     */
+    private static void publish(Branch branch, List<Patch> sorted) {
+        Map<String, List<Patch>> byFragment = new ConcurrentHashMap<>();
+        for (Patch p : sorted) {
+            if (p.getFragmentId() != null) {
+                byFragment.computeIfAbsent(p.getFragmentId(), k -> new ArrayList<>()).add(p);
+            }
+        }
+        byFragment.replaceAll((k, v) -> new CopyOnWriteArrayList<>(v));
+
+        branch.offsetTranslator.reset(sorted);
+        branch.patchesByFragment = byFragment;
+        branch.fragmentsShared = false;
+        branch.patchesSortedByOffset = new CopyOnWriteArrayList<>(sorted);
+    }
+
+    /**
+     * Patchs figés pour une sauvegarde (triés, disjoints).
+     */
+    public static final class SaveSnapshot {
+        private final Branch branch;
+        private final List<Patch> patches;
+
+        private SaveSnapshot(Branch branch, List<Patch> patches) {
+            this.branch = branch;
+            this.patches = Collections.unmodifiableList(patches);
+        }
+
+        public List<Patch> getPatches() {
+            return patches;
+        }
+    }
+
+    /**
+     * Validation d'une sauvegarde, exécutée sous le verrou du gestionnaire.
+     */
+    @FunctionalInterface
+    public interface SaveCommit {
+        void commit() throws IOException;
+    }
+
+    private static List<Patch> mergeSorted(List<Patch> a, List<Patch> b) {
+        List<Patch> merged = new ArrayList<>(a.size() + b.size());
+        int i = 0, j = 0;
+        while (i < a.size() && j < b.size()) {
+            // À égalité, les patchs existants restent devant
+            if (b.get(j).compareTo(a.get(i)) < 0) {
+                merged.add(b.get(j++));
+            } else {
+                merged.add(a.get(i++));
+            }
+        }
+        while (i < a.size()) merged.add(a.get(i++));
+        while (j < b.size()) merged.add(b.get(j++));
+        return merged;
+    }
+
+    /**
+     * Couverture d'un ensemble de patchs, pour tester les chevauchements en O(log n).
+     * Les plages non vides qui se chevauchent strictement sont fusionnées ; les insertions
+     * (plages vides) sont gardées à part car elles ne chevauchent que ce qui les contient strictement.
+     */
+    private static final class Coverage {
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+        private final TreeSet<Long> insertionPoints = new TreeSet<>();
+
+        boolean overlaps(Patch p) {
+            long start = p.getGlobalStartOffset();
+            long end = p.getGlobalEndOffset();
+
+            Long point = insertionPoints.higher(start);
+            if (point != null && point < end) {
+                return true;
+            }
+            // Plage [a, b) telle que a < end && start < b : la dernière plage commençant avant end
+            Map.Entry<Long, Long> candidate = ranges.lowerEntry(end);
+            return candidate != null && candidate.getValue() > start;
+        }
+
+        void add(Patch p) {
+            long start = p.getGlobalStartOffset();
+            long end = p.getGlobalEndOffset();
+            if (start == end) {
+                insertionPoints.add(start);
+                return;
+            }
+            Map.Entry<Long, Long> candidate;
+            while ((candidate = ranges.lowerEntry(end)) != null && candidate.getValue() > start) {
+                start = Math.min(start, candidate.getKey());
+                end = Math.max(end, candidate.getValue());
+                ranges.remove(candidate.getKey());
+            }
+            ranges.put(start, end);
+        }
+    }
+
+    private static Patch mergePatches(List<Patch> existingPatches, Patch newPatch) {
         // Stratégie simplifiée : le nouveau patch gagne et écrase les anciens sur sa plage.
         // Mais pour être vraiment robuste (Git style), il faudrait fusionner les textes.
         // Ici, on suppose que l'utilisateur envoie un patch qui représente l'état désiré 
@@ -136,30 +1233,53 @@ public class PatchManager {
         return newPatch; 
     }
 
-    private void insertSorted(Patch patch) {
-        int index = Collections.binarySearch(patchesSortedByOffset, patch);
-        if (index < 0) {
-            index = -(index + 1);
+    private static void insertSorted(Branch branch, Patch patch) {
+        // Après les patchs égaux (insertions multiples au même offset : ordre d'arrivée)
+        List<Patch> patches = branch.patchesSortedByOffset;
+        int low = 0;
+        int high = patches.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (patches.get(mid).compareTo(patch) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        patches.add(low, patch);
+    }
+
+    /**
+     * @return l'index par fragment propre à la branche, copié d'abord s'il est partagé
+     */
+    private static Map<String, List<Patch>> ownFragments(Branch branch) {
+        if (branch.fragmentsShared) {
+            Map<String, List<Patch>> copy = new ConcurrentHashMap<>();
+            branch.patchesByFragment.forEach((fragment, list) -> copy.put(fragment, new CopyOnWriteArrayList<>(list)));
+            branch.patchesByFragment = copy;
+            branch.fragmentsShared = false;
         }
-        patchesSortedByOffset.add(index, patch);
+        return branch.patchesByFragment;
     }
 
-    private void addToFragmentIndex(Patch patch) {
+    private static void addToFragmentIndex(Branch branch, Patch patch) {
         if (patch.getFragmentId() != null) {
-            patchesByFragment.computeIfAbsent(patch.getFragmentId(), k -> new CopyOnWriteArrayList<>()).add(patch);
+            Map<String, List<Patch>> byFragment = ownFragments(branch);
+            byFragment.computeIfAbsent(patch.getFragmentId(), k -> new CopyOnWriteArrayList<>()).add(patch);
             // Trier aussi la liste du fragment
-            Collections.sort(patchesByFragment.get(patch.getFragmentId()));
+            Collections.sort(byFragment.get(patch.getFragmentId()));
         }
     }
 
-    private void removeFromFragmentIndex(List<Patch> patches) {
+    private static void removeFromFragmentIndex(Branch branch, List<Patch> patches) {
+        Map<String, List<Patch>> byFragment = ownFragments(branch);
         for (Patch p : patches) {
             if (p.getFragmentId() != null) {
-                List<Patch> list = patchesByFragment.get(p.getFragmentId());
+                List<Patch> list = byFragment.get(p.getFragmentId());
                 if (list != null) {
                     list.remove(p);
                     if (list.isEmpty()) {
-                        patchesByFragment.remove(p.getFragmentId());
+                        byFragment.remove(p.getFragmentId());
                     }
                 }
             }
@@ -3,6 +3,8 @@ package com.xml.services;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 import com.xml.models.FragmentIndex;
@@ -15,6 +17,11 @@ import com.xml.models.PatchType;
  * Supporte deux modes:
  * 1. PatchManager (legacy): liste de patchs appliqués à la demande
  * 2. PieceTable (nouveau): structure de données efficace pour l'édition
+ * <p>
+ * Les éditions structurelles (déplacer, dupliquer, supprimer des fragments) ne copient jamais le
+ * contenu : en mode PieceTable elles re-pointent des pièces, en mode legacy elles produisent des
+ * patchs dont le payload est une plage du fichier original ({@link Patch#fromSource}). L'index
+ * n'est pas reconstruit : les fragments sont retrouvés par identifiant ou par offset.
  */
 public class PatchedFragmentManager extends FragmentManager {
     
@@ -61,7 +68,9 @@ public class PatchedFragmentManager extends FragmentManager {
         // Legacy: apply patches manually
         String originalContent = super.getFragmentContent(fragment);
         
-        List<Patch> patches = patchManager.getPatchesForFragment(fragment.getId());
+        // Tous les patchs qui touchent la plage du fragment, quel que soit leur fragment de
+        // rattachement : un fragment supprimé ou déplacé par une édition plus large est vide
+        List<Patch> patches = patchManager.getPatchesInRange(fragment.getStartOffset(), fragment.getEndOffset());
         
         if (patches == null || patches.isEmpty()) {
             return originalContent;
@@ -74,12 +83,15 @@ public class PatchedFragmentManager extends FragmentManager {
             
             long localStart = patch.getGlobalStartOffset() - fragment.getStartOffset();
             long localEnd = patch.getGlobalEndOffset() - fragment.getStartOffset();
+            // Un patch qui déborde du fragment appartient à une édition englobante : seule la
+            // partie recouverte est retirée
+            boolean contained = localStart >= 0 && localEnd <= sb.length();
             
             if (localStart < 0) localStart = 0;
             if (localEnd > sb.length()) localEnd = sb.length();
             if (localStart > localEnd) continue;
             
-            sb.replace((int)localStart, (int)localEnd, patch.getReplacementText());
+            sb.replace((int)localStart, (int)localEnd, contained ? patch.getReplacementText() : "");
         }
         
         return sb.toString();
@@ -116,6 +128,123 @@ public class PatchedFragmentManager extends FragmentManager {
         }
     }
     
+    /**
+     * Déplace un fragment avant ou après un autre fragment, sans copier son contenu.
+     */
+    public void moveFragment(String fragmentId, String targetFragmentId, boolean after) {
+        FragmentMetadata fragment = requireFragment(fragmentId);
+        FragmentMetadata target = requireFragment(targetFragmentId);
+        long length = fragment.getLength();
+        long targetOffset = after ? target.getEndOffset() : target.getStartOffset();
+        if (targetOffset > fragment.getStartOffset() && targetOffset < fragment.getEndOffset()) {
+            throw new IllegalArgumentException("La cible " + targetFragmentId + " est à l'intérieur de " + fragmentId);
+        }
+        if (targetOffset == fragment.getStartOffset() || targetOffset == fragment.getEndOffset()) {
+            return; // Déjà à cette position
+        }
+
+        if (pieceTable != null) {
+            pieceTable.move(fragment.getStartOffset(), length, targetOffset);
+            return;
+        }
+        requireUnpatched(fragment);
+        requireInsertionPoint(targetOffset);
+        List<Patch> batch = new ArrayList<>(2);
+        batch.add(new Patch(fragment.getStartOffset(), fragment.getEndOffset(), "", PatchType.DELETE, fragmentId));
+        batch.add(sourceRange(fragment, targetOffset, targetFragmentId));
+        patchManager.addPatches(batch);
+    }
+
+    /**
+     * Insère une copie d'un fragment juste après lui, sans copier son contenu.
+     */
+    public void duplicateFragment(String fragmentId) {
+        FragmentMetadata fragment = requireFragment(fragmentId);
+        if (pieceTable != null) {
+            pieceTable.copy(fragment.getStartOffset(), fragment.getLength(), fragment.getEndOffset());
+            return;
+        }
+        requireUnpatched(fragment);
+        requireInsertionPoint(fragment.getEndOffset());
+        patchManager.addPatch(sourceRange(fragment, fragment.getEndOffset(), fragmentId));
+    }
+
+    /**
+     * Supprime des fragments. Les fragments imbriqués ou qui se chevauchent sont fusionnés en une
+     * seule plage ; l'ensemble est appliqué en un seul lot.
+     *
+     * @return Nombre de plages supprimées
+     */
+    public int deleteFragments(List<String> fragmentIds) {
+        List<FragmentMetadata> fragments = new ArrayList<>(fragmentIds.size());
+        for (String id : fragmentIds) {
+            fragments.add(requireFragment(id));
+        }
+        fragments.sort(Comparator.comparingLong(FragmentMetadata::getStartOffset));
+
+        List<Patch> ranges = new ArrayList<>();
+        for (FragmentMetadata fragment : fragments) {
+            Patch last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && fragment.getStartOffset() < last.getOriginalEndOffset()) {
+                if (fragment.getEndOffset() > last.getOriginalEndOffset()) {
+                    ranges.set(ranges.size() - 1, new Patch(last.getOriginalStartOffset(), fragment.getEndOffset(),
+                            "", PatchType.DELETE, last.getFragmentId()));
+                }
+                continue;
+            }
+            ranges.add(new Patch(fragment.getStartOffset(), fragment.getEndOffset(), "", PatchType.DELETE,
+                    fragment.getId()));
+        }
+
+        if (pieceTable != null) {
+            // De la fin vers le début : les offsets des plages restantes ne bougent pas
+            for (int i = ranges.size() - 1; i >= 0; i--) {
+                Patch range = ranges.get(i);
+                pieceTable.delete(range.getOriginalStartOffset(), range.getOriginalEndOffset() - range.getOriginalStartOffset());
+            }
+        } else {
+            patchManager.addPatches(ranges);
+        }
+        return ranges.size();
+    }
+
+    private FragmentMetadata requireFragment(String fragmentId) {
+        if (fragmentIndex == null) {
+            throw new IllegalStateException("FragmentIndex requis pour les éditions structurelles");
+        }
+        FragmentMetadata fragment = fragmentIndex.getFragmentById(fragmentId);
+        if (fragment == null) {
+            throw new IllegalArgumentException("Fragment introuvable: " + fragmentId);
+        }
+        return fragment;
+    }
+
+    /**
+     * Le payload référence les bytes originaux : le fragment ne doit pas être modifié.
+     */
+    private void requireUnpatched(FragmentMetadata fragment) {
+        if (!patchManager.getPatchesInRange(fragment.getStartOffset(), fragment.getEndOffset()).isEmpty()) {
+            throw new IllegalStateException("Fragment modifié non sauvegardé: " + fragment.getId());
+        }
+        if (fragment.getLength() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Fragment trop grand pour un seul patch: " + fragment.getId());
+        }
+    }
+
+    /**
+     * Une insertion au milieu d'un patch existant le remplacerait.
+     */
+    private void requireInsertionPoint(long offset) {
+        if (!patchManager.getPatchesInRange(offset, offset).isEmpty()) {
+            throw new IllegalStateException("Position de destination dans une zone modifiée: " + offset);
+        }
+    }
+
+    private Patch sourceRange(FragmentMetadata fragment, long targetOffset, String targetFragmentId) {
+        return Patch.fromSource(targetOffset, targetOffset, getFile().toPath(), fragment.getStartOffset(),
+                (int) fragment.getLength(), PatchType.INSERT, targetFragmentId);
+    }
+
     /**
      * Obtient un InputStream pour lire le document complet avec modifications.
      * Utilise le PieceTable si disponible, sinon utilise PatchedInputStream.
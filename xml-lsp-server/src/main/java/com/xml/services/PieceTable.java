@@ -1,57 +1,90 @@
 package com.xml.services;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Piece Table data structure for efficient text editing on large files.
  * 
  * The document is represented as a sequence of "Pieces", each pointing to either:
- * - The ORIGINAL file (read-only, on disk)
+ * - A SOURCE file (read-only, on disk): the original file, or any other registered file
  * - The ADD buffer (append-only, in memory)
  * 
+ * A document can therefore be assembled from ranges of several files ({@link #insertRange},
+ * {@link #appendRange}) and streamed, indexed or validated without copying them; the bytes
+ * are only written by {@link #writeTo}. Source offsets are logical offsets: a gzip source is
+ * read decompressed (see {@link SourceFiles}).
+ * 
  * This allows O(k) insert/delete where k = number of pieces, not file size.
  * For LSP use cases (many small edits), this is much more efficient than copying.
+ * Structural edits ({@link #move}, {@link #copy}) only re-point pieces: the bytes they
+ * cover are never read, whatever their size.
  */
 public class PieceTable {
 
-    private final File originalFile;
     private long originalFileLength;
     
+    // Registered source files, referenced by index from the pieces (0 = original file, if any)
+    private final List<File> sources = new ArrayList<>();
+    
     // Add buffer: all new text goes here (append-only)
     private final StringBuilder addBuffer = new StringBuilder();
     
     // List of pieces describing the logical document
     private final List<Piece> pieces = new ArrayList<>();
+
+    // Logical start offset of each piece, rebuilt lazily after a change (null = stale)
+    private long[] pieceStarts;
     
     /**
-     * A piece describes a contiguous range of text from either buffer.
+     * A piece describes a contiguous range of text from a source file or the add buffer.
      */
     public record Piece(
-        boolean isOriginal,  // true = original file, false = add buffer
+        int source,          // index of the source file, or ADD_BUFFER
         long start,          // start offset in the source buffer
         long length          // length of this piece
-    ) {}
+    ) {
+        public static final int ADD_BUFFER = -1;
+        
+        /**
+         * Piece of the original file (source 0) or of the add buffer.
+         */
+        public Piece(boolean isOriginal, long start, long length) {
+            this(isOriginal ? 0 : ADD_BUFFER, start, length);
+        }
+        
+        /**
+         * @return true if the piece points to a file rather than to the add buffer
+         */
+        public boolean isOriginal() {
+            return source != ADD_BUFFER;
+        }
+    }
     
     /**
      * Create a PieceTable for a file.
      * Initially, the document is represented by a single piece covering the entire original file.
      */
     public PieceTable(File file) throws IOException {
-        this.originalFile = file;
-        this.originalFileLength = file.exists() ? file.length() : 0;
+        this.originalFileLength = file.exists() ? SourceFiles.length(file) : 0;
+        sources.add(file);
         
         if (originalFileLength > 0) {
-            pieces.add(new Piece(true, 0, originalFileLength));
+            pieces.add(new Piece(0, 0, originalFileLength));
         }
     }
     
@@ -59,19 +92,59 @@ public class PieceTable {
      * Create an empty PieceTable (for new files).
      */
     public PieceTable() {
-        this.originalFile = null;
         this.originalFileLength = 0;
     }
     
     /**
      * Get the logical length of the document.
      */
-    public long getLength() {
-        long len = 0;
-        for (Piece p : pieces) {
-            len += p.length();
+    public synchronized long getLength() {
+        return pieceStarts()[pieces.size()];
+    }
+    
+    /**
+     * Register a source file that pieces can reference. Registering the same file twice
+     * returns the same index.
+     *
+     * @return Index of the source, as stored in {@link Piece#source()}
+     */
+    public synchronized int registerSource(File file) {
+        File absolute = file.getAbsoluteFile();
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i).getAbsoluteFile().equals(absolute)) {
+                return i;
+            }
+        }
+        sources.add(file);
+        return sources.size() - 1;
+    }
+    
+    /**
+     * @return Registered source files, indexed like {@link Piece#source()}
+     */
+    public synchronized List<File> getSources() {
+        return new ArrayList<>(sources);
+    }
+    
+    /**
+     * Insert the range [sourceStart, sourceStart + length) of a file at a logical offset.
+     * The file is registered if needed; its bytes are not read.
+     */
+    public synchronized void insertRange(long offset, File source, long sourceStart, long length) throws IOException {
+        if (length <= 0) return;
+        long sourceLength = SourceFiles.length(source);
+        if (sourceStart < 0 || sourceStart + length > sourceLength) {
+            throw new IllegalArgumentException("Range " + sourceStart + "+" + length
+                    + " is outside " + source.getName() + " (" + sourceLength + " bytes)");
         }
-        return len;
+        insertPieces(offset, List.of(new Piece(registerSource(source), sourceStart, length)));
+    }
+    
+    /**
+     * Append a range of a file at the end of the document (see {@link #insertRange}).
+     */
+    public synchronized void appendRange(File source, long sourceStart, long length) throws IOException {
+        insertRange(getLength(), source, sourceStart, length);
     }
     
     /**
@@ -83,36 +156,30 @@ public class PieceTable {
         // Append to add buffer
         long addStart = addBuffer.length();
         addBuffer.append(text);
-        Piece newPiece = new Piece(false, addStart, text.length());
-        
-        // Find the piece containing the offset
-        int pieceIndex = findPieceIndex(offset);
-        
-        if (pieceIndex < 0) {
-            // Insert at end
-            pieces.add(newPiece);
-        } else {
-            // Split the piece at offset and insert
-            Piece target = pieces.get(pieceIndex);
-            long offsetInPiece = offset - getPieceStartOffset(pieceIndex);
-            
-            if (offsetInPiece == 0) {
-                // Insert before this piece
-                pieces.add(pieceIndex, newPiece);
-            } else if (offsetInPiece >= target.length()) {
-                // Insert after this piece
-                pieces.add(pieceIndex + 1, newPiece);
-            } else {
-                // Split the piece
-                Piece left = new Piece(target.isOriginal(), target.start(), offsetInPiece);
-                Piece right = new Piece(target.isOriginal(), target.start() + offsetInPiece, target.length() - offsetInPiece);
-                
-                pieces.remove(pieceIndex);
-                pieces.add(pieceIndex, right);
-                pieces.add(pieceIndex, newPiece);
-                pieces.add(pieceIndex, left);
-            }
+        insertPieces(offset, List.of(new Piece(Piece.ADD_BUFFER, addStart, text.length())));
+    }
+    
+    /**
+     * Copy a logical range to another offset. The copy references the same pieces as the
+     * source range: no text is read or duplicated.
+     */
+    public synchronized void copy(long start, long length, long target) {
+        if (length <= 0) return;
+        insertPieces(target, slice(start, length));
+    }
+    
+    /**
+     * Move a logical range to another offset, expressed before the move. Like {@link #copy},
+     * only pieces are re-pointed.
+     */
+    public synchronized void move(long start, long length, long target) {
+        if (length <= 0 || target == start || target == start + length) return;
+        if (target > start && target < start + length) {
+            throw new IllegalArgumentException("Target offset " + target + " lies inside the moved range");
         }
+        List<Piece> moved = slice(start, length);
+        delete(start, length);
+        insertPieces(target > start ? target - length : target, moved);
     }
     
     /**
@@ -137,20 +204,24 @@ public class PieceTable {
             if (offsetInPiece == 0 && deleteInThisPiece >= target.length()) {
                 // Delete entire piece
                 pieces.remove(pieceIndex);
+                pieceStarts = null;
             } else if (offsetInPiece == 0) {
                 // Delete from start
-                pieces.set(pieceIndex, new Piece(target.isOriginal(), target.start() + deleteInThisPiece, target.length() - deleteInThisPiece));
+                pieces.set(pieceIndex, new Piece(target.source(), target.start() + deleteInThisPiece, target.length() - deleteInThisPiece));
+                pieceStarts = null;
             } else if (offsetInPiece + deleteInThisPiece >= target.length()) {
                 // Delete to end
-                pieces.set(pieceIndex, new Piece(target.isOriginal(), target.start(), offsetInPiece));
+                pieces.set(pieceIndex, new Piece(target.source(), target.start(), offsetInPiece));
+                pieceStarts = null;
             } else {
                 // Delete from middle - split
-                Piece left = new Piece(target.isOriginal(), target.start(), offsetInPiece);
-                Piece right = new Piece(target.isOriginal(), target.start() + offsetInPiece + deleteInThisPiece, target.length() - offsetInPiece - deleteInThisPiece);
+                Piece left = new Piece(target.source(), target.start(), offsetInPiece);
+                Piece right = new Piece(target.source(), target.start() + offsetInPiece + deleteInThisPiece, target.length() - offsetInPiece - deleteInThisPiece);
                 
                 pieces.remove(pieceIndex);
                 pieces.add(pieceIndex, right);
                 pieces.add(pieceIndex, left);
+                pieceStarts = null;
             }
             
             remaining -= deleteInThisPiece;
@@ -187,8 +258,8 @@ public class PieceTable {
             long readLen = Math.min(remaining, piece.length() - offsetInPiece);
             
             if (piece.isOriginal()) {
-                // Read from original file
-                result.append(readFromOriginal(piece.start() + offsetInPiece, (int) readLen));
+                // Read from the piece's source file
+                result.append(readFromSource(piece.source(), piece.start() + offsetInPiece, (int) readLen));
             } else {
                 // Read from add buffer
                 result.append(addBuffer.substring((int)(piece.start() + offsetInPiece), (int)(piece.start() + offsetInPiece + readLen)));
@@ -203,86 +274,229 @@ public class PieceTable {
     
     /**
      * Get an InputStream that reads the entire logical document.
-     * This streams through the pieces, never loading more than 64KB at a time.
+     * This streams through the pieces, opening each one only when the previous one is exhausted:
+     * a document made of thousands of ranges never holds more than one file open.
      */
     public InputStream getInputStream() throws IOException {
-        List<InputStream> streams = new ArrayList<>();
+        List<Piece> snapshot = getPieces();
         
-        for (Piece piece : pieces) {
-            if (piece.isOriginal()) {
-                streams.add(new OriginalFileInputStream(originalFile, piece.start(), piece.length()));
-            } else {
-                byte[] data = addBuffer.substring((int)piece.start(), (int)(piece.start() + piece.length()))
-                                       .getBytes(StandardCharsets.UTF_8);
-                streams.add(new ByteArrayInputStream(data));
-            }
-        }
-        
-        if (streams.isEmpty()) {
+        if (snapshot.isEmpty()) {
             return new ByteArrayInputStream(new byte[0]);
         }
         
-        Enumeration<InputStream> enumeration = Collections.enumeration(streams);
+        Enumeration<InputStream> enumeration = new Enumeration<>() {
+            private int next;
+            
+            @Override
+            public boolean hasMoreElements() {
+                return next < snapshot.size();
+            }
+            
+            @Override
+            public InputStream nextElement() {
+                if (next >= snapshot.size()) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return openPiece(snapshot.get(next++));
+                } catch (IOException e) {
+                    throw new java.io.UncheckedIOException(e);
+                }
+            }
+        };
         return new SequenceInputStream(enumeration);
     }
     
+    /**
+     * Write the logical document to a file. Ranges of uncompressed sources are copied with
+     * {@link FileChannel#transferTo}, without passing through the Java heap. The document is
+     * written to a temporary file first, so the target may itself be one of the sources.
+     *
+     * @return Number of bytes written
+     */
+    public long writeTo(File target) throws IOException {
+        List<Piece> snapshot = getPieces();
+        List<File> files = getSources();
+        File temp = new File(target.getAbsolutePath() + ".tmp");
+        long written = 0;
+        
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Piece piece : snapshot) {
+                File source = piece.isOriginal() ? files.get(piece.source()) : null;
+                if (source != null && !SourceFiles.isCompressed(source)) {
+                    try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                        long position = piece.start();
+                        long remaining = piece.length();
+                        while (remaining > 0) {
+                            long n = in.transferTo(position, remaining, out);
+                            if (n <= 0) {
+                                throw new EOFException("Source truncated: " + source + " at " + position);
+                            }
+                            position += n;
+                            remaining -= n;
+                        }
+                    }
+                    written += piece.length();
+                    continue;
+                }
+                try (InputStream in = openPiece(piece)) {
+                    byte[] chunk = new byte[64 * 1024];
+                    int n;
+                    while ((n = in.read(chunk)) != -1) {
+                        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, n);
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer);
+                        }
+                        written += n;
+                    }
+                }
+            }
+            out.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return written;
+    }
+    
     /**
      * Get the list of pieces (for debugging/serialization).
      */
-    public List<Piece> getPieces() {
+    public synchronized List<Piece> getPieces() {
         return new ArrayList<>(pieces);
     }
     
     // --- Private helpers ---
     
+    /**
+     * Pieces covering a logical range, trimmed to it.
+     */
+    private List<Piece> slice(long start, long length) {
+        List<Piece> result = new ArrayList<>();
+        long end = start + length;
+        for (int i = Math.max(0, findPieceIndex(start)); i < pieces.size(); i++) {
+            long pieceStart = getPieceStartOffset(i);
+            if (pieceStart >= end) break;
+            Piece piece = pieces.get(i);
+            long from = Math.max(start, pieceStart) - pieceStart;
+            long to = Math.min(end, pieceStart + piece.length()) - pieceStart;
+            if (to > from) {
+                result.add(new Piece(piece.source(), piece.start() + from, to - from));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Insert pieces at a logical offset, splitting the piece that contains it.
+     */
+    private void insertPieces(long offset, List<Piece> inserted) {
+        if (inserted.isEmpty()) return;
+        int pieceIndex = findPieceIndex(offset);
+        
+        if (pieceIndex < 0) {
+            // Insert at end
+            pieces.addAll(inserted);
+        } else {
+            Piece target = pieces.get(pieceIndex);
+            long offsetInPiece = offset - getPieceStartOffset(pieceIndex);
+            
+            if (offsetInPiece == 0) {
+                // Insert before this piece
+                pieces.addAll(pieceIndex, inserted);
+            } else {
+                // Split the piece
+                Piece left = new Piece(target.source(), target.start(), offsetInPiece);
+                Piece right = new Piece(target.source(), target.start() + offsetInPiece, target.length() - offsetInPiece);
+                
+                pieces.set(pieceIndex, right);
+                pieces.addAll(pieceIndex, inserted);
+                pieces.add(pieceIndex, left);
+            }
+        }
+        pieceStarts = null;
+    }
+    
+    /**
+     * Index of the piece containing a logical offset (binary search), -1 beyond the end.
+     */
     private int findPieceIndex(long offset) {
-        long currentOffset = 0;
-        for (int i = 0; i < pieces.size(); i++) {
-            if (offset < currentOffset + pieces.get(i).length()) {
-                return i;
+        long[] starts = pieceStarts();
+        int low = 0;
+        int high = pieces.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= offset) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
             }
-            currentOffset += pieces.get(i).length();
         }
-        return -1; // Beyond end
+        if (found < 0 || offset >= starts[found + 1]) {
+            return -1; // Beyond end
+        }
+        return found;
     }
     
     private long getPieceStartOffset(int pieceIndex) {
-        long offset = 0;
-        for (int i = 0; i < pieceIndex; i++) {
-            offset += pieces.get(i).length();
+        return pieceStarts()[pieceIndex];
+    }
+    
+    private long[] pieceStarts() {
+        if (pieceStarts == null) {
+            long[] starts = new long[pieces.size() + 1];
+            for (int i = 0; i < pieces.size(); i++) {
+                starts[i + 1] = starts[i] + pieces.get(i).length();
+            }
+            pieceStarts = starts;
+        }
+        return pieceStarts;
+    }
+    
+    private InputStream openPiece(Piece piece) throws IOException {
+        if (!piece.isOriginal()) {
+            byte[] data = addBuffer.substring((int)piece.start(), (int)(piece.start() + piece.length()))
+                                   .getBytes(StandardCharsets.UTF_8);
+            return new ByteArrayInputStream(data);
+        }
+        File source;
+        synchronized (this) {
+            source = sources.get(piece.source());
         }
-        return offset;
+        return new SourceRangeInputStream(SourceFiles.openAt(source, piece.start()), piece.length());
     }
     
-    private String readFromOriginal(long start, int length) throws IOException {
-        if (originalFile == null) return "";
+    private String readFromSource(int sourceIndex, long start, int length) throws IOException {
+        File source = sourceIndex < sources.size() ? sources.get(sourceIndex) : null;
+        if (source == null) return "";
         
-        try (RandomAccessFile raf = new RandomAccessFile(originalFile, "r")) {
-            raf.seek(start);
-            byte[] buffer = new byte[length];
-            int read = raf.read(buffer);
-            return new String(buffer, 0, read, StandardCharsets.UTF_8);
+        try (InputStream in = SourceFiles.openAt(source, start)) {
+            byte[] buffer = in.readNBytes(length);
+            return new String(buffer, StandardCharsets.UTF_8);
         }
     }
     
     /**
-     * InputStream that reads a portion of the original file.
+     * InputStream that reads a range of a source file.
      * Implements a streaming read to avoid loading large sections into memory.
      */
-    private static class OriginalFileInputStream extends InputStream {
-        private final RandomAccessFile raf;
+    private static class SourceRangeInputStream extends InputStream {
+        private final InputStream in;
         private long remaining;
         
-        public OriginalFileInputStream(File file, long start, long length) throws IOException {
-            this.raf = new RandomAccessFile(file, "r");
-            this.raf.seek(start);
+        public SourceRangeInputStream(InputStream in, long length) {
+            this.in = in;
             this.remaining = length;
         }
         
         @Override
         public int read() throws IOException {
             if (remaining <= 0) return -1;
-            int b = raf.read();
+            int b = in.read();
             if (b != -1) remaining--;
             return b;
         }
@@ -291,14 +505,14 @@ public class PieceTable {
         public int read(byte[] b, int off, int len) throws IOException {
             if (remaining <= 0) return -1;
             int toRead = (int) Math.min(len, remaining);
-            int read = raf.read(b, off, toRead);
+            int read = in.read(b, off, toRead);
             if (read > 0) remaining -= read;
             return read;
         }
         
         @Override
         public void close() throws IOException {
-            raf.close();
+            in.close();
         }
     }
 }
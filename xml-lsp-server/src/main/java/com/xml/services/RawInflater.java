@@ -0,0 +1,432 @@
+package com.xml.services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.ZipException;
+
+/**
+ * Décodeur DEFLATE (RFC 1951) en Java pur, capable de reprendre au milieu d'un flux.
+ * <p>
+ * {@link java.util.zip.Inflater} ne signale pas les frontières de blocs et ne sait pas démarrer
+ * sur une position au bit près : c'est pourtant ce qu'exigent les points de reprise de
+ * {@link SeekableGzip} (même principe que zran.c de zlib). Ce décodeur s'arrête à la fin de
+ * chaque bloc, expose la position en bits du bloc suivant et les 32 Ko de sortie qui le précèdent,
+ * et peut redémarrer à partir de ces deux informations.
+ */
+final class RawInflater {
+
+    static final int WINDOW_SIZE = 32 * 1024;
+
+    // Historique (32 Ko) + sortie produite mais pas encore lue
+    private static final int RING_SIZE = 128 * 1024;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    private static final int NEW_BLOCK = 0;
+    private static final int STORED = 1;
+    private static final int HUFFMAN = 2;
+    private static final int DONE = 3;
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+            35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+    private static final int[] LENGTH_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+            3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+    private static final int[] DISTANCE_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+            257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+    private static final int[] DISTANCE_EXTRA = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+            7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+    private static final int[] CODE_LENGTH_ORDER = {
+            16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    private static final Huffman FIXED_LITERALS;
+    private static final Huffman FIXED_DISTANCES;
+
+    static {
+        byte[] literals = new byte[288];
+        for (int i = 0; i < 288; i++) {
+            literals[i] = (byte) (i < 144 ? 8 : i < 256 ? 9 : i < 280 ? 7 : 8);
+        }
+        byte[] distances = new byte[32];
+        java.util.Arrays.fill(distances, (byte) 5);
+        try {
+            FIXED_LITERALS = new Huffman(literals, 0, literals.length);
+            FIXED_DISTANCES = new Huffman(distances, 0, distances.length);
+        } catch (ZipException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final BitReader in;
+    private final byte[] ring = new byte[RING_SIZE];
+    private long produced;  // bytes écrits dans l'anneau, fenêtre initiale comprise
+    private long delivered; // bytes rendus à l'appelant
+
+    private int state = NEW_BLOCK;
+    private boolean lastBlock;
+    private int storedRemaining;
+    private Huffman literals;
+    private Huffman distances;
+
+    /**
+     * @param in lecteur positionné sur l'en-tête d'un bloc
+     * @param window 32 Ko (au plus) de sortie précédant ce bloc, null au début d'un flux
+     */
+    RawInflater(BitReader in, byte[] window) {
+        this.in = in;
+        if (window != null) {
+            System.arraycopy(window, 0, ring, 0, window.length);
+            produced = window.length;
+            delivered = window.length;
+        }
+    }
+
+    /**
+     * @return nombre de bytes décompressés, ou -1 à la fin du bloc final
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        while (produced == delivered) {
+            if (state == DONE) {
+                return -1;
+            }
+            inflate();
+        }
+        int n = (int) Math.min(len, produced - delivered);
+        int start = (int) (delivered & RING_MASK);
+        int first = Math.min(n, RING_SIZE - start);
+        System.arraycopy(ring, start, b, off, first);
+        if (first < n) {
+            System.arraycopy(ring, 0, b, off + first, n - first);
+        }
+        delivered += n;
+        return n;
+    }
+
+    /**
+     * @return true entre deux blocs, toute la sortie ayant été lue : point de reprise possible
+     */
+    boolean atBlockBoundary() {
+        return state == NEW_BLOCK && produced == delivered;
+    }
+
+    /**
+     * @return les 32 Ko (au plus) de sortie précédant la position courante
+     */
+    byte[] window() {
+        int n = (int) Math.min(WINDOW_SIZE, produced);
+        byte[] window = new byte[n];
+        for (int i = 0; i < n; i++) {
+            window[i] = ring[(int) ((produced - n + i) & RING_MASK)];
+        }
+        return window;
+    }
+
+    /**
+     * Décode au plus un bloc. Ne s'appelle que lorsque toute la sortie a été lue : l'anneau peut
+     * alors recevoir RING_SIZE - WINDOW_SIZE bytes sans écraser l'historique.
+     */
+    private void inflate() throws IOException {
+        long limit = produced + RING_SIZE - WINDOW_SIZE;
+        if (state == NEW_BLOCK) {
+            readBlockHeader();
+        }
+        if (state == STORED) {
+            inflateStored(limit);
+        } else if (state == HUFFMAN) {
+            inflateHuffman(limit);
+        }
+    }
+
+    private void readBlockHeader() throws IOException {
+        lastBlock = in.bits(1) == 1;
+        int type = in.bits(2);
+        switch (type) {
+            case 0:
+                in.alignToByte();
+                int length = in.bits(16);
+                int complement = in.bits(16);
+                if ((length ^ 0xFFFF) != complement) {
+                    throw new ZipException("Bloc deflate non compressé invalide");
+                }
+                storedRemaining = length;
+                state = STORED;
+                break;
+            case 1:
+                literals = FIXED_LITERALS;
+                distances = FIXED_DISTANCES;
+                state = HUFFMAN;
+                break;
+            case 2:
+                readDynamicTables();
+                state = HUFFMAN;
+                break;
+            default:
+                throw new ZipException("Type de bloc deflate invalide");
+        }
+    }
+
+    private void readDynamicTables() throws IOException {
+        int literalCount = in.bits(5) + 257;
+        int distanceCount = in.bits(5) + 1;
+        int codeLengthCount = in.bits(4) + 4;
+
+        byte[] codeLengthLengths = new byte[19];
+        for (int i = 0; i < codeLengthCount; i++) {
+            codeLengthLengths[CODE_LENGTH_ORDER[i]] = (byte) in.bits(3);
+        }
+        Huffman codeLengths = new Huffman(codeLengthLengths, 0, codeLengthLengths.length);
+
+        byte[] lengths = new byte[literalCount + distanceCount];
+        int i = 0;
+        while (i < lengths.length) {
+            int symbol = codeLengths.decode(in);
+            if (symbol < 16) {
+                lengths[i++] = (byte) symbol;
+                continue;
+            }
+            byte value = 0;
+            int repeat;
+            if (symbol == 16) {
+                if (i == 0) {
+                    throw new ZipException("Répétition sans longueur précédente");
+                }
+                value = lengths[i - 1];
+                repeat = 3 + in.bits(2);
+            } else if (symbol == 17) {
+                repeat = 3 + in.bits(3);
+            } else {
+                repeat = 11 + in.bits(7);
+            }
+            if (i + repeat > lengths.length) {
+                throw new ZipException("Trop de longueurs de codes");
+            }
+            java.util.Arrays.fill(lengths, i, i + repeat, value);
+            i += repeat;
+        }
+        if (lengths[256] == 0) {
+            throw new ZipException("Bloc deflate sans code de fin");
+        }
+        literals = new Huffman(lengths, 0, literalCount);
+        distances = new Huffman(lengths, literalCount, distanceCount);
+    }
+
+    private void inflateStored(long limit) throws IOException {
+        while (storedRemaining > 0 && produced < limit) {
+            int b = in.alignedByte();
+            if (b < 0) {
+                throw new EOFException("Flux deflate tronqué");
+            }
+            ring[(int) (produced++ & RING_MASK)] = (byte) b;
+            storedRemaining--;
+        }
+        if (storedRemaining == 0) {
+            endBlock();
+        }
+    }
+
+    private void inflateHuffman(long limit) throws IOException {
+        byte[] out = ring;
+        long pos = produced;
+        try {
+            while (pos < limit) {
+                int symbol = literals.decode(in);
+                if (symbol < 256) {
+                    out[(int) (pos++ & RING_MASK)] = (byte) symbol;
+                    continue;
+                }
+                if (symbol == 256) {
+                    endBlock();
+                    return;
+                }
+                symbol -= 257;
+                if (symbol >= LENGTH_BASE.length) {
+                    throw new ZipException("Code de longueur invalide");
+                }
+                int length = LENGTH_BASE[symbol] + in.bits(LENGTH_EXTRA[symbol]);
+                int distanceSymbol = distances.decode(in);
+                if (distanceSymbol >= DISTANCE_BASE.length) {
+                    throw new ZipException("Code de distance invalide");
+                }
+                int distance = DISTANCE_BASE[distanceSymbol] + in.bits(DISTANCE_EXTRA[distanceSymbol]);
+                if (distance > pos) {
+                    throw new ZipException("Distance avant le début du flux");
+                }
+                for (int k = 0; k < length; k++, pos++) {
+                    out[(int) (pos & RING_MASK)] = out[(int) ((pos - distance) & RING_MASK)];
+                }
+            }
+        } finally {
+            produced = pos;
+        }
+    }
+
+    private void endBlock() {
+        state = lastBlock ? DONE : NEW_BLOCK;
+    }
+
+    /**
+     * Table de décodage canonique : indexée par les prochains bits du flux, elle donne
+     * directement le symbole et la longueur de son code.
+     */
+    private static final class Huffman {
+        private final int[] table; // (symbole << 4) | longueur, 0 pour un code absent
+        private final int bits;
+
+        Huffman(byte[] lengths, int offset, int count) throws ZipException {
+            int[] lengthCount = new int[16];
+            int max = 0;
+            for (int i = 0; i < count; i++) {
+                int length = lengths[offset + i];
+                lengthCount[length]++;
+                max = Math.max(max, length);
+            }
+            lengthCount[0] = 0;
+
+            int left = 1;
+            for (int length = 1; length <= 15; length++) {
+                left = (left << 1) - lengthCount[length];
+                if (left < 0) {
+                    throw new ZipException("Code de Huffman sur-souscrit");
+                }
+            }
+
+            int[] nextCode = new int[16];
+            int code = 0;
+            for (int length = 1; length <= 15; length++) {
+                code = (code + lengthCount[length - 1]) << 1;
+                nextCode[length] = code;
+            }
+
+            this.bits = Math.max(1, max);
+            this.table = new int[1 << bits];
+            for (int symbol = 0; symbol < count; symbol++) {
+                int length = lengths[offset + symbol];
+                if (length == 0) {
+                    continue;
+                }
+                // Les codes sont rangés bit de poids fort en premier dans un flux lu par le poids faible
+                int reversed = Integer.reverse(nextCode[length]++) >>> (32 - length);
+                for (int i = reversed; i < table.length; i += 1 << length) {
+                    table[i] = (symbol << 4) | length;
+                }
+            }
+        }
+
+        int decode(BitReader in) throws IOException {
+            int entry = table[in.peek(bits)];
+            if (entry == 0) {
+                throw new ZipException("Code de Huffman invalide");
+            }
+            in.drop(entry & 15);
+            return entry >>> 4;
+        }
+    }
+
+    /**
+     * Lecture bit à bit (poids faible en premier) d'un fichier, par blocs positionnels.
+     * Au-delà de la fin du fichier, des zéros sont fournis pour anticiper une table de Huffman ;
+     * les consommer réellement lève une {@link EOFException}.
+     */
+    static final class BitReader {
+        private final FileChannel channel;
+        private final byte[] bytes = new byte[256 * 1024];
+        private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        private long bufferStart; // offset fichier de bytes[0]
+        private int pos;
+        private int limit;
+
+        private long bitBuffer;
+        private int bitCount;
+        private int padding; // bytes fictifs ajoutés après la fin du fichier
+
+        /**
+         * @param bitPosition position de départ, en bits depuis le début du fichier
+         */
+        BitReader(FileChannel channel, long bitPosition) throws IOException {
+            this.channel = channel;
+            this.bufferStart = bitPosition >>> 3;
+            int skip = (int) (bitPosition & 7);
+            if (skip > 0) {
+                peek(skip);
+                drop(skip);
+            }
+        }
+
+        /**
+         * @return position du prochain bit non consommé, en bits depuis le début du fichier
+         */
+        long bitPosition() {
+            return (bufferStart + pos) * 8 - bitCount;
+        }
+
+        int peek(int n) throws IOException {
+            while (bitCount < n) {
+                bitBuffer |= (long) nextByte() << bitCount;
+                bitCount += 8;
+            }
+            return (int) (bitBuffer & ((1L << n) - 1));
+        }
+
+        void drop(int n) throws IOException {
+            bitBuffer >>>= n;
+            bitCount -= n;
+            if (bitCount < padding * 8) {
+                throw new EOFException("Flux compressé tronqué");
+            }
+        }
+
+        int bits(int n) throws IOException {
+            if (n == 0) {
+                return 0;
+            }
+            int value = peek(n);
+            drop(n);
+            return value;
+        }
+
+        void alignToByte() throws IOException {
+            drop(bitCount & 7);
+        }
+
+        /**
+         * Lit un byte aligné (après {@link #alignToByte()}).
+         * @return le byte, ou -1 à la fin du fichier
+         */
+        int alignedByte() throws IOException {
+            if (bitCount - padding * 8 >= 8) {
+                return bits(8);
+            }
+            if (padding > 0) {
+                return -1;
+            }
+            if (pos == limit && !refill()) {
+                return -1;
+            }
+            return bytes[pos++] & 0xFF;
+        }
+
+        private int nextByte() throws IOException {
+            if (pos == limit && !refill()) {
+                padding++;
+                return 0;
+            }
+            return bytes[pos++] & 0xFF;
+        }
+
+        private boolean refill() throws IOException {
+            bufferStart += limit;
+            pos = 0;
+            limit = 0;
+            buffer.clear();
+            int n = channel.read(buffer, bufferStart);
+            if (n > 0) {
+                limit = n;
+            }
+            return limit > 0;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.xml.services;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Suivi d'une sauvegarde en cours : bytes écrits, total prévu et demande d'annulation.
+ * <p>
+ * L'annulation est coopérative : les écrivains la testent entre deux tranches. Elle n'est plus
+ * prise en compte une fois la sauvegarde validée (renommage ou écriture sur place), de sorte qu'une
+ * sauvegarde annulée laisse toujours le fichier original intact.
+ */
+public class SaveProgress {
+
+    /**
+     * Reçoit l'avancement ; appelé depuis les threads d'écriture, éventuellement en parallèle.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void onProgress(long bytesWritten, long totalBytes);
+    }
+
+    private final Listener listener;
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile long totalBytes;
+    private volatile boolean cancelled;
+
+    public SaveProgress() {
+        this(null);
+    }
+
+    public SaveProgress(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Demande l'annulation de la sauvegarde (sans effet si elle est déjà validée).
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    void begin(long total) {
+        totalBytes = total;
+        bytesWritten.set(0);
+        if (listener != null) {
+            listener.onProgress(0, total);
+        }
+    }
+
+    void advance(long bytes) {
+        long written = bytesWritten.addAndGet(bytes);
+        if (listener != null) {
+            listener.onProgress(written, totalBytes);
+        }
+    }
+
+    void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Sauvegarde annulée");
+        }
+    }
+}
@@ -0,0 +1,549 @@
+package com.xml.services;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Accès aléatoire au contenu décompressé d'un fichier gzip, via un index de points de reprise.
+ * <p>
+ * Une première lecture complète ({@link #openIndexingStream()}, faite par l'indexeur) relève
+ * environ tous les {@code span} bytes décompressés un point de reprise : le début d'un membre gzip
+ * (gratuit, et fréquent dans les fichiers écrits par {@link ParallelGzipWriter}, pigz ou bgzip), ou
+ * à défaut une frontière de bloc deflate accompagnée des 32 Ko de sortie qui la précèdent, comme
+ * zran.c de zlib. Une lecture à un offset quelconque ({@link #openAt(long)}) ne décompresse ensuite
+ * qu'à partir du point de reprise le plus proche.
+ * <p>
+ * L'index est persisté à côté du fichier ({@code <fichier>.gzidx}, ou dans le répertoire temporaire
+ * si ce dossier n'est pas accessible en écriture) : les fenêtres y sont stockées compressées et
+ * relues à la demande, seule la table des points de reprise reste en mémoire.
+ */
+public class SeekableGzip {
+
+    public static final long DEFAULT_SPAN = 8L * 1024 * 1024; // 8MB
+
+    private static final String INDEX_SUFFIX = ".gzidx";
+    private static final int INDEX_MAGIC = 0x58475A49; // "XGZI"
+    private static final int INDEX_VERSION = 1;
+    private static final int FOOTER_SIZE = 44;
+    private static final int ENTRY_SIZE = 28;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // Fichiers ouverts récemment : l'index chargé est partagé par l'indexeur, les fragments et les flux patchés
+    private static final int MAX_OPEN = 16;
+    private static final Map<String, SeekableGzip> OPEN = Collections.synchronizedMap(
+            new LinkedHashMap<String, SeekableGzip>(MAX_OPEN, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SeekableGzip> eldest) {
+                    return size() > MAX_OPEN;
+                }
+            });
+
+    /**
+     * Table immuable des points de reprise, triée par offset décompressé.
+     */
+    private static final class Checkpoints {
+        final long[] outputOffsets;
+        final long[] bitOffsets;
+        final long[] windowOffsets; // position de la fenêtre compressée dans le fichier d'index
+        final int[] windowLengths;  // 0 : début de membre, pas de fenêtre
+        final int count;
+        final long length;          // taille décompressée totale
+
+        Checkpoints(long[] outputOffsets, long[] bitOffsets, long[] windowOffsets, int[] windowLengths,
+                    int count, long length) {
+            this.outputOffsets = outputOffsets;
+            this.bitOffsets = bitOffsets;
+            this.windowOffsets = windowOffsets;
+            this.windowLengths = windowLengths;
+            this.count = count;
+            this.length = length;
+        }
+
+        /** Dernier point de reprise à ou avant l'offset. */
+        int floor(long offset) {
+            int i = Arrays.binarySearch(outputOffsets, 0, count, offset);
+            if (i >= 0) {
+                while (i + 1 < count && outputOffsets[i + 1] == offset) {
+                    i++;
+                }
+                return i;
+            }
+            return Math.max(0, -i - 2);
+        }
+    }
+
+    private final File file;
+    private final long fileLength;
+    private final long lastModified;
+    private final long span;
+    private final Path indexPath;
+    private volatile Checkpoints checkpoints;
+
+    public SeekableGzip(File file) {
+        this(file, DEFAULT_SPAN);
+    }
+
+    /**
+     * @param span Nombre de bytes décompressés visé entre deux points de reprise
+     */
+    public SeekableGzip(File file, long span) {
+        if (span < 1) {
+            throw new IllegalArgumentException("Intervalle entre points de reprise invalide: " + span);
+        }
+        this.file = file;
+        this.fileLength = file.length();
+        this.lastModified = file.lastModified();
+        this.span = span;
+        this.indexPath = indexPathFor(file);
+    }
+
+    /**
+     * Instance partagée pour ce fichier, recréée si le fichier a changé depuis.
+     */
+    public static SeekableGzip forFile(File file) {
+        String key = file.getAbsolutePath();
+        synchronized (OPEN) {
+            SeekableGzip gzip = OPEN.get(key);
+            if (gzip == null || gzip.fileLength != file.length() || gzip.lastModified != file.lastModified()) {
+                gzip = new SeekableGzip(file);
+                OPEN.put(key, gzip);
+            }
+            return gzip;
+        }
+    }
+
+    /**
+     * @return true si le fichier commence par l'en-tête gzip
+     */
+    public static boolean isGzip(File file) {
+        return SourceFiles.hasMagic(file, new byte[] {0x1f, (byte) 0x8b});
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return true si l'index des points de reprise est disponible (construit ou relu sur disque)
+     */
+    public boolean isIndexed() {
+        return checkpoints != null || loadIndex();
+    }
+
+    public int getCheckpointCount() throws IOException {
+        return ensureIndexed().count;
+    }
+
+    /**
+     * @return taille du contenu décompressé (construit l'index si nécessaire)
+     */
+    public long length() throws IOException {
+        return ensureIndexed().length;
+    }
+
+    /**
+     * Flux décompressé complet qui construit l'index en passant (CRC des membres vérifiés).
+     * L'index est publié et persisté quand le flux atteint la fin du fichier.
+     */
+    public InputStream openIndexingStream() throws IOException {
+        if (isIndexed()) {
+            return openAt(0);
+        }
+        return new Cursor(0, null, 0, new IndexBuilder());
+    }
+
+    /**
+     * Flux décompressé à partir d'un offset, en repartant du point de reprise le plus proche.
+     */
+    public InputStream openAt(long offset) throws IOException {
+        Checkpoints index = ensureIndexed();
+        if (offset < 0 || offset > index.length) {
+            throw new IllegalArgumentException("Offset hors du contenu décompressé: " + offset
+                    + " (taille " + index.length + ")");
+        }
+        int i = index.floor(offset);
+        byte[] window = index.windowLengths[i] > 0 ? readWindow(index, i) : null;
+        Cursor cursor = new Cursor(index.bitOffsets[i], window, index.outputOffsets[i], null);
+        try {
+            cursor.skipNBytes(offset - index.outputOffsets[i]);
+        } catch (IOException | RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+        return cursor;
+    }
+
+    private Checkpoints ensureIndexed() throws IOException {
+        if (checkpoints != null || loadIndex()) {
+            return checkpoints;
+        }
+        synchronized (this) {
+            if (checkpoints == null) {
+                try (InputStream in = new Cursor(0, null, 0, new IndexBuilder())) {
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    while (in.read(chunk) != -1) {
+                        // Décompression complète : seul l'index nous intéresse
+                    }
+                }
+            }
+            return checkpoints;
+        }
+    }
+
+    /**
+     * Relit l'index persisté s'il correspond encore au fichier (taille et date de modification).
+     */
+    private synchronized boolean loadIndex() {
+        if (checkpoints != null) {
+            return true;
+        }
+        if (!Files.isRegularFile(indexPath)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER_SIZE) {
+                return false;
+            }
+            ByteBuffer footer = readAt(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+            long tableOffset = footer.getLong();
+            int count = footer.getInt();
+            long length = footer.getLong();
+            long sourceLength = footer.getLong();
+            long sourceModified = footer.getLong();
+            int version = footer.getInt();
+            int magic = footer.getInt();
+            if (magic != INDEX_MAGIC || version != INDEX_VERSION || count < 1
+                    || sourceLength != fileLength || sourceModified != lastModified
+                    || tableOffset + (long) count * ENTRY_SIZE != size - FOOTER_SIZE) {
+                return false;
+            }
+
+            ByteBuffer table = readAt(channel, tableOffset, count * ENTRY_SIZE);
+            long[] outputs = new long[count];
+            long[] bits = new long[count];
+            long[] windows = new long[count];
+            int[] windowLengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                outputs[i] = table.getLong();
+                bits[i] = table.getLong();
+                windows[i] = table.getLong();
+                windowLengths[i] = table.getInt();
+            }
+            checkpoints = new Checkpoints(outputs, bits, windows, windowLengths, count, length);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Index gzip illisible, reconstruction: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private byte[] readWindow(Checkpoints index, int i) throws IOException {
+        byte[] compressed;
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            compressed = readAt(channel, index.windowOffsets[i], index.windowLengths[i]).array();
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] window = new byte[RawInflater.WINDOW_SIZE];
+            int n = 0;
+            while (!inflater.finished() && n < window.length) {
+                int read = inflater.inflate(window, n, window.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("Fenêtre de reprise tronquée");
+                }
+                n += read;
+            }
+            return n == window.length ? window : Arrays.copyOf(window, n);
+        } catch (DataFormatException e) {
+            throw new ZipException("Fenêtre de reprise corrompue: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Index gzip tronqué");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static Path indexPathFor(File file) {
+        File absolute = file.getAbsoluteFile();
+        File parent = absolute.getParentFile();
+        if (parent != null && Files.isWritable(parent.toPath())) {
+            return new File(parent, absolute.getName() + INDEX_SUFFIX).toPath();
+        }
+        return Path.of(System.getProperty("java.io.tmpdir"),
+                "xml-" + Integer.toHexString(absolute.getPath().hashCode()) + "-" + absolute.getName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Décompression séquentielle à partir d'une position en bits, membre après membre.
+     */
+    private final class Cursor extends InputStream {
+        private final FileChannel channel;
+        private final RawInflater.BitReader bits;
+        private final IndexBuilder builder; // non null pour la passe d'indexation
+        private final CRC32 crc = new CRC32();
+        private final byte[] singleByte = new byte[1];
+        private RawInflater inflater;       // null entre deux membres
+        private long position;              // offset décompressé du prochain byte
+        private long memberLength;
+        private boolean finished;
+
+        /**
+         * @param bitOffset 0 pour partir de l'en-tête du premier membre, sinon un point de reprise
+         * @param window null si le point de reprise est un début de membre
+         */
+        Cursor(long bitOffset, byte[] window, long position, IndexBuilder builder) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.builder = builder;
+            this.position = position;
+            try {
+                this.bits = new RawInflater.BitReader(channel, bitOffset);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            if (bitOffset > 0) {
+                this.inflater = new RawInflater(bits, window);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(singleByte, 0, 1);
+            return n == -1 ? -1 : singleByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (!finished) {
+                if (inflater == null && !startMember()) {
+                    finished = true;
+                    if (builder != null) {
+                        builder.finish(position);
+                    }
+                    break;
+                }
+                int n = inflater.read(b, off, len);
+                if (n < 0) {
+                    endMember();
+                    continue;
+                }
+                position += n;
+                if (builder != null) {
+                    crc.update(b, off, n);
+                    memberLength += n;
+                    if (inflater.atBlockBoundary()) {
+                        builder.add(position, bits.bitPosition(), inflater);
+                    }
+                }
+                return n;
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (builder != null) {
+                builder.discard();
+            }
+            channel.close();
+        }
+
+        /**
+         * Lit l'en-tête du membre suivant.
+         * @return false à la fin du fichier (ou sur un bourrage de zéros après le dernier membre)
+         */
+        private boolean startMember() throws IOException {
+            int id1 = bits.alignedByte();
+            if (id1 < 0 || (id1 == 0 && position > 0)) {
+                return false;
+            }
+            if (id1 != 0x1f || bits.alignedByte() != 0x8b) {
+                throw new ZipException("En-tête gzip invalide à l'offset " + (bits.bitPosition() / 8));
+            }
+            if (headerByte() != 8) {
+                throw new ZipException("Méthode de compression gzip non supportée");
+            }
+            int flags = headerByte();
+            skipHeaderBytes(6); // date, flags extra, OS
+            if ((flags & 4) != 0) {
+                skipHeaderBytes(headerByte() | headerByte() << 8);
+            }
+            if ((flags & 8) != 0) {
+                while (headerByte() != 0) {
+                    // Nom du fichier d'origine
+                }
+            }
+            if ((flags & 16) != 0) {
+                while (headerByte() != 0) {
+                    // Commentaire
+                }
+            }
+            if ((flags & 2) != 0) {
+                skipHeaderBytes(2);
+            }
+
+            inflater = new RawInflater(bits, null);
+            if (builder != null) {
+                crc.reset();
+                memberLength = 0;
+                builder.add(position, bits.bitPosition(), null);
+            }
+            return true;
+        }
+
+        private void endMember() throws IOException {
+            bits.alignToByte();
+            long expectedCrc = headerByte() | headerByte() << 8 | headerByte() << 16 | (long) headerByte() << 24;
+            long expectedLength = headerByte() | headerByte() << 8 | headerByte() << 16 | (long) headerByte() << 24;
+            if (builder != null
+                    && (expectedCrc != crc.getValue() || expectedLength != (memberLength & 0xFFFFFFFFL))) {
+                throw new ZipException("Membre gzip corrompu (CRC ou taille incorrects) avant l'offset " + position);
+            }
+            inflater = null;
+        }
+
+        private int headerByte() throws IOException {
+            int b = bits.alignedByte();
+            if (b < 0) {
+                throw new EOFException("Fichier gzip tronqué");
+            }
+            return b;
+        }
+
+        private void skipHeaderBytes(int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                headerByte();
+            }
+        }
+    }
+
+    /**
+     * Accumule les points de reprise pendant la passe complète. Les fenêtres sont écrites au fil de
+     * l'eau dans un fichier temporaire, la table et le pied sont ajoutés à la fin, puis le fichier
+     * est renommé atomiquement en index définitif.
+     */
+    private final class IndexBuilder {
+        private final Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] compressBuffer = new byte[RawInflater.WINDOW_SIZE + 1024];
+        private FileChannel out;
+        private long written;
+        private long[] outputs = new long[64];
+        private long[] bitOffsets = new long[64];
+        private long[] windowOffsets = new long[64];
+        private int[] windowLengths = new int[64];
+        private int count;
+        private boolean done;
+
+        /**
+         * @param inflater décodeur arrêté sur une frontière de bloc, null au début d'un membre
+         */
+        void add(long position, long bitOffset, RawInflater inflater) throws IOException {
+            if (count > 0 && position - outputs[count - 1] < span) {
+                return;
+            }
+            if (count == outputs.length) {
+                int capacity = count * 2;
+                outputs = Arrays.copyOf(outputs, capacity);
+                bitOffsets = Arrays.copyOf(bitOffsets, capacity);
+                windowOffsets = Arrays.copyOf(windowOffsets, capacity);
+                windowLengths = Arrays.copyOf(windowLengths, capacity);
+            }
+            outputs[count] = position;
+            bitOffsets[count] = bitOffset;
+            windowOffsets[count] = written;
+            windowLengths[count] = inflater == null ? 0 : writeWindow(inflater.window());
+            count++;
+        }
+
+        private int writeWindow(byte[] window) throws IOException {
+            deflater.reset();
+            deflater.setInput(window);
+            deflater.finish();
+            ByteBuffer chunk = ByteBuffer.allocate(window.length + 1024);
+            while (!deflater.finished()) {
+                int n = deflater.deflate(compressBuffer);
+                chunk.put(compressBuffer, 0, n);
+            }
+            chunk.flip();
+            int length = chunk.remaining();
+            write(chunk);
+            return length;
+        }
+
+        void finish(long length) throws IOException {
+            if (done) {
+                return;
+            }
+            ByteBuffer table = ByteBuffer.allocate(count * ENTRY_SIZE + FOOTER_SIZE);
+            for (int i = 0; i < count; i++) {
+                table.putLong(outputs[i]).putLong(bitOffsets[i]).putLong(windowOffsets[i]).putInt(windowLengths[i]);
+            }
+            long tableOffset = written;
+            table.putLong(tableOffset).putInt(count).putLong(length)
+                    .putLong(fileLength).putLong(lastModified).putInt(INDEX_VERSION).putInt(INDEX_MAGIC);
+            table.flip();
+            write(table);
+
+            Checkpoints built = new Checkpoints(outputs, bitOffsets, windowOffsets, windowLengths, count, length);
+            out.force(true);
+            out.close();
+            out = null;
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+            checkpoints = built;
+        }
+
+        void discard() throws IOException {
+            deflater.end();
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (!done) {
+                Files.deleteIfExists(tempPath);
+            }
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            if (out == null) {
+                out = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            while (buffer.hasRemaining()) {
+                written += out.write(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.xml.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Accès au contenu logique d'un fichier XML source, compressé ou non.
+ * <p>
+ * Les offsets des fragments et des patchs désignent toujours le contenu XML : pour un fichier
+ * gzip, ce sont des offsets décompressés, servis par {@link SeekableGzip}. Le format est reconnu
+ * à l'en-tête du fichier, pas à son extension.
+ */
+public final class SourceFiles {
+
+    private static final byte[] ZSTD_MAGIC = {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd};
+
+    private SourceFiles() {
+    }
+
+    /**
+     * @return true si le contenu du fichier doit être décompressé
+     * @throws IOException pour un format compressé non supporté (zstd)
+     */
+    public static boolean isCompressed(File file) throws IOException {
+        if (SeekableGzip.isGzip(file)) {
+            return true;
+        }
+        if (hasMagic(file, ZSTD_MAGIC)) {
+            throw new IOException("Compression zstd non supportée, recompresser en gzip: " + file.getName());
+        }
+        return false;
+    }
+
+    /**
+     * @return taille du contenu XML (décompressé si besoin)
+     */
+    public static long length(File file) throws IOException {
+        return isCompressed(file) ? SeekableGzip.forFile(file).length() : file.length();
+    }
+
+    /**
+     * Ouvre le contenu XML à partir d'un offset logique. Le flux n'est pas bufferisé.
+     */
+    public static InputStream openAt(File file, long offset) throws IOException {
+        if (isCompressed(file)) {
+            return SeekableGzip.forFile(file).openAt(offset);
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return Channels.newInputStream(channel.position(offset));
+    }
+
+    static boolean hasMagic(File file, byte[] magic) {
+        if (!file.isFile()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(magic.length);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // Fichiers de quelques octets : lecture jusqu'à la fin
+            }
+            return !header.hasRemaining() && header.flip().equals(ByteBuffer.wrap(magic));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.xml.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.xml.handlers.FragmentValidationCache;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.FragmentMetadata.FragmentStatus;
+import com.xml.models.ValidationResult;
+import com.xml.models.XMLError;
+
+/**
+ * Résultats de validation persistés sous {@code .xml-massive-lsp/validation/}, un fichier par
+ * document XML.
+ * <p>
+ * Un état contient l'empreinte du fichier et celle du schéma, la liste des erreurs, le statut de
+ * chaque fragment et un résumé, plus le {@link FragmentValidationCache} (résultats par
+ * enregistrement). À la réouverture d'un fichier inchangé avec le même schéma, le résultat est
+ * servi sans revalider ; si seul une partie du fichier a changé, les résultats par enregistrement,
+ * indexés par contenu, évitent de revalider ce qui n'a pas bougé.
+ * <p>
+ * L'état est écrit dans un fichier temporaire puis publié par renommage atomique, avec un CRC32C
+ * final : un état illisible est ignoré.
+ */
+public class ValidationResultStore {
+
+    private static final int MAGIC = 0x584D4C56; // "XMLV"
+    private static final int VERSION = 2;
+
+    // Octets lus au début et à la fin du fichier pour son empreinte
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private final Path directory;
+
+    public ValidationResultStore(Path workspaceRoot) {
+        this.directory = workspaceRoot.resolve(".xml-massive-lsp").resolve("validation");
+    }
+
+    /**
+     * Empreinte d'un fichier : taille, date de modification et condensé de son début et de sa fin.
+     * Calculée sans lire le fichier en entier.
+     */
+    public static String fileFingerprint(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((size + ":" + file.lastModified()).getBytes(StandardCharsets.UTF_8));
+            ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, size));
+            readFully(channel, sample, 0);
+            digest.update(sample.flip());
+            if (size > SAMPLE_SIZE) {
+                sample.clear();
+                readFully(channel, sample, Math.max(SAMPLE_SIZE, size - SAMPLE_SIZE));
+                digest.update(sample.flip());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponible", e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) break;
+        }
+    }
+
+    /**
+     * Enregistre l'état de validation du fichier.
+     *
+     * @param schemaFingerprint version du schéma utilisé ("" sans schéma)
+     * @param result            résultat du fichier tel qu'il est sur disque, ou null s'il a été
+     *                          validé avec des patchs (seuls les résultats par enregistrement sont alors gardés)
+     * @param index             index du fichier, pour le statut des fragments
+     */
+    public void save(File xmlFile, String schemaFingerprint, ValidationResult result, FragmentIndex index,
+                     FragmentValidationCache cache) throws IOException {
+        Files.createDirectories(directory);
+        Path target = pathFor(xmlFile);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(ch), 64 * 1024), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, fileFingerprint(xmlFile));
+            writeString(out, schemaFingerprint);
+            out.writeLong(System.currentTimeMillis());
+
+            out.writeBoolean(result != null);
+            if (result != null) {
+                // Résumé
+                out.writeBoolean(result.isSuccess());
+                out.writeLong(result.getValidationTime());
+                out.writeLong(result.getFileSize());
+                // Erreurs
+                out.writeInt(result.getErrors().size());
+                for (XMLError e : result.getErrors()) {
+                    writeString(out, e.getMessage());
+                    out.writeInt(e.getLineNumber());
+                    writeString(out, e.getType());
+                    out.writeInt(e.getColumn());
+                    // Plage précise et octets : l'erreur restaurée se place comme l'originale
+                    out.writeInt(e.getPreciseStartLine());
+                    out.writeInt(e.getPreciseStartColumn());
+                    out.writeInt(e.getPreciseEndLine());
+                    out.writeInt(e.getPreciseEndColumn());
+                    out.writeLong(e.getStartOffset());
+                    out.writeLong(e.getEndOffset());
+                }
+                // Statut des fragments
+                List<FragmentMetadata> fragments = index.getAllFragments();
+                out.writeInt(fragments.size());
+                for (FragmentMetadata f : fragments) {
+                    out.writeByte(f.getStatus().ordinal());
+                }
+            }
+            cache.writeTo(out);
+            out.flush();
+
+            // Le CRC final n'est pas inclus dans le calcul
+            DataOutputStream trailer = new DataOutputStream(Channels.newOutputStream(ch));
+            trailer.writeInt((int) crc.getValue());
+            trailer.flush();
+            ch.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Recharge l'état du fichier : les résultats par enregistrement vont dans le cache ; si le
+     * fichier et le schéma n'ont pas changé, le statut des fragments est restauré et le résultat
+     * complet est retourné.
+     *
+     * @return le résultat enregistré, ou null s'il n'y en a pas ou qu'il est périmé
+     */
+    public ValidationResult load(File xmlFile, String schemaFingerprint, FragmentIndex index,
+                                 FragmentValidationCache cache) {
+        Path path = pathFor(xmlFile);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        // Contrôle d'intégrité avant d'appliquer quoi que ce soit
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(path), 64 * 1024)) {
+            CRC32C crc = new CRC32C();
+            InputStream checked = new CheckedInputStream(raw, crc);
+            long payload = Files.size(path) - Integer.BYTES;
+            checked.skipNBytes(payload);
+            if (new DataInputStream(raw).readInt() != (int) crc.getValue()) {
+                throw new IOException("Checksum invalide");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Résultats de validation ignorés: " + e.getMessage());
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("En-tête invalide");
+            }
+            boolean sameFile = readString(in).equals(fileFingerprint(xmlFile));
+            boolean sameSchema = readString(in).equals(schemaFingerprint);
+            in.readLong(); // date d'enregistrement
+
+            ValidationResult result = null;
+            if (in.readBoolean()) {
+                boolean success = in.readBoolean();
+                long time = in.readLong();
+                long fileSize = in.readLong();
+                int errorCount = in.readInt();
+                List<XMLError> errors = new ArrayList<>(errorCount);
+                for (int i = 0; i < errorCount; i++) {
+                    String message = readString(in);
+                    int line = in.readInt();
+                    XMLError error = new XMLError(message, line, readString(in));
+                    error.setColumn(in.readInt());
+                    error.setPrecisePosition(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                    error.setByteRange(in.readLong(), in.readLong());
+                    errors.add(error);
+                }
+                int fragmentCount = in.readInt();
+                byte[] statuses = new byte[fragmentCount];
+                in.readFully(statuses);
+
+                if (sameFile && sameSchema && fragmentCount == index.size()) {
+                    FragmentStatus[] values = FragmentStatus.values();
+                    for (int i = 0; i < fragmentCount; i++) {
+                        index.getFragment(i).setStatus(values[statuses[i]]);
+                    }
+                    result = new ValidationResult(success, errors, time, fileSize);
+                }
+            }
+            cache.readFrom(in, sameFile);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Résultats de validation ignorés: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Supprime l'état enregistré du fichier.
+     */
+    public void delete(File xmlFile) throws IOException {
+        Files.deleteIfExists(pathFor(xmlFile));
+    }
+
+    private Path pathFor(File xmlFile) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(xmlFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(digest, 0, 16) + ".bin");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 indisponible", e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = (s != null ? s : "").getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
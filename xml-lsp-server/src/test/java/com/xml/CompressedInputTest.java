@@ -0,0 +1,204 @@
+package com.xml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.PatchedInputStream;
+import com.xml.handlers.StreamingIndexer;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.Patch;
+import com.xml.models.PatchType;
+import com.xml.services.FileSaver;
+import com.xml.services.FragmentManager;
+import com.xml.services.ParallelGzipWriter;
+import com.xml.services.PatchManager;
+import com.xml.services.SaveProgress;
+import com.xml.services.SeekableGzip;
+import com.xml.services.SourceFiles;
+
+/**
+ * Tests de la lecture directe des fichiers gzip : index des points de reprise, lectures
+ * aléatoires, indexation, fragments, flux patchés et sauvegarde.
+ */
+public class CompressedInputTest {
+
+    private Path tempDir;
+    private File xmlFile;
+    private byte[] content;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("compressed-input-test");
+        xmlFile = tempDir.resolve("doc.xml").toFile();
+        // Contenu peu répétitif : plusieurs blocs deflate, dont des références lointaines
+        Random random = new Random(11);
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<root>\n");
+        for (int i = 0; i < 40000; i++) {
+            xml.append("  <item id=\"").append(i).append("\" v=\"").append(random.nextInt(1_000_000))
+                    .append("\">value ").append(Long.toHexString(random.nextLong())).append("</item>\n");
+        }
+        xml.append("</root>\n");
+        content = xml.toString().getBytes(StandardCharsets.UTF_8);
+        Files.write(xmlFile.toPath(), content);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testRandomReadsFromCheckpointsMatchContent() throws IOException {
+        // Niveau 0 : blocs non compressés ; 1 : codes fixes et dynamiques ; 9 : dynamiques
+        for (int level : new int[] {0, 1, 9}) {
+            File gz = gzip(level);
+            SeekableGzip seekable = new SeekableGzip(gz, 256 * 1024);
+            try (InputStream in = seekable.openIndexingStream()) {
+                assertArrayEquals(content, in.readAllBytes(), "niveau " + level);
+            }
+            assertEquals(content.length, seekable.length());
+            assertTrue(seekable.getCheckpointCount() > 4, "un seul membre : points de reprise avec fenêtre");
+
+            assertRandomReads(seekable, new Random(level));
+
+            // L'index persisté est relu sans nouvelle passe complète
+            SeekableGzip reopened = new SeekableGzip(gz, 256 * 1024);
+            assertTrue(reopened.isIndexed());
+            assertEquals(seekable.getCheckpointCount(), reopened.getCheckpointCount());
+            assertRandomReads(reopened, new Random(level + 100));
+        }
+    }
+
+    @Test
+    void testMultiMemberFileUsesMemberCheckpoints() throws IOException {
+        File gz = tempDir.resolve("multi.xml.gz").toFile();
+        try (InputStream in = Files.newInputStream(xmlFile.toPath());
+             FileChannel out = FileChannel.open(gz.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            new ParallelGzipWriter(100 * 1024, 6).write(in, out, new SaveProgress());
+        }
+
+        SeekableGzip seekable = new SeekableGzip(gz, 100 * 1024);
+        assertEquals(content.length, seekable.length());
+        assertTrue(seekable.getCheckpointCount() >= content.length / (100 * 1024));
+        assertRandomReads(seekable, new Random(5));
+    }
+
+    @Test
+    void testIndexerFragmentsAndPatchedStreamReadGzipDirectly() throws IOException {
+        File gz = gzip(6);
+
+        FragmentIndex plainIndex = new FragmentIndex();
+        new StreamingIndexer(plainIndex).indexFile(xmlFile);
+        FragmentIndex gzIndex = new FragmentIndex();
+        new StreamingIndexer(gzIndex).indexFile(gz);
+
+        List<FragmentMetadata> expected = plainIndex.getAllFragments();
+        List<FragmentMetadata> actual = gzIndex.getAllFragments();
+        assertEquals(expected.size(), actual.size());
+        FragmentManager plainFragments = new FragmentManager(xmlFile);
+        FragmentManager gzFragments = new FragmentManager(gz);
+        for (int i = 0; i < expected.size(); i += 997) {
+            assertEquals(expected.get(i).getStartOffset(), actual.get(i).getStartOffset());
+            assertEquals(expected.get(i).getEndOffset(), actual.get(i).getEndOffset());
+            assertEquals(expected.get(i).getStartLine(), actual.get(i).getStartLine());
+            assertEquals(plainFragments.getFragmentContent(expected.get(i)),
+                    gzFragments.getFragmentContent(actual.get(i)));
+        }
+
+        PatchManager manager = patches();
+        byte[] patched;
+        try (PatchedInputStream pis = new PatchedInputStream(xmlFile, manager.getAllPatchesSorted())) {
+            patched = pis.readAllBytes();
+        }
+        try (PatchedInputStream pis = new PatchedInputStream(gz, manager.getAllPatchesSorted())) {
+            assertArrayEquals(patched, pis.readAllBytes());
+            // Retour en arrière : reprise depuis un point de l'index
+            pis.seek(1000);
+            byte[] chunk = pis.readNBytes(5000);
+            for (int k = 0; k < chunk.length; k++) {
+                assertEquals(patched[1000 + k], chunk[k]);
+            }
+        }
+
+        // Enregistrer sous un nom non compressé, puis sauvegarder le gzip sur lui-même
+        File plainOut = tempDir.resolve("out.xml").toFile();
+        new FileSaver().saveWithPatches(gz, plainOut, null, manager);
+        assertArrayEquals(patched, Files.readAllBytes(plainOut.toPath()));
+
+        new FileSaver().saveWithPatches(gz, gz, gzIndex, patches());
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(gz.toPath()))) {
+            assertArrayEquals(patched, in.readAllBytes());
+        }
+        FragmentIndex savedIndex = new FragmentIndex();
+        new StreamingIndexer(savedIndex).indexFile(plainOut);
+        assertEquals(savedIndex.size(), gzIndex.size());
+        assertEquals(savedIndex.getAllFragments().get(savedIndex.size() - 1).getEndOffset(),
+                gzIndex.getAllFragments().get(gzIndex.size() - 1).getEndOffset());
+    }
+
+    @Test
+    void testZstdInputIsRejectedClearly() throws IOException {
+        File zst = tempDir.resolve("doc.xml.zst").toFile();
+        Files.write(zst.toPath(), new byte[] {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0, 0, 0, 0});
+        IOException e = assertThrows(IOException.class, () -> SourceFiles.isCompressed(zst));
+        assertTrue(e.getMessage().contains("zstd"));
+    }
+
+    private PatchManager patches() {
+        PatchManager manager = new PatchManager();
+        Random random = new Random(9);
+        for (int i = 0; i < 100; i++) {
+            long start = 40 + random.nextInt(content.length - 100);
+            manager.addPatch(new Patch(start, start + random.nextInt(20), "<p" + i + "/>", PatchType.REPLACE, null));
+        }
+        return manager;
+    }
+
+    private File gzip(int level) throws IOException {
+        File gz = tempDir.resolve("doc-" + level + ".xml.gz").toFile();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(gz), 64 * 1024) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            out.write(content);
+        }
+        return gz;
+    }
+
+    private void assertRandomReads(SeekableGzip seekable, Random random) throws IOException {
+        for (int i = 0; i < 20; i++) {
+            int offset = random.nextInt(content.length);
+            try (InputStream in = seekable.openAt(offset)) {
+                byte[] chunk = in.readNBytes(1 + random.nextInt(50000));
+                for (int k = 0; k < chunk.length; k++) {
+                    assertEquals(content[offset + k], chunk[k]);
+                }
+            }
+        }
+    }
+}
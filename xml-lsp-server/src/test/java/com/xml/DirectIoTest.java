@@ -0,0 +1,128 @@
+package com.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.DirectIoInputStream;
+import com.xml.handlers.PatchedInputStream;
+import com.xml.handlers.StreamingIndexer;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.Patch;
+import com.xml.models.PatchType;
+import com.xml.services.FileSaver;
+import com.xml.services.PatchManager;
+
+/**
+ * Tests du mode O_DIRECT : mêmes résultats que les E/S classiques (ou repli transparent
+ * si le système de fichiers ne supporte pas O_DIRECT).
+ */
+public class DirectIoTest {
+
+    private Path tempDir;
+    private File xmlFile;
+    private String content;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("direct-io-test");
+        xmlFile = tempDir.resolve("doc.xml").toFile();
+        // Taille non multiple de la taille de bloc, plusieurs buffers de 1MB
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<root>\n");
+        for (int i = 0; i < 60000; i++) {
+            xml.append("  <item id=\"").append(i).append("\">value ").append(i).append("</item>\n");
+        }
+        xml.append("</root>\n");
+        content = xml.toString();
+        Files.writeString(xmlFile.toPath(), content);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testDirectStreamMatchesFileContent() throws IOException {
+        byte[] expected = Files.readAllBytes(xmlFile.toPath());
+        try (DirectIoInputStream in = new DirectIoInputStream(xmlFile)) {
+            assertArrayEquals(expected, in.readAllBytes());
+        }
+
+        // Départ et repositionnements non alignés
+        Random random = new Random(3);
+        try (DirectIoInputStream in = new DirectIoInputStream(xmlFile, 12345)) {
+            assertEquals(expected[12345], (byte) in.read());
+            for (int i = 0; i < 50; i++) {
+                int offset = random.nextInt(expected.length - 10000);
+                in.seek(offset);
+                byte[] chunk = in.readNBytes(1 + random.nextInt(9999));
+                for (int k = 0; k < chunk.length; k++) {
+                    assertEquals(expected[offset + k], chunk[k]);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testDirectIndexingMatchesBufferedIndexing() {
+        FragmentIndex buffered = new FragmentIndex();
+        StreamingIndexer bufferedIndexer = new StreamingIndexer(buffered);
+        bufferedIndexer.setDirectIo(false);
+        bufferedIndexer.indexFile(xmlFile);
+
+        FragmentIndex direct = new FragmentIndex();
+        StreamingIndexer directIndexer = new StreamingIndexer(direct);
+        directIndexer.setDirectIo(true);
+        directIndexer.indexFile(xmlFile);
+
+        List<FragmentMetadata> e = buffered.getAllFragments();
+        List<FragmentMetadata> a = direct.getAllFragments();
+        assertEquals(e.size(), a.size());
+        for (int i = 0; i < e.size(); i++) {
+            assertEquals(e.get(i).getStartOffset(), a.get(i).getStartOffset());
+            assertEquals(e.get(i).getEndOffset(), a.get(i).getEndOffset());
+            assertEquals(e.get(i).getStartLine(), a.get(i).getStartLine());
+        }
+    }
+
+    @Test
+    void testDirectSaveMatchesPatchedStream() throws IOException {
+        PatchManager manager = new PatchManager();
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            long start = 40 + random.nextInt(content.length() - 100);
+            manager.addPatch(new Patch(start, start + random.nextInt(20),
+                    "<p" + i + "/>".repeat(random.nextInt(5)), PatchType.REPLACE, null));
+        }
+
+        byte[] expected;
+        try (PatchedInputStream pis = new PatchedInputStream(xmlFile, manager.getAllPatchesSorted(), true)) {
+            expected = pis.readAllBytes();
+        }
+        try (PatchedInputStream pis = new PatchedInputStream(xmlFile, manager.getAllPatchesSorted())) {
+            assertArrayEquals(pis.readAllBytes(), expected);
+        }
+
+        // Plages de 64 Ko : plusieurs écrivains alignés, dernier bloc complété puis tronqué
+        FileSaver saver = new FileSaver(4, 64 * 1024);
+        saver.setDirectIo(true);
+        saver.setMaxInPlaceBytes(0);
+        saver.saveWithPatches(xmlFile, xmlFile, null, manager);
+
+        assertArrayEquals(expected, Files.readAllBytes(xmlFile.toPath()));
+    }
+}
@@ -0,0 +1,80 @@
+package com.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.models.ValidationResult;
+import com.xml.services.FragmentValidator;
+
+/**
+ * Tests de la validation de fragments en mémoire : erreurs XSD détectées sans fichier
+ * temporaire, validateur réutilisé après une erreur, et validation par lot identique à la validation unitaire.
+ */
+public class FragmentValidatorTest {
+
+    private Path tempDir;
+    private File xsd;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("fragment-validator-test");
+        xsd = tempDir.resolve("item.xsd").toFile();
+        Files.writeString(xsd.toPath(),
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">\n"
+                + "  <xs:element name=\"item\"><xs:complexType><xs:sequence>\n"
+                + "    <xs:element name=\"qty\" type=\"xs:int\"/>\n"
+                + "  </xs:sequence></xs:complexType></xs:element>\n"
+            + "</xs:schema>\n");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testFragmentIsValidatedInMemory() {
+        FragmentValidator validator = new FragmentValidator();
+        ValidationResult valid = validator.validateFragment("<item><qty>3</qty></item>", xsd, false);
+        assertTrue(valid.isSuccess());
+        assertTrue(valid.getErrors().isEmpty());
+
+        ValidationResult invalid = validator.validateFragment("<item>\n  <qty>é</qty>\n</item>", xsd, false);
+        assertFalse(invalid.getErrors().isEmpty());
+        assertTrue(invalid.getErrors().stream().anyMatch(e -> e.getLineNumber() == 2));
+
+        // Le validateur du thread reste utilisable après un fragment invalide
+        assertTrue(validator.validateFragment("<item><qty>4</qty></item>", xsd, false).getErrors().isEmpty());
+    }
+
+    @Test
+    void testBatchMatchesSingleValidation() {
+        List<String> fragments = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+        fragments.add("<item><qty>" + (i % 17 == 0 ? "x" + i : String.valueOf(i)) + "</qty></item>");
+        }
+        FragmentValidator validator = new FragmentValidator();
+        List<ValidationResult> batch = validator.validateFragments(fragments, xsd, false);
+
+        assertEquals(fragments.size(), batch.size());
+        for (int i = 0; i < fragments.size(); i++) {
+        ValidationResult single = validator.validateFragment(fragments.get(i), xsd, false);
+        assertEquals(single.getErrors().size(), batch.get(i).getErrors().size(), "fragment " + i);
+        assertEquals(i % 17 == 0, !batch.get(i).getErrors().isEmpty(), "fragment " + i);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.StreamingIndexer;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.Patch;
+import com.xml.models.PatchType;
+import com.xml.services.FileSaver;
+import com.xml.services.PatchManager;
+
+/**
+ * Tests de la sauvegarde qui met à jour l'index au lieu de ré-indexer tout le fichier.
+ */
+public class IndexUpdaterTest {
+
+    private Path tempDir;
+    private File xmlFile;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("index-updater-test");
+        xmlFile = tempDir.resolve("doc.xml").toFile();
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<root>\n");
+        for (int i = 0; i < 200; i++) {
+            xml.append("  <item id=\"").append(i).append("\">\n    <v>").append(i).append("</v>\n  </item>\n");
+        }
+        xml.append("</root>\n");
+        Files.writeString(xmlFile.toPath(), xml.toString());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testSavedIndexMatchesFullReindex() throws IOException {
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(xmlFile);
+        index.getFragment(150).setStatus(FragmentMetadata.FragmentStatus.VALID);
+
+        PatchManager manager = new PatchManager();
+        FragmentMetadata f3 = index.getFragment(3);
+        FragmentMetadata f10 = index.getFragment(10);
+        FragmentMetadata f11 = index.getFragment(11);
+        FragmentMetadata f40 = index.getFragment(40);
+        // Fragment agrandi avec des lignes en plus
+        manager.addPatch(new Patch(f3.getStartOffset(), f3.getEndOffset(),
+                "<item id=\"3\">\n    <v>3</v>\n    <w>extra</w>\n  </item>", PatchType.REPLACE, f3.getId()));
+        // Nouveaux fragments insérés entre deux fragments
+        manager.addPatch(new Patch(f10.getEndOffset(), f10.getEndOffset(),
+                "\n  <new a=\"1\"/>\n  <new a=\"2\">x</new>", PatchType.INSERT, null));
+        // Modification de même longueur à l'intérieur d'un fragment
+        manager.addPatch(new Patch(f11.getStartOffset() + 10, f11.getStartOffset() + 12, "99", PatchType.REPLACE, f11.getId()));
+        // Fragment supprimé
+        manager.addPatch(new Patch(f40.getStartOffset(), f40.getEndOffset(), "", PatchType.DELETE, f40.getId()));
+
+        new FileSaver().saveWithPatches(xmlFile, xmlFile, index, manager);
+
+        assertSameIndex(fullIndex(xmlFile), index);
+        // Un fragment intact garde son statut de validation
+        assertEquals(FragmentMetadata.FragmentStatus.VALID, index.getFragment(151).getStatus());
+    }
+
+    @Test
+    void testRandomEditsMatchFullReindex() throws IOException {
+        Random random = new Random(5);
+        for (int round = 0; round < 5; round++) {
+            FragmentIndex index = fullIndex(xmlFile);
+            PatchManager manager = new PatchManager();
+            for (int k = 0; k < 15; k++) {
+                FragmentMetadata f = index.getFragment(random.nextInt(index.size()));
+                switch (random.nextInt(3)) {
+                    case 0:
+                        manager.addPatch(new Patch(f.getStartOffset(), f.getEndOffset(),
+                                "<item id=\"r" + k + "\">\n" + "<v/>\n".repeat(random.nextInt(3)) + "</item>",
+                                PatchType.REPLACE, f.getId()));
+                        break;
+                    case 1:
+                        manager.addPatch(new Patch(f.getEndOffset(), f.getEndOffset(),
+                                "\n  <added n=\"" + k + "\"/>", PatchType.INSERT, null));
+                        break;
+                    default:
+                        manager.addPatch(new Patch(f.getStartOffset(), f.getEndOffset(), "", PatchType.DELETE, f.getId()));
+                        break;
+                }
+            }
+
+            new FileSaver().saveWithPatches(xmlFile, xmlFile, index, manager);
+            assertSameIndex(fullIndex(xmlFile), index);
+        }
+    }
+
+    @Test
+    void testPrologPatchFallsBackToFullReindex() throws IOException {
+        FragmentIndex index = fullIndex(xmlFile);
+        PatchManager manager = new PatchManager();
+        manager.addPatch(new Patch(0, 0, "<!-- header -->\n", PatchType.INSERT, null));
+
+        new FileSaver().saveWithPatches(xmlFile, xmlFile, index, manager);
+
+        assertSameIndex(fullIndex(xmlFile), index);
+        assertTrue(index.getFragment(0).getStartLine() > 2);
+    }
+
+    private static FragmentIndex fullIndex(File file) {
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(file);
+        return index;
+    }
+
+    private static void assertSameIndex(FragmentIndex expected, FragmentIndex actual) {
+        List<FragmentMetadata> e = expected.getAllFragments();
+        List<FragmentMetadata> a = actual.getAllFragments();
+        assertEquals(e.size(), a.size());
+        for (int i = 0; i < e.size(); i++) {
+            String where = "fragment " + i;
+            assertEquals(e.get(i).getIndex(), a.get(i).getIndex(), where);
+            assertEquals(e.get(i).getStartOffset(), a.get(i).getStartOffset(), where);
+            assertEquals(e.get(i).getEndOffset(), a.get(i).getEndOffset(), where);
+            assertEquals(e.get(i).getStartLine(), a.get(i).getStartLine(), where);
+            assertEquals(e.get(i).getEndLine(), a.get(i).getEndLine(), where);
+            assertEquals(expected.getString(e.get(i).getTagId()), actual.getString(a.get(i).getTagId()), where);
+        }
+    }
+}
@@ -99,4 +99,38 @@ public class LargeFileWorkflowTest {
         
         System.out.println("Workflow verified successfully!");
     }
+
+    @Test
+    void testBatchOnGzipOriginalUsesDecompressedLength() throws Exception {
+        // Espace de travail dédié : le journal de patchs n'est pas partagé avec les autres tests
+        java.nio.file.Path workspace = Files.createTempDirectory("gzip-workspace");
+        File gz = workspace.resolve("large.xml.gz").toFile();
+        String xml = "<root>" + "<item>répétition</item>\n".repeat(2000) + "</root>";
+        try (java.util.zip.GZIPOutputStream out = new java.util.zip.GZIPOutputStream(Files.newOutputStream(gz.toPath()))) {
+            out.write(xml.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        }
+        XmlLanguageServer gzServer = new XmlLanguageServer();
+        org.eclipse.lsp4j.InitializeParams params = new org.eclipse.lsp4j.InitializeParams();
+        params.setRootUri(workspace.toUri().toString());
+        gzServer.initialize(params).get();
+        try {
+            assertTrue(gzServer.indexFile(gz.toURI().toString()).get().startsWith("OK:"));
+            // Au-delà de la taille compressée, mais dans le contenu XML
+            long end = xml.getBytes(java.nio.charset.StandardCharsets.UTF_8).length - "</root>".length();
+            assertTrue(end > gz.length());
+            String result = gzServer.applyPatches(new com.xml.models.ApplyPatchesParams(java.util.List.of(
+                    new com.xml.models.FragmentPatchParams(null, end, end, "<last/>")))).get();
+            assertTrue(result.startsWith("OK:"), result);
+
+            String beyond = gzServer.applyPatches(new com.xml.models.ApplyPatchesParams(java.util.List.of(
+                    new com.xml.models.FragmentPatchParams(null, end + 100, end + 100, "<x/>")))).get();
+            assertTrue(beyond.startsWith("ERROR:"), beyond);
+        } finally {
+            gzServer.shutdown().get();
+            Files.walk(workspace)
+                    .map(java.nio.file.Path::toFile)
+                    .sorted((o1, o2) -> -o1.compareTo(o2))
+                    .forEach(File::delete);
+        }
+    }
 }
@@ -0,0 +1,184 @@
+package com.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.PatchedInputStream;
+import com.xml.handlers.StreamingIndexer;
+import com.xml.models.FragmentIndex;
+import com.xml.models.Patch;
+import com.xml.models.PatchType;
+import com.xml.services.OffsetTranslator;
+import com.xml.services.PatchManager;
+
+/**
+ * Tests de la traduction de coordonnées original <-> logique.
+ */
+public class OffsetTranslatorTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("translator-test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testOffsetsAroundPatches() {
+        OffsetTranslator translator = new OffsetTranslator();
+        // [10,20) -> 5 bytes (delta -5), insertion de 3 bytes à 30
+        translator.addPatch(new Patch(10, 20, "AAAAA", PatchType.REPLACE, null));
+        translator.addPatch(new Patch(30, 30, "BBB", PatchType.INSERT, null));
+
+        assertEquals(5, translator.toLogicalOffset(5));
+        assertEquals(10, translator.toLogicalOffset(10));
+        assertEquals(15, translator.toLogicalOffset(20));
+        assertEquals(28, translator.toLogicalOffset(30)); // après l'insertion
+        assertEquals(38, translator.toLogicalOffset(40));
+
+        assertEquals(5, translator.toOriginalOffset(5));
+        assertEquals(20, translator.toOriginalOffset(15));
+        assertEquals(30, translator.toOriginalOffset(25)); // dans le texte inséré
+        assertEquals(40, translator.toOriginalOffset(38));
+    }
+
+    @Test
+    void testMatchesBruteForceForRandomPatches() {
+        Random random = new Random(42);
+        PatchManager manager = new PatchManager();
+        long fileLength = 100_000;
+
+        for (int n = 0; n < 300; n++) {
+            long start = random.nextInt((int) fileLength - 100);
+            long end = start + random.nextInt(50);
+            String text = "x".repeat(random.nextInt(80));
+            manager.addPatch(new Patch(start, end, text, text.isEmpty() ? PatchType.DELETE : PatchType.REPLACE, null));
+        }
+
+        OffsetTranslator translator = manager.getOffsetTranslator();
+        List<Patch> patches = manager.getAllPatchesSorted();
+        for (int k = 0; k < 2000; k++) {
+            long original = random.nextInt((int) fileLength);
+            if (insidePatch(patches, original)) continue;
+            long expected = bruteForceLogical(patches, original);
+            assertEquals(expected, translator.toLogicalOffset(original));
+            assertEquals(original, translator.toOriginalOffset(expected));
+        }
+    }
+
+    @Test
+    void testMiddleInsertionsAndRemovalsKeepCopiesIndependent() {
+        Random random = new Random(7);
+        OffsetTranslator translator = new OffsetTranslator();
+        List<Patch> live = new ArrayList<>();
+        // Patchs disjoints insérés dans le désordre, puis retirés au hasard
+        for (int i = 0; i < 500; i++) {
+            Patch p = new Patch(i * 100L, i * 100L + random.nextInt(40), "y".repeat(random.nextInt(60)),
+                    PatchType.REPLACE, null);
+            live.add(p);
+        }
+        Collections.shuffle(live, random);
+        for (Patch p : live) {
+            translator.addPatch(p);
+        }
+        OffsetTranslator snapshot = translator.copy();
+        List<Patch> before = new ArrayList<>(live);
+        before.sort(null);
+        for (int i = 0; i < 200; i++) {
+            translator.removePatch(live.remove(random.nextInt(live.size())));
+        }
+        live.sort(null);
+
+        assertEquals(300, translator.size());
+        assertEquals(500, snapshot.size());
+        for (long original = 0; original < 50_000; original += 37) {
+            if (!insidePatch(live, original)) {
+                assertEquals(bruteForceLogical(live, original), translator.toLogicalOffset(original));
+            }
+            if (!insidePatch(before, original)) {
+                assertEquals(bruteForceLogical(before, original), snapshot.toLogicalOffset(original));
+            }
+        }
+    }
+
+    @Test
+    void testLinesMatchPatchedStream() throws IOException {
+        StringBuilder xml = new StringBuilder("<root>\n");
+        for (int i = 0; i < 20; i++) {
+            xml.append("  <item id=\"").append(i).append("\">\n    <v>").append(i).append("</v>\n  </item>\n");
+        }
+        xml.append("</root>\n");
+        File file = tempDir.resolve("lines.xml").toFile();
+        Files.writeString(file.toPath(), xml.toString());
+
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(file);
+
+        PatchManager manager = new PatchManager();
+        manager.attachDocument(file, index);
+        // Fragment 2 : +2 lignes ; fragment 5 : -2 lignes (remplacé sur une seule ligne)
+        var f2 = index.getFragment(2);
+        var f5 = index.getFragment(5);
+        manager.addPatch(new Patch(f2.getStartOffset(), f2.getEndOffset(),
+                "<item id=\"2\">\n    <v>2</v>\n    <v>2b</v>\n    <v>2c</v>\n  </item>", PatchType.REPLACE, f2.getId()));
+        manager.addPatch(new Patch(f5.getStartOffset(), f5.getEndOffset(),
+                "<item id=\"5\"/>", PatchType.REPLACE, f5.getId()));
+
+        OffsetTranslator translator = manager.getOffsetTranslator();
+        String patched;
+        try (InputStream in = new PatchedInputStream(file, manager.getAllPatchesSorted())) {
+            patched = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        String[] patchedLines = patched.split("\n", -1);
+        String[] originalLines = xml.toString().split("\n", -1);
+
+        // Chaque ligne originale hors zone patchée se retrouve à l'identique dans le flux patché
+        for (int line = 1; line <= originalLines.length; line++) {
+            boolean inPatch = (line > f2.getStartLine() && line <= f2.getEndLine())
+                    || (line > f5.getStartLine() && line <= f5.getEndLine());
+            if (inPatch || line == f2.getStartLine() || line == f5.getStartLine()) continue;
+            int logical = translator.toLogicalLine(line);
+            assertEquals(originalLines[line - 1], patchedLines[logical - 1], "ligne " + line);
+            assertEquals(line, translator.toOriginalLine(logical));
+        }
+    }
+
+    private static boolean insidePatch(List<Patch> patches, long offset) {
+        for (Patch p : patches) {
+            if (p.getOriginalStartOffset() < offset && offset < p.getOriginalEndOffset()) return true;
+            if (p.getOriginalStartOffset() == offset && p.getOriginalLength() > 0) return true;
+        }
+        return false;
+    }
+
+    private static long bruteForceLogical(List<Patch> patches, long original) {
+        long logical = original;
+        for (Patch p : patches) {
+            if (p.getOriginalEndOffset() <= original) {
+                logical += p.getLengthDelta();
+            }
+        }
+        return logical;
+    }
+}
@@ -0,0 +1,307 @@
+package com.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.FragmentValidationCache;
+import com.xml.handlers.LargeXmlValidator;
+import com.xml.handlers.ParallelSchemaValidator;
+import com.xml.handlers.StreamingIndexer;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.FragmentMetadata.FragmentStatus;
+import com.xml.models.Patch;
+import com.xml.models.PatchType;
+import com.xml.models.ValidationResult;
+import com.xml.models.XMLError;
+import com.xml.services.PatchManager;
+
+/**
+ * Tests de la validation XSD parallèle par enregistrement : mêmes erreurs, aux mêmes lignes,
+ * que la validation séquentielle, revalidation limitée aux enregistrements modifiés, contraintes
+ * d'identité de la racine vérifiées entre enregistrements, et repli sur les ID/IDREF.
+ */
+public class ParallelValidationTest {
+
+    private static final String SCHEMA =
+            "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"urn:orders\"\n"
+            + "           xmlns=\"urn:orders\" elementFormDefault=\"qualified\">\n"
+            + "  <xs:element name=\"orders\"><xs:complexType><xs:sequence>\n"
+            + "    <xs:element ref=\"header\"/>\n"
+            + "    <xs:element ref=\"order\" maxOccurs=\"unbounded\"/>\n"
+            + "  </xs:sequence></xs:complexType></xs:element>\n"
+            + "  <xs:element name=\"header\" type=\"xs:string\"/>\n"
+            + "  <xs:element name=\"order\"><xs:complexType><xs:sequence>\n"
+            + "    <xs:element name=\"qty\" type=\"xs:int\"/>\n"
+            + "    <xs:element name=\"note\" type=\"xs:string\" minOccurs=\"0\"/>\n"
+            + "  </xs:sequence><xs:attribute name=\"id\" type=\"xs:string\" use=\"required\"/></xs:complexType></xs:element>\n"
+            + "</xs:schema>\n";
+
+    private Path tempDir;
+    private File xsd;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("parallel-validation-test");
+        xsd = tempDir.resolve("orders.xsd").toFile();
+        Files.writeString(xsd.toPath(), SCHEMA);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testParallelMatchesSequentialErrorsAndLines() throws Exception {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<o:orders xmlns:o=\"urn:orders\">\n");
+        xml.append("  <o:header>h</o:header>\n");
+        for (int i = 0; i < 2000; i++) {
+            String qty = i % 500 == 7 ? "many" : String.valueOf(i);
+            xml.append("  <o:order").append(i == 1200 ? "" : " id=\"o" + i + "\"").append(">\n")
+               .append("    <o:qty>").append(qty).append("</o:qty>\n")
+               .append("    <o:note>é").append(i).append("</o:note>\n")
+               .append("  </o:order>\n");
+            if (i == 1500) {
+                // Élément inattendu dans le contenu de la racine
+                xml.append("  <o:header>again</o:header>\n");
+            }
+        }
+        xml.append("</o:orders>\n");
+        File file = tempDir.resolve("orders.xml").toFile();
+        Files.writeString(file.toPath(), xml);
+
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(file);
+
+        List<XMLError> parallel = new ParallelSchemaValidator(4).validate(file, xsd, index);
+        assertNotNull(parallel, "Les enregistrements sont indépendants : pas de repli");
+        ValidationResult sequential = new LargeXmlValidator().validate(file, xsd);
+
+        assertEquals(lines(sequential.getErrors()), lines(parallel));
+        assertTrue(parallel.stream().anyMatch(e -> e.getMessage().startsWith("cvc-complex-type.2.4.a")));
+        assertFalse(new LargeXmlValidator().validateParallel(file, xsd, index).isSuccess());
+    }
+
+    @Test
+    void testRevalidationAfterPatchOnlyRevalidatesChangedRecords() throws Exception {
+        StringBuilder xml = new StringBuilder("<orders xmlns=\"urn:orders\">\n  <header>h</header>\n");
+        for (int i = 0; i < 300; i++) {
+            xml.append("  <order id=\"o").append(i).append("\">\n    <qty>").append(i).append("</qty>\n  </order>\n");
+        }
+        xml.append("</orders>\n");
+        File file = tempDir.resolve("orders.xml").toFile();
+        Files.writeString(file.toPath(), xml);
+
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(file);
+        LargeXmlValidator validator = new LargeXmlValidator();
+        assertTrue(validator.validateIncremental(file, xsd, index, null, 2).isSuccess());
+        assertEquals(0, validator.getResultCache().getHitCount());
+
+        // Un enregistrement réécrit sur plus de lignes, avec une quantité invalide
+        FragmentMetadata target = index.getFragment(100);
+        PatchManager patchManager = new PatchManager(tempDir);
+        patchManager.addPatch(new Patch(target.getStartOffset(), target.getEndOffset(),
+                "<order id=\"x\">\n\n    <qty>lots</qty>\n  </order>", PatchType.REPLACE, target.getId()));
+
+        ValidationResult incremental = validator.validateIncremental(file, xsd, index, patchManager, 2);
+        ValidationResult sequential = validator.validateWithPatches(file, xsd, patchManager);
+        assertFalse(incremental.isSuccess());
+        assertEquals(lines(sequential.getErrors()), lines(incremental.getErrors()));
+        assertEquals(index.size() - 1, validator.getResultCache().getHitCount());
+        assertEquals(FragmentStatus.INVALID, target.getStatus());
+        assertEquals(FragmentStatus.VALID, index.getFragment(99).getStatus());
+        patchManager.clearAll();
+    }
+
+    @Test
+    void testIdReferencesFallBackToSequentialValidation() throws Exception {
+        File ids = tempDir.resolve("ids.xsd").toFile();
+        Files.writeString(ids.toPath(),
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">\n"
+                + "  <xs:element name=\"root\"><xs:complexType><xs:sequence>\n"
+                + "    <xs:element ref=\"item\" maxOccurs=\"unbounded\"/>\n"
+                + "  </xs:sequence></xs:complexType></xs:element>\n"
+                + "  <xs:element name=\"item\"><xs:complexType><xs:attribute name=\"k\" type=\"xs:ID\"/></xs:complexType></xs:element>\n"
+                + "</xs:schema>\n");
+        File file = tempDir.resolve("ids.xml").toFile();
+        Files.writeString(file.toPath(), "<root>\n<item k=\"a\"/>\n<item k=\"a\"/>\n</root>\n");
+
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(file);
+        assertNull(new ParallelSchemaValidator().validate(file, ids, index));
+
+        // Le repli séquentiel détecte le doublon
+        ValidationResult result = new LargeXmlValidator().validateParallel(file, ids, index);
+        assertFalse(result.isSuccess());
+    }
+
+    @Test
+    void testRootIdentityConstraintsCheckedAcrossRecords() throws Exception {
+        File keyed = tempDir.resolve("keyed.xsd").toFile();
+        Files.writeString(keyed.toPath(),
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"urn:cat\"\n"
+                + "           xmlns:c=\"urn:cat\" elementFormDefault=\"qualified\">\n"
+                + "  <xs:element name=\"root\"><xs:complexType><xs:choice maxOccurs=\"unbounded\">\n"
+                + "    <xs:element ref=\"c:item\"/><xs:element ref=\"c:link\"/>\n"
+                + "  </xs:choice></xs:complexType>\n"
+                + "  <xs:key name=\"itemKey\"><xs:selector xpath=\"c:item\"/><xs:field xpath=\"@id\"/></xs:key>\n"
+                + "  <xs:unique name=\"label\"><xs:selector xpath=\"c:item\"/>"
+                + "<xs:field xpath=\"c:name\"/><xs:field xpath=\"@lang\"/></xs:unique>\n"
+                + "  <xs:keyref name=\"itemRef\" refer=\"c:itemKey\"><xs:selector xpath=\".//c:to\"/>"
+                + "<xs:field xpath=\".\"/></xs:keyref>\n"
+                + "  </xs:element>\n"
+                + "  <xs:element name=\"item\"><xs:complexType><xs:sequence>\n"
+                + "    <xs:element name=\"name\" type=\"xs:string\"/>\n"
+                + "  </xs:sequence><xs:attribute name=\"id\" type=\"xs:string\"/>"
+                + "<xs:attribute name=\"lang\" type=\"xs:string\"/></xs:complexType></xs:element>\n"
+                + "  <xs:element name=\"link\"><xs:complexType><xs:sequence>\n"
+                + "    <xs:element name=\"to\" type=\"xs:string\" maxOccurs=\"unbounded\"/>\n"
+                + "  </xs:sequence></xs:complexType></xs:element>\n"
+                + "</xs:schema>\n");
+        StringBuilder xml = new StringBuilder("<c:root xmlns:c=\"urn:cat\">\n");
+        for (int i = 0; i < 300; i++) {
+            if (i % 3 == 2) {
+                // Ligne i + 2 ; le second lien de l'enregistrement 50 ne vise rien
+                String target = i == 50 ? "absent" : "i" + Math.max(1, i - 4);
+                xml.append("  <c:link><c:to>i").append(i - 1).append("</c:to><c:to>").append(target).append("</c:to></c:link>\n");
+            } else if (i == 99) {
+                // Clé en double (i0) et libellé en double (« n1 » en fr)
+                xml.append("  <c:item id=\"i0\" lang=\"fr\"><c:name>n1</c:name></c:item>\n");
+            } else if (i == 198) {
+                // Clé absente
+                xml.append("  <c:item lang=\"en\"><c:name>sans clé</c:name></c:item>\n");
+            } else {
+                xml.append("  <c:item id=\"i").append(i).append("\" lang=\"fr\"><c:name>n").append(i).append("</c:name></c:item>\n");
+            }
+        }
+        xml.append("</c:root>\n");
+        File file = tempDir.resolve("keyed.xml").toFile();
+        Files.writeString(file.toPath(), xml.toString());
+
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(file);
+        // Runs de quelques valeurs : la détection passe par la fusion externe
+        List<XMLError> errors = new ParallelSchemaValidator(4, 512).validate(file, keyed, index);
+        assertNotNull(errors);
+        assertEquals(List.of("101:cvc-identity-constraint.4.1", "101:cvc-identity-constraint.4.2.2",
+                        "200:cvc-identity-constraint.4.2.1.a", "52:cvc-identity-constraint.4.3"),
+                errors.stream().map(e -> e.getLineNumber() + ":" + e.getMessage().split(" ")[0])
+                        .sorted().collect(Collectors.toList()));
+        assertEquals(FragmentStatus.INVALID, index.getFragment(99).getStatus());
+        assertEquals(FragmentStatus.VALID, index.getFragment(98).getStatus());
+
+        // La validation séquentielle de Xerces trouve autant de violations
+        ValidationResult sequential = new LargeXmlValidator().validate(file, keyed);
+        assertEquals(4, sequential.getErrors().stream()
+                .filter(e -> e.getMessage().startsWith("cvc-identity-constraint")).count());
+
+        // Revalidation après un patch : les enregistrements en cache sont relus pour leurs clés
+        LargeXmlValidator validator = new LargeXmlValidator();
+        assertFalse(validator.validateIncremental(file, keyed, index, null, 2).isSuccess());
+        PatchManager patchManager = new PatchManager();
+        FragmentMetadata target = index.getFragment(198);
+        patchManager.addPatch(new Patch(target.getStartOffset(), target.getEndOffset(),
+                "<c:item id=\"i3\" lang=\"en\"><c:name>n198</c:name></c:item>", PatchType.REPLACE, target.getId()));
+        ValidationResult patched = validator.validateIncremental(file, keyed, index, patchManager, 2);
+        assertEquals(index.size() - 1, validator.getResultCache().getHitCount());
+        assertEquals(List.of("101:cvc-identity-constraint.4.1", "101:cvc-identity-constraint.4.2.2",
+                        "200:cvc-identity-constraint.4.2.2", "52:cvc-identity-constraint.4.3"),
+                patched.getErrors().stream().map(e -> e.getLineNumber() + ":" + e.getMessage().split(" ")[0])
+                        .sorted().collect(Collectors.toList()));
+        patchManager.clearAll();
+
+        // Patch à cheval sur deux enregistrements : son contenu passerait par le squelette, sans
+        // contraintes d'identité ; repli séquentiel
+        List<Patch> straddling = List.of(new Patch(index.getFragment(3).getStartOffset() - 1,
+                index.getFragment(4).getEndOffset(), " <c:item id=\"i7\" lang=\"fr\"><c:name>x</c:name></c:item>",
+                PatchType.REPLACE, null));
+        assertNull(new ParallelSchemaValidator(4, 512).validate(file, keyed, index, straddling,
+                new FragmentValidationCache()));
+    }
+
+    @Test
+    void testTypedKeyValuesMatchSequentialValidation() throws Exception {
+        // Type du champ, valeur insérée au début, valeur insérée à la fin, doublon attendu
+        String[][] cases = {
+                {"xs:integer", "1", "01", "1"},
+                {"xs:decimal", "1.0", "1", "1"},
+                {"xs:decimal", "-0.50", "-.5", "1"},
+                {"xs:string", "a  b", "a b", "0"},
+                {"xs:string", " a", "a", "0"},
+                {"xs:token", " a  b", "a b ", "1"},
+                {"xs:hexBinary", "0a", "0A", "1"}
+        };
+        for (String[] c : cases) {
+            File schema = tempDir.resolve("typed.xsd").toFile();
+            Files.writeString(schema.toPath(), typedKeySchema(c[0]));
+            StringBuilder xml = new StringBuilder("<root>\n  <item k=\"" + c[1] + "\"/>\n");
+            for (int i = 0; i < 100; i++) {
+                xml.append("  <item k=\"").append(1000 + i).append("\"/>\n");
+            }
+            // Dernière valeur, aussi référencée : en double avec la première si elles ont la même valeur
+            xml.append("  <ref k=\"").append(c[2]).append("\"/>\n  <item k=\"").append(c[2]).append("\"/>\n</root>\n");
+            File file = tempDir.resolve("typed.xml").toFile();
+            Files.writeString(file.toPath(), xml.toString());
+
+            FragmentIndex index = new FragmentIndex();
+            new StreamingIndexer(index).indexFile(file);
+            List<XMLError> parallel = new ParallelSchemaValidator(4, 512).validate(file, schema, index);
+            assertNotNull(parallel, c[0]);
+            long sequential = new LargeXmlValidator().validate(file, schema).getErrors().stream()
+                    .filter(e -> e.getMessage().startsWith("cvc-identity-constraint")).count();
+            String label = c[0] + " [" + c[1] + "] [" + c[2] + "]";
+            assertEquals(Long.parseLong(c[3]), sequential, label);
+            assertEquals(sequential, parallel.stream()
+                    .filter(e -> e.getMessage().startsWith("cvc-identity-constraint")).count(), () -> label + " " + parallel);
+        }
+
+        // Valeurs dont l'égalité n'est pas calculée ici : repli séquentiel
+        for (String type : new String[] {"xs:date", "xs:double", "xs:QName", "xs:anySimpleType"}) {
+            File schema = tempDir.resolve("typed.xsd").toFile();
+            Files.writeString(schema.toPath(), typedKeySchema(type));
+            File file = tempDir.resolve("typed.xml").toFile();
+            Files.writeString(file.toPath(), "<root>\n  <item k=\"2024-01-01\"/>\n  <item k=\"2024-01-01Z\"/>\n</root>\n");
+            FragmentIndex index = new FragmentIndex();
+            new StreamingIndexer(index).indexFile(file);
+            assertNull(new ParallelSchemaValidator(4, 512).validate(file, schema, index), type);
+        }
+    }
+
+    private static String typedKeySchema(String type) {
+        return "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">\n"
+                + "  <xs:element name=\"root\"><xs:complexType><xs:choice maxOccurs=\"unbounded\">\n"
+                + "    <xs:element ref=\"item\"/><xs:element ref=\"ref\"/>\n"
+                + "  </xs:choice></xs:complexType>\n"
+                + "  <xs:key name=\"key\"><xs:selector xpath=\"item\"/><xs:field xpath=\"@k\"/></xs:key>\n"
+                + "  <xs:keyref name=\"keyRef\" refer=\"key\"><xs:selector xpath=\"ref\"/><xs:field xpath=\"@k\"/></xs:keyref>\n"
+                + "  </xs:element>\n"
+                + "  <xs:element name=\"item\"><xs:complexType><xs:attribute name=\"k\" type=\"" + type + "\"/></xs:complexType></xs:element>\n"
+                + "  <xs:element name=\"ref\"><xs:complexType><xs:attribute name=\"k\" type=\"" + type + "\"/></xs:complexType></xs:element>\n"
+                + "</xs:schema>\n";
+    }
+
+    private static List<String> lines(List<XMLError> errors) {
+        return errors.stream()
+                .map(e -> e.getLineNumber() + ":" + e.getMessage())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+}
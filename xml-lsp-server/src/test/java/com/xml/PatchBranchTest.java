@@ -0,0 +1,225 @@
+package com.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.LargeXmlValidator;
+import com.xml.handlers.PatchedInputStream;
+import com.xml.models.Patch;
+import com.xml.models.PatchType;
+import com.xml.services.FileSaver;
+import com.xml.services.PatchJournal;
+import com.xml.services.PatchManager;
+import com.xml.services.SaveProgress;
+
+/**
+ * Tests des branches de patchs : partage de l'historique, changement de branche, validation et
+ * export d'une branche inactive, persistance, et report des branches lors d'une sauvegarde.
+ */
+public class PatchBranchTest {
+
+    private Path tempDir;
+    private File xmlFile;
+    private String content;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("patch-branch-test");
+        xmlFile = tempDir.resolve("doc.xml").toFile();
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<root>\n");
+        for (int i = 0; i < 10; i++) {
+            xml.append("  <item>value").append(i).append("</item>\n");
+        }
+        xml.append("</root>\n");
+        content = xml.toString();
+        Files.writeString(xmlFile.toPath(), content);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testBranchesShareHistoryAndSwitchCheaply() throws IOException {
+        PatchManager manager = new PatchManager();
+        manager.addPatch(replace("value1", "one"));
+        manager.createBranch("alt", null);
+        assertEquals(PatchManager.DEFAULT_BRANCH, manager.getActiveBranch());
+        assertSame(manager.getBranchPatches("alt").get(0), manager.getAllPatchesSorted().get(0));
+
+        // Les éditions de chaque branche restent invisibles pour l'autre
+        manager.addPatch(replace("value2", "two"));
+        manager.switchBranch("alt");
+        manager.addPatch(replace("value3", "three"));
+        assertEquals(content.replace("value1", "one").replace("value3", "three"), patched(manager.getAllPatchesSorted()));
+        assertEquals(content.replace("value1", "one").replace("value2", "two"),
+                patched(manager.getBranchPatches(PatchManager.DEFAULT_BRANCH)));
+        assertEquals(2, manager.getOffsetTranslator("alt").size());
+
+        assertThrows(IllegalStateException.class, () -> manager.deleteBranch("alt"));
+        assertThrows(IllegalArgumentException.class, () -> manager.createBranch("../x", null));
+        assertThrows(IllegalArgumentException.class, () -> manager.createBranch("alt", null));
+        manager.switchBranch(PatchManager.DEFAULT_BRANCH);
+        manager.deleteBranch("alt");
+        assertEquals(List.of(PatchManager.DEFAULT_BRANCH), manager.getBranchNames());
+    }
+
+    @Test
+    void testInactiveBranchIsValidatedAndExportedWithoutTouchingOriginal() throws IOException {
+        PatchManager manager = new PatchManager();
+        manager.createBranch("broken", null);
+        manager.switchBranch("broken");
+        manager.addPatch(replace("</item>\n</root>", "\n</root>"));
+        manager.switchBranch(PatchManager.DEFAULT_BRANCH);
+        manager.addPatch(replace("value0", "zero"));
+
+        LargeXmlValidator validator = new LargeXmlValidator();
+        assertFalse(validator.validateBranch(xmlFile, null, manager, "broken").isSuccess());
+        assertTrue(validator.validateBranch(xmlFile, null, manager, PatchManager.DEFAULT_BRANCH).isSuccess());
+
+        File out = tempDir.resolve("broken.xml").toFile();
+        new FileSaver().exportBranch(xmlFile, out, manager, "broken", new SaveProgress());
+        assertEquals(patched(manager.getBranchPatches("broken")), Files.readString(out.toPath()));
+        assertEquals(content, Files.readString(xmlFile.toPath()));
+        assertEquals(1, manager.getBranchPatches("broken").size());
+        assertThrows(IllegalArgumentException.class,
+                () -> new FileSaver().exportBranch(xmlFile, xmlFile, manager, "broken", new SaveProgress()));
+    }
+
+    @Test
+    void testBranchesAndActiveBranchSurviveRestart() throws IOException {
+        PatchManager manager = new PatchManager(tempDir, PatchJournal.FsyncPolicy.ALWAYS);
+        manager.addPatch(replace("value1", "one"));
+        manager.createBranch("alt", null);
+        manager.switchBranch("alt");
+        manager.addPatch(replace("value5", "five"));
+        String expected = patched(manager.getAllPatchesSorted());
+        manager.close();
+
+        PatchManager reloaded = new PatchManager(tempDir);
+        assertEquals("alt", reloaded.getActiveBranch());
+        assertEquals(List.of(PatchManager.DEFAULT_BRANCH, "alt"), reloaded.getBranchNames());
+        assertEquals(expected, patched(reloaded.getAllPatchesSorted()));
+        assertEquals(content.replace("value1", "one"), patched(reloaded.getBranchPatches(PatchManager.DEFAULT_BRANCH)));
+        reloaded.close();
+    }
+
+    @Test
+    void testInPlaceSaveRebasesOtherBranches() throws IOException {
+        PatchManager manager = new PatchManager(tempDir, PatchJournal.FsyncPolicy.ALWAYS);
+        manager.addPatch(replace("value1", "one"));
+        manager.createBranch("alt", null);
+        manager.addPatch(replace("value2", "two-two"));
+        manager.addPatch(new Patch(offset("<item>value4"), offset("<item>value4"), "<new/>", PatchType.INSERT, null));
+        manager.switchBranch("alt");
+        manager.addPatch(replace("value7", "seven"));
+        manager.addPatch(replace("value2", "deux"));
+        String alt = patched(manager.getAllPatchesSorted());
+        String main = patched(manager.getBranchPatches(PatchManager.DEFAULT_BRANCH));
+
+        // Sauvegarde de la branche principale sur place : la branche alt reste identique
+        manager.switchBranch(PatchManager.DEFAULT_BRANCH);
+        new FileSaver().saveWithPatches(xmlFile, xmlFile, null, manager);
+        assertEquals(main, Files.readString(xmlFile.toPath()));
+        assertEquals(0, manager.getPatchCount());
+        assertEquals(alt, patched(manager.getBranchPatches("alt")));
+        manager.close();
+
+        // Le report est journalisé
+        PatchManager reloaded = new PatchManager(tempDir);
+        assertEquals(alt, patched(reloaded.getBranchPatches("alt")));
+        reloaded.close();
+    }
+
+    @Test
+    void testBranchCreationOnlyLinksOriginHistory() throws IOException {
+        PatchManager manager = new PatchManager(tempDir, PatchJournal.FsyncPolicy.ALWAYS);
+        for (int i = 0; i < 10; i++) {
+            manager.addPatch(replace("value" + i, "v" + i));
+        }
+        manager.createBranch("alt", null);
+
+        // Rien n'est recopié : le journal de la branche ne contient que le lien vers l'origine
+        Path branchDir = tempDir.resolve(".xml-massive-lsp").resolve("branches").resolve("alt");
+        assertTrue(Files.exists(branchDir.resolve("fork")));
+        assertFalse(Files.exists(branchDir.resolve("patches.snapshot")));
+        assertTrue(!Files.exists(branchDir.resolve("patches.journal")) || Files.size(branchDir.resolve("patches.journal")) == 0);
+
+        // Les éditions postérieures de l'origine ne fuient pas dans la branche au rechargement
+        manager.addPatch(replace("value3", "three"));
+        manager.switchBranch("alt");
+        manager.addPatch(replace("value5", "five"));
+        String alt = patched(manager.getAllPatchesSorted());
+        String main = patched(manager.getBranchPatches(PatchManager.DEFAULT_BRANCH));
+        manager.close();
+
+        PatchManager reloaded = new PatchManager(tempDir);
+        assertEquals(alt, patched(reloaded.getBranchPatches("alt")));
+        assertEquals(main, patched(reloaded.getBranchPatches(PatchManager.DEFAULT_BRANCH)));
+        reloaded.close();
+    }
+
+    @Test
+    void testCompactingOriginMaterializesLinkedBranches() throws IOException {
+        PatchManager manager = new PatchManager(tempDir, PatchJournal.FsyncPolicy.ALWAYS);
+        manager.addPatch(replace("value1", "one"));
+        manager.createBranch("alt", null);
+        manager.createBranch("alt2", "alt");
+        manager.addPatch(replace("value1", "uno"));
+        manager.switchBranch("alt2");
+        manager.addPatch(replace("value8", "eight"));
+        manager.switchBranch(PatchManager.DEFAULT_BRANCH);
+        String alt = patched(manager.getBranchPatches("alt"));
+        String alt2 = patched(manager.getBranchPatches("alt2"));
+
+        // La compaction de l'origine écrase l'historique partagé : les branches liées sont détachées
+        manager.compact();
+        Path branches = tempDir.resolve(".xml-massive-lsp").resolve("branches");
+        assertFalse(Files.exists(branches.resolve("alt").resolve("fork")));
+        assertFalse(Files.exists(branches.resolve("alt2").resolve("fork")));
+        manager.clearAll();
+        manager.close();
+
+        PatchManager reloaded = new PatchManager(tempDir);
+        assertEquals(content.replace("value1", "one"), alt);
+        assertEquals(alt, patched(reloaded.getBranchPatches("alt")));
+        assertEquals(alt2, patched(reloaded.getBranchPatches("alt2")));
+        assertEquals(0, reloaded.getBranchPatches(PatchManager.DEFAULT_BRANCH).size());
+        reloaded.close();
+    }
+
+    private Patch replace(String text, String replacement) {
+        long start = offset(text);
+        return new Patch(start, start + text.length(), replacement, PatchType.REPLACE, null);
+    }
+
+    private long offset(String text) {
+        int i = content.indexOf(text);
+        assertTrue(i >= 0, text);
+        return i;
+    }
+
+    private String patched(List<Patch> patches) throws IOException {
+        try (InputStream in = new PatchedInputStream(xmlFile, patches)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
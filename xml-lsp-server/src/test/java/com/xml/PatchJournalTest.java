@@ -0,0 +1,217 @@
+package com.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.PatchedInputStream;
+import com.xml.models.Patch;
+import com.xml.models.PatchType;
+import com.xml.services.FileSaver;
+import com.xml.services.PatchJournal;
+import com.xml.services.PatchManager;
+
+/**
+ * Tests du journal binaire : checksums, queue corrompue, checkpoints et compaction.
+ */
+public class PatchJournalTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("journal-test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testReloadReplaysSupersededPatchesInOrder() {
+        PatchManager manager = new PatchManager(tempDir, PatchJournal.FsyncPolicy.ALWAYS);
+        manager.addPatch(new Patch(100, 120, "first", PatchType.REPLACE, "f1"));
+        manager.addPatch(new Patch(110, 130, "second", PatchType.REPLACE, "f1"));
+        manager.addPatch(new Patch(200, 200, "é\n\"quoted\"", PatchType.INSERT, null));
+        manager.close();
+
+        PatchManager reloaded = new PatchManager(tempDir);
+        List<Patch> patches = reloaded.getAllPatchesSorted();
+
+        assertEquals(2, patches.size());
+        assertEquals("second", patches.get(0).getReplacementText());
+        assertEquals("é\n\"quoted\"", patches.get(1).getReplacementText());
+        assertEquals(null, patches.get(1).getFragmentId());
+        reloaded.close();
+    }
+
+    @Test
+    void testCorruptedTailIsIgnored() throws IOException {
+        PatchManager manager = new PatchManager(tempDir, PatchJournal.FsyncPolicy.ALWAYS);
+        manager.addPatch(new Patch(10, 20, "kept", PatchType.REPLACE, "f1"));
+        manager.close();
+
+        // Simuler une écriture interrompue (en-tête sans payload complet)
+        Path journal = tempDir.resolve(".xml-massive-lsp").resolve("patches.journal");
+        long validSize = Files.size(journal);
+        Files.write(journal, new byte[] { 0, 0, 0, 42, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+        PatchManager reloaded = new PatchManager(tempDir);
+        assertEquals(1, reloaded.getPatchCount());
+        assertEquals(validSize, Files.size(journal));
+
+        // Les nouveaux ajouts restent lisibles après troncature
+        reloaded.addPatch(new Patch(30, 40, "appended", PatchType.REPLACE, "f2"));
+        reloaded.close();
+        assertEquals(2, new PatchManager(tempDir).getPatchCount());
+    }
+
+    @Test
+    void testTornLengthFieldIsTruncatedWithoutAllocation() throws IOException {
+        PatchManager manager = new PatchManager(tempDir, PatchJournal.FsyncPolicy.ALWAYS);
+        manager.addPatch(new Patch(10, 20, "kept", PatchType.REPLACE, "f1"));
+        manager.close();
+
+        // Longueur corrompue proche de 2 Go : ne doit pas être allouée
+        Path journal = tempDir.resolve(".xml-massive-lsp").resolve("patches.journal");
+        long validSize = Files.size(journal);
+        Files.write(journal, new byte[] { 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xF0, 1, 2, 3, 4, 5 },
+                StandardOpenOption.APPEND);
+
+        PatchManager reloaded = new PatchManager(tempDir);
+        assertEquals(1, reloaded.getPatchCount());
+        assertEquals(validSize, Files.size(journal));
+        reloaded.close();
+    }
+
+    @Test
+    void testLegacyTextLogIsMigratedOnce() throws IOException {
+        Path directory = tempDir.resolve(".xml-massive-lsp");
+        Files.createDirectories(directory);
+        Path legacy = directory.resolve("patches.log");
+        Files.write(legacy, List.of(
+                "{\"start\":10,\"end\":20,\"type\":\"REPLACE\",\"text\":\"a\\\"b\\nc\",\"fragment\":\"f1\"}",
+                "pas du json",
+                "{\"start\":30,\"end\":30,\"type\":\"INSERT\",\"text\":\"<x/>\",\"fragment\":\"\"}"),
+                StandardCharsets.UTF_8);
+
+        PatchManager manager = new PatchManager(tempDir, PatchJournal.FsyncPolicy.ALWAYS);
+        List<Patch> patches = manager.getAllPatchesSorted();
+        assertEquals(2, patches.size());
+        assertEquals("a\"b\nc", patches.get(0).getReplacementText());
+        assertEquals("f1", patches.get(0).getFragmentId());
+        assertEquals(null, patches.get(1).getFragmentId());
+        assertFalse(Files.exists(legacy));
+        manager.close();
+
+        // Arrêt entre la migration et la suppression : l'ancien journal n'est pas rejoué deux fois
+        Files.write(legacy, List.of(
+                "{\"start\":30,\"end\":30,\"type\":\"INSERT\",\"text\":\"<x/>\",\"fragment\":\"\"}"),
+                StandardCharsets.UTF_8);
+        PatchManager reloaded = new PatchManager(tempDir);
+        assertEquals(2, reloaded.getPatchCount());
+        assertFalse(Files.exists(legacy));
+        reloaded.close();
+    }
+
+    @Test
+    void testCheckpointCompactsJournal() throws IOException {
+        PatchManager manager = new PatchManager(tempDir, PatchJournal.FsyncPolicy.NEVER);
+        for (int i = 0; i < 50; i++) {
+            // Toujours la même zone : chaque patch écrase le précédent
+            manager.addPatch(new Patch(0, 10, "v" + i, PatchType.REPLACE, "f1"));
+        }
+        Path journal = tempDir.resolve(".xml-massive-lsp").resolve("patches.journal");
+        long before = Files.size(journal);
+
+        manager.compact();
+        manager.addPatch(new Patch(50, 60, "tail", PatchType.REPLACE, "f2"));
+        manager.close();
+
+        assertTrue(Files.exists(tempDir.resolve(".xml-massive-lsp").resolve("patches.snapshot")));
+        assertTrue(Files.size(journal) < before, "La queue du journal doit être compactée");
+
+        PatchManager reloaded = new PatchManager(tempDir);
+        List<Patch> patches = reloaded.getAllPatchesSorted();
+        assertEquals(2, patches.size());
+        assertEquals("v49", patches.get(0).getReplacementText());
+        assertEquals("tail", patches.get(1).getReplacementText());
+        reloaded.close();
+    }
+
+    @Test
+    void testClearAllDropsSnapshotAndJournal() {
+        PatchManager manager = new PatchManager(tempDir);
+        manager.addPatch(new Patch(0, 10, "saved", PatchType.REPLACE, "f1"));
+        manager.compact();
+        manager.clearAll();
+        manager.close();
+
+        assertFalse(Files.exists(tempDir.resolve(".xml-massive-lsp").resolve("patches.snapshot")));
+        assertEquals(0, new PatchManager(tempDir).getPatchCount());
+    }
+
+    @Test
+    void testLargePayloadIsSpilledToBlobStore() throws IOException {
+        Path xml = tempDir.resolve("doc.xml");
+        Files.writeString(xml, "<root><a>old</a></root>");
+        String large = "<b>" + "é".repeat(2000) + "</b>";
+
+        System.setProperty("xml.patch.spillThreshold", "1024");
+        PatchManager manager;
+        try {
+            manager = new PatchManager(tempDir, PatchJournal.FsyncPolicy.ALWAYS);
+        } finally {
+            System.clearProperty("xml.patch.spillThreshold");
+        }
+        manager.addPatch(new Patch(9, 12, large, PatchType.REPLACE, "f1"));
+        manager.addPatch(new Patch(6, 6, "<small/>", PatchType.INSERT, "f0"));
+
+        Patch spilled = manager.getAllPatchesSorted().get(1);
+        assertTrue(spilled.isSpilled());
+        assertFalse(manager.getAllPatchesSorted().get(0).isSpilled());
+        assertTrue(Files.isRegularFile(spilled.getBlobFile()));
+        // Le journal ne contient que la référence, pas les 4 Ko du payload
+        Path journal = tempDir.resolve(".xml-massive-lsp").resolve("patches.journal");
+        assertTrue(Files.size(journal) < 1024);
+        manager.close();
+
+        // Rechargement : la référence est relue, le contenu est streamé depuis le blob
+        PatchManager reloaded = new PatchManager(tempDir);
+        Patch reloadedPatch = reloaded.getAllPatchesSorted().get(1);
+        assertTrue(reloadedPatch.isSpilled());
+        assertEquals(spilled, reloadedPatch);
+        String expected = "<root><small/><a>" + large + "</a></root>";
+        try (PatchedInputStream pis = new PatchedInputStream(xml.toFile(), reloaded.getAllPatchesSorted())) {
+            // Lecture depuis le milieu du payload déporté
+            byte[] all = expected.getBytes(StandardCharsets.UTF_8);
+            pis.seek(20);
+            assertEquals(new String(all, 20, all.length - 20, StandardCharsets.ISO_8859_1),
+                    new String(pis.readAllBytes(), StandardCharsets.ISO_8859_1));
+        }
+        try (PatchedInputStream pis = new PatchedInputStream(xml.toFile(), reloaded.getAllPatchesSorted())) {
+            assertEquals(expected, new String(pis.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        // Sauvegarde en streaming puis nettoyage des blobs devenus inutiles
+        new FileSaver().saveWithPatches(xml.toFile(), xml.toFile(), null, reloaded);
+        assertEquals(expected, Files.readString(xml));
+        assertFalse(Files.exists(spilled.getBlobFile()));
+        reloaded.close();
+    }
+}
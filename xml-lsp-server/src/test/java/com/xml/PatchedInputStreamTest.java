@@ -1,12 +1,16 @@
 package com.xml;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.jupiter.api.AfterEach;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -16,6 +20,7 @@ import org.junit.jupiter.api.Test;
 import com.xml.handlers.PatchedInputStream;
 import com.xml.models.Patch;
 import com.xml.models.PatchType;
+import com.xml.services.PatchManager;
 
 /**
  * Tests for PatchedInputStream to verify on-the-fly patch application
@@ -201,4 +206,73 @@ public class PatchedInputStreamTest {
             assertEquals("0123ABCDEFGH789", new String(data, StandardCharsets.UTF_8));
         }
     }
+
+    @Test
+    void testSeekFromMiddleMatchesSequentialRead() throws IOException {
+        // Larger than the internal buffer so that seeks cross buffer windows
+        byte[] content = new byte[700_000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + (i % 26));
+        }
+        Files.write(testFile.toPath(), content);
+
+        Random random = new Random(3);
+        PatchManager manager = new PatchManager();
+        for (int i = 0; i < 200; i++) {
+            long start = random.nextInt(content.length);
+            long end = Math.min(content.length, start + random.nextInt(40));
+            manager.addPatch(new Patch(start, end, "P" + i + "é", PatchType.REPLACE, null));
+        }
+        List<Patch> patches = manager.getAllPatchesSorted();
+
+        byte[] expected;
+        try (PatchedInputStream pis = new PatchedInputStream(testFile, patches)) {
+            expected = pis.readAllBytes();
+            assertEquals(expected.length, pis.getLogicalLength());
+        }
+
+        try (PatchedInputStream pis = new PatchedInputStream(testFile, patches)) {
+            for (int i = 0; i < 300; i++) {
+                int offset = random.nextInt(expected.length);
+                pis.seek(offset);
+                byte[] chunk = new byte[Math.min(500, expected.length - offset)];
+                int read = pis.readNBytes(chunk, 0, chunk.length);
+                assertEquals(chunk.length, read);
+                assertEquals(new String(Arrays.copyOfRange(expected, offset, offset + read), StandardCharsets.UTF_8),
+                        new String(chunk, StandardCharsets.UTF_8), "offset " + offset);
+                assertEquals(offset + read, pis.getLogicalPosition());
+            }
+            pis.seek(expected.length);
+            assertEquals(-1, pis.read());
+        }
+    }
+
+    @Test
+    void testTransferToMatchesRead() throws IOException {
+        String original = "<root><a>A</a><b>B</b><c>C</c></root>";
+        Files.writeString(testFile.toPath(), original);
+
+        List<Patch> patches = new ArrayList<>();
+        patches.add(new Patch(9, 10, "Alpha", PatchType.REPLACE, "f1"));
+        patches.add(new Patch(14, 22, "", PatchType.DELETE, "f2"));
+        patches.add(new Patch(original.length(), original.length(), "<!-- end -->", PatchType.INSERT, null));
+        String expected = "<root><a>Alpha</a><c>C</c></root><!-- end -->";
+
+        // Vers un fichier : les zones inchangées passent par FileChannel.transferTo
+        Path out = tempDir.resolve("out.xml");
+        try (PatchedInputStream pis = new PatchedInputStream(testFile, patches);
+             FileOutputStream fos = new FileOutputStream(out.toFile())) {
+            assertEquals(expected.length(), pis.transferTo(fos));
+        }
+        assertEquals(expected, Files.readString(out));
+
+        // Vers un flux quelconque, en reprenant après une lecture partielle
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (PatchedInputStream pis = new PatchedInputStream(testFile, patches)) {
+            byte[] head = pis.readNBytes(12);
+            bos.write(head);
+            pis.transferTo(bos);
+        }
+        assertEquals(expected, bos.toString(StandardCharsets.UTF_8));
+    }
 }
@@ -181,6 +181,299 @@ public class PatchingWorkflowTest {
         assertEquals(expected, newContent);
     }
     
+    @Test
+    void testParallelSaveMatchesPatchedStream() throws IOException {
+        // Plages de 4 Ko : la sauvegarde est découpée entre plusieurs écrivains
+        Path xmlPath = tempDir.resolve("parallel.xml");
+        StringBuilder content = new StringBuilder("<root>");
+        for (int i = 0; i < 5000; i++) {
+            content.append("<item id=\"").append(i).append("\">value ").append(i).append("</item>\n");
+        }
+        content.append("</root>");
+        Files.writeString(xmlPath, content.toString());
+
+        java.util.Random random = new java.util.Random(11);
+        for (int i = 0; i < 300; i++) {
+            long start = 6 + random.nextInt(content.length() - 20);
+            long end = start + random.nextInt(12);
+            patchManager.addPatch(new Patch(start, end, "<p" + i + "/>".repeat(random.nextInt(4)), PatchType.REPLACE, null));
+        }
+
+        byte[] expected;
+        try (com.xml.handlers.PatchedInputStream pis =
+                     new com.xml.handlers.PatchedInputStream(xmlPath.toFile(), patchManager.getAllPatchesSorted())) {
+            expected = pis.readAllBytes();
+        }
+
+        new FileSaver(4, 4096).saveWithPatches(xmlPath.toFile(), xmlPath.toFile(), null, patchManager);
+
+        org.junit.jupiter.api.Assertions.assertArrayEquals(expected, Files.readAllBytes(xmlPath));
+        assertEquals(0, patchManager.getPatchCount());
+    }
+
+    @Test
+    void testSameLengthAndTailPatchesAreSavedInPlace() throws IOException {
+        Path xmlPath = tempDir.resolve("inplace.xml");
+        StringBuilder content = new StringBuilder("<root>");
+        for (int i = 0; i < 2000; i++) {
+            content.append("<item>").append(String.format("%05d", i)).append("</item>\n");
+        }
+        content.append("</root>");
+        Files.writeString(xmlPath, content.toString());
+        Object fileKey = Files.readAttributes(xmlPath, java.nio.file.attribute.BasicFileAttributes.class).fileKey();
+
+        // Même longueur au début et au milieu, croissance uniquement près de la fin
+        int first = content.indexOf("00010");
+        int middle = content.indexOf("01000");
+        int last = content.indexOf("01999");
+        patchManager.addPatch(new Patch(first, first + 5, "AAAAA", PatchType.REPLACE, "f1"));
+        patchManager.addPatch(new Patch(middle, middle + 5, "BBBBB", PatchType.REPLACE, "f2"));
+        patchManager.addPatch(new Patch(last, last + 5, "LONGER-VALUE", PatchType.REPLACE, "f3"));
+
+        String expected = content.toString()
+                .replace("00010", "AAAAA").replace("01000", "BBBBB").replace("01999", "LONGER-VALUE");
+        fileSaver.saveWithPatches(xmlPath.toFile(), xmlPath.toFile(), null, patchManager);
+
+        assertEquals(expected, Files.readString(xmlPath));
+        // Même fichier (pas de copie temporaire renommée), aucun fichier de travail restant
+        if (fileKey != null) {
+            assertEquals(fileKey, Files.readAttributes(xmlPath, java.nio.file.attribute.BasicFileAttributes.class).fileKey());
+        }
+        assertEquals(1, Files.list(tempDir).filter(p -> p.getFileName().toString().startsWith("inplace")).count());
+        org.junit.jupiter.api.Assertions.assertFalse(fileSaver.recoverInterruptedSave(xmlPath.toFile()));
+    }
+
+    @Test
+    void testShrinkingInPlaceSaveTruncatesFile() throws IOException {
+        Path xmlPath = tempDir.resolve("shrink-inplace.xml");
+        String content = "<root>" + "<keep/>".repeat(500) + "<drop>remove me</drop></root>";
+        Files.writeString(xmlPath, content);
+
+        int drop = content.indexOf("<drop>");
+        int dropEnd = content.indexOf("</root>");
+        patchManager.addPatch(new Patch(drop, dropEnd, "", PatchType.DELETE, "f1"));
+
+        fileSaver.saveWithPatches(xmlPath.toFile(), xmlPath.toFile(), null, patchManager);
+
+        assertEquals("<root>" + "<keep/>".repeat(500) + "</root>", Files.readString(xmlPath));
+    }
+
+    @Test
+    void testEditsDuringSaveAreKeptForNextGeneration() throws IOException {
+        // Réécriture complète puis sauvegarde sur place
+        for (long maxInPlaceBytes : new long[] { 0, 64L * 1024 * 1024 }) {
+            Path xmlPath = tempDir.resolve("generation-" + maxInPlaceBytes + ".xml");
+            StringBuilder content = new StringBuilder("<root>");
+            for (int i = 0; i < 1000; i++) {
+                content.append("<item>").append(String.format("%05d", i)).append("</item>\n");
+            }
+            content.append("</root>");
+            Files.writeString(xmlPath, content.toString());
+            Path reference = Files.copy(xmlPath, tempDir.resolve("reference-" + maxInPlaceBytes + ".xml"));
+
+            PatchManager manager = new PatchManager();
+            int a = content.indexOf("00100");
+            int b = content.indexOf("00500");
+            int c = content.indexOf("<item>00900");
+            manager.addPatch(new Patch(a, a + 5, "AAAAA", PatchType.REPLACE, null));
+            manager.addPatch(new Patch(b, b + 5, "BBBBB", PatchType.REPLACE, null));
+
+            List<List<Patch>> liveDuringSave = new java.util.ArrayList<>();
+            com.xml.services.SaveProgress progress = new com.xml.services.SaveProgress((written, total) -> {
+                synchronized (liveDuringSave) {
+                    if (liveDuringSave.isEmpty()) {
+                        // Pendant l'écriture : une insertion disjointe et un patch qui recouvre en partie un patch sauvegardé
+                        manager.addPatch(new Patch(c, c, "<new/>", PatchType.INSERT, null));
+                        manager.addPatch(new Patch(b + 2, b + 5, "xyz-longer", PatchType.REPLACE, null));
+                        liveDuringSave.add(manager.getAllPatchesSorted());
+                    }
+                }
+            });
+
+            FileSaver saver = new FileSaver();
+            saver.setMaxInPlaceBytes(maxInPlaceBytes);
+            saver.saveWithPatches(xmlPath.toFile(), xmlPath.toFile(), null, manager, progress);
+
+            // Le fichier contient le snapshot, les patchs arrivés pendant l'écriture restent à sauvegarder
+            String saved = Files.readString(xmlPath);
+            org.junit.jupiter.api.Assertions.assertTrue(saved.contains("AAAAA") && saved.contains("BBBBB"));
+            assertEquals(2, manager.getPatchCount());
+
+            byte[] expected;
+            try (com.xml.handlers.PatchedInputStream pis =
+                         new com.xml.handlers.PatchedInputStream(reference.toFile(), liveDuringSave.get(0))) {
+                expected = pis.readAllBytes();
+            }
+            try (com.xml.handlers.PatchedInputStream pis =
+                         new com.xml.handlers.PatchedInputStream(xmlPath.toFile(), manager.getAllPatchesSorted())) {
+                org.junit.jupiter.api.Assertions.assertArrayEquals(expected, pis.readAllBytes());
+            }
+            assertEquals(progress.getTotalBytes(), progress.getBytesWritten());
+        }
+    }
+
+    @Test
+    void testRebasedPayloadsAreStreamedIntoChunkedBlobs() throws IOException {
+        Path xmlPath = tempDir.resolve("streamed.xml");
+        StringBuilder content = new StringBuilder("<root>");
+        for (int i = 0; i < 200; i++) {
+            content.append("<item>").append(String.format("%05d", i)).append("</item>\n");
+        }
+        content.append("</root>");
+        Files.writeString(xmlPath, content.toString());
+        Path reference = Files.copy(xmlPath, tempDir.resolve("streamed-reference.xml"));
+
+        // Seuil de déport et taille de blob minuscules : le payload reconstitué est découpé
+        Path workspace = Files.createDirectories(tempDir.resolve("streamed-workspace"));
+        System.setProperty("xml.patch.spillThreshold", "64");
+        System.setProperty("xml.patch.maxBlobLength", "100");
+        PatchManager manager;
+        try {
+            manager = new PatchManager(workspace);
+        } finally {
+            System.clearProperty("xml.patch.spillThreshold");
+            System.clearProperty("xml.patch.maxBlobLength");
+        }
+        int a = content.indexOf("00050");
+        int b = content.indexOf("<item>00150");
+        manager.addPatch(new Patch(a, a + 5, "AAAAA", PatchType.REPLACE, null));
+
+        List<List<Patch>> liveDuringSave = new java.util.ArrayList<>();
+        com.xml.services.SaveProgress progress = new com.xml.services.SaveProgress((written, total) -> {
+            synchronized (liveDuringSave) {
+                if (liveDuringSave.isEmpty()) {
+                    // Recouvre en partie le patch sauvegardé : payload reconstitué de plus de 300 bytes
+                    manager.addPatch(new Patch(a - 300, a + 2, "<big>" + "x".repeat(200) + "</big>",
+                            PatchType.REPLACE, null));
+                    manager.addPatch(new Patch(b, b, "<new/>", PatchType.INSERT, null));
+                    liveDuringSave.add(manager.getAllPatchesSorted());
+                }
+            }
+        });
+        fileSaver.saveWithPatches(xmlPath.toFile(), xmlPath.toFile(), null, manager, progress);
+
+        List<Patch> remaining = manager.getAllPatchesSorted();
+        // 214 bytes reconstitués : trois blobs (100 + 100 + 14), puis l'insertion restée en mémoire
+        assertEquals(4, remaining.size());
+        assertEquals(14, remaining.get(2).getNewLength());
+        org.junit.jupiter.api.Assertions.assertFalse(remaining.get(3).isSpilled());
+        for (int i = 0; i < 3; i++) {
+            org.junit.jupiter.api.Assertions.assertTrue(remaining.get(i).isSpilled());
+            org.junit.jupiter.api.Assertions.assertTrue(remaining.get(i).getNewLength() <= 100);
+        }
+        byte[] expected;
+        try (com.xml.handlers.PatchedInputStream pis =
+                     new com.xml.handlers.PatchedInputStream(reference.toFile(), liveDuringSave.get(0))) {
+            expected = pis.readAllBytes();
+        }
+        try (com.xml.handlers.PatchedInputStream pis =
+                     new com.xml.handlers.PatchedInputStream(xmlPath.toFile(), remaining)) {
+            org.junit.jupiter.api.Assertions.assertArrayEquals(expected, pis.readAllBytes());
+        }
+        manager.close();
+    }
+
+    @Test
+    void testCompressedSaveAsIsDecompressedByStandardGzip() throws IOException {
+        Path xmlPath = tempDir.resolve("export.xml");
+        String content = "<root>" + "<item>value</item>\n".repeat(20000) + "</root>";
+        Files.writeString(xmlPath, content);
+        int first = content.indexOf("value");
+        patchManager.addPatch(new Patch(first, first + 5, "FIRST", PatchType.REPLACE, "f1"));
+
+        Path gzPath = tempDir.resolve("export.xml.gz");
+        fileSaver.saveWithPatches(xmlPath.toFile(), gzPath.toFile(), null, patchManager);
+
+        try (java.io.InputStream in = new java.util.zip.GZIPInputStream(Files.newInputStream(gzPath))) {
+            assertEquals(content.replaceFirst("value", "FIRST"), new String(in.readAllBytes(), java.nio.charset.StandardCharsets.UTF_8));
+        }
+        assertEquals(content, Files.readString(xmlPath));
+
+        // Blocs de 1 Ko : un membre gzip par bloc, relus comme un flux unique
+        Path multi = tempDir.resolve("multi.gz");
+        try (java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(multi,
+                java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE)) {
+            new com.xml.services.ParallelGzipWriter(1024, 6).write(
+                    new java.io.ByteArrayInputStream(content.getBytes(java.nio.charset.StandardCharsets.UTF_8)),
+                    out, new com.xml.services.SaveProgress());
+        }
+        try (java.io.InputStream in = new java.util.zip.GZIPInputStream(Files.newInputStream(multi))) {
+            assertEquals(content, new String(in.readAllBytes(), java.nio.charset.StandardCharsets.UTF_8));
+        }
+
+        org.junit.jupiter.api.Assertions.assertThrows(IllegalArgumentException.class,
+                () -> fileSaver.saveWithPatches(xmlPath.toFile(), tempDir.resolve("export.xml.zst").toFile(), null, patchManager));
+    }
+
+    @Test
+    void testCancelledSaveLeavesOriginalUntouched() throws IOException {
+        for (long maxInPlaceBytes : new long[] { 0, 64L * 1024 * 1024 }) {
+            Path xmlPath = tempDir.resolve("cancel-" + maxInPlaceBytes + ".xml");
+            String content = "<root>" + "<item>value</item>\n".repeat(2000) + "</root>";
+            Files.writeString(xmlPath, content);
+
+            PatchManager manager = new PatchManager();
+            int first = content.indexOf("value");
+            manager.addPatch(new Patch(first, first + 5, "VALUE", PatchType.REPLACE, null));
+            manager.addPatch(new Patch(6, 6, "<added/>", PatchType.INSERT, null));
+
+            com.xml.services.SaveProgress[] holder = new com.xml.services.SaveProgress[1];
+            holder[0] = new com.xml.services.SaveProgress((written, total) -> holder[0].cancel());
+
+            FileSaver saver = new FileSaver();
+            saver.setMaxInPlaceBytes(maxInPlaceBytes);
+            org.junit.jupiter.api.Assertions.assertThrows(java.util.concurrent.CancellationException.class,
+                    () -> saver.saveWithPatches(xmlPath.toFile(), xmlPath.toFile(), null, manager, holder[0]));
+
+            assertEquals(content, Files.readString(xmlPath));
+            assertEquals(2, manager.getPatchCount());
+            // Aucun fichier de travail ni journal d'annulation restant
+            assertEquals(1, Files.list(tempDir).filter(p -> p.getFileName().toString().startsWith("cancel-" + maxInPlaceBytes)).count());
+            org.junit.jupiter.api.Assertions.assertFalse(saver.recoverInterruptedSave(xmlPath.toFile()));
+        }
+    }
+
+    @Test
+    void testBatchMatchesSequentialApplication() {
+        java.util.Random random = new java.util.Random(7);
+        PatchManager sequential = new PatchManager();
+        sequential.addPatch(new Patch(500, 520, "existing", PatchType.REPLACE, "f0"));
+        patchManager.addPatch(new Patch(500, 520, "existing", PatchType.REPLACE, "f0"));
+
+        List<Patch> batch = new java.util.ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            long start = random.nextInt(2000);
+            long end = start + (random.nextInt(4) == 0 ? 0 : random.nextInt(30));
+            batch.add(new Patch(start, end, "t" + i, start == end ? PatchType.INSERT : PatchType.REPLACE, "f" + (start / 100)));
+        }
+
+        for (Patch p : batch) {
+            sequential.addPatch(p);
+        }
+        patchManager.addPatches(batch);
+
+        assertEquals(sequential.getAllPatchesSorted(), patchManager.getAllPatchesSorted());
+        assertEquals(sequential.getPatchesForFragment("f3"), patchManager.getPatchesForFragment("f3"));
+
+        // Le lot est journalisé en un seul enregistrement et rejoué à l'identique
+        PatchManager reloaded = new PatchManager(tempDir);
+        assertEquals(sequential.getAllPatchesSorted(), reloaded.getAllPatchesSorted());
+    }
+
+    @Test
+    void testInvalidBatchIsRejectedAtomically() {
+        patchManager.addPatch(new Patch(0, 5, "kept", PatchType.REPLACE, "f1"));
+
+        List<Patch> batch = new java.util.ArrayList<>();
+        batch.add(new Patch(0, 10, "would-override", PatchType.REPLACE, "f1"));
+        batch.add(null);
+
+        org.junit.jupiter.api.Assertions.assertThrows(IllegalArgumentException.class,
+                () -> patchManager.addPatches(batch));
+        assertEquals(1, patchManager.getPatchCount());
+        assertEquals("kept", patchManager.getAllPatchesSorted().get(0).getReplacementText());
+    }
+
     @Test
     void testPatchLengthMethods() {
         // Vérifier les nouvelles méthodes de longueur
@@ -10,9 +10,14 @@ import java.nio.file.Path;
 
 import org.junit.jupiter.api.AfterEach;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import com.xml.handlers.LargeXmlValidator;
+import com.xml.handlers.StreamingIndexer;
+import com.xml.models.FragmentIndex;
 import com.xml.services.PieceTable;
 
 /**
@@ -177,6 +182,92 @@ public class PieceTableTest {
         assertEquals(5, table.getLength());
     }
 
+    @Test
+    void testMoveRepointsPieces() throws IOException {
+        File file = createTempFile("<a/><b/><c/>");
+        PieceTable table = new PieceTable(file);
+        
+        table.move(0, 4, 12);
+        assertEquals("<b/><c/><a/>", readAll(table));
+        
+        table.move(4, 4, 0);
+        assertEquals("<c/><b/><a/>", readAll(table));
+        
+        // Only original-file pieces: nothing was copied into the add buffer
+        assertTrue(table.getPieces().stream().allMatch(PieceTable.Piece::isOriginal));
+        assertThrows(IllegalArgumentException.class, () -> table.move(0, 8, 4));
+    }
+
+    @Test
+    void testCopyAcrossEditedPieces() throws IOException {
+        File file = createTempFile("<a/><b/>");
+        PieceTable table = new PieceTable(file);
+        table.insert(4, "<x/>");
+        
+        table.copy(2, 8, 12);
+        assertEquals("<a/><x/><b/>/><x/><b", readAll(table));
+        assertEquals(20, table.getLength());
+        assertEquals("<x/><b/>/>", table.getRange(4, 10));
+    }
+
+    @Test
+    void testDocumentComposedFromSeveralFiles() throws IOException {
+        File first = tempDir.resolve("first.xml").toFile();
+        File second = tempDir.resolve("second.xml").toFile();
+        Files.writeString(first.toPath(), "<a><r>1</r><r>2</r></a>");
+        Files.writeString(second.toPath(), "<b><r>3</r><r>4</r></b>");
+        
+        PieceTable table = new PieceTable();
+        table.insert(0, "<root>");
+        table.appendRange(second, 3, 8);   // <r>3</r>
+        table.appendRange(first, 3, 16);   // <r>1</r><r>2</r>
+        table.appendRange(second, 11, 8);  // <r>4</r>
+        table.insert(table.getLength(), "</root>");
+        
+        String expected = "<root><r>3</r><r>1</r><r>2</r><r>4</r></root>";
+        assertEquals(expected, readAll(table));
+        assertEquals(2, table.getSources().size());
+        assertEquals(1, table.getPieces().stream().filter(p -> p.source() == 1).count());
+        assertThrows(IllegalArgumentException.class, () -> table.appendRange(first, 20, 10));
+        
+        // Indexing and validation read the sources in place
+        FragmentIndex index = new FragmentIndex();
+        try (InputStream in = table.getInputStream()) {
+            new StreamingIndexer(index).indexStream(in);
+        }
+        assertEquals(4, index.size());
+        assertEquals("<r>1</r>", table.getRange(index.getFragment(1).getStartOffset(), index.getFragment(1).getLength()));
+        assertTrue(new LargeXmlValidator().validateDocument(table, null).isSuccess());
+        
+        // Bytes are only written on save
+        File output = tempDir.resolve("composed.xml").toFile();
+        assertEquals(expected.length(), table.writeTo(output));
+        assertEquals(expected, Files.readString(output.toPath()));
+    }
+
+    @Test
+    void testEditsInsideSecondSourceKeepTheirSource() throws IOException {
+        File file = createTempFile("AAAAAAAAAA");
+        File other = tempDir.resolve("other.txt").toFile();
+        Files.writeString(other.toPath(), "0123456789");
+        PieceTable table = new PieceTable(file);
+        table.appendRange(other, 0, 10);
+
+        // Split, trim and slice pieces of the second file
+        table.insert(15, "-");
+        assertEquals("AAAAAAAAAA01234-56789", readAll(table));
+        table.delete(10, 2);
+        assertEquals("AAAAAAAAAA234-56789", readAll(table));
+        table.move(12, 3, 0);
+        assertEquals("4-5AAAAAAAAAA236789", readAll(table));
+        table.copy(15, 2, 3);
+        assertEquals("4-567AAAAAAAAAA236789", readAll(table));
+
+        File output = tempDir.resolve("edited.txt").toFile();
+        table.writeTo(output);
+        assertEquals("4-567AAAAAAAAAA236789", Files.readString(output.toPath()));
+    }
+
     // --- Helpers ---
 
     private File createTempFile(String content) throws IOException {
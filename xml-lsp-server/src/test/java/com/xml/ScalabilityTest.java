@@ -312,4 +312,61 @@ public class ScalabilityTest {
         
         System.out.println("100GB file test passed!");
     }
+
+    // =========================================================================
+    // Direct I/O benchmark (Disabled by default - for manual testing)
+    // =========================================================================
+
+    /**
+     * Latency of random getFragment calls while a full scan runs, with and without O_DIRECT.
+     * Meaningful numbers need a file larger than the free page cache:
+     * {@code mvn test -Dtest=ScalabilityTest#benchmarkFragmentLatencyDuringFullScan -Dbench.sizeMb=20000}
+     */
+    @Test
+    @Disabled("Manual benchmark - requires a file larger than the page cache")
+    void benchmarkFragmentLatencyDuringFullScan() throws Exception {
+        long targetSize = Long.getLong("bench.sizeMb", 2048) * 1024 * 1024;
+        File xmlFile = tempDir.resolve("bench.xml").toFile();
+        try (java.io.BufferedWriter out = Files.newBufferedWriter(xmlFile.toPath())) {
+            out.write("<?xml version=\"1.0\"?>\n<root>\n");
+            long written = 0;
+            for (int i = 0; written < targetSize; i++) {
+                String item = "  <item id=\"" + i + "\"><v>" + "x".repeat(200) + "</v></item>\n";
+                out.write(item);
+                written += item.length();
+            }
+            out.write("</root>\n");
+        }
+
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(xmlFile);
+        java.util.Random random = new java.util.Random(1);
+
+        for (boolean direct : new boolean[] { false, true }) {
+            com.xml.services.FragmentManager fragments = new com.xml.services.FragmentManager(xmlFile);
+            StreamingIndexer scanner = new StreamingIndexer(new FragmentIndex());
+            scanner.setDirectIo(direct);
+            Thread scan = new Thread(() -> scanner.indexFile(xmlFile));
+
+            java.util.List<Long> latencies = new java.util.ArrayList<>();
+            long scanStart = System.nanoTime();
+            scan.start();
+            while (scan.isAlive()) {
+                FragmentMetadata fragment = index.getFragment(random.nextInt(index.size()));
+                fragments.clearCache();
+                long t0 = System.nanoTime();
+                fragments.getFragmentContent(fragment);
+                latencies.add(System.nanoTime() - t0);
+            }
+            long scanMs = (System.nanoTime() - scanStart) / 1_000_000;
+
+            java.util.Collections.sort(latencies);
+            System.out.printf("%s scan: %d ms, getFragment p50=%d us p99=%d us max=%d us (%d calls)%n",
+                    direct ? "O_DIRECT" : "buffered", scanMs,
+                    latencies.get(latencies.size() / 2) / 1000,
+                    latencies.get(latencies.size() * 99 / 100) / 1000,
+                    latencies.get(latencies.size() - 1) / 1000,
+                    latencies.size());
+        }
+    }
 }
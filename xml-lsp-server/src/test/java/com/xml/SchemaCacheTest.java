@@ -0,0 +1,144 @@
+package com.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.xml.validation.Schema;
+
+import org.apache.xerces.xs.XSModel;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.SchemaCache;
+import com.xml.handlers.Validators;
+import com.xml.models.ErrorCollector;
+
+/**
+ * Tests du cache des schémas compilés : réutilisation, invalidation par les documents importés
+ * ou inclus, et bornes mémoire.
+ */
+public class SchemaCacheTest {
+
+    private Path tempDir;
+    private File mainXsd;
+    private File typesXsd;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("schema-cache-test");
+        Files.createDirectories(tempDir.resolve("common"));
+        typesXsd = tempDir.resolve("common/types.xsd").toFile();
+        writeTypes("10");
+        Files.writeString(tempDir.resolve("common/units.xsd"),
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"urn:units\">\n"
+                + "  <xs:simpleType name=\"unit\"><xs:restriction base=\"xs:string\"/></xs:simpleType>\n"
+                + "</xs:schema>\n");
+        mainXsd = tempDir.resolve("main.xsd").toFile();
+        Files.writeString(mainXsd.toPath(),
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" xmlns:u=\"urn:units\">\n"
+                + "  <xs:include schemaLocation=\"common/types.xsd\"/>\n"
+                + "  <xs:import namespace=\"urn:units\" schemaLocation=\"common/units.xsd\"/>\n"
+                + "  <xs:element name=\"root\"><xs:complexType><xs:sequence>\n"
+                + "    <xs:element name=\"v\" type=\"small\" maxOccurs=\"unbounded\"/>\n"
+                + "  </xs:sequence></xs:complexType></xs:element>\n"
+                + "</xs:schema>\n");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testSchemaIsCompiledOnceAndRecompiledWhenIncludeChanges() throws Exception {
+        SchemaCache cache = new SchemaCache(8, Long.MAX_VALUE);
+        Schema first = cache.getSchema(mainXsd);
+        assertSame(first, cache.getSchema(mainXsd));
+        assertEquals(1, cache.getCompilationCount());
+
+        // Modification d'un document inclus : recompilation au prochain accès
+        writeTypes("5");
+        assertTrue(typesXsd.setLastModified(typesXsd.lastModified() + 2000));
+        Schema second = cache.getSchema(mainXsd);
+        assertNotSame(first, second);
+        assertEquals(2, cache.getCompilationCount());
+
+        // Invalidation explicite par une dépendance importée
+        cache.invalidate(tempDir.resolve("common/units.xsd").toFile());
+        assertEquals(0, cache.size());
+        cache.invalidate(tempDir.resolve("unrelated.xsd").toFile());
+        cache.getSchema(mainXsd);
+        assertEquals(3, cache.getCompilationCount());
+    }
+
+    @Test
+    void testValidatorsUseTheUpdatedSchema() throws IOException {
+        File xml = tempDir.resolve("doc.xml").toFile();
+        Files.writeString(xml.toPath(), "<root><v>7</v></root>");
+
+        ErrorCollector collector = new ErrorCollector();
+        new Validators(collector).validate(xml, mainXsd);
+        assertTrue(collector.getErrors().isEmpty());
+
+        writeTypes("5");
+        assertTrue(typesXsd.setLastModified(typesXsd.lastModified() + 2000));
+        ErrorCollector after = new ErrorCollector();
+        new Validators(after).validate(xml, mainXsd);
+        assertFalse(after.getErrors().isEmpty());
+    }
+
+    @Test
+    void testCacheIsBounded() throws Exception {
+        SchemaCache cache = new SchemaCache(2, Long.MAX_VALUE);
+        for (int i = 0; i < 4; i++) {
+            File xsd = tempDir.resolve("s" + i + ".xsd").toFile();
+            Files.writeString(xsd.toPath(), "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">"
+                    + "<xs:element name=\"e" + i + "\" type=\"xs:string\"/></xs:schema>");
+            cache.getSchema(xsd);
+        }
+        assertEquals(2, cache.size());
+
+        // Borne en taille : seul le dernier schéma compilé est conservé
+        SchemaCache small = new SchemaCache(8, 1);
+        small.getSchema(mainXsd);
+        small.getSchema(tempDir.resolve("s0.xsd").toFile());
+        assertEquals(1, small.size());
+    }
+
+    @Test
+    void testModelComesFromTheCompiledSchema() throws Exception {
+        SchemaCache cache = new SchemaCache(8, Long.MAX_VALUE);
+        XSModel model = cache.getModel(mainXsd);
+        assertNotNull(model.getElementDeclaration("root", null));
+        assertNotNull(model.getTypeDefinition("unit", "urn:units"));
+        assertSame(model, cache.getModel(mainXsd));
+        assertEquals(1, cache.getCompilationCount());
+
+        // Le modèle suit la version du schéma
+        writeTypes("5");
+        assertTrue(typesXsd.setLastModified(typesXsd.lastModified() + 2000));
+        assertNotSame(model, cache.getModel(mainXsd));
+        assertEquals(2, cache.getCompilationCount());
+    }
+
+    private void writeTypes(String max) throws IOException {
+        Files.writeString(tempDir.resolve("common/types.xsd"),
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">\n"
+                + "  <xs:simpleType name=\"small\"><xs:restriction base=\"xs:int\">"
+                + "<xs:maxInclusive value=\"" + max + "\"/></xs:restriction></xs:simpleType>\n"
+                + "</xs:schema>\n");
+    }
+}
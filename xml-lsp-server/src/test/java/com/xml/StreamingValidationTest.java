@@ -139,6 +139,34 @@ public class StreamingValidationTest {
         assertTrue(result.getErrors().size() >= 1, "Should detect at least some errors");
     }
 
+    @Test
+    void testSinglePassReportsSchemaAndStructureErrors() throws IOException {
+        File xsdFile = tempDir.resolve("items.xsd").toFile();
+        Files.writeString(xsdFile.toPath(),
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">\n"
+                + "  <xs:element name=\"root\"><xs:complexType><xs:sequence>\n"
+                + "    <xs:element name=\"item\" type=\"xs:int\" maxOccurs=\"unbounded\"/>\n"
+                + "  </xs:sequence></xs:complexType></xs:element>\n"
+                + "</xs:schema>\n");
+        File xmlFile = tempDir.resolve("items.xml").toFile();
+        Files.writeString(xmlFile.toPath(), "<?xml version=\"1.0\"?>\n<root>\n  <item>1</item>\n"
+                + "  <item>deux</item>\n  <item>3</item>\n</root>\n");
+
+        // Erreur de schéma rapportée à sa ligne, sans seconde lecture du document
+        ValidationResult result = validator.validate(xmlFile, xsdFile);
+        assertFalse(result.isSuccess());
+        assertEquals(1, result.getErrors().stream().map(e -> e.getLineNumber()).distinct().count());
+        assertEquals(4, result.getErrors().get(0).getLineNumber());
+
+        // Document patché mal formé : seules les erreurs de structure sont rapportées (mode strict)
+        String content = Files.readString(xmlFile.toPath());
+        int close = content.indexOf("</item>", content.indexOf("<item>3"));
+        patchManager.addPatch(new Patch(close, close + "</item>".length(), "", PatchType.DELETE, null));
+        ValidationResult patched = validator.validateWithPatches(xmlFile, xsdFile, patchManager);
+        assertFalse(patched.isSuccess());
+        assertTrue(patched.getErrors().stream().noneMatch(e -> e.getType().startsWith("VALIDATION")));
+    }
+
     @Test
     void testPatchedInputStreamAccuracy() throws IOException {
         // Create a test file
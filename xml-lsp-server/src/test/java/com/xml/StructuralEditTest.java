@@ -0,0 +1,160 @@
+package com.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.PatchedInputStream;
+import com.xml.handlers.StreamingIndexer;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.Patch;
+import com.xml.models.PatchType;
+import com.xml.services.FileSaver;
+import com.xml.services.FragmentManager;
+import com.xml.services.PatchJournal;
+import com.xml.services.PatchManager;
+import com.xml.services.PatchedFragmentManager;
+
+/**
+ * Tests des éditions structurelles (déplacer, dupliquer, supprimer des fragments) : le contenu
+ * déplacé reste une référence vers le fichier original jusqu'à la sauvegarde.
+ */
+public class StructuralEditTest {
+
+    private Path tempDir;
+    private File xmlFile;
+    private String content;
+    private FragmentIndex index;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("structural-edit-test");
+        xmlFile = tempDir.resolve("doc.xml").toFile();
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<root>\n");
+        for (int i = 0; i < 20; i++) {
+            xml.append("  <item id=\"").append(i).append("\"><v>").append(i).append("</v></item>\n");
+        }
+        xml.append("</root>\n");
+        content = xml.toString();
+        Files.writeString(xmlFile.toPath(), content);
+
+        index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(xmlFile);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testMoveDuplicateAndDeleteReferenceOriginalBytes() throws IOException {
+        PatchManager manager = new PatchManager();
+        PatchedFragmentManager fragments = new PatchedFragmentManager(xmlFile, manager, index);
+        String item2 = item(2);
+        String item5 = item(5);
+        String item7 = item(7);
+
+        fragments.moveFragment(id(2), id(5), true);
+        fragments.duplicateFragment(id(7));
+        fragments.deleteFragments(List.of(id(10), id(11), id(10)));
+
+        String expected = content.replace(item2, "")
+                .replace(item5, item5 + item2)
+                .replace(item7, item7 + item7)
+                .replace(item(10), "").replace(item(11), "");
+        assertEquals(expected, patched(manager));
+
+        // Les payloads sont des plages du fichier, pas des copies
+        long references = manager.getAllPatchesSorted().stream().filter(Patch::isSourceRange).count();
+        assertEquals(2, references);
+
+        // Le fragment déplacé est vide à son ancienne position, sa copie apparaît dans le suivant
+        assertEquals("", fragments.getFragmentContent(fragment(2)));
+        assertEquals("", fragments.getFragmentContent(fragment(10)));
+        assertEquals(item5, fragments.getFragmentContent(fragment(5)));
+
+        // Sauvegarde sur place : le fichier est réécrit, l'index mis à jour sans re-scan complet
+        new FileSaver().saveWithPatches(xmlFile, xmlFile, index, manager);
+        assertEquals(expected, Files.readString(xmlFile.toPath()));
+        FragmentIndex reindexed = new FragmentIndex();
+        new StreamingIndexer(reindexed).indexFile(xmlFile);
+        assertEquals(reindexed.size(), index.size());
+    }
+
+    @Test
+    void testInvalidStructuralEditsAreRejected() throws IOException {
+        PatchManager manager = new PatchManager();
+        PatchedFragmentManager fragments = new PatchedFragmentManager(xmlFile, manager, index);
+        // Déplacer un fragment à côté de lui-même ne produit aucun patch
+        fragments.moveFragment(id(3), id(3), true);
+        assertEquals(0, manager.getPatchCount());
+
+        // Un fragment modifié ne peut pas être référencé
+        FragmentMetadata f4 = fragment(4);
+        manager.addPatch(new Patch(f4.getStartOffset() + 2, f4.getStartOffset() + 6, "ITEM", PatchType.REPLACE, f4.getId()));
+        assertThrows(IllegalStateException.class, () -> fragments.duplicateFragment(id(4)));
+        assertThrows(IllegalArgumentException.class, () -> fragments.duplicateFragment("frag_9999"));
+        assertEquals(1, manager.getPatchCount());
+    }
+
+    @Test
+    void testSourceRangePatchesSurviveJournalReplay() throws IOException {
+        PatchManager manager = new PatchManager(tempDir, PatchJournal.FsyncPolicy.ALWAYS);
+        new PatchedFragmentManager(xmlFile, manager, index).moveFragment(id(1), id(8), false);
+        String expected = patched(manager);
+        manager.close();
+
+        PatchManager reloaded = new PatchManager(tempDir);
+        assertEquals(2, reloaded.getPatchCount());
+        Patch insert = reloaded.getAllPatchesSorted().get(1);
+        assertTrue(insert.isSourceRange());
+        assertEquals(xmlFile.toPath(), insert.getSourceFile());
+        assertEquals(expected, patched(reloaded));
+        assertEquals(content.replace(item(1), "").replace(item(8), item(1) + item(8)), expected);
+        reloaded.close();
+    }
+
+    private String patched(PatchManager manager) throws IOException {
+        try (InputStream in = new PatchedInputStream(xmlFile, manager.getAllPatchesSorted())) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private String item(int i) {
+        return "<item id=\"" + i + "\"><v>" + i + "</v></item>";
+    }
+
+    private String id(int i) throws IOException {
+        return fragment(i).getId();
+    }
+
+    /**
+     * Fragment dont le contenu original est l'item i.
+     */
+    private FragmentMetadata fragment(int i) throws IOException {
+        FragmentManager original = new FragmentManager(xmlFile);
+        String expected = "<item id=\"" + i + "\">";
+        for (FragmentMetadata f : index.getAllFragments()) {
+            if (original.getFragmentContent(f).startsWith(expected)) {
+                return f;
+            }
+        }
+        throw new IllegalStateException("item " + i + " absent de l'index");
+    }
+}
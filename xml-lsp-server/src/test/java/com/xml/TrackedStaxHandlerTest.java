@@ -0,0 +1,146 @@
+package com.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.LargeXmlValidator;
+import com.xml.handlers.StreamingIndexer;
+import com.xml.handlers.TrackedStaxHandler;
+import com.xml.models.ErrorCollector;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata;
+import com.xml.models.Patch;
+import com.xml.models.PatchType;
+import com.xml.models.XMLError;
+import com.xml.services.PatchManager;
+
+/**
+ * Tests des positions relevées par le curseur Woodstox : étendue exacte de la balise fautive,
+ * en ligne/colonne et en octets, y compris après des caractères multi-octets ; reprise de
+ * l'analyse à l'enregistrement suivant après une erreur fatale, avec ou sans patchs.
+ */
+public class TrackedStaxHandlerTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("tracked-stax-test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testUnclosedTagCarriesExactByteRange() {
+        String prefix = "﻿<root>\n  <é>ü 😀</é>\n  ";
+        String tag = "<item a=\"ñ\">";
+        byte[] bytes = (prefix + tag + "\n</root>\n").getBytes(StandardCharsets.UTF_8);
+
+        List<XMLError> errors = parse(bytes);
+        assertEquals(1, errors.size());
+        XMLError error = errors.get(0);
+        assertEquals("STRUCTURE", error.getType());
+        assertEquals(3, error.getLineNumber());
+        assertEquals(3, error.getColumn());
+        assertEquals(3, error.getPreciseStartColumn());
+        assertEquals(3 + tag.length(), error.getPreciseEndColumn());
+
+        long start = prefix.getBytes(StandardCharsets.UTF_8).length;
+        assertEquals(start, error.getStartOffset());
+        assertEquals(start + tag.getBytes(StandardCharsets.UTF_8).length, error.getEndOffset());
+    }
+
+    @Test
+    void testOtherEncodingsKeepLineAndColumn() {
+        byte[] bytes = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<root>é\n  <item>\n</root>\n"
+                .getBytes(StandardCharsets.ISO_8859_1);
+
+        List<XMLError> errors = parse(bytes);
+        assertEquals(1, errors.size());
+        assertEquals(3, errors.get(0).getLineNumber());
+        assertEquals(3, errors.get(0).getPreciseStartColumn());
+        assertEquals(-1, errors.get(0).getStartOffset());
+    }
+
+    @Test
+    void testInvalidUtf8IsReportedAsSyntaxError() {
+        byte[] bytes = {'<', 'r', '>', (byte) 0xC3, '(', '<', '/', 'r', '>'};
+
+        List<XMLError> errors = parse(bytes);
+        assertFalse(errors.isEmpty());
+        assertTrue(errors.get(0).getMessage().contains("UTF-8"));
+    }
+
+    private static List<XMLError> parse(byte[] bytes) {
+        ErrorCollector collector = new ErrorCollector();
+        new TrackedStaxHandler(collector).parse(new ByteArrayInputStream(bytes));
+        return collector.getErrors();
+    }
+
+    @Test
+    void testFatalErrorsResumeAtNextRecord() throws Exception {
+        // Lignes 2 à 101 : un enregistrement par ligne ; erreurs fatales qui laissent les balises
+        // équilibrées (l'index reste fiable)
+        StringBuilder xml = new StringBuilder("<items>\n");
+        for (int i = 0; i < 100; i++) {
+            if (i == 10) {
+                xml.append("  <item a=\"1\" a=\"2\">10</item>\n");
+            } else if (i == 40) {
+                xml.append("  <item id=x>40</item>\n");
+            } else if (i == 70) {
+                xml.append("  <item>é &bad; 70</item>\n");
+            } else {
+                xml.append("  <item>").append(i).append("</item>\n");
+            }
+        }
+        xml.append("</items>\n");
+        File file = tempDir.resolve("items.xml").toFile();
+        Files.writeString(file.toPath(), xml);
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(file);
+
+        List<XMLError> errors = new LargeXmlValidator().validateIncremental(file, null, index, null, 1).getErrors();
+        assertEquals(List.of(12, 42, 72), lines(errors));
+        assertTrue(errors.get(1).getColumn() > 1, "Colonne dans le document, pas dans le flux relu");
+
+        // Même reprise pour un flux patché : le premier enregistrement cassé est réparé, un autre est
+        // cassé (balise non fermée : étendue exacte, en coordonnées du document patché)
+        PatchManager patchManager = new PatchManager(tempDir);
+        FragmentMetadata broken = index.getFragment(10);
+        patchManager.addPatch(new Patch(broken.getStartOffset(), broken.getEndOffset(),
+                "<item>\n    fixed\n  </item>", PatchType.REPLACE, broken.getId()));
+        FragmentMetadata later = index.getFragment(90);
+        patchManager.addPatch(new Patch(later.getStartOffset(), later.getEndOffset(),
+                "<item><b></item>", PatchType.REPLACE, later.getId()));
+        List<XMLError> patched = new LargeXmlValidator().validateIncremental(file, null, index, patchManager, 1).getErrors();
+        assertEquals(List.of(44, 74, 94), lines(patched));
+        XMLError unclosed = patched.stream().filter(e -> e.getLineNumber() == 94).findFirst().orElseThrow();
+        assertTrue(unclosed.getMessage().contains("<b>"), unclosed.getMessage());
+        assertEquals(9, unclosed.getPreciseStartColumn());
+        assertEquals(12, unclosed.getPreciseEndColumn());
+        patchManager.clearAll();
+    }
+
+    private static List<Integer> lines(List<XMLError> errors) {
+        return errors.stream().map(XMLError::getLineNumber).sorted().collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,125 @@
+package com.xml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.FragmentValidationCache;
+import com.xml.handlers.LargeXmlValidator;
+import com.xml.handlers.ParallelSchemaValidator;
+import com.xml.handlers.SchemaCache;
+import com.xml.handlers.StreamingIndexer;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata.FragmentStatus;
+import com.xml.models.ValidationResult;
+import com.xml.models.XMLError;
+import com.xml.services.ValidationResultStore;
+
+/**
+ * Tests de la persistance des résultats de validation : restauration à la réouverture d'un
+ * fichier inchangé, résultats par enregistrement réutilisés, état périmé quand le schéma change.
+ */
+public class ValidationResultStoreTest {
+
+    private Path tempDir;
+    private File xml;
+    private File xsd;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("validation-store-test");
+        xsd = tempDir.resolve("items.xsd").toFile();
+        writeSchema("xs:int");
+        StringBuilder content = new StringBuilder("<items>\n");
+        for (int i = 0; i < 50; i++) {
+            content.append("  <item>").append(i == 20 ? "twenty" : String.valueOf(i)).append("</item>\n");
+        }
+        content.append("</items>\n");
+        xml = tempDir.resolve("items.xml").toFile();
+        Files.writeString(xml.toPath(), content);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testUnchangedFileIsRestoredWithoutRevalidation() throws Exception {
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(xml);
+        LargeXmlValidator validator = new LargeXmlValidator();
+        ValidationResult result = validator.validateIncremental(xml, xsd, index, null, 2);
+        assertFalse(result.isSuccess());
+
+        ValidationResultStore store = new ValidationResultStore(tempDir);
+        store.save(xml, SchemaCache.shared().getFingerprint(xsd), result, index, validator.getResultCache());
+
+        // Nouvelle session : index reconstruit, cache vide
+        FragmentIndex reopened = new FragmentIndex();
+        new StreamingIndexer(reopened).indexFile(xml);
+        FragmentValidationCache cache = new FragmentValidationCache();
+        ValidationResult restored = store.load(xml, SchemaCache.shared().getFingerprint(xsd), reopened, cache);
+        assertNotNull(restored);
+        assertEquals(result.getErrors().size(), restored.getErrors().size());
+        XMLError original = result.getErrors().get(0);
+        XMLError reloaded = restored.getErrors().get(0);
+        assertEquals(original.getLineNumber(), reloaded.getLineNumber());
+        assertEquals(original.getPreciseRangeJson(), reloaded.getPreciseRangeJson());
+        assertEquals(original.getStartOffset(), reloaded.getStartOffset());
+        assertEquals(original.getEndOffset(), reloaded.getEndOffset());
+        assertEquals(FragmentStatus.INVALID, reopened.getFragment(20).getStatus());
+        assertEquals(FragmentStatus.VALID, reopened.getFragment(19).getStatus());
+
+        // Revalidation : tous les enregistrements viennent du cache restauré
+        new ParallelSchemaValidator(2).validate(xml, xsd, reopened, List.of(), cache);
+        assertEquals(reopened.size(), cache.getHitCount());
+    }
+
+    @Test
+    void testSchemaChangeInvalidatesStoredResult() throws Exception {
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(xml);
+        LargeXmlValidator validator = new LargeXmlValidator();
+        ValidationResult result = validator.validateIncremental(xml, xsd, index, null, 2);
+        ValidationResultStore store = new ValidationResultStore(tempDir);
+        store.save(xml, SchemaCache.shared().getFingerprint(xsd), result, index, validator.getResultCache());
+
+        writeSchema("xs:string");
+        xsd.setLastModified(xsd.lastModified() + 2000);
+        FragmentIndex reopened = new FragmentIndex();
+        new StreamingIndexer(reopened).indexFile(xml);
+        assertNull(store.load(xml, SchemaCache.shared().getFingerprint(xsd), reopened, new FragmentValidationCache()));
+        assertEquals(FragmentStatus.UNKNOWN, reopened.getFragment(20).getStatus());
+
+        // Un état corrompu est ignoré
+        File stored = tempDir.resolve(".xml-massive-lsp/validation").toFile().listFiles()[0];
+        byte[] bytes = Files.readAllBytes(stored.toPath());
+        bytes[bytes.length / 2] ^= 0x5A;
+        Files.write(stored.toPath(), bytes);
+        assertNull(store.load(xml, "", reopened, new FragmentValidationCache()));
+    }
+
+    private void writeSchema(String itemType) throws IOException {
+        Files.writeString(xsd.toPath(),
+                "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\">\n"
+                + "  <xs:element name=\"items\"><xs:complexType><xs:sequence>\n"
+                + "    <xs:element ref=\"item\" maxOccurs=\"unbounded\"/>\n"
+                + "  </xs:sequence></xs:complexType></xs:element>\n"
+                + "  <xs:element name=\"item\" type=\"" + itemType + "\"/>\n"
+                + "</xs:schema>\n");
+    }
+}
@@ -0,0 +1,235 @@
+package com.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.xml.handlers.StreamingIndexer;
+import com.xml.handlers.TrackedStaxHandler;
+import com.xml.handlers.WellFormednessChecker;
+import com.xml.models.ErrorCollector;
+import com.xml.models.FragmentIndex;
+import com.xml.models.FragmentMetadata.FragmentStatus;
+import com.xml.models.XMLError;
+
+/**
+ * Tests de la vérification de bonne formation sur octets bruts : document valide découpé en
+ * nombreux segments, erreurs relevées à l'octet près dans chaque enregistrement, fermeture de la
+ * racine vérifiée à la fusion des segments.
+ */
+public class WellFormednessCheckerTest {
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("well-formedness-test");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.walk(tempDir)
+                .map(Path::toFile)
+                .sorted((o1, o2) -> -o1.compareTo(o2))
+                .forEach(File::delete);
+    }
+
+    @Test
+    void testWellFormedDocumentAcrossSegments() throws IOException {
+        StringBuilder xml = new StringBuilder("﻿<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!-- début -->\n<?style type=\"x\"?>\n<catalogue xmlns:p=\"urn:p\">\n");
+        for (int i = 0; i < 200; i++) {
+            xml.append("  <article id='").append(i).append("' nom=\"a &amp; b &#233; &#x1F600;\">")
+                    .append("<p:désignation>Élément ").append(i).append(" 😀 &lt;x&gt;</p:désignation>")
+                    .append("<![CDATA[<pas une balise> ]] >]]>")
+                    .append("<!-- - note -->")
+                    .append("<vide/></article>\n");
+        }
+        xml.append("</catalogue>\n<!-- fin -->\n");
+        File file = write(xml.toString().getBytes(StandardCharsets.UTF_8));
+        FragmentIndex index = index(file);
+
+        List<XMLError> errors = new WellFormednessChecker(4, 512).check(file, index);
+        assertTrue(errors.isEmpty(), () -> errors.toString());
+        assertEquals(0, parse(file).size());
+        assertEquals(0, index.getAllFragments().stream()
+                .filter(f -> f.getStatus() == FragmentStatus.MALFORMED).count());
+    }
+
+    @Test
+    void testErrorsReportedAtExactByteOffsetInEachRecord() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes("<?xml version=\"1.0\"?>\n<root>\n".getBytes(StandardCharsets.UTF_8));
+        String[] faults = {
+                "<item id=\"1\" id=\"2\">é</item>",
+                "<item>x &nbsp; y</item>",
+                "<item>a ]]> b</item>",
+                "<item>\u0001</item>",
+                "<item><!-- a -- b --></item>"
+        };
+        long[] offsets = new long[faults.length];
+        int[] lines = new int[faults.length];
+        String[] markers = {"id=\"2\"", "&nbsp;", "]", "\u0001", "<!--"};
+        int fault = 0;
+        for (int i = 1; i <= 100; i++) {
+            String record = i % 20 == 10 ? faults[fault] : "<item n=\"" + i + "\">ü</item>";
+            if (i % 20 == 10) {
+                String marker = markers[fault];
+                int at = record.indexOf(marker);
+                if (marker.equals("]")) {
+                    at = record.indexOf("]]>");
+                }
+                offsets[fault] = out.size() + 2 + record.substring(0, at).getBytes(StandardCharsets.UTF_8).length;
+                lines[fault] = i + 2;
+                fault++;
+            }
+            out.writeBytes(("  " + record + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        // Octet 0xFF : UTF-8 invalide
+        long invalidOffset = out.size() + 8;
+        out.writeBytes("  <item>".getBytes(StandardCharsets.UTF_8));
+        out.write(0xFF);
+        out.writeBytes("</item>\n</root>\n".getBytes(StandardCharsets.UTF_8));
+        File file = write(out.toByteArray());
+        FragmentIndex index = index(file);
+
+        List<XMLError> errors = new WellFormednessChecker(4, 256).check(file, index);
+        assertEquals(faults.length + 1, errors.size(), () -> errors.toString());
+        for (int f = 0; f < faults.length; f++) {
+            XMLError error = errors.get(f);
+            assertEquals(offsets[f], error.getStartOffset(), error.getMessage());
+            assertEquals(lines[f], error.getLineNumber(), error.getMessage());
+            assertTrue(error.getColumn() > 1);
+        }
+        assertTrue(errors.get(0).getMessage().contains("en double"));
+        assertTrue(errors.get(1).getMessage().contains("&nbsp;"));
+        XMLError invalid = errors.get(faults.length);
+        assertEquals(invalidOffset, invalid.getStartOffset());
+        assertEquals(103, invalid.getLineNumber());
+        assertEquals(9, invalid.getColumn());
+
+        assertEquals(faults.length + 1, index.getAllFragments().stream()
+                .filter(f -> f.getStatus() == FragmentStatus.MALFORMED).count());
+        assertTrue(parse(file).size() > 0);
+    }
+
+    @Test
+    void testRootClosingCheckedAcrossSegments() throws IOException {
+        StringBuilder records = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            records.append("  <item>").append(i).append("</item>\n");
+        }
+
+        File mismatched = write(("<root>\n" + records + "</rot>\n").getBytes(StandardCharsets.UTF_8));
+        List<XMLError> errors = new WellFormednessChecker(2, 128).check(mismatched, index(mismatched));
+        assertEquals(1, errors.size());
+        assertEquals(52, errors.get(0).getLineNumber());
+        assertEquals("STRUCTURE", errors.get(0).getType());
+        assertTrue(errors.get(0).getMessage().contains("</rot>"));
+
+        File unclosed = write(("<root>\n" + records).getBytes(StandardCharsets.UTF_8));
+        errors = new WellFormednessChecker(2, 128).check(unclosed, index(unclosed));
+        assertEquals(1, errors.size());
+        assertEquals(1, errors.get(0).getLineNumber());
+        assertEquals(0, errors.get(0).getStartOffset());
+
+        File trailing = write(("<root>\n" + records + "</root>\n<autre/>\n").getBytes(StandardCharsets.UTF_8));
+        errors = new WellFormednessChecker(2, 128).check(trailing, index(trailing));
+        assertEquals(1, errors.size());
+        assertEquals(53, errors.get(0).getLineNumber());
+
+        File latin = write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><root/>".getBytes(StandardCharsets.ISO_8859_1));
+        assertNull(new WellFormednessChecker().check(latin, index(latin)));
+    }
+
+    @Test
+    void testXmlDeclarationAndNamespacesAgreeWithStax() throws IOException {
+        StringBuilder records = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            records.append("  <p:item xml:lang=\"fr\" p:n=\"").append(i).append("\"><q:x xmlns:q=\"urn:q\"/></p:item>\n");
+        }
+        String body = "<root xmlns:p=\"urn:p\">\n" + records + "</root>\n";
+        String[] rejected = {
+                "<?xml version1.0\" encoding=\"UTF-8\"?>\n" + body,
+                "<?xml?>\n" + body,
+                "<?xml version=\"1.&0\"?>\n" + body,
+                "<?xml encoding=\"UTF-8\" version=\"1.0\"?>\n" + body,
+                "<?xml version=\"1.0\" standalone=\"oui\"?>\n" + body,
+                body.replace(" xmlns:p=\"urn:p\"", ""),
+                body.replace("<q:x xmlns:q=\"urn:q\"/></p:item>\n  <p:item xml:lang=\"fr\" p:n=\"30\">",
+                        "<q:x xmlns:q=\"urn:q\"/></p:item>\n  <p:item xml:lang=\"fr\" p:n=\"30\"><q:y/>"),
+                body.replace("p:n=\"20\"", "p:n=\"20\" xmlns:r=\"urn:p\" r:n=\"x\""),
+                body.replace("p:n=\"40\"", "p:n=\"40\" a:b:c=\"x\""),
+                body.replace("<root ", "<root xmlns:xml=\"urn:autre\" ")
+        };
+        for (String xml : rejected) {
+            File file = write(xml.getBytes(StandardCharsets.UTF_8));
+            List<XMLError> errors = new WellFormednessChecker(4, 256).check(file, index(file));
+            assertTrue(!errors.isEmpty(), "checker: " + xml.substring(0, 60));
+            assertTrue(parse(file).size() > 0, "stax: " + xml.substring(0, 60));
+        }
+
+        // Préfixes déclarés sur la racine, vus depuis tous les segments
+        File valid = write(("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>\n" + body).getBytes(StandardCharsets.UTF_8));
+        List<XMLError> errors = new WellFormednessChecker(4, 256).check(valid, index(valid));
+        assertTrue(errors.isEmpty(), () -> errors.toString());
+        assertEquals(0, parse(valid).size());
+    }
+
+    @Test
+    void testSegmentStartingInsideProcessingInstruction() throws IOException {
+        StringBuilder xml = new StringBuilder("<root>\n");
+        for (int i = 0; i < 60; i++) {
+            if (i % 20 == 5) {
+                // L'indexeur termine l'instruction au premier '>' : les enregistrements suivants en font partie
+                xml.append("  <item>").append(i).append("<?pi a > </item>\n  <item>x</item>\n  <item>y</item> ?></item>\n");
+            } else {
+                xml.append("  <item>").append(i).append("</item>\n");
+            }
+        }
+        xml.append("</root>\n");
+        File file = write(xml.toString().getBytes(StandardCharsets.UTF_8));
+        assertEquals(0, parse(file).size());
+
+        for (long segmentBytes : new long[] {16, 40, 64, 200}) {
+            List<XMLError> errors = new WellFormednessChecker(4, segmentBytes).check(file, index(file));
+            assertTrue(errors.isEmpty(), () -> segmentBytes + " : " + errors);
+        }
+
+        // Une erreur après l'instruction reste signalée, à sa ligne
+        File broken = write(xml.toString().replace("<item>30</item>", "<item>30</itme>").getBytes(StandardCharsets.UTF_8));
+        List<XMLError> errors = new WellFormednessChecker(4, 16).check(broken, index(broken));
+        assertEquals(1, errors.size(), () -> errors.toString());
+        int line = (int) xml.substring(0, xml.indexOf("<item>30<")).chars().filter(c -> c == '\n').count() + 1;
+        assertEquals(line, errors.get(0).getLineNumber());
+    }
+
+    private File write(byte[] content) throws IOException {
+        File file = Files.createTempFile(tempDir, "doc", ".xml").toFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private FragmentIndex index(File file) throws IOException {
+        FragmentIndex index = new FragmentIndex();
+        new StreamingIndexer(index).indexFile(file);
+        return index;
+    }
+
+    private List<XMLError> parse(File file) {
+        ErrorCollector collector = new ErrorCollector();
+        new TrackedStaxHandler(collector).parse(file, false);
+        return collector.getErrors();
+    }
+}